@@ -21,11 +21,13 @@ import com.compomics.util.experiment.identification.identifications.Ms2Identific
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
 import com.compomics.util.experiment.identification.amino_acid_tags.Tag;
+import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
+import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.io.ConfigurationFile;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import eu.isas.peptideshaker.fileimport.FileImporter;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.messages.FeedBack;
@@ -43,12 +45,18 @@ import com.compomics.util.waiting.Duration;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.protein_inference.ProteinInference;
+import eu.isas.peptideshaker.protein_inference.ProteinPeptideGraph;
 import eu.isas.peptideshaker.ptm.PtmScorer;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
 import eu.isas.peptideshaker.scoring.psm_scoring.PsmScorer;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.PsmChunkProcessor;
+import eu.isas.peptideshaker.utils.SpectrumAnnotationCache;
+import eu.isas.peptideshaker.utils.StageScheduler;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 
 import java.io.File;
@@ -58,6 +66,10 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class will be responsible for the identification import and the
@@ -147,6 +159,19 @@ public class PeptideShaker {
      * List of warnings collected while working on the data.
      */
     private HashMap<String, FeedBack> warnings = new HashMap<String, FeedBack>();
+    /**
+     * The memory governor.
+     */
+    private final MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
+    /**
+     * The minimal number of spectra kept in cache by the spectrum factory
+     * when releasing memory.
+     */
+    private static final int MIN_SPECTRUM_CACHE_SIZE = 100;
+    /**
+     * The name of the spectrum annotation cache in the memory governor.
+     */
+    private static final String SPECTRUM_ANNOTATIONS = "spectrum annotations";
     /**
      * If true, a warning will be displayed when encountering memory issues.
      */
@@ -155,6 +180,10 @@ public class PeptideShaker {
      * Object used to monitor the duration of the project creation.
      */
     private Duration projectCreationDuration;
+    /**
+     * The number of identification files imported in parallel.
+     */
+    private int nFileThreads = 1;
 
     /**
      * Empty constructor for instantiation purposes.
@@ -225,15 +254,112 @@ public class PeptideShaker {
         waitingHandler.appendReportEndLine();
 
         objectsCache = new ObjectsCache();
-        objectsCache.setAutomatedMemoryManagement(true);
+        objectsCache.setAutomatedMemoryManagement(false);
+        registerMemoryConsumers();
 
         ProteomicAnalysis analysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
         analysis.addIdentificationResults(IdentificationMethod.MS2_IDENTIFICATION, new Ms2Identification(getIdentificationReference()));
 
         fileImporter = new FileImporter(this, waitingHandler, analysis, shotgunProtocol, identificationParameters, metrics);
+        fileImporter.setnFileThreads(nFileThreads);
         fileImporter.importFiles(idFiles, spectrumFiles, processingPreferences, spectrumCountingPreferences, projectDetails, backgroundThread);
     }
 
+    /**
+     * Registers the caches of the project and of the factories to the memory
+     * governor, replacing the caches of a previous project if any.
+     */
+    private void registerMemoryConsumers() {
+        memoryGovernor.registerMemoryConsumer("objects", new MemoryGovernor.MemoryConsumer() {
+            @Override
+            public boolean releaseMemory(double share) throws Exception {
+                if (objectsCache.isEmpty()) {
+                    return false;
+                }
+                objectsCache.reduceMemoryConsumption(share, null);
+                return true;
+            }
+        });
+        memoryGovernor.registerMemoryConsumer("protein tree components", new MemoryGovernor.MemoryConsumer() {
+            @Override
+            public boolean releaseMemory(double share) throws Exception {
+                ObjectsCache componentsCache = ProteinTreeComponentsFactory.getInstance().getCache();
+                if (componentsCache.isEmpty()) {
+                    return false;
+                }
+                componentsCache.reduceMemoryConsumption(share, null);
+                sequenceFactory.emptyCache();
+                return true;
+            }
+        });
+        memoryGovernor.registerMemoryConsumer("protein tree nodes", new MemoryGovernor.MemoryConsumer() {
+            @Override
+            public boolean releaseMemory(double share) throws Exception {
+                Object peptideMapper = sequenceFactory.getDefaultPeptideMapper();
+                if (peptideMapper instanceof ProteinTree) {
+                    ProteinTree proteinTree = (ProteinTree) peptideMapper;
+                    if (proteinTree.getNodesInCache() > 0) {
+                        proteinTree.reduceNodeCacheSize(share);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        memoryGovernor.registerMemoryConsumer("spectra", new MemoryGovernor.RestorableMemoryConsumer() {
+
+            /**
+             * The size of the spectrum cache before memory was released.
+             */
+            private int originalCacheSize = SpectrumFactory.getInstance().getCacheSize();
+
+            @Override
+            public boolean releaseMemory(double share) throws Exception {
+                SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+                int cacheSize = spectrumFactory.getCacheSize();
+                originalCacheSize = Math.max(originalCacheSize, cacheSize);
+                int newCacheSize = Math.max(MIN_SPECTRUM_CACHE_SIZE, (int) ((1 - share) * cacheSize));
+                if (newCacheSize >= cacheSize) {
+                    return false;
+                }
+                spectrumFactory.setCacheSize(newCacheSize);
+                return true;
+            }
+
+            @Override
+            public boolean restoreMemory() throws Exception {
+                SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+                int cacheSize = spectrumFactory.getCacheSize();
+                if (cacheSize >= originalCacheSize) {
+                    return false;
+                }
+                spectrumFactory.setCacheSize((int) Math.min(originalCacheSize, 2L * cacheSize));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of identification files imported in parallel.
+     *
+     * @return the number of identification files imported in parallel
+     */
+    public int getnFileThreads() {
+        return nFileThreads;
+    }
+
+    /**
+     * Sets the number of identification files imported in parallel. Note that
+     * every file is imported using the number of threads set in the
+     * processing preferences.
+     *
+     * @param nFileThreads the number of identification files imported in
+     * parallel
+     */
+    public void setnFileThreads(int nFileThreads) {
+        this.nFileThreads = nFileThreads;
+    }
+
     /**
      * Returns the object cache.
      *
@@ -277,6 +403,13 @@ public class PeptideShaker {
 
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
         identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, shotgunProtocol, identificationParameters, metrics, spectrumCountingPreferences);
+        final IdentificationFeaturesCache identificationFeaturesCache = identificationFeaturesGenerator.getIdentificationFeaturesCache();
+        memoryGovernor.registerMemoryConsumer("identification features", new MemoryGovernor.MemoryConsumer() {
+            @Override
+            public boolean releaseMemory(double share) {
+                return identificationFeaturesCache.reduceMemoryConsumption(share);
+            }
+        });
 
         if (!objectsCache.memoryCheck() && memoryWarning) {
             waitingHandler.appendReport("PeptideShaker is encountering memory issues! See http://compomics.github.io/projects/peptide-shaker.html for help.", true, true);
@@ -288,12 +421,19 @@ public class PeptideShaker {
             return;
         }
 
+        // the spectrum annotations are shared by the scoring and validation steps
+        SpectrumAnnotationCache spectrumAnnotationCache = new SpectrumAnnotationCache();
+        memoryGovernor.registerMemoryConsumer(SPECTRUM_ANNOTATIONS, spectrumAnnotationCache);
+        ptmScorer.setSpectrumAnnotationCache(spectrumAnnotationCache);
+        matchesValidator.setSpectrumAnnotationCache(spectrumAnnotationCache);
+
         PsmScoringPreferences psmScoringPreferences = identificationParameters.getPsmScoringPreferences();
 
         ArrayList<Integer> usedAlgorithms = projectDetails.getIdentificationAlgorithms();
         if (psmScoringPreferences.isScoringNeeded(usedAlgorithms)) {
 
             PsmScorer psmScorer = new PsmScorer();
+            psmScorer.setSpectrumAnnotationCache(spectrumAnnotationCache);
 
             waitingHandler.appendReport("Estimating PSM scores.", true, true);
             psmScorer.estimateIntermediateScores(identification, inputMap, processingPreferences, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler);
@@ -322,29 +462,27 @@ public class PeptideShaker {
             return;
         }
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Saving assumptions probabilities.", true, true);
-        } else {
+        if (!sequenceFactory.concatenatedTargetDecoy()) {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate assumptions probabilities.", true, true);
         }
-        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
+        String report = "Processing PSMs (assumptions probabilities, best peptide per spectrum and PTM scoring with D-score";
+        PTMScoringPreferences ptmScoringPreferences = identificationParameters.getPtmScoringPreferences();
+        if (ptmScoringPreferences.isProbabilitsticScoreCalculation()) {
+            report += " and " + ptmScoringPreferences.getSelectedProbabilisticScore().getName();
+        }
+        report += ").";
+        waitingHandler.appendReport(report, true, true);
+        BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
+        processPsms(identification, inputMap, bestMatchSelection, shotgunProtocol, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
         if (waitingHandler.isRunCanceled()) {
             return;
         }
-
-        waitingHandler.appendReport("Selecting best peptide per spectrum.", true, true);
-        BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
-        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, waitingHandler, shotgunProtocol, identificationParameters);
+        bestMatchSelection.completeSelection();
         IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
         if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
             matchesValidator.getPsmMap().clean(idMatchValidationPreferences.getDefaultPsmFDR() / 100);
         }
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        if (memoryGovernor.isMemoryCritical()) {
             metrics.clearSpectrumKeys();
         }
 
@@ -358,22 +496,6 @@ public class PeptideShaker {
             return;
         }
 
-        String report = "Scoring PTMs in PSMs (D-score";
-        PTMScoringPreferences ptmScoringPreferences = identificationParameters.getPtmScoringPreferences();
-        if (ptmScoringPreferences.isProbabilitsticScoreCalculation()) {
-            report += " and " + ptmScoringPreferences.getSelectedProbabilisticScore().getName();
-        }
-        report += ")";
-        waitingHandler.appendReport(report, true, true);
-        ptmScorer.scorePsmPtms(identification, waitingHandler, exceptionHandler, identificationParameters, metrics, processingPreferences);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-            metrics.clearSpectrumKeys();
-        }
-
         if (ptmScoringPreferences.isEstimateFlr()) {
             waitingHandler.appendReport("Thresholding PTM localizations.", true, true);
             PsmPTMMap psmPTMMap = ptmScorer.getPsmPTMMap();
@@ -397,20 +519,24 @@ public class PeptideShaker {
             }
         }
 
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        if (memoryGovernor.isMemoryCritical()) {
             metrics.clearSpectrumKeys();
         }
         waitingHandler.appendReport("Saving probabilities, building peptides and proteins.", true, true);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler); // @TODO: this is very slow if memory is full!!
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
+        identificationFeaturesGenerator.setProteinPeptideGraph(new ProteinPeptideGraph(identification, waitingHandler));
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
         ProteinInference proteinInference = new ProteinInference();
         if (identificationParameters.getProteinInferencePreferences().getSimplifyGroups()) {
             waitingHandler.appendReport("Simplifying protein groups.", true, true);
-            proteinInference.removeRedundantGroups(identification, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+            proteinInference.removeRedundantGroups(identification, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, processingPreferences.getnThreads(), waitingHandler, exceptionHandler);
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
@@ -451,7 +577,8 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Resolving protein inference issues, inferring peptide and protein PI status.", true, true); // could be slow
-        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), shotgunProtocol, identificationParameters, identificationFeaturesGenerator,
+                processingPreferences.getnThreads(), waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -486,6 +613,10 @@ public class PeptideShaker {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate FDRs.", true, true);
         }
         matchesValidator.validateIdentifications(identification, metrics, geneMaps, waitingHandler, exceptionHandler, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, inputMap, spectrumCountingPreferences, processingPreferences);
+        ptmScorer.setSpectrumAnnotationCache(null);
+        matchesValidator.setSpectrumAnnotationCache(null);
+        memoryGovernor.unregisterMemoryConsumer(SPECTRUM_ANNOTATIONS);
+        spectrumAnnotationCache.clear();
         waitingHandler.increasePrimaryProgressCounter();
         metrics.clearSpectrumKeys();
         if (waitingHandler.isRunCanceled()) {
@@ -493,14 +624,14 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Scoring PTMs in peptides.", true, true);
-        ptmScorer.scorePeptidePtms(identification, waitingHandler, identificationParameters);
+        ptmScorer.scorePeptidePtms(identification, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Scoring PTMs in proteins.", true, true);
-        ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
+        ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, exceptionHandler, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, processingPreferences);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -596,6 +727,7 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
      * @param processingPreferences the processing preferences
      * @param shotgunProtocol information on the protocol
      * @param identificationParameters the identification parameters
@@ -603,13 +735,16 @@ public class PeptideShaker {
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
+    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters) throws Exception {
         PeptideSpecificMap peptideMap = new PeptideSpecificMap();
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setPeptideMap(peptideMap);
         matchesValidator.setProteinMap(proteinMap);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
+        if (identificationFeaturesGenerator != null) {
+            identificationFeaturesGenerator.setProteinPeptideGraph(new ProteinPeptideGraph(identification, waitingHandler));
+        }
         matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
         peptideMap.clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         peptideMap.estimateProbabilities(waitingHandler);
@@ -618,7 +753,8 @@ public class PeptideShaker {
         proteinMap.estimateProbabilities(waitingHandler);
         matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
         ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator,
+                processingPreferences.getnThreads(), waitingHandler, exceptionHandler);
     }
 
     /**
@@ -662,157 +798,256 @@ public class PeptideShaker {
     }
 
     /**
-     * Attaches the spectrum posterior error probabilities to the peptide
-     * assumptions.
+     * Attaches the assumptions probabilities, selects the best match and
+     * scores the PTMs of the PSMs of every spectrum file. The files are
+     * processed in parallel and every file goes to the next step as soon as it
+     * is done with the previous one. The best match selection must be
+     * completed afterwards.
      *
-     * @param inputMap map of the input scores
-     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param identification the identification containing the matches
+     * @param inputMap the input map
+     * @param bestMatchSelection the best match selection
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * processing the matches
      */
-    private void attachAssumptionsProbabilities(InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler) throws Exception {
+    private void processPsms(final Identification identification, final InputMap inputMap, final BestMatchSelection bestMatchSelection,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
+            final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
 
-        Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
+        waitingHandler.setWaitingText("Processing PSMs. Please Wait...");
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.resetSecondaryProgressCounter();
+        waitingHandler.setMaxSecondaryProgressCounter(3 * identification.getSpectrumIdentificationSize());
+
+        final SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        final SpectrumAnnotationCache spectrumAnnotationCache = ptmScorer.getSpectrumAnnotationCache();
+        final HashMap<String, ArrayList<String>> ptmKeys = new HashMap<String, ArrayList<String>>();
+        int nThreads = processingPreferences.getnThreads();
+        final PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, nThreads);
+        StageScheduler stageScheduler = new StageScheduler(nThreads, waitingHandler, exceptionHandler);
+        StageScheduler.StageTask progressTask = new StageScheduler.StageTask() {
+            @Override
+            public void run() throws Exception {
+                waitingHandler.increasePrimaryProgressCounter();
+            }
+        };
+
+        ArrayList<String> assumptionsStages = new ArrayList<String>();
+        ArrayList<String> bestHitStages = new ArrayList<String>();
+        ArrayList<String> ptmStages = new ArrayList<String>();
+
+        for (final String spectrumFileName : identification.getSpectrumFiles()) {
+
+            // the assumptions of a file are processed by threads sharing the chunks of the file
+            final ArrayList<String> assumptionsKeys = PsmChunkProcessor.getSpectrumKeys(identification, spectrumFileName, null);
+            final AtomicInteger assumptionsIndex = new AtomicInteger();
+            String[] fileAssumptionsStages = new String[nThreads];
+            for (int i = 1; i <= nThreads; i++) {
+                String assumptionsStage = StageScheduler.getStageKey("assumptions" + i, spectrumFileName);
+                stageScheduler.addStage(assumptionsStage, new StageScheduler.StageTask() {
+                    @Override
+                    public void run() throws Exception {
+                        psmChunkProcessor.processSharedChunks(assumptionsKeys, assumptionsIndex, null, true, new PsmChunkProcessor.PsmTask() {
+                            @Override
+                            public void process(SpectrumMatch spectrumMatch) throws Exception {
+                                attachAssumptionsProbabilities(identification, inputMap, spectrumMatch, sequenceMatchingPreferences);
+                            }
+                        }, waitingHandler);
+                    }
+                });
+                fileAssumptionsStages[i - 1] = assumptionsStage;
+                assumptionsStages.add(assumptionsStage);
+            }
 
-        if (waitingHandler != null) {
-            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-            waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
+            String bestHitStage = StageScheduler.getStageKey("bestHit", spectrumFileName);
+            stageScheduler.addStage(bestHitStage, new StageScheduler.StageTask() {
+                @Override
+                public void run() throws Exception {
+                    bestMatchSelection.selectBestHitAndFillPsmMap(spectrumFileName, inputMap, waitingHandler, shotgunProtocol, identificationParameters);
+                    ArrayList<String> spectrumKeys = PsmChunkProcessor.getSpectrumKeys(identification, spectrumFileName, bestMatchSelection.getOrderedSpectrumKeys(spectrumFileName));
+                    synchronized (ptmKeys) {
+                        ptmKeys.put(spectrumFileName, spectrumKeys);
+                    }
+                }
+            }, fileAssumptionsStages);
+            bestHitStages.add(bestHitStage);
+
+            // the PTM scoring of a file is split among threads sharing the chunks of the file
+            final AtomicInteger ptmIndex = new AtomicInteger();
+            for (int i = 1; i <= nThreads; i++) {
+                String ptmStage = StageScheduler.getStageKey("psmPtms" + i, spectrumFileName);
+                stageScheduler.addStage(ptmStage, new StageScheduler.StageTask() {
+                    @Override
+                    public void run() throws Exception {
+                        ArrayList<String> spectrumKeys;
+                        synchronized (ptmKeys) {
+                            spectrumKeys = ptmKeys.get(spectrumFileName);
+                        }
+                        final PeptideSpectrumAnnotator peptideSpectrumAnnotator = SpectrumAnnotationCache.getSpectrumAnnotator(spectrumAnnotationCache);
+                        psmChunkProcessor.processSharedChunks(spectrumKeys, ptmIndex, null, true, new PsmChunkProcessor.PsmTask() {
+                            @Override
+                            public void process(SpectrumMatch spectrumMatch) throws Exception {
+                                ptmScorer.scorePsmPtms(identification, spectrumMatch, identificationParameters, waitingHandler, peptideSpectrumAnnotator);
+                            }
+                        }, waitingHandler);
+                    }
+                }, bestHitStage);
+                ptmStages.add(ptmStage);
+            }
         }
 
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
+        stageScheduler.addStage("assumptions", progressTask, assumptionsStages.toArray(new String[assumptionsStages.size()]));
+        stageScheduler.addStage("bestHit", progressTask, bestHitStages.toArray(new String[bestHitStages.size()]));
+        stageScheduler.addStage("psmPtms", progressTask, ptmStages.toArray(new String[ptmStages.size()]));
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
+        stageScheduler.execute();
 
-            while (psmIterator.hasNext()) {
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
+    /**
+     * Attaches the spectrum posterior error probabilities to the peptide
+     * assumptions of a PSM.
+     *
+     * @param identification the identification containing the matches
+     * @param inputMap map of the input scores
+     * @param spectrumMatch the PSM to process, ignored if null
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * loading or saving the assumptions
+     */
+    private void attachAssumptionsProbabilities(Identification identification, InputMap inputMap, SpectrumMatch spectrumMatch,
+            SequenceMatchingPreferences sequenceMatchingPreferences) throws Exception {
 
-                HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
+        if (spectrumMatch != null) {
 
-                for (int searchEngine : assumptionsMap.keySet()) {
+            String spectrumKey = spectrumMatch.getKey();
+            HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
 
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
-                    ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
-                    Collections.sort(eValues);
-                    double previousP = 0;
-                    ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
-                    SpectrumIdentificationAssumption previousAssumption = null;
+            HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
 
-                    for (double eValue : eValues) {
+            for (int searchEngine : assumptionsMap.keySet()) {
 
-                        for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
-                            PSParameter psParameter = new PSParameter();
-                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                            if (psParameter == null) {
-                                psParameter = new PSParameter();
-                            }
+                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
+                ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
+                Collections.sort(eValues);
+                double previousP = 0;
+                ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
+                SpectrumIdentificationAssumption previousAssumption = null;
 
-                            if (sequenceFactory.concatenatedTargetDecoy()) {
+                for (double eValue : eValues) {
 
-                                double newP = inputMap.getProbability(searchEngine, eValue);
-                                double pep = previousP;
+                    for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
+                        PSParameter psParameter = new PSParameter();
+                        psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                        if (psParameter == null) {
+                            psParameter = new PSParameter();
+                        }
 
-                                if (newP > previousP) {
-                                    pep = newP;
-                                    previousP = newP;
-                                }
+                        if (sequenceFactory.concatenatedTargetDecoy()) {
 
-                                psParameter.setSearchEngineProbability(pep);
+                            double newP = inputMap.getProbability(searchEngine, eValue);
+                            double pep = previousP;
 
-                                ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
-                                if (pSParameters == null) {
-                                    pSParameters = new ArrayList<PSParameter>(1);
-                                    pepToParameterMap.put(pep, pSParameters);
-                                }
-                                pSParameters.add(psParameter);
-
-                                if (previousAssumption != null) {
-                                    boolean same = false;
-                                    if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
-                                        Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
-                                        Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
-                                        if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
-                                        Tag newTag = ((TagAssumption) assumption).getTag();
-                                        Tag previousTag = ((TagAssumption) previousAssumption).getTag();
-                                        if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    }
+                            if (newP > previousP) {
+                                pep = newP;
+                                previousP = newP;
+                            }
 
-                                    if (!same) {
-                                        for (PSParameter previousParameter : previousAssumptionsParameters) {
-                                            double deltaPEP = pep - previousParameter.getSearchEngineProbability();
-                                            previousParameter.setAlgorithmDeltaPEP(deltaPEP);
-                                        }
-                                        previousAssumptionsParameters.clear();
+                            psParameter.setSearchEngineProbability(pep);
+
+                            ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
+                            if (pSParameters == null) {
+                                pSParameters = new ArrayList<PSParameter>(1);
+                                pepToParameterMap.put(pep, pSParameters);
+                            }
+                            pSParameters.add(psParameter);
+
+                            if (previousAssumption != null) {
+                                boolean same = false;
+                                if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
+                                    Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
+                                    Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
+                                    if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
+                                        same = true;
+                                    }
+                                } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
+                                    Tag newTag = ((TagAssumption) assumption).getTag();
+                                    Tag previousTag = ((TagAssumption) previousAssumption).getTag();
+                                    if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
+                                        same = true;
                                     }
                                 }
-                                previousAssumption = assumption;
-                                previousAssumptionsParameters.add(psParameter);
 
-                            } else {
-                                psParameter.setSearchEngineProbability(1.0);
+                                if (!same) {
+                                    for (PSParameter previousParameter : previousAssumptionsParameters) {
+                                        double deltaPEP = pep - previousParameter.getSearchEngineProbability();
+                                        previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                                    }
+                                    previousAssumptionsParameters.clear();
+                                }
                             }
+                            previousAssumption = assumption;
+                            previousAssumptionsParameters.add(psParameter);
 
-                            assumption.addUrParam(psParameter);
+                        } else {
+                            psParameter.setSearchEngineProbability(1.0);
                         }
-                    }
 
-                    for (PSParameter previousParameter : previousAssumptionsParameters) {
-                        double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
-                        previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                        assumption.addUrParam(psParameter);
                     }
                 }
 
-                // Compute the delta pep score accross all search engines
-                Double previousPEP = null;
-                ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
-                ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
-                Collections.sort(peps);
-                for (double pep : peps) {
-                    if (previousPEP != null) {
-                        for (PSParameter previousParameter : previousParameters) {
-                            double delta = pep - previousPEP;
-                            previousParameter.setDeltaPEP(delta);
-                        }
-                    }
-                    previousParameters = pepToParameterMap.get(pep);
-                    previousPEP = pep;
+                for (PSParameter previousParameter : previousAssumptionsParameters) {
+                    double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
+                    previousParameter.setAlgorithmDeltaPEP(deltaPEP);
                 }
-                for (PSParameter previousParameter : previousParameters) {
-                    double delta = 1 - previousParameter.getSearchEngineProbability();
-                    previousParameter.setDeltaPEP(delta);
-                }
-
-                identification.updateAssumptions(spectrumKey, assumptionsMap);
+            }
 
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
+            // Compute the delta pep score accross all search engines
+            Double previousPEP = null;
+            ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
+            ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
+            Collections.sort(peps);
+            for (double pep : peps) {
+                if (previousPEP != null) {
+                    for (PSParameter previousParameter : previousParameters) {
+                        double delta = pep - previousPEP;
+                        previousParameter.setDeltaPEP(delta);
                     }
                 }
+                previousParameters = pepToParameterMap.get(pep);
+                previousPEP = pep;
+            }
+            for (PSParameter previousParameter : previousParameters) {
+                double delta = 1 - previousParameter.getSearchEngineProbability();
+                previousParameter.setDeltaPEP(delta);
             }
-        }
 
-        if (waitingHandler != null) {
-            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+            identification.updateAssumptions(spectrumKey, assumptionsMap);
         }
     }
 
     /**
      * Attaches the spectrum posterior error probabilities to the spectrum
-     * matches.
+     * matches and builds the peptide and protein matches. The spectrum
+     * matches are processed in parallel, the building of peptides and
+     * proteins is done in batches by one thread at a time.
      *
      * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      */
-    private void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler)
-            throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, Exception {
+    private void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, Exception {
 
         waitingHandler.setWaitingText("Attaching Spectrum Probabilities - Building Peptides and Proteins. Please Wait...");
 
@@ -821,39 +1056,71 @@ public class PeptideShaker {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
+        parameters.add(new PSParameter());
 
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
+        int nThreads = processingPreferences.getnThreads();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, null);
+            for (int i = 1; i <= nThreads && !waitingHandler.isRunCanceled(); i++) {
+                SpectrumProbabilitiesRunnable runnable = new SpectrumProbabilitiesRunnable(psmIterator, identification, sequenceMatchingPreferences, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Building of peptides and proteins timed out. Please contact the developers.");
+        }
 
-            while (psmIterator.hasNext()) {
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+    /**
+     * Attaches the spectrum posterior error probability to the given spectrum
+     * match.
+     *
+     * @param identification the identification containing the matches
+     * @param spectrumKey the key of the spectrum match
+     * @param psParameter the PeptideShaker parameter of the spectrum match
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving the parameter
+     */
+    private void attachSpectrumProbability(Identification identification, String spectrumKey, PSParameter psParameter) throws Exception {
 
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    Integer charge = new Integer(psParameter.getSpecificMapKey());
-                    String fileName = Spectrum.getSpectrumFile(spectrumKey);
-                    psParameter.setPsmProbability(matchesValidator.getPsmMap().getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
-                } else {
-                    psParameter.setPsmProbability(1.0);
-                }
+        if (sequenceFactory.concatenatedTargetDecoy()) {
+            Integer charge = new Integer(psParameter.getSpecificMapKey());
+            String fileName = Spectrum.getSpectrumFile(spectrumKey);
+            psParameter.setPsmProbability(matchesValidator.getPsmMap().getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
+        } else {
+            psParameter.setPsmProbability(1.0);
+        }
 
-                identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
-                identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
+        identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+    }
 
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-            }
+    /**
+     * Builds the peptides and proteins of the given spectrum matches. Only one
+     * thread at a time builds peptides and proteins as matches are shared
+     * between spectra.
+     *
+     * @param identification the identification containing the matches
+     * @param spectrumKeys the keys of the spectrum matches
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building the matches
+     */
+    private synchronized void buildPeptidesAndProteins(Identification identification, ArrayList<String> spectrumKeys, SequenceMatchingPreferences sequenceMatchingPreferences) throws Exception {
+        for (String spectrumKey : spectrumKeys) {
+            identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
         }
-
-        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
@@ -1100,4 +1367,85 @@ public class PeptideShaker {
         File file = new File(folder, PEPTIDESHAKER_CONFIGURATION_FILE);
         return new ConfigurationFile(file);
     }
+
+    /**
+     * Runnable attaching the spectrum probabilities and building the peptides
+     * and proteins of the spectrum matches returned by an iterator.
+     *
+     * @author Marc Vaudel
+     */
+    private class SpectrumProbabilitiesRunnable implements Runnable {
+
+        /**
+         * The number of spectrum matches to build at once.
+         */
+        private static final int BATCH_SIZE = 1000;
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The sequence matching preferences.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param identification the identification containing the matches
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public SpectrumProbabilitiesRunnable(PsmIterator psmIterator, Identification identification,
+                SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+                ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+                        String spectrumKey = spectrumMatch.getKey();
+                        PSParameter spectrumParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                        attachSpectrumProbability(identification, spectrumKey, spectrumParameter);
+                        batch.add(spectrumKey);
+                        if (batch.size() == BATCH_SIZE) {
+                            buildPeptidesAndProteins(identification, batch, sequenceMatchingPreferences);
+                            batch.clear();
+                        }
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+                if (!batch.isEmpty() && !waitingHandler.isRunCanceled()) {
+                    buildPeptidesAndProteins(identification, batch, sequenceMatchingPreferences);
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.cmd;
 
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.identification.Identification;
@@ -11,6 +12,8 @@ import com.compomics.util.io.export.ExportScheme;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import eu.isas.peptideshaker.PeptideShaker;
+import eu.isas.peptideshaker.export.ColumnarExport;
+import eu.isas.peptideshaker.export.MultiReportExport;
 import eu.isas.peptideshaker.export.MzIdentMLExport;
 import eu.isas.peptideshaker.followup.FastaExport;
 import eu.isas.peptideshaker.followup.InclusionListExport;
@@ -21,6 +24,7 @@ import eu.isas.peptideshaker.followup.SpectrumExporter;
 import eu.isas.peptideshaker.preferences.FilterPreferences;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.scoring.MatchValidationLevel;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import java.io.File;
@@ -70,7 +74,8 @@ public class CLIMethods {
         } else if (followUpCLIInputBean.getRecalibrationMode() == 2) {
             ms1 = false;
         }
-        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters, waitingHandler);
+        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters,
+                followUpCLIInputBean.getRecalibrationThreads(), waitingHandler);
     }
 
     /**
@@ -246,6 +251,69 @@ public class CLIMethods {
         InclusionListExport.exportInclusionList(destinationFile, identification, identificationFeaturesGenerator, followUpCLIInputBean.getInclusionProteinFilter(), peptideFilterType, InclusionListExport.ExportFormat.getTypeFromIndex(followUpCLIInputBean.getInclusionFormat()), searchParameters, followUpCLIInputBean.getInclusionRtWindow(), waitingHandler, filterPreferences);
     }
 
+    /**
+     * Exports the given reports in a single pass over the matches.
+     *
+     * @param reportCLIInputBean the report cli input bean
+     * @param reportTypes the report types
+     * @param experiment the experiment of the project
+     * @param sample the sample of the project
+     * @param replicateNumber the replicate number of the project
+     * @param projectDetails the project details of the project
+     * @param identification the identification of the project
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param shotgunProtocol information on the protocol used
+     * @param identificationParameters the identification parameters used
+     * @param nSurroundingAA the number of amino acids to export on the side of
+     * peptide sequences
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param waitingHandler waiting handler displaying feedback to the user
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the database
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an exception occurred while estimating the theoretical coverage of a
+     * protein
+     */
+    public static void exportReports(ReportCLIInputBean reportCLIInputBean, ArrayList<String> reportTypes, String experiment, String sample, int replicateNumber,
+            ProjectDetails projectDetails, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, int nSurroundingAA, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException,
+            InterruptedException, MzMLUnmarshallerException, MathException {
+
+        if (reportCLIInputBean.isColumnarFormat()) {
+            for (String reportType : reportTypes) {
+                exportReport(reportCLIInputBean, reportType, experiment, sample, replicateNumber, projectDetails, identification, geneMaps,
+                        identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAA, spectrumCountingPreferences, waitingHandler);
+            }
+            return;
+        }
+
+        PSExportFactory exportFactory = PSExportFactory.getInstance();
+        ArrayList<ExportScheme> exportSchemes = new ArrayList<ExportScheme>(reportTypes.size());
+        ArrayList<File> reportFiles = new ArrayList<File>(reportTypes.size());
+        for (String reportType : reportTypes) {
+            exportSchemes.add(exportFactory.getExportScheme(reportType));
+            String reportName = reportType.replaceAll(" ", "_");
+            reportFiles.add(new File(reportCLIInputBean.getReportOutputFolder(), PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName)));
+        }
+
+        //@TODO: allow format selection
+        MultiReportExport.writeExports(exportSchemes, reportFiles, ExportFormat.text, experiment, sample, replicateNumber, projectDetails, identification,
+                identificationFeaturesGenerator, geneMaps, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences,
+                reportCLIInputBean.getExportThreads(), waitingHandler);
+    }
+
     /**
      * Writes an export according to the command line settings contained in the
      * reportCLIInputBean.
@@ -292,9 +360,64 @@ public class CLIMethods {
         String reportName = reportType.replaceAll(" ", "_");
         File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName));
 
+        if (reportCLIInputBean.isColumnarFormat()) {
+            String fileName = reportFile.getName();
+            reportFile = new File(reportFile.getParentFile(), fileName.substring(0, fileName.lastIndexOf(".")) + ColumnarExport.EXTENSION);
+            ColumnarExport.writeExport(exportScheme, reportFile, identification, identificationFeaturesGenerator, geneMaps, nSurroundingAA,
+                    shotgunProtocol, identificationParameters, waitingHandler);
+            return;
+        }
+
         //@TODO: allow format selection
         PSExportFactory.writeExport(exportScheme, reportFile, ExportFormat.text, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
-                null, null, null, null, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, waitingHandler);
+                null, null, null, null, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, reportCLIInputBean.getExportThreads(), waitingHandler);
+    }
+
+    /**
+     * Computes the features of the validated proteins before the report
+     * export if requested in the command line arguments.
+     *
+     * @param reportCLIInputBean the command line arguments
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param filterPreferences the filter preferences
+     * @param waitingHandler waiting handler displaying feedback to the user
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the database
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     */
+    public static void warmUpFeaturesCache(ReportCLIInputBean reportCLIInputBean, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            FilterPreferences filterPreferences, WaitingHandler waitingHandler) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+
+        int nThreads = reportCLIInputBean.getWarmUpThreads();
+        if (nThreads > 0) {
+            ArrayList<String> proteinKeys = identificationFeaturesGenerator.getValidatedProteins(waitingHandler, filterPreferences);
+            if (proteinKeys != null && !proteinKeys.isEmpty()) {
+                waitingHandler.appendReport("Computing the features of " + proteinKeys.size() + " validated proteins.", true, true);
+                identificationFeaturesGenerator.warmUpCache(proteinKeys, nThreads, waitingHandler, new CommandLineExceptionHandler());
+            }
+        }
+    }
+
+    /**
+     * Displays the hit, miss, eviction and compute time statistics of the
+     * identification features cache.
+     *
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param waitingHandler waiting handler displaying feedback to the user
+     */
+    public static void reportFeaturesCacheStatistics(IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler) {
+        String statistics = identificationFeaturesGenerator.getIdentificationFeaturesCache().getStatisticsReport();
+        if (!statistics.isEmpty()) {
+            waitingHandler.appendReport("Identification features cache statistics:" + System.getProperty("line.separator") + statistics, true, true);
+        }
     }
 
     /**
@@ -354,7 +477,8 @@ public class CLIMethods {
         MzIdentMLExport mzIdentMLExport = new MzIdentMLExport(PeptideShaker.getVersion(), cpsParent.getIdentification(), cpsParent.getProjectDetails(),
                 cpsParent.getShotgunProtocol(), cpsParent.getIdentificationParameters(),
                 cpsParent.getSpectrumCountingPreferences(), cpsParent.getIdentificationFeaturesGenerator(),
-                mzidCLIInputBean.getOutputFile(), waitingHandler);
+                mzidCLIInputBean.getOutputFile(), waitingHandler, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none,
+                mzidCLIInputBean.getnThreads(), mzidCLIInputBean.isGzip(), mzidCLIInputBean.getGzipBlockSize() * 1024);
         mzIdentMLExport.createMzIdentMLFile(false);
     }
 }
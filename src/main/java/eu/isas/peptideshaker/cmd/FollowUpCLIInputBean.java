@@ -30,6 +30,10 @@ public class FollowUpCLIInputBean {
      * Parameter for the recalibation.
      */
     private int recalibrationMode = 0;
+    /**
+     * The number of threads to use for the recalibration.
+     */
+    private int recalibrationThreads = 1;
     /**
      * The folder where to export spectra.
      */
@@ -133,6 +137,9 @@ public class FollowUpCLIInputBean {
         if (aLine.hasOption(FollowUpCLIParams.RECALIBRATION_MODE.id)) {
             recalibrationMode = new Integer(aLine.getOptionValue(FollowUpCLIParams.RECALIBRATION_MODE.id));
         }
+        if (aLine.hasOption(FollowUpCLIParams.RECALIBRATION_THREADS.id)) {
+            recalibrationThreads = new Integer(aLine.getOptionValue(FollowUpCLIParams.RECALIBRATION_THREADS.id));
+        }
         if (aLine.hasOption(FollowUpCLIParams.SPECTRUM_FOLDER.id)) {
             spectrumExportFolder = new File(aLine.getOptionValue(FollowUpCLIParams.SPECTRUM_FOLDER.id));
         }
@@ -245,6 +252,16 @@ public class FollowUpCLIInputBean {
         return recalibrationMode;
     }
 
+    /**
+     * Returns the number of threads to use for the recalibration. 1 by
+     * default.
+     *
+     * @return the number of threads to use for the recalibration
+     */
+    public int getRecalibrationThreads() {
+        return recalibrationThreads;
+    }
+
     /**
      * Returns the folder where to export the spectrum files. Null if not set.
      *
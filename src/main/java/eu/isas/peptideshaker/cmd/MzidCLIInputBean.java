@@ -59,6 +59,18 @@ public class MzidCLIInputBean {
      * The file where the mzIdentML export should be output.
      */
     private File outputFile;
+    /**
+     * Boolean indicating whether the output should be compressed.
+     */
+    private boolean gzip = false;
+    /**
+     * The size in kB of the blocks compressed in parallel.
+     */
+    private int gzipBlockSize = 1024;
+    /**
+     * The number of threads to use for the export.
+     */
+    private int nThreads = 1;
     /**
      * The path settings.
      */
@@ -111,6 +123,15 @@ public class MzidCLIInputBean {
         if (aLine.hasOption(MzidCLIParams.OUTPUT_FILE.id)) {
             outputFile = new File(aLine.getOptionValue(MzidCLIParams.OUTPUT_FILE.id));
         }
+        if (aLine.hasOption(MzidCLIParams.GZIP.id)) {
+            gzip = aLine.getOptionValue(MzidCLIParams.GZIP.id).trim().equals("1");
+        }
+        if (aLine.hasOption(MzidCLIParams.GZIP_BLOCK_SIZE.id)) {
+            gzipBlockSize = new Integer(aLine.getOptionValue(MzidCLIParams.GZIP_BLOCK_SIZE.id).trim());
+        }
+        if (aLine.hasOption(MzidCLIParams.THREADS.id)) {
+            nThreads = new Integer(aLine.getOptionValue(MzidCLIParams.THREADS.id).trim());
+        }
 
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
     }
@@ -223,6 +244,33 @@ public class MzidCLIInputBean {
         return outputFile;
     }
 
+    /**
+     * Indicates whether the output should be compressed in the gzip format.
+     *
+     * @return a boolean indicating whether the output should be compressed
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Returns the size in kB of the blocks compressed in parallel.
+     *
+     * @return the size in kB of the blocks compressed in parallel
+     */
+    public int getGzipBlockSize() {
+        return gzipBlockSize;
+    }
+
+    /**
+     * Returns the number of threads to use for the export.
+     *
+     * @return the number of threads to use for the export
+     */
+    public int getnThreads() {
+        return nThreads;
+    }
+
     /**
      * Returns the path settings input.
      *
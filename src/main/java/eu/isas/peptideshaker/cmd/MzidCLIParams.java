@@ -19,7 +19,10 @@ public enum MzidCLIParams {
     ORGANIZATION_EMAIL("organization_email", "Organization e-mail.", true, true),
     ORGANIZATION_ADDRESS("organization_address", "Organization address.", true, true),
     ORGANIZATION_URL("organization_url", "Organization URL.", true, false),
-    OUTPUT_FILE("output_file", "Output file.", true, true);
+    OUTPUT_FILE("output_file", "Output file.", true, true),
+    GZIP("gzip", "Compress the output file in the gzip format, the .gz extension is added to the output file if missing, 0: no, 1: yes, default is '0'.", true, false),
+    GZIP_BLOCK_SIZE("gzip_block_size", "The size in kB of the blocks compressed in parallel, default is '1024'.", true, false),
+    THREADS("threads", "The number of threads to use to write the spectrum files and to compress the output, default is '1'.", true, false);
 
     /**
      * Short Id for the CLI parameter.
@@ -343,16 +343,34 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
                 // Export report(s)
                 if (reportCLIInputBean.exportNeeded()) {
+                    try {
+                        CLIMethods.warmUpFeaturesCache(reportCLIInputBean, identificationFeaturesGenerator, filterPreferences, waitingHandler);
+                    } catch (Exception e) {
+                        waitingHandler.appendReport("An error occurred while computing the protein features.", true, true);
+                        e.printStackTrace();
+                        waitingHandler.setRunCanceled();
+                    }
                     int nSurroundingAAs = 2; //@TODO: this shall not be hard coded //peptideShakerGUI.getDisplayPreferences().getnAASurroundingPeptides()
-                    for (String reportType : reportCLIInputBean.getReportTypes()) {
+                    if (reportCLIInputBean.isSinglePass() && reportCLIInputBean.getReportTypes().size() > 1) {
                         try {
-                            CLIMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                            CLIMethods.exportReports(reportCLIInputBean, reportCLIInputBean.getReportTypes(), experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
                         } catch (Exception e) {
-                            waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
+                            waitingHandler.appendReport("An error occurred while exporting the reports.", true, true);
                             e.printStackTrace();
                             waitingHandler.setRunCanceled();
                         }
+                    } else {
+                        for (String reportType : reportCLIInputBean.getReportTypes()) {
+                            try {
+                                CLIMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                            } catch (Exception e) {
+                                waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
+                                e.printStackTrace();
+                                waitingHandler.setRunCanceled();
+                            }
+                        }
                     }
+                    CLIMethods.reportFeaturesCacheStatistics(identificationFeaturesGenerator, waitingHandler);
                 }
 
                 // export documentation(s)
@@ -727,6 +745,10 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
         // create a shaker which will perform the analysis
         PeptideShaker peptideShaker = new PeptideShaker(experiment, sample, replicateNumber);
+        Integer nFileThreads = cliInputBean.getnFileThreads();
+        if (nFileThreads != null) {
+            peptideShaker.setnFileThreads(nFileThreads);
+        }
 
         // import the files
         peptideShaker.importFiles(waitingHandler, identificationFiles, spectrumFiles,
@@ -755,7 +777,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             geneMaps = peptideShaker.getGeneMaps();
 
             // the identification feature generator
-            identificationFeaturesGenerator = peptideShaker.getIdentificationFeaturesGenerator();
+            setIdentificationFeaturesGenerator(peptideShaker.getIdentificationFeaturesGenerator());
 
             // the cache used for identification
             objectsCache = peptideShaker.getCache();
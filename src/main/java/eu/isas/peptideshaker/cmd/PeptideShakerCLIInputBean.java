@@ -77,6 +77,10 @@ public class PeptideShakerCLIInputBean {
      * The number of threads to use.
      */
     private Integer nThreads = null;
+    /**
+     * The number of identification files to import in parallel.
+     */
+    private Integer nFileThreads = null;
 
     /**
      * Construct a PeptideShakerCLIInputBean from an Apache CLI instance.
@@ -122,6 +126,11 @@ public class PeptideShakerCLIInputBean {
             nThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS.id));
         }
 
+        // n file threads
+        if (aLine.hasOption(PeptideShakerCLIParams.THREADS_FILES.id)) {
+            nFileThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS_FILES.id));
+        }
+
         followUpCLIInputBean = new FollowUpCLIInputBean(aLine);
         reportCLIInputBean = new ReportCLIInputBean(aLine);
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
@@ -371,6 +380,16 @@ public class PeptideShakerCLIInputBean {
         return nThreads;
     }
 
+    /**
+     * Returns the number of identification files to import in parallel.
+     * Null if not set.
+     *
+     * @return the number of identification files to import in parallel
+     */
+    public Integer getnFileThreads() {
+        return nFileThreads;
+    }
+
     /**
      * Verifies the command line start parameters.
      *
@@ -211,16 +211,34 @@ public class ReportCLI extends CpsParent {
 
         // export report(s)
         if (reportCLIInputBean.exportNeeded()) {
+            try {
+                CLIMethods.warmUpFeaturesCache(reportCLIInputBean, identificationFeaturesGenerator, filterPreferences, waitingHandler);
+            } catch (Exception e) {
+                waitingHandler.appendReport("An error occurred while computing the protein features.", true, true);
+                e.printStackTrace();
+                waitingHandler.setRunCanceled();
+            }
             int nSurroundingAAs = 2; //@TODO: this shall not be hard coded
-            for (String reportType : reportCLIInputBean.getReportTypes()) {
+            if (reportCLIInputBean.isSinglePass() && reportCLIInputBean.getReportTypes().size() > 1) {
                 try {
-                    CLIMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                    CLIMethods.exportReports(reportCLIInputBean, reportCLIInputBean.getReportTypes(), experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
                 } catch (Exception e) {
-                    waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
+                    waitingHandler.appendReport("An error occurred while exporting the reports.", true, true);
                     e.printStackTrace();
                     waitingHandler.setRunCanceled();
                 }
+            } else {
+                for (String reportType : reportCLIInputBean.getReportTypes()) {
+                    try {
+                        CLIMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                    } catch (Exception e) {
+                        waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
+                        e.printStackTrace();
+                        waitingHandler.setRunCanceled();
+                    }
+                }
             }
+            CLIMethods.reportFeaturesCacheStatistics(identificationFeaturesGenerator, waitingHandler);
         }
 
         // export documentation(s)
@@ -38,6 +38,25 @@ public class ReportCLIInputBean {
      * The path settings.
      */
     private PathSettingsCLIInputBean pathSettingsCLIInputBean;
+    /**
+     * The number of threads to use to compute the protein features before
+     * the export, 0 for no precomputation.
+     */
+    private int warmUpThreads = 0;
+    /**
+     * The number of threads to use to compute the lines of the reports.
+     */
+    private int exportThreads = 1;
+    /**
+     * Boolean indicating whether multiple reports should be exported in a
+     * single pass over the matches.
+     */
+    private boolean singlePass = true;
+    /**
+     * Boolean indicating whether the reports should be written in the
+     * columnar binary format.
+     */
+    private boolean columnarFormat = false;
 
     /**
      * Construct a FollowUpCLIInputBean from an Apache CLI instance.
@@ -73,9 +92,65 @@ public class ReportCLIInputBean {
                 documentationTypes.add(exportFactory.getExportTypeFromCommandLineOption(option));
             }
         }
+        if (aLine.hasOption(ReportCLIParams.WARM_UP_THREADS.id)) {
+            warmUpThreads = new Integer(aLine.getOptionValue(ReportCLIParams.WARM_UP_THREADS.id));
+        }
+        if (aLine.hasOption(ReportCLIParams.EXPORT_THREADS.id)) {
+            exportThreads = new Integer(aLine.getOptionValue(ReportCLIParams.EXPORT_THREADS.id));
+        }
+        if (aLine.hasOption(ReportCLIParams.SINGLE_PASS.id)) {
+            singlePass = aLine.getOptionValue(ReportCLIParams.SINGLE_PASS.id).trim().equals("1");
+        }
+        if (aLine.hasOption(ReportCLIParams.REPORT_FORMAT.id)) {
+            columnarFormat = aLine.getOptionValue(ReportCLIParams.REPORT_FORMAT.id).trim().equals("1");
+        }
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
     }
 
+    /**
+     * Returns the number of threads to use to compute the protein features
+     * before the export, 0 for no precomputation.
+     *
+     * @return the number of threads to use to compute the protein features
+     * before the export
+     */
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Returns the number of threads to use to compute the lines of the
+     * reports.
+     *
+     * @return the number of threads to use to compute the lines of the
+     * reports
+     */
+    public int getExportThreads() {
+        return exportThreads;
+    }
+
+    /**
+     * Indicates whether multiple reports should be exported in a single pass
+     * over the matches.
+     *
+     * @return a boolean indicating whether multiple reports should be exported
+     * in a single pass over the matches
+     */
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    /**
+     * Indicates whether the reports should be written in the columnar binary
+     * format.
+     *
+     * @return a boolean indicating whether the reports should be written in
+     * the columnar binary format
+     */
+    public boolean isColumnarFormat() {
+        return columnarFormat;
+    }
+
     /**
      * Returns the cps file from which the information can be obtained.
      *
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.cmd;
 
+import eu.isas.peptideshaker.export.ColumnarExport;
 import eu.isas.peptideshaker.export.PSExportFactory;
 import org.apache.commons.cli.Options;
 
@@ -13,7 +14,11 @@ public enum ReportCLIParams {
     CPS_FILE("in", "PeptideShaker project (.cpsx or .zip file)", true),
     EXPORT_FOLDER("out_reports", "Output folder for report files. (Existing files will be overwritten.)", true),
     REPORT_TYPE("reports", "Comma separated list of types of report to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false),
-    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false);
+    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false),
+    WARM_UP_THREADS("warm_up_threads", "The number of threads to use to compute the features of the validated proteins before the report export, 0 for no precomputation. Default is '0'.", false),
+    EXPORT_THREADS("export_threads", "The number of threads to use to compute the lines of the protein, peptide and PSM reports. Default is '1'.", false),
+    SINGLE_PASS("single_pass", "Export multiple reports in a single pass over the matches, 0: no, 1: yes. Default is '1'.", false),
+    REPORT_FORMAT("report_format", "The format of the reports, 0: tab separated text, 1: columnar binary (" + ColumnarExport.EXTENSION + "). Default is '0'.", false);
 
     /**
      * Short Id for the CLI parameter.
@@ -54,6 +59,10 @@ public enum ReportCLIParams {
         aOptions.addOption(EXPORT_FOLDER.id, true, EXPORT_FOLDER.description);
         aOptions.addOption(REPORT_TYPE.id, true, REPORT_TYPE.description);
         aOptions.addOption(DOCUMENTATION_TYPE.id, true, DOCUMENTATION_TYPE.description);
+        aOptions.addOption(WARM_UP_THREADS.id, true, WARM_UP_THREADS.description);
+        aOptions.addOption(EXPORT_THREADS.id, true, EXPORT_THREADS.description);
+        aOptions.addOption(SINGLE_PASS.id, true, SINGLE_PASS.description);
+        aOptions.addOption(REPORT_FORMAT.id, true, REPORT_FORMAT.description);
 
         // Path setup
         aOptions.addOption(PathSettingsCLIParams.ALL.id, true, PathSettingsCLIParams.ALL.description);
@@ -96,6 +105,10 @@ public enum ReportCLIParams {
 
         output += "\nReport export:\n\n";
         output += "-" + String.format(formatter, REPORT_TYPE.id) + REPORT_TYPE.description + "\n";
+        output += "-" + String.format(formatter, WARM_UP_THREADS.id) + WARM_UP_THREADS.description + "\n";
+        output += "-" + String.format(formatter, EXPORT_THREADS.id) + EXPORT_THREADS.description + "\n";
+        output += "-" + String.format(formatter, SINGLE_PASS.id) + SINGLE_PASS.description + "\n";
+        output += "-" + String.format(formatter, REPORT_FORMAT.id) + REPORT_FORMAT.description + "\n";
 
         output += "\nReport Documentation export:\n\n";
         output += "-" + String.format(formatter, DOCUMENTATION_TYPE.id) + DOCUMENTATION_TYPE.description + "\n";
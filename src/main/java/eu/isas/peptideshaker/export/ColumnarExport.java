@@ -0,0 +1,310 @@
+package eu.isas.peptideshaker.export;
+
+import com.compomics.util.experiment.ShotgunProtocol;
+import com.compomics.util.experiment.biology.genes.GeneMaps;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
+import com.compomics.util.experiment.personalization.UrParameter;
+import com.compomics.util.io.export.ExportScheme;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.export.columnar.ColumnarReportWriter;
+import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
+import eu.isas.peptideshaker.export.exportfeatures.PsProteinFeature;
+import eu.isas.peptideshaker.export.exportfeatures.PsPsmFeature;
+import eu.isas.peptideshaker.export.sections.PsPeptideSection;
+import eu.isas.peptideshaker.export.sections.PsProteinSection;
+import eu.isas.peptideshaker.export.sections.PsPsmSection;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import org.apache.commons.math.MathException;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Exports reports in the columnar binary format of the ColumnarReportWriter.
+ * Every protein, peptide and PSM section of the export scheme is written as a
+ * table named after the section. Other sections, line indexes and nested
+ * sections are not supported by the format. The file is deleted if the export
+ * is canceled or fails.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarExport {
+
+    /**
+     * The extension of the columnar reports.
+     */
+    public static final String EXTENSION = ".psc";
+
+    /**
+     * Writes the given report in the columnar binary format.
+     *
+     * @param exportScheme the scheme of the report
+     * @param destinationFile the destination file
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    public static void writeExport(ExportScheme exportScheme, File destinationFile, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        ColumnarReportWriter writer = new ColumnarReportWriter(destinationFile);
+        boolean completed = false;
+
+        try {
+            for (String sectionName : exportScheme.getSections()) {
+
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return;
+                }
+
+                if (sectionName.equals(PsProteinFeature.type)) {
+                    PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), false, false, null);
+                    if (section.requiresPeptides()) {
+                        throw new IllegalArgumentException("Nested sections are not supported in columnar reports.");
+                    }
+                    writer.startTable(sectionName, section.getColumnTitles());
+                    writeProteins(section, writer, exportScheme, identification, identificationFeaturesGenerator, geneMaps, nSurroundingAA,
+                            shotgunProtocol, identificationParameters, waitingHandler);
+                } else if (sectionName.equals(PsPeptideFeature.type)) {
+                    PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), false, false, null);
+                    if (section.requiresPsms()) {
+                        throw new IllegalArgumentException("Nested sections are not supported in columnar reports.");
+                    }
+                    writer.startTable(sectionName, section.getColumnTitles());
+                    writePeptides(section, writer, exportScheme, identification, identificationFeaturesGenerator, nSurroundingAA,
+                            shotgunProtocol, identificationParameters, waitingHandler);
+                } else if (sectionName.equals(PsPsmFeature.type)) {
+                    PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), false, false, null);
+                    if (section.hasFragmentSection()) {
+                        throw new IllegalArgumentException("Nested sections are not supported in columnar reports.");
+                    }
+                    writer.startTable(sectionName, section.getColumnTitles());
+                    writePsms(section, writer, exportScheme, identification, identificationFeaturesGenerator, nSurroundingAA,
+                            shotgunProtocol, identificationParameters, waitingHandler);
+                }
+            }
+            completed = waitingHandler == null || !waitingHandler.isRunCanceled();
+        } finally {
+            if (completed) {
+                writer.close();
+            } else {
+                writer.delete();
+            }
+        }
+    }
+
+    /**
+     * Sets up the secondary progress of the waiting handler.
+     *
+     * @param waitingHandler the waiting handler
+     * @param nMatches the number of matches to export
+     */
+    private static void startProgress(WaitingHandler waitingHandler, int nMatches) {
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Exporting. Please Wait...");
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nMatches);
+        }
+    }
+
+    /**
+     * Writes the protein table.
+     *
+     * @param section the protein section
+     * @param writer the columnar writer
+     * @param exportScheme the scheme of the report
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private static void writeProteins(PsProteinSection section, ColumnarReportWriter writer, ExportScheme exportScheme, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        ArrayList<String> keys = new ArrayList<String>(identification.getProteinIdentification());
+        startProgress(waitingHandler, keys.size());
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(keys, parameters, false, parameters, false, parameters, waitingHandler);
+
+        while (proteinMatchesIterator.hasNext()) {
+
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            ProteinMatch proteinMatch = proteinMatchesIterator.next();
+            String proteinKey = proteinMatch.getKey();
+            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+
+            if (section.isExported(proteinKey, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                writer.addRow(section.getLine(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys, nSurroundingAA,
+                        proteinMatch, psParameter, waitingHandler));
+            }
+        }
+    }
+
+    /**
+     * Writes the peptide table.
+     *
+     * @param section the peptide section
+     * @param writer the columnar writer
+     * @param exportScheme the scheme of the report
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     */
+    private static void writePeptides(PsPeptideSection section, ColumnarReportWriter writer, ExportScheme exportScheme, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        ArrayList<String> keys = new ArrayList<String>(identification.getPeptideIdentification());
+        startProgress(waitingHandler, keys.size());
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, false, parameters, waitingHandler);
+
+        while (peptideMatchesIterator.hasNext()) {
+
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            PeptideMatch peptideMatch = peptideMatchesIterator.next();
+            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), psParameter);
+
+            if (section.isExported(identificationParameters, peptideMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                writer.addRow(section.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA,
+                        "", peptideMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler));
+            }
+        }
+    }
+
+    /**
+     * Writes the PSM table.
+     *
+     * @param section the PSM section
+     * @param writer the columnar writer
+     * @param exportScheme the scheme of the report
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     */
+    private static void writePsms(PsPsmSection section, ColumnarReportWriter writer, ExportScheme exportScheme, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        HashMap<String, HashSet<String>> psmMap = identification.getSpectrumIdentificationMap();
+        int totalSize = 0;
+        for (HashSet<String> spectrumKeys : psmMap.values()) {
+            totalSize += spectrumKeys.size();
+        }
+        startProgress(waitingHandler, totalSize);
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+
+        for (String spectrumFile : psmMap.keySet()) {
+
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(psmMap.get(spectrumFile)),
+                    parameters, section.requiresAssumptions(), waitingHandler);
+
+            while (psmIterator.hasNext()) {
+
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+
+                SpectrumMatch spectrumMatch = psmIterator.next();
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), psParameter);
+
+                if (section.isExported(identificationParameters, spectrumMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                    writer.addRow(section.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, null, "",
+                            nSurroundingAA, spectrumMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package eu.isas.peptideshaker.export;
+
+import com.compomics.util.Util;
+
+/**
+ * Measures the throughput of an export in megabytes and PSMs per second, so
+ * that the performance of the exports can be compared between versions.
+ *
+ * @author Marc Vaudel
+ */
+public class ExportThroughput {
+
+    /**
+     * The number of bytes in a megabyte.
+     */
+    private static final double MB = 1024 * 1024;
+    /**
+     * The name of the export.
+     */
+    private final String exportName;
+    /**
+     * The start time in nanoseconds.
+     */
+    private long start;
+    /**
+     * The duration of the export in seconds, null if not finished.
+     */
+    private Double duration = null;
+    /**
+     * The number of bytes exported before compression.
+     */
+    private long nBytes;
+    /**
+     * The number of bytes written to the file.
+     */
+    private long fileSize;
+    /**
+     * The number of PSMs exported.
+     */
+    private long nPsms;
+
+    /**
+     * Constructor.
+     *
+     * @param exportName the name of the export
+     */
+    public ExportThroughput(String exportName) {
+        this.exportName = exportName;
+    }
+
+    /**
+     * Starts the measurement.
+     */
+    public void start() {
+        start = System.nanoTime();
+        duration = null;
+    }
+
+    /**
+     * Stops the measurement.
+     *
+     * @param nBytes the number of bytes exported before compression
+     * @param fileSize the number of bytes written to the file
+     * @param nPsms the number of PSMs exported
+     */
+    public void stop(long nBytes, long fileSize, long nPsms) {
+        duration = (System.nanoTime() - start) / 1e9;
+        this.nBytes = nBytes;
+        this.fileSize = fileSize;
+        this.nPsms = nPsms;
+    }
+
+    /**
+     * Returns the duration of the export in seconds, null if not finished.
+     *
+     * @return the duration of the export in seconds
+     */
+    public Double getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the number of megabytes exported per second before compression.
+     *
+     * @return the number of megabytes exported per second
+     */
+    public double getMegabytesPerSecond() {
+        return nBytes / MB / Math.max(duration, 1e-3);
+    }
+
+    /**
+     * Returns the number of PSMs exported per second.
+     *
+     * @return the number of PSMs exported per second
+     */
+    public double getPsmsPerSecond() {
+        return nPsms / Math.max(duration, 1e-3);
+    }
+
+    /**
+     * Returns a report of the throughput of the export.
+     *
+     * @return a report of the throughput of the export
+     */
+    public String getReport() {
+        if (duration == null) {
+            return exportName + " export not finished.";
+        }
+        String report = exportName + " export: " + Util.roundDouble(nBytes / MB, 1) + " MB and " + nPsms + " PSMs in "
+                + Util.roundDouble(duration, 1) + " s (" + Util.roundDouble(getMegabytesPerSecond(), 1) + " MB/s, "
+                + Util.roundDouble(getPsmsPerSecond(), 1) + " PSMs/s)";
+        if (fileSize != nBytes) {
+            report += ", " + Util.roundDouble(fileSize / MB, 1) + " MB written";
+        }
+        return report + ".";
+    }
+}
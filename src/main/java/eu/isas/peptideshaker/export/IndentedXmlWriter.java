@@ -0,0 +1,273 @@
+package eu.isas.peptideshaker.export;
+
+import com.compomics.util.pride.CvTerm;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/**
+ * Writer for indented XML files. The lines are appended to a reusable
+ * character buffer which is written to the underlying writer in large blocks,
+ * so that the elements can be built without intermediate strings. A writer is
+ * meant to be used by a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class IndentedXmlWriter {
+
+    /**
+     * The number of characters above which the buffer is written.
+     */
+    private static final int FLUSH_SIZE = 64 * 1024;
+    /**
+     * The line break type.
+     */
+    private static final String LINE_BREAK = System.getProperty("line.separator");
+    /**
+     * The indentation strings indexed by level.
+     */
+    private static final String[] INDENTS = new String[16];
+
+    static {
+        String indent = "";
+        for (int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = indent;
+            indent += "\t";
+        }
+    }
+
+    /**
+     * The underlying writer.
+     */
+    private final Writer writer;
+    /**
+     * The buffer where the lines are appended.
+     */
+    private final StringBuilder buffer = new StringBuilder(FLUSH_SIZE + 1024);
+    /**
+     * The characters to write, reused between flushes.
+     */
+    private char[] chars = new char[FLUSH_SIZE + 1024];
+    /**
+     * The current indentation level.
+     */
+    private int indent;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the underlying writer
+     */
+    public IndentedXmlWriter(Writer writer) {
+        this(writer, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param writer the underlying writer
+     * @param indent the initial indentation level
+     */
+    public IndentedXmlWriter(Writer writer, int indent) {
+        this.writer = writer;
+        this.indent = indent;
+    }
+
+    /**
+     * Returns the current indentation level.
+     *
+     * @return the current indentation level
+     */
+    public int getIndent() {
+        return indent;
+    }
+
+    /**
+     * Increases the indentation level.
+     */
+    public void increaseIndent() {
+        indent++;
+    }
+
+    /**
+     * Decreases the indentation level.
+     */
+    public void decreaseIndent() {
+        indent--;
+    }
+
+    /**
+     * Starts a new line at the current indentation level and returns the
+     * buffer where the content of the line can be appended. The line must be
+     * terminated using endLine().
+     *
+     * @return the buffer where the content of the line can be appended
+     */
+    public StringBuilder startLine() {
+        if (indent > 0) {
+            buffer.append(INDENTS[Math.min(indent, INDENTS.length - 1)]);
+        }
+        return buffer;
+    }
+
+    /**
+     * Terminates the current line.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void endLine() throws IOException {
+        buffer.append(LINE_BREAK);
+        if (buffer.length() >= FLUSH_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes a line at the current indentation level.
+     *
+     * @param line the content of the line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeLine(String line) throws IOException {
+        startLine().append(line);
+        endLine();
+    }
+
+    /**
+     * Writes text as is, without indentation or line break.
+     *
+     * @param text the text to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void write(String text) throws IOException {
+        buffer.append(text);
+        if (buffer.length() >= FLUSH_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes a CV term.
+     *
+     * @param cvTerm the CV term
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeCvTerm(CvTerm cvTerm) throws IOException {
+        writeCvTerm(cvTerm, true);
+    }
+
+    /**
+     * Writes a CV term.
+     *
+     * @param cvTerm the CV term
+     * @param showValue decides if the CV terms value (if existing) is printed
+     * or not
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeCvTerm(CvTerm cvTerm, boolean showValue) throws IOException {
+        StringBuilder line = startLine();
+        line.append("<cvParam cvRef=\"").append(StringEscapeUtils.escapeHtml4(cvTerm.getOntology()))
+                .append("\" accession=\"").append(cvTerm.getAccession())
+                .append("\" name=\"").append(StringEscapeUtils.escapeHtml4(cvTerm.getName())).append('"');
+        if (showValue && cvTerm.getValue() != null) {
+            line.append(" value=\"").append(StringEscapeUtils.escapeHtml4(cvTerm.getValue())).append("\"/>");
+        } else {
+            line.append("/>");
+        }
+        endLine();
+    }
+
+    /**
+     * Writes a user parameter without value.
+     *
+     * @param name the name of the user parameter
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeUserParam(String name) throws IOException {
+        startLine().append("<userParam name=\"").append(StringEscapeUtils.escapeHtml4(name)).append("\"/>");
+        endLine();
+    }
+
+    /**
+     * Writes a user parameter.
+     *
+     * @param name the name of the user parameter
+     * @param value the value of the user parameter
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeUserParam(String name, String value) throws IOException {
+        startLine().append("<userParam name=\"").append(StringEscapeUtils.escapeHtml4(name))
+                .append("\" value=\"").append(StringEscapeUtils.escapeHtml4(value)).append("\" />");
+        endLine();
+    }
+
+    /**
+     * Copies the content of a reader as is.
+     *
+     * @param reader the reader
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     */
+    public void append(Reader reader) throws IOException {
+        flushBuffer();
+        int read;
+        while ((read = reader.read(chars)) != -1) {
+            writer.write(chars, 0, read);
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the underlying writer.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void flushBuffer() throws IOException {
+        int length = buffer.length();
+        if (length > 0) {
+            if (chars.length < length) {
+                chars = new char[length];
+            }
+            buffer.getChars(0, length, chars, 0);
+            writer.write(chars, 0, length);
+            buffer.setLength(0);
+        }
+    }
+
+    /**
+     * Writes the content of the buffer and flushes the underlying writer.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Writes the content of the buffer and closes the underlying writer.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void close() throws IOException {
+        flushBuffer();
+        writer.close();
+    }
+}
@@ -0,0 +1,847 @@
+package eu.isas.peptideshaker.export;
+
+import com.compomics.util.experiment.ShotgunProtocol;
+import com.compomics.util.experiment.biology.genes.GeneMaps;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
+import com.compomics.util.experiment.personalization.UrParameter;
+import com.compomics.util.io.export.ExportFormat;
+import com.compomics.util.io.export.ExportScheme;
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
+import eu.isas.peptideshaker.export.exportfeatures.PsProteinFeature;
+import eu.isas.peptideshaker.export.exportfeatures.PsPsmFeature;
+import eu.isas.peptideshaker.export.sections.OrderedLineWriter;
+import eu.isas.peptideshaker.export.sections.PsPeptideSection;
+import eu.isas.peptideshaker.export.sections.PsProteinSection;
+import eu.isas.peptideshaker.export.sections.PsPsmSection;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.preferences.ProjectDetails;
+import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math.MathException;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Writes multiple reports in a single pass over the matches. The protein,
+ * peptide and PSM sections of all reports are fed from the same loaded
+ * matches, the proteins, peptides and PSMs are hence read only once from the
+ * database whatever the number of reports. The lines of the sections without
+ * subsection are computed in parallel by blocks of matches and written in the
+ * order of the matches.
+ *
+ * @author Marc Vaudel
+ */
+public class MultiReportExport {
+
+    /**
+     * The schemes of the reports.
+     */
+    private final ArrayList<ExportScheme> exportSchemes;
+    /**
+     * The writers of the reports.
+     */
+    private final ArrayList<ExportWriter> exportWriters;
+    /**
+     * For every report, the index of the next section to write.
+     */
+    private final int[] nextSections;
+    /**
+     * The identification.
+     */
+    private final Identification identification;
+    /**
+     * The identification features generator.
+     */
+    private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+    /**
+     * The gene maps.
+     */
+    private final GeneMaps geneMaps;
+    /**
+     * Information about the protocol.
+     */
+    private final ShotgunProtocol shotgunProtocol;
+    /**
+     * The identification parameters.
+     */
+    private final IdentificationParameters identificationParameters;
+    /**
+     * The number of surrounding amino acids to export.
+     */
+    private final int nSurroundingAA;
+    /**
+     * The number of threads to use to compute the lines.
+     */
+    private final int nThreads;
+    /**
+     * The waiting handler.
+     */
+    private final WaitingHandler waitingHandler;
+
+    /**
+     * Constructor.
+     *
+     * @param exportSchemes the schemes of the reports
+     * @param exportWriters the writers of the reports
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use to compute the lines
+     * @param waitingHandler the waiting handler
+     */
+    private MultiReportExport(ArrayList<ExportScheme> exportSchemes, ArrayList<ExportWriter> exportWriters, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler) {
+        this.exportSchemes = exportSchemes;
+        this.exportWriters = exportWriters;
+        this.nextSections = new int[exportSchemes.size()];
+        this.identification = identification;
+        this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+        this.geneMaps = geneMaps;
+        this.nSurroundingAA = nSurroundingAA;
+        this.shotgunProtocol = shotgunProtocol;
+        this.identificationParameters = identificationParameters;
+        this.nThreads = nThreads;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Writes the given reports. The protein, peptide and PSM sections are
+     * written during a single pass over the respective matches. Sections are
+     * written in the order of every scheme, if a scheme lists a match section
+     * after a match section of a lower level, e.g. proteins after PSMs, this
+     * section is written separately after the passes.
+     *
+     * @param exportSchemes the schemes of the reports
+     * @param destinationFiles the destination files, one per scheme
+     * @param exportFormat the format of export to use
+     * @param experiment the experiment corresponding to this project
+     * @param sample the sample of the project
+     * @param replicateNumber the replicate number of the project
+     * @param projectDetails the project details
+     * @param identification the identification
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param nThreads the number of threads to use to compute the lines
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    public static void writeExports(ArrayList<ExportScheme> exportSchemes, ArrayList<File> destinationFiles, ExportFormat exportFormat,
+            String experiment, String sample, int replicateNumber, ProjectDetails projectDetails, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        if (exportSchemes.size() != destinationFiles.size()) {
+            throw new IllegalArgumentException(exportSchemes.size() + " export schemes provided for " + destinationFiles.size() + " destination files.");
+        }
+
+        ArrayList<ExportWriter> exportWriters = new ArrayList<ExportWriter>(exportSchemes.size());
+        boolean completed = false;
+
+        try {
+            for (int i = 0; i < exportSchemes.size(); i++) {
+                exportWriters.add(PSExportFactory.getExportWriter(exportSchemes.get(i), exportFormat, destinationFiles.get(i)));
+            }
+
+            MultiReportExport multiReportExport = new MultiReportExport(exportSchemes, exportWriters, identification, identificationFeaturesGenerator,
+                    geneMaps, nSurroundingAA, shotgunProtocol, identificationParameters, nThreads, waitingHandler);
+
+            multiReportExport.writeOtherSections(experiment, sample, replicateNumber, projectDetails, spectrumCountingPreferences);
+            multiReportExport.writeProteinSections();
+            multiReportExport.writeOtherSections(experiment, sample, replicateNumber, projectDetails, spectrumCountingPreferences);
+            multiReportExport.writePeptideSections();
+            multiReportExport.writeOtherSections(experiment, sample, replicateNumber, projectDetails, spectrumCountingPreferences);
+            multiReportExport.writePsmSections();
+            multiReportExport.writeRemainingSections(experiment, sample, replicateNumber, projectDetails, spectrumCountingPreferences);
+
+            completed = true;
+
+        } finally {
+            IOException closeException = null;
+            for (ExportWriter exportWriter : exportWriters) {
+                try {
+                    exportWriter.close();
+                } catch (IOException e) {
+                    if (closeException == null) {
+                        closeException = e;
+                    }
+                }
+            }
+            if (completed && closeException != null) {
+                throw closeException;
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the given section is a protein, peptide or PSM
+     * section.
+     *
+     * @param sectionName the name of the section
+     *
+     * @return a boolean indicating whether the given section is a protein,
+     * peptide or PSM section
+     */
+    private static boolean isMatchSection(String sectionName) {
+        return sectionName.equals(PsProteinFeature.type) || sectionName.equals(PsPeptideFeature.type) || sectionName.equals(PsPsmFeature.type);
+    }
+
+    /**
+     * Writes the sections of every report until the next protein, peptide or
+     * PSM section.
+     *
+     * @param experiment the experiment corresponding to this project
+     * @param sample the sample of the project
+     * @param replicateNumber the replicate number of the project
+     * @param projectDetails the project details
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private void writeOtherSections(String experiment, String sample, int replicateNumber, ProjectDetails projectDetails,
+            SpectrumCountingPreferences spectrumCountingPreferences)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        for (int i = 0; i < exportSchemes.size(); i++) {
+            ExportScheme exportScheme = exportSchemes.get(i);
+            ArrayList<String> sections = exportScheme.getSections();
+            while (nextSections[i] < sections.size() && !isMatchSection(sections.get(nextSections[i]))) {
+                PSExportFactory.writeSection(exportScheme, sections.get(nextSections[i]), exportWriters.get(i), experiment, sample, replicateNumber,
+                        projectDetails, identification, identificationFeaturesGenerator, geneMaps, null, null, null, nSurroundingAA, shotgunProtocol,
+                        identificationParameters, spectrumCountingPreferences, 1, waitingHandler);
+                nextSections[i]++;
+            }
+        }
+    }
+
+    /**
+     * Writes the sections remaining after the passes over the matches, one
+     * report after the other.
+     *
+     * @param experiment the experiment corresponding to this project
+     * @param sample the sample of the project
+     * @param replicateNumber the replicate number of the project
+     * @param projectDetails the project details
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private void writeRemainingSections(String experiment, String sample, int replicateNumber, ProjectDetails projectDetails,
+            SpectrumCountingPreferences spectrumCountingPreferences)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        for (int i = 0; i < exportSchemes.size(); i++) {
+            ExportScheme exportScheme = exportSchemes.get(i);
+            ArrayList<String> sections = exportScheme.getSections();
+            while (nextSections[i] < sections.size()) {
+                PSExportFactory.writeSection(exportScheme, sections.get(nextSections[i]), exportWriters.get(i), experiment, sample, replicateNumber,
+                        projectDetails, identification, identificationFeaturesGenerator, geneMaps, null, null, null, nSurroundingAA, shotgunProtocol,
+                        identificationParameters, spectrumCountingPreferences, 1, waitingHandler);
+                nextSections[i]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes of the reports where the next section to write is
+     * the given section. Starts the section in the corresponding writers.
+     *
+     * @param sectionName the name of the section
+     *
+     * @return the indexes of the reports where the next section to write is
+     * the given section
+     *
+     * @throws IOException thrown if an IOException occurs
+     */
+    private ArrayList<Integer> startSections(String sectionName) throws IOException {
+        ArrayList<Integer> reportIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < exportSchemes.size(); i++) {
+            ArrayList<String> sections = exportSchemes.get(i).getSections();
+            if (nextSections[i] < sections.size() && sections.get(nextSections[i]).equals(sectionName)) {
+                PSExportFactory.startSection(exportSchemes.get(i), sectionName, exportWriters.get(i));
+                nextSections[i]++;
+                reportIndexes.add(i);
+            }
+        }
+        return reportIndexes;
+    }
+
+    /**
+     * Sets up the secondary progress of the waiting handler for a pass over
+     * the matches.
+     *
+     * @param nMatches the number of matches
+     */
+    private void startPass(int nMatches) {
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Exporting. Please Wait...");
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nMatches);
+        }
+    }
+
+    /**
+     * Writes the protein sections of the reports in a single pass over the
+     * protein matches.
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private void writeProteinSections()
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        final ArrayList<Integer> reportIndexes = startSections(PsProteinFeature.type);
+        if (reportIndexes.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<PsProteinSection> sections = new ArrayList<PsProteinSection>(reportIndexes.size());
+        final boolean[] parallel = new boolean[reportIndexes.size()];
+        boolean loadPeptides = false;
+        for (int i = 0; i < reportIndexes.size(); i++) {
+            ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+            PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(PsProteinFeature.type), exportScheme.isIndexes(),
+                    exportScheme.isHeader(), exportWriters.get(reportIndexes.get(i)));
+            if (exportScheme.isHeader()) {
+                section.writeHeader();
+            }
+            loadPeptides = loadPeptides || section.requiresPeptides();
+            parallel[i] = nThreads > 1 && !section.requiresPeptides();
+            sections.add(section);
+        }
+
+        final ArrayList<String> keys = new ArrayList<String>(identification.getProteinIdentification());
+        startPass(keys.size());
+
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(new PSParameter());
+        final ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(
+                keys, parameters, loadPeptides, parameters, loadPeptides, parameters, waitingHandler);
+
+        final int[] lines = getFirstLines(sections.size());
+
+        runPass(new PassHandler<ProteinMatch>() {
+            @Override
+            public ProteinMatch next() throws Exception {
+                return proteinMatchesIterator.hasNext() ? proteinMatchesIterator.next() : null;
+            }
+
+            @Override
+            public PSParameter loadParameter(ProteinMatch proteinMatch) throws Exception {
+                return (PSParameter) identification.getProteinMatchParameter(proteinMatch.getKey(), new PSParameter());
+            }
+
+            @Override
+            public ArrayList<ArrayList<String>> getLines(ProteinMatch proteinMatch, PSParameter psParameter) throws Exception {
+                ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>(sections.size());
+                for (int i = 0; i < sections.size(); i++) {
+                    ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+                    PsProteinSection section = sections.get(i);
+                    if (parallel[i] && section.isExported(proteinMatch.getKey(), psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                        result.add(section.getLine(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys,
+                                nSurroundingAA, proteinMatch, psParameter, waitingHandler));
+                    } else {
+                        result.add(null);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public void write(ProteinMatch proteinMatch, PSParameter psParameter, ArrayList<ArrayList<String>> matchLines) throws Exception {
+                for (int i = 0; i < sections.size(); i++) {
+                    int reportIndex = reportIndexes.get(i);
+                    ExportScheme exportScheme = exportSchemes.get(reportIndex);
+                    if (parallel[i]) {
+                        if (matchLines != null && matchLines.get(i) != null) {
+                            writeLine(exportWriters.get(reportIndex), exportScheme.isIndexes(), null, lines[i], matchLines.get(i));
+                            lines[i]++;
+                        }
+                    } else if (sections.get(i).writeMatch(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys,
+                            nSurroundingAA, proteinMatch, psParameter, lines[i], exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler)) {
+                        lines[i]++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the peptide sections of the reports in a single pass over the
+     * peptide matches.
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private void writePeptideSections()
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        final ArrayList<Integer> reportIndexes = startSections(PsPeptideFeature.type);
+        if (reportIndexes.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<PsPeptideSection> sections = new ArrayList<PsPeptideSection>(reportIndexes.size());
+        final boolean[] parallel = new boolean[reportIndexes.size()];
+        boolean loadPsms = false;
+        for (int i = 0; i < reportIndexes.size(); i++) {
+            ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+            PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(PsPeptideFeature.type), exportScheme.isIndexes(),
+                    exportScheme.isHeader(), exportWriters.get(reportIndexes.get(i)));
+            if (exportScheme.isHeader()) {
+                section.writeHeader();
+            }
+            loadPsms = loadPsms || section.requiresPsms();
+            parallel[i] = nThreads > 1 && !section.requiresPsms();
+            sections.add(section);
+        }
+
+        final ArrayList<String> keys = new ArrayList<String>(identification.getPeptideIdentification());
+        startPass(keys.size());
+
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(new PSParameter());
+        final PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, loadPsms, parameters, waitingHandler);
+
+        final int[] lines = getFirstLines(sections.size());
+
+        runPass(new PassHandler<PeptideMatch>() {
+            @Override
+            public PeptideMatch next() throws Exception {
+                return peptideMatchesIterator.hasNext() ? peptideMatchesIterator.next() : null;
+            }
+
+            @Override
+            public PSParameter loadParameter(PeptideMatch peptideMatch) throws Exception {
+                return (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), new PSParameter());
+            }
+
+            @Override
+            public ArrayList<ArrayList<String>> getLines(PeptideMatch peptideMatch, PSParameter psParameter) throws Exception {
+                ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>(sections.size());
+                for (int i = 0; i < sections.size(); i++) {
+                    ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+                    PsPeptideSection section = sections.get(i);
+                    if (parallel[i] && section.isExported(identificationParameters, peptideMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                        result.add(section.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys,
+                                nSurroundingAA, "", peptideMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler));
+                    } else {
+                        result.add(null);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public void write(PeptideMatch peptideMatch, PSParameter psParameter, ArrayList<ArrayList<String>> matchLines) throws Exception {
+                for (int i = 0; i < sections.size(); i++) {
+                    int reportIndex = reportIndexes.get(i);
+                    ExportScheme exportScheme = exportSchemes.get(reportIndex);
+                    if (parallel[i]) {
+                        if (matchLines != null && matchLines.get(i) != null) {
+                            writeLine(exportWriters.get(reportIndex), exportScheme.isIndexes(), "", lines[i], matchLines.get(i));
+                            lines[i]++;
+                        }
+                    } else if (sections.get(i).writeMatch(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys,
+                            nSurroundingAA, "", peptideMatch, psParameter, lines[i], exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler)) {
+                        lines[i]++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the PSM sections of the reports in a single pass over the
+     * spectrum matches.
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private void writePsmSections()
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        final ArrayList<Integer> reportIndexes = startSections(PsPsmFeature.type);
+        if (reportIndexes.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<PsPsmSection> sections = new ArrayList<PsPsmSection>(reportIndexes.size());
+        final boolean[] parallel = new boolean[reportIndexes.size()];
+        boolean loadAssumptions = false;
+        for (int i = 0; i < reportIndexes.size(); i++) {
+            ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+            PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(PsPsmFeature.type), exportScheme.isIndexes(),
+                    exportScheme.isHeader(), exportWriters.get(reportIndexes.get(i)));
+            if (exportScheme.isHeader()) {
+                section.writeHeader();
+            }
+            loadAssumptions = loadAssumptions || section.requiresAssumptions();
+            parallel[i] = nThreads > 1 && !section.hasFragmentSection();
+            sections.add(section);
+        }
+
+        final HashMap<String, HashSet<String>> psmMap = identification.getSpectrumIdentificationMap();
+        int totalSize = 0;
+        for (HashSet<String> spectrumKeys : psmMap.values()) {
+            totalSize += spectrumKeys.size();
+        }
+        startPass(totalSize);
+
+        final ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(new PSParameter());
+        final boolean finalLoadAssumptions = loadAssumptions;
+        final Iterator<String> spectrumFiles = psmMap.keySet().iterator();
+
+        final int[] lines = getFirstLines(sections.size());
+
+        runPass(new PassHandler<SpectrumMatch>() {
+
+            /**
+             * The iterator of the spectrum matches of the current file.
+             */
+            private PsmIterator psmIterator = null;
+
+            @Override
+            public SpectrumMatch next() throws Exception {
+                while (psmIterator == null || !psmIterator.hasNext()) {
+                    if (!spectrumFiles.hasNext()) {
+                        return null;
+                    }
+                    String spectrumFile = spectrumFiles.next();
+                    psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(psmMap.get(spectrumFile)),
+                            parameters, finalLoadAssumptions, waitingHandler);
+                }
+                return psmIterator.next();
+            }
+
+            @Override
+            public PSParameter loadParameter(SpectrumMatch spectrumMatch) throws Exception {
+                return (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), new PSParameter());
+            }
+
+            @Override
+            public ArrayList<ArrayList<String>> getLines(SpectrumMatch spectrumMatch, PSParameter psParameter) throws Exception {
+                ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>(sections.size());
+                for (int i = 0; i < sections.size(); i++) {
+                    ExportScheme exportScheme = exportSchemes.get(reportIndexes.get(i));
+                    PsPsmSection section = sections.get(i);
+                    if (parallel[i] && section.isExported(identificationParameters, spectrumMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy())) {
+                        result.add(section.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, null, "",
+                                nSurroundingAA, spectrumMatch, psParameter, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler));
+                    } else {
+                        result.add(null);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public void write(SpectrumMatch spectrumMatch, PSParameter psParameter, ArrayList<ArrayList<String>> matchLines) throws Exception {
+                for (int i = 0; i < sections.size(); i++) {
+                    int reportIndex = reportIndexes.get(i);
+                    ExportScheme exportScheme = exportSchemes.get(reportIndex);
+                    if (parallel[i]) {
+                        if (matchLines != null && matchLines.get(i) != null) {
+                            writeLine(exportWriters.get(reportIndex), exportScheme.isIndexes(), "", lines[i], matchLines.get(i));
+                            lines[i]++;
+                        }
+                    } else if (sections.get(i).writeMatch(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, null, "",
+                            nSurroundingAA, spectrumMatch, psParameter, lines[i], exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler)) {
+                        lines[i]++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the index of the first line of every section.
+     *
+     * @param nSections the number of sections
+     *
+     * @return the index of the first line of every section
+     */
+    private static int[] getFirstLines(int nSections) {
+        int[] lines = new int[nSections];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Writes a line computed in parallel.
+     *
+     * @param writer the writer of the report
+     * @param indexes boolean indicating whether the line index should be
+     * written
+     * @param linePrefix the line prefix, can be null
+     * @param line the index of the line
+     * @param cells the content of the cells
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    private static void writeLine(ExportWriter writer, boolean indexes, String linePrefix, int line, ArrayList<String> cells) throws IOException {
+        boolean first = true;
+        if (indexes) {
+            if (linePrefix != null) {
+                writer.write(linePrefix);
+            }
+            writer.write(line + "");
+            first = false;
+        }
+        for (String cell : cells) {
+            if (!first) {
+                writer.addSeparator();
+            } else {
+                first = false;
+            }
+            writer.write(cell);
+        }
+        writer.newLine();
+    }
+
+    /**
+     * Runs a pass over the matches. The matches are pulled by blocks, the
+     * lines of the block are computed using the number of threads of the
+     * export, and the matches are then written in the order they were pulled.
+     *
+     * @param <T> the type of match
+     * @param passHandler the handler of the pass
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private <T> void runPass(final PassHandler<T> passHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        ExecutorService pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+        int blockSize = nThreads > 1 ? nThreads * OrderedLineWriter.DEFAULT_BLOCK_SIZE : 1;
+
+        try {
+            while (true) {
+
+                ArrayList<T> matches = new ArrayList<T>(blockSize);
+                final ArrayList<PSParameter> psParameters = new ArrayList<PSParameter>(blockSize);
+                T match;
+                while (matches.size() < blockSize && (match = passHandler.next()) != null) {
+                    matches.add(match);
+                    psParameters.add(passHandler.loadParameter(match));
+                }
+                if (matches.isEmpty()) {
+                    return;
+                }
+
+                ArrayList<Future<ArrayList<ArrayList<String>>>> matchesLines = new ArrayList<Future<ArrayList<ArrayList<String>>>>(matches.size());
+                if (pool != null) {
+                    for (int i = 0; i < matches.size(); i++) {
+                        final T blockMatch = matches.get(i);
+                        final PSParameter blockParameter = psParameters.get(i);
+                        matchesLines.add(pool.submit(new Callable<ArrayList<ArrayList<String>>>() {
+                            @Override
+                            public ArrayList<ArrayList<String>> call() throws Exception {
+                                return passHandler.getLines(blockMatch, blockParameter);
+                            }
+                        }));
+                    }
+                }
+
+                for (int i = 0; i < matches.size(); i++) {
+                    if (waitingHandler != null) {
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                    ArrayList<ArrayList<String>> matchLines = pool != null ? matchesLines.get(i).get() : null;
+                    passHandler.write(matches.get(i), psParameters.get(i), matchLines);
+                }
+            }
+        } catch (ExecutionException e) {
+            throwException(e.getCause());
+        } catch (Exception e) {
+            throwException(e);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Throws the given exception as one of the exceptions thrown by the
+     * export.
+     *
+     * @param e the exception
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    private static void throwException(Throwable e)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof SQLException) {
+            throw (SQLException) e;
+        } else if (e instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) e;
+        } else if (e instanceof InterruptedException) {
+            throw (InterruptedException) e;
+        } else if (e instanceof MzMLUnmarshallerException) {
+            throw (MzMLUnmarshallerException) e;
+        } else if (e instanceof MathException) {
+            throw (MathException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else {
+            throw new IllegalArgumentException("An error occurred while exporting the matches.", e);
+        }
+    }
+
+    /**
+     * Interface for the handling of the matches of a pass.
+     *
+     * @param <T> the type of match
+     */
+    private interface PassHandler<T> {
+
+        /**
+         * Returns the next match of the pass, null if none. Called by the
+         * exporting thread only.
+         *
+         * @return the next match of the pass
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * loading the match
+         */
+        public T next() throws Exception;
+
+        /**
+         * Returns the PeptideShaker parameter of the given match, loaded once
+         * per match and passed to getLines and write. Called by the exporting
+         * thread only.
+         *
+         * @param match the match
+         *
+         * @return the PeptideShaker parameter of the given match
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * loading the parameter
+         */
+        public PSParameter loadParameter(T match) throws Exception;
+
+        /**
+         * Returns the lines of the given match for the sections computed in
+         * parallel, null for the other sections and if the match is not
+         * exported. Called concurrently by the worker threads.
+         *
+         * @param match the match
+         * @param psParameter the PeptideShaker parameter of the match
+         *
+         * @return the lines of the given match for every section
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * computing a feature
+         */
+        public ArrayList<ArrayList<String>> getLines(T match, PSParameter psParameter) throws Exception;
+
+        /**
+         * Writes the given match in all sections, using the lines computed in
+         * parallel when available. Called by the exporting thread only, in
+         * the order of the matches.
+         *
+         * @param match the match
+         * @param psParameter the PeptideShaker parameter of the match
+         * @param matchLines the lines computed in parallel, null if none
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * writing the match
+         */
+        public void write(T match, PSParameter psParameter, ArrayList<ArrayList<String>> matchLines) throws Exception;
+    }
+}
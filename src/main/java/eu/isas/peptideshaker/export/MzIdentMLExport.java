@@ -51,6 +51,7 @@ import eu.isas.peptideshaker.scoring.PtmScoring;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStream;
 import java.io.*;
 import java.sql.SQLException;
 import java.text.DateFormat;
@@ -60,6 +61,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import org.apache.commons.lang3.StringEscapeUtils;
 
@@ -72,18 +77,21 @@ import org.apache.commons.lang3.StringEscapeUtils;
 public class MzIdentMLExport {
 
     /**
-     * The fileWriter.
+     * The output file.
      */
-    private FileWriter r;
+    private File outputFile;
     /**
-     * The buffered writer which will write the results in the desired file.
+     * The writer which will write the results in the desired file.
      */
-    private BufferedWriter br;
+    private IndentedXmlWriter xmlWriter;
     /**
-     * Integer keeping track of the number of tabs to include at the beginning
-     * of each line.
+     * The compressing stream, null if the output is not compressed.
      */
-    private int tabCounter = 0;
+    private ParallelGzipOutputStream gzipStream = null;
+    /**
+     * The throughput of the export.
+     */
+    private ExportThroughput exportThroughput = new ExportThroughput("mzIdentML");
     /**
      * The spectrum factory.
      */
@@ -134,21 +142,28 @@ public class MzIdentMLExport {
      */
     private IdentificationFeaturesGenerator identificationFeaturesGenerator;
     /**
-     * The peptide spectrum annotator.
+     * The number of threads to use to write the spectrum identification
+     * results.
      */
-    private PeptideSpectrumAnnotator peptideSpectrumAnnotator;
+    private int nThreads;
     /**
      * The waiting handler.
      */
     private WaitingHandler waitingHandler;
     /**
-     * The peptide evidence IDs.
+     * The peptide evidences indexed by peptide key, computed once when writing
+     * the sequence collection.
      */
-    private HashMap<String, String> pepEvidenceIds = new HashMap<String, String>();
+    private HashMap<String, PeptideEvidences> peptideEvidences = new HashMap<String, PeptideEvidences>();
     /**
      * The spectrum IDs.
      */
-    private HashMap<String, String> spectrumIds = new HashMap<String, String>();
+    private ConcurrentHashMap<String, String> spectrumIds = new ConcurrentHashMap<String, String>();
+    /**
+     * The first error encountered while writing the spectrum identification
+     * results in parallel.
+     */
+    private volatile Throwable exportException = null;
     /**
      * The spectrum key to parent peptide key map.
      */
@@ -179,10 +194,6 @@ public class MzIdentMLExport {
      * The match validation level a PSM must have to be included in the export.
      */
     private MatchValidationLevel psmMatchValidationLevel;
-    /**
-     * The line break type.
-     */
-    private String lineBreak = System.getProperty("line.separator");
     /**
      * If true, the fragment ions will be written to the mzid file.
      */
@@ -212,7 +223,7 @@ public class MzIdentMLExport {
     public MzIdentMLExport(String peptideShakerVersion, Identification identification, ProjectDetails projectDetails,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences,
             IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException {
-        this(peptideShakerVersion, identification, projectDetails, shotgunProtocol, identificationParameters, spectrumCountingPreferences, identificationFeaturesGenerator, outputFile, waitingHandler, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
+        this(peptideShakerVersion, identification, projectDetails, shotgunProtocol, identificationParameters, spectrumCountingPreferences, identificationFeaturesGenerator, outputFile, waitingHandler, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none, 1, false, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
     }
 
     /**
@@ -236,6 +247,12 @@ public class MzIdentMLExport {
      * must have to be included in the export
      * @param psmMatchValidationLevel the match validation level a PSM must have
      * to be included in the export
+     * @param nThreads the number of threads to use to write the spectrum
+     * identification results and to compress the output
+     * @param gzip if true the output is compressed in the gzip format and the
+     * .gz extension is appended to the output file if missing
+     * @param gzipBlockSize the size in bytes of the blocks compressed in
+     * parallel
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading/writing a file
@@ -245,7 +262,8 @@ public class MzIdentMLExport {
     public MzIdentMLExport(String peptideShakerVersion, Identification identification, ProjectDetails projectDetails,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences,
             IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, WaitingHandler waitingHandler,
-            MatchValidationLevel proteinMatchValidationLevel, MatchValidationLevel peptideMatchValidationLevel, MatchValidationLevel psmMatchValidationLevel) throws IOException, ClassNotFoundException {
+            MatchValidationLevel proteinMatchValidationLevel, MatchValidationLevel peptideMatchValidationLevel, MatchValidationLevel psmMatchValidationLevel,
+            int nThreads, boolean gzip, int gzipBlockSize) throws IOException, ClassNotFoundException {
         this.peptideShakerVersion = peptideShakerVersion;
         this.identification = identification;
         this.projectDetails = projectDetails;
@@ -257,9 +275,17 @@ public class MzIdentMLExport {
         this.proteinMatchValidationLevel = proteinMatchValidationLevel;
         this.peptideMatchValidationLevel = peptideMatchValidationLevel;
         this.psmMatchValidationLevel = psmMatchValidationLevel;
-        this.peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
-        r = new FileWriter(outputFile);
-        br = new BufferedWriter(r);
+        this.nThreads = Math.max(1, nThreads);
+        if (gzip && !outputFile.getName().toLowerCase().endsWith(".gz")) {
+            outputFile = new File(outputFile.getAbsoluteFile().getParentFile(), outputFile.getName() + ".gz");
+        }
+        this.outputFile = outputFile;
+        if (gzip) {
+            gzipStream = new ParallelGzipOutputStream(new FileOutputStream(outputFile), gzipBlockSize, this.nThreads);
+            xmlWriter = new IndentedXmlWriter(new OutputStreamWriter(gzipStream));
+        } else {
+            xmlWriter = new IndentedXmlWriter(new FileWriter(outputFile));
+        }
     }
 
     /**
@@ -280,6 +306,7 @@ public class MzIdentMLExport {
      */
     public void createMzIdentMLFile(boolean version12) throws IOException, MzMLUnmarshallerException, ClassNotFoundException, InterruptedException, SQLException {
 
+        exportThroughput.start();
         mzidVersion_1_2 = version12;
         if (mzidVersion_1_2) {
             maxNeutralLosses = 1;
@@ -287,52 +314,57 @@ public class MzIdentMLExport {
             maxNeutralLosses = 0;
         }
 
-        // @TODO: use the waiting handler more (especially for command line mode)
-        // the mzIdentML start tag
-        writeMzIdentMLStartTag();
+        try {
 
-        // write the cv list
-        writeCvList();
+            // @TODO: use the waiting handler more (especially for command line mode)
+            // the mzIdentML start tag
+            writeMzIdentMLStartTag();
 
-        // write the AnalysisSoftwareList
-        writeAnalysisSoftwareList();
+            // write the cv list
+            writeCvList();
 
-        // write the Provider details
-        writeProviderDetails();
+            // write the AnalysisSoftwareList
+            writeAnalysisSoftwareList();
 
-        // write the AuditCollection details
-        writeAuditCollection();
+            // write the Provider details
+            writeProviderDetails();
 
-        waitingHandler.setPrimaryProgressCounterIndeterminate(false);
-        waitingHandler.resetPrimaryProgressCounter();
-        waitingHandler.setMaxPrimaryProgressCounter(sequenceFactory.getNSequences()
-                + identification.getPeptideIdentification().size() * 2
-                + identification.getSpectrumIdentificationSize()
-                + identification.getProteinIdentification().size());
+            // write the AuditCollection details
+            writeAuditCollection();
 
-        // write the sequence collection
-        writeSequenceCollection();
+            waitingHandler.setPrimaryProgressCounterIndeterminate(false);
+            waitingHandler.resetPrimaryProgressCounter();
+            waitingHandler.setMaxPrimaryProgressCounter(sequenceFactory.getNSequences()
+                    + identification.getPeptideIdentification().size() * 2
+                    + identification.getSpectrumIdentificationSize()
+                    + identification.getProteinIdentification().size());
 
-        // write the analyis collection
-        writeAnalysisCollection();
+            // write the sequence collection
+            writeSequenceCollection();
 
-        // write the analysis protocol
-        writeAnalysisProtocol();
+            // write the analyis collection
+            writeAnalysisCollection();
 
-        // write the data collection
-        writeDataCollection();
+            // write the analysis protocol
+            writeAnalysisProtocol();
 
-        if (waitingHandler.isRunCanceled()) {
-            br.close();
-            r.close();
-            return;
-        }
+            // write the data collection
+            writeDataCollection();
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        // the experiment end tag
-        writeMzIdentMLEndTag();
+            // the experiment end tag
+            writeMzIdentMLEndTag();
 
-        br.close();
-        r.close();
+        } finally {
+            xmlWriter.close();
+        }
+
+        long nBytes = gzipStream != null ? gzipStream.getUncompressedSize() : outputFile.length();
+        exportThroughput.stop(nBytes, outputFile.length(), identification.getSpectrumIdentificationSize());
+        waitingHandler.appendReport(exportThroughput.getReport(), true, true);
     }
 
     /**
@@ -343,31 +375,27 @@ public class MzIdentMLExport {
      */
     private void writeCvList() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<cvList>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<cvList>");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace()
-                + "<cv id=\"PSI-MS\" "
+        xmlWriter.writeLine("<cv id=\"PSI-MS\" "
                 + "uri=\"https://raw.githubusercontent.com/HUPO-PSI/psi-ms-CV/master/psi-ms.obo\" "
-                + "fullName=\"PSI-MS\"/>" + lineBreak);
+                + "fullName=\"PSI-MS\"/>");
 
-        br.write(getCurrentTabSpace()
-                + "<cv id=\"UNIMOD\" "
+        xmlWriter.writeLine("<cv id=\"UNIMOD\" "
                 + "uri=\"http://www.unimod.org/obo/unimod.obo\" "
-                + "fullName=\"UNIMOD\"/>" + lineBreak);
+                + "fullName=\"UNIMOD\"/>");
 
-        br.write(getCurrentTabSpace()
-                + "<cv id=\"UO\" "
+        xmlWriter.writeLine("<cv id=\"UO\" "
                 + "uri=\"https://raw.githubusercontent.com/bio-ontology-research-group/unit-ontology/master/unit.obo\" "
-                + "fullName=\"UNIT-ONTOLOGY\"/>" + lineBreak);
+                + "fullName=\"UNIT-ONTOLOGY\"/>");
 
-        br.write(getCurrentTabSpace()
-                + "<cv id=\"PRIDE\" "
+        xmlWriter.writeLine("<cv id=\"PRIDE\" "
                 + "uri=\"https://github.com/PRIDE-Utilities/pride-ontology/blob/master/pride_cv.obo\" "
-                + "fullName=\"PRIDE\"/>" + lineBreak);
+                + "fullName=\"PRIDE\"/>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</cvList>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</cvList>");
     }
 
     /**
@@ -378,41 +406,40 @@ public class MzIdentMLExport {
      */
     private void writeAnalysisSoftwareList() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<AnalysisSoftwareList>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<AnalysisSoftwareList>");
+        xmlWriter.increaseIndent();
 
         // @TODO: also add SearchGUI and/or search engines used?
-        br.write(getCurrentTabSpace() + "<AnalysisSoftware "
+        xmlWriter.writeLine("<AnalysisSoftware "
                 + "name=\"PeptideShaker\" "
                 + "version=\"" + peptideShakerVersion + "\" "
                 + "id=\"ID_software\" "
-                + "uri=\"http://compomics.github.io/projects/peptide-shaker.html\">"
-                + lineBreak);
-        tabCounter++;
-
-        br.write(getCurrentTabSpace() + "<ContactRole contact_ref=\"PS_DEV\">" + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<Role>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001267", "software vendor", null));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Role>" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ContactRole>" + lineBreak);
-
-        br.write(getCurrentTabSpace() + "<SoftwareName>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1002458", "PeptideShaker", null));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SoftwareName>" + lineBreak);
-
-        br.write(getCurrentTabSpace() + "<Customizations>No customisations</Customizations>" + lineBreak);
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AnalysisSoftware>" + lineBreak);
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AnalysisSoftwareList>" + lineBreak);
+                + "uri=\"http://compomics.github.io/projects/peptide-shaker.html\">");
+        xmlWriter.increaseIndent();
+
+        xmlWriter.writeLine("<ContactRole contact_ref=\"PS_DEV\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<Role>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001267", "software vendor", null));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Role>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ContactRole>");
+
+        xmlWriter.writeLine("<SoftwareName>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002458", "PeptideShaker", null));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SoftwareName>");
+
+        xmlWriter.writeLine("<Customizations>No customisations</Customizations>");
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AnalysisSoftware>");
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AnalysisSoftwareList>");
     }
 
     /**
@@ -423,23 +450,23 @@ public class MzIdentMLExport {
      */
     private void writeProviderDetails() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<Provider id=\"PROVIDER\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<Provider id=\"PROVIDER\">");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<ContactRole contact_ref=\"PROVIDER\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<ContactRole contact_ref=\"PROVIDER\">");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<Role>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001271", "researcher", null)); // @TODO: add user defined provider role?
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Role>" + lineBreak);
+        xmlWriter.writeLine("<Role>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001271", "researcher", null)); // @TODO: add user defined provider role?
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Role>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ContactRole>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ContactRole>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Provider>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Provider>");
     }
 
     /**
@@ -450,46 +477,45 @@ public class MzIdentMLExport {
      */
     private void writeAuditCollection() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<AuditCollection>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<AuditCollection>");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<Person "
+        xmlWriter.writeLine("<Person "
                 + "firstName=\"" + projectDetails.getContactFirstName() + "\" "
                 + "lastName=\"" + projectDetails.getContactLastName() + "\" "
-                + "id=\"PROVIDER\">"
-                + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", projectDetails.getContactAddress()));
+                + "id=\"PROVIDER\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", projectDetails.getContactAddress()));
         if (projectDetails.getContactUrl() != null && !projectDetails.getContactUrl().isEmpty()) {
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", projectDetails.getContactUrl()));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", projectDetails.getContactUrl()));
         }
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", projectDetails.getContactEmail()));
-        br.write(getCurrentTabSpace() + "<Affiliation organization_ref=\"ORG_DOC_OWNER\"/>" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Person>" + lineBreak);
-
-        br.write(getCurrentTabSpace() + "<Organization name=\"" + projectDetails.getOrganizationName() + "\" id=\"ORG_DOC_OWNER\">" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000586", "contact name", projectDetails.getOrganizationName()));
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", projectDetails.getOrganizationAddress()));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", projectDetails.getContactEmail()));
+        xmlWriter.writeLine("<Affiliation organization_ref=\"ORG_DOC_OWNER\"/>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Person>");
+
+        xmlWriter.writeLine("<Organization name=\"" + projectDetails.getOrganizationName() + "\" id=\"ORG_DOC_OWNER\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000586", "contact name", projectDetails.getOrganizationName()));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", projectDetails.getOrganizationAddress()));
         if (projectDetails.getOrganizationUrl() != null && !projectDetails.getOrganizationUrl().isEmpty()) {
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", projectDetails.getOrganizationUrl()));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", projectDetails.getOrganizationUrl()));
         }
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", projectDetails.getOrganizationEmail()));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Organization>" + lineBreak);
-
-        br.write(getCurrentTabSpace() + "<Organization name=\"PeptideShaker developers\" id=\"PS_DEV\">" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000586", "contact name", "PeptideShaker developers"));
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", "Proteomics Unit, Building for Basic Biology, University of Bergen, Jonas Liesvei 91, N-5009 Bergen, Norway"));
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", "http://compomics.github.io/projects/peptide-shaker.html"));
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", "peptide-shaker@googlegroups.com"));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Organization>" + lineBreak);
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AuditCollection>" + lineBreak);
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", projectDetails.getOrganizationEmail()));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Organization>");
+
+        xmlWriter.writeLine("<Organization name=\"PeptideShaker developers\" id=\"PS_DEV\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000586", "contact name", "PeptideShaker developers"));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000587", "contact address", "Proteomics Unit, Building for Basic Biology, University of Bergen, Jonas Liesvei 91, N-5009 Bergen, Norway"));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000588", "contact URL", "http://compomics.github.io/projects/peptide-shaker.html"));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000589", "contact email", "peptide-shaker@googlegroups.com"));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Organization>");
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AuditCollection>");
     }
 
     /**
@@ -506,8 +532,8 @@ public class MzIdentMLExport {
      */
     private void writeSequenceCollection() throws IOException, InterruptedException, ClassNotFoundException, SQLException {
 
-        br.write(getCurrentTabSpace() + "<SequenceCollection>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<SequenceCollection>");
+        xmlWriter.increaseIndent();
 
         // get the sequence database
         ProteinIterator iterator = sequenceFactory.getProteinIterator(false);
@@ -521,13 +547,15 @@ public class MzIdentMLExport {
         // iterate all the protein sequences // @TODO: should be able to do this faster? we're just reading through the file once?
         while (iterator.hasNext()) {
             Protein currentProtein = iterator.getNextProtein();
-            br.write(getCurrentTabSpace() + "<DBSequence id=\"" + currentProtein.getAccession() + "\" "
-                    + "accession=\"" + currentProtein.getAccession() + "\" searchDatabase_ref=\"" + "SearchDB_1" + "\" >" + lineBreak);
-            tabCounter++;
-            //br.write(getCurrentTabSpace() + "<Seq>" + currentProtein.getSequence() + "</Seq>" + lineBreak);
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001088", "protein description", StringEscapeUtils.escapeHtml4(sequenceFactory.getHeader(currentProtein.getAccession()).getDescription())));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</DBSequence>" + lineBreak);
+            String accession = currentProtein.getAccession();
+            xmlWriter.startLine().append("<DBSequence id=\"").append(accession)
+                    .append("\" accession=\"").append(accession).append("\" searchDatabase_ref=\"SearchDB_1\" >");
+            xmlWriter.endLine();
+            xmlWriter.increaseIndent();
+            //xmlWriter.writeLine("<Seq>" + currentProtein.getSequence() + "</Seq>");
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001088", "protein description", StringEscapeUtils.escapeHtml4(sequenceFactory.getHeader(accession).getDescription())));
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</DBSequence>");
 
             waitingHandler.increasePrimaryProgressCounter();
 
@@ -545,6 +573,11 @@ public class MzIdentMLExport {
         // set up the spectrum key to peptide key map
         spectrumKeyToPeptideKeyMap = new HashMap<String, String>();
 
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        int peptideEvidenceCounter = 0;
+        peptideEvidences = new HashMap<String, PeptideEvidences>(identification.getPeptideIdentification().size());
+        ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification().size());
+
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
 
         while (peptideMatchesIterator.hasNext()) {
@@ -559,9 +592,17 @@ public class MzIdentMLExport {
                 spectrumKeyToPeptideKeyMap.put(spectrumMatchKey, peptideKey);
             }
 
-            br.write(getCurrentTabSpace() + "<Peptide id=\"" + peptideKey + "\">" + lineBreak);
-            tabCounter++;
-            br.write(getCurrentTabSpace() + "<PeptideSequence>" + peptideSequence + "</PeptideSequence>" + lineBreak);
+            // locate the peptide in the proteins once, the evidences are referenced by the spectrum identification results and the protein groups
+            PeptideEvidences evidences = new PeptideEvidences(peptide, peptideEvidenceCounter + 1, sequenceMatchingPreferences);
+            peptideEvidenceCounter += evidences.size();
+            peptideEvidences.put(peptideKey, evidences);
+            peptideKeys.add(peptideKey);
+
+            xmlWriter.startLine().append("<Peptide id=\"").append(peptideKey).append("\">");
+            xmlWriter.endLine();
+            xmlWriter.increaseIndent();
+            xmlWriter.startLine().append("<PeptideSequence>").append(peptideSequence).append("</PeptideSequence>");
+            xmlWriter.endLine();
 
             if (peptide.isModified()) {
                 for (ModificationMatch modMatch : peptide.getModificationMatches()) {
@@ -575,23 +616,24 @@ public class MzIdentMLExport {
                         ptmLocation = peptideSequence.length() + 1;
                     }
 
-                    br.write(getCurrentTabSpace() + "<Modification monoisotopicMassDelta=\"" + currentPtm.getRoundedMass() + "\" "
-                            + "residues=\"" + peptideSequence.charAt(modMatch.getModificationSite() - 1) + "\" "
-                            + "location=\"" + ptmLocation + "\" >" + lineBreak);
+                    xmlWriter.startLine().append("<Modification monoisotopicMassDelta=\"").append(currentPtm.getRoundedMass())
+                            .append("\" residues=\"").append(peptideSequence.charAt(modMatch.getModificationSite() - 1))
+                            .append("\" location=\"").append(ptmLocation).append("\" >");
+                    xmlWriter.endLine();
 
                     CvTerm ptmCvTerm = currentPtm.getCvTerm();
                     if (ptmCvTerm != null) {
-                        tabCounter++;
-                        writeCvTerm(ptmCvTerm, false);
-                        tabCounter--;
+                        xmlWriter.increaseIndent();
+                        xmlWriter.writeCvTerm(ptmCvTerm, false);
+                        xmlWriter.decreaseIndent();
                     }
 
-                    br.write(getCurrentTabSpace() + "</Modification>" + lineBreak);
+                    xmlWriter.writeLine("</Modification>");
                 }
             }
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</Peptide>" + lineBreak);
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</Peptide>");
 
             waitingHandler.increasePrimaryProgressCounter();
 
@@ -600,86 +642,20 @@ public class MzIdentMLExport {
             }
         }
 
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        int peptideEvidenceCounter = 0;
-
-        // re-iterate the peptides to get peptide to protein mapping
-        peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
-
-        while (peptideMatchesIterator.hasNext()) {
-
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            Peptide peptide = peptideMatch.getTheoreticPeptide();
-
-            // get the possible parent proteins
-            ArrayList<String> possibleProteins = peptide.getParentProteins(sequenceMatchingPreferences);
-
-            // iterate the possible protein parents
-            for (String tempProtein : possibleProteins) {
-
-                // get the start indexes and the surrounding 
-                HashMap<Integer, String[]> aaSurrounding = sequenceFactory.getProtein(tempProtein).getSurroundingAA(
-                        peptide.getSequence(), 1, sequenceMatchingPreferences);
-
-                ArrayList<Integer> indexes = new ArrayList<Integer>();
-                ArrayList<String> before = new ArrayList<String>();
-                ArrayList<String> after = new ArrayList<String>();
-
-                if (aaSurrounding.size() == 1) {
-                    for (int index : aaSurrounding.keySet()) {
-                        indexes.add(index);
-                        before.add(aaSurrounding.get(index)[0]);
-                        after.add(aaSurrounding.get(index)[1]);
-                    }
-                } else {
-                    ArrayList<Integer> tempIndexes = new ArrayList<Integer>(aaSurrounding.keySet());
-                    Collections.sort(tempIndexes);
-                    for (int index : tempIndexes) {
-                        indexes.add(index);
-                        before.add(aaSurrounding.get(index)[0]);
-                        after.add(aaSurrounding.get(index)[1]);
-                    }
-                }
-
-                for (int i = 0; i < indexes.size(); i++) {
-                    String aaBefore = "-";
-                    String aaAfter = "-";
-
-                    if (!before.get(i).isEmpty()) {
-                        aaBefore = before.get(i);
-                    }
-                    if (!after.get(i).isEmpty()) {
-                        aaAfter = after.get(i);
-                    }
-
-                    int peptideStart = indexes.get(i);
-                    int peptideEnd = (indexes.get(i) + peptide.getSequence().length() - 1);
-
-                    String pepEvidenceKey = tempProtein + "_" + peptideStart + "_" + peptideKey;
-                    pepEvidenceIds.put(pepEvidenceKey, "PepEv_" + ++peptideEvidenceCounter);
-
-                    br.write(getCurrentTabSpace() + "<PeptideEvidence isDecoy=\"" + peptide.isDecoy(sequenceMatchingPreferences) + "\" "
-                            + "pre=\"" + aaBefore + "\" "
-                            + "post=\"" + aaAfter + "\" "
-                            + "start=\"" + peptideStart + "\" "
-                            + "end=\"" + peptideEnd + "\" "
-                            + "peptide_ref=\"" + peptideKey + "\" "
-                            + "dBSequence_ref=\"" + sequenceFactory.getProtein(tempProtein).getAccession() + "\" "
-                            + "id=\"" + pepEvidenceIds.get(pepEvidenceKey) + "\" "
-                            + "/>" + lineBreak);
-                }
-            }
-
-            waitingHandler.increasePrimaryProgressCounter();
+        // write the peptide evidences, no need to iterate the peptides again
+        for (String peptideKey : peptideKeys) {
 
             if (waitingHandler.isRunCanceled()) {
                 break;
             }
+
+            peptideEvidences.get(peptideKey).write(peptideKey, xmlWriter);
+
+            waitingHandler.increasePrimaryProgressCounter();
         }
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SequenceCollection>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SequenceCollection>");
     }
 
     /**
@@ -690,39 +666,37 @@ public class MzIdentMLExport {
      */
     private void writeAnalysisCollection() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<AnalysisCollection>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<AnalysisCollection>");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<SpectrumIdentification "
+        xmlWriter.writeLine("<SpectrumIdentification "
                 + "spectrumIdentificationList_ref=\"SIL_1\" "
                 + "spectrumIdentificationProtocol_ref=\"SearchProtocol_1\" "
-                + "id=\"SpecIdent_1\">"
-                + lineBreak);
-        tabCounter++;
+                + "id=\"SpecIdent_1\">");
+        xmlWriter.increaseIndent();
 
         // iterate the spectrum files and add the file name refs
         for (String mgfFileName : spectrumFactory.getMgfFileNames()) {
-            br.write(getCurrentTabSpace() + "<InputSpectra spectraData_ref=\"" + mgfFileName + "\"/>" + lineBreak);
+            xmlWriter.writeLine("<InputSpectra spectraData_ref=\"" + mgfFileName + "\"/>");
         }
 
-        br.write(getCurrentTabSpace() + "<SearchDatabaseRef searchDatabase_ref=\"SearchDB_1\"/>" + lineBreak);
+        xmlWriter.writeLine("<SearchDatabaseRef searchDatabase_ref=\"SearchDB_1\"/>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SpectrumIdentification>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SpectrumIdentification>");
 
         // add protein detection
-        br.write(getCurrentTabSpace() + "<ProteinDetection " // @TODO: add activityDate? example: activityDate="2011-03-25T13:33:51
+        xmlWriter.writeLine("<ProteinDetection " // @TODO: add activityDate? example: activityDate="2011-03-25T13:33:51
                 + "proteinDetectionProtocol_ref=\"PeptideShaker_1\" "
                 + "proteinDetectionList_ref=\"Protein_groups\" "
-                + "id=\"PD_1\">"
-                + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<InputSpectrumIdentifications spectrumIdentificationList_ref=\"SIL_1\"/>" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ProteinDetection>" + lineBreak);
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AnalysisCollection>" + lineBreak);
+                + "id=\"PD_1\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<InputSpectrumIdentifications spectrumIdentificationList_ref=\"SIL_1\"/>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ProteinDetection>");
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AnalysisCollection>");
     }
 
     /**
@@ -733,41 +707,41 @@ public class MzIdentMLExport {
      */
     private void writeAnalysisProtocol() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<AnalysisProtocolCollection>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<AnalysisProtocolCollection>");
+        xmlWriter.increaseIndent();
 
         // add spectrum identification protocol
-        br.write(getCurrentTabSpace() + "<SpectrumIdentificationProtocol "
-                + "analysisSoftware_ref=\"ID_software\" id=\"SearchProtocol_1\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<SpectrumIdentificationProtocol "
+                + "analysisSoftware_ref=\"ID_software\" id=\"SearchProtocol_1\">");
+        xmlWriter.increaseIndent();
 
         // the search type
-        br.write(getCurrentTabSpace() + "<SearchType>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001083", "ms-ms search", null));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SearchType>" + lineBreak);
+        xmlWriter.writeLine("<SearchType>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001083", "ms-ms search", null));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SearchType>");
 
         // the search parameters
         SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        br.write(getCurrentTabSpace() + "<AdditionalSearchParams>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001211", "parent mass type mono", null));
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001256", "fragment mass type mono", null));
+        xmlWriter.writeLine("<AdditionalSearchParams>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001211", "parent mass type mono", null));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001256", "fragment mass type mono", null));
         if (mzidVersion_1_2) {
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002492", "consensus scoring", null));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002490", "peptide-level scoring", null));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002497", "group PSMs by sequence with modifications", null));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002491", "modification localization scoring", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002492", "consensus scoring", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002490", "peptide-level scoring", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002497", "group PSMs by sequence with modifications", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002491", "modification localization scoring", null));
         }
 
         // @TODO: list all search parameters from the search engines used?
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AdditionalSearchParams>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AdditionalSearchParams>");
 
         // the modifications
-        br.write(getCurrentTabSpace() + "<ModificationParams>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<ModificationParams>");
+        xmlWriter.increaseIndent();
 
         // create the ptm index map
         if (mzidVersion_1_2) {
@@ -800,47 +774,47 @@ public class MzIdentMLExport {
                 }
             }
 
-            br.write(getCurrentTabSpace() + "<SearchModification residues=\"" + aminoAcidsAtTarget + "\" massDelta=\"" + currentPtm.getRoundedMass()
-                    + "\" fixedMod= \"" + searchParameters.getPtmSettings().getFixedModifications().contains(ptm) + "\" >" + lineBreak);
-            tabCounter++;
+            xmlWriter.writeLine("<SearchModification residues=\"" + aminoAcidsAtTarget + "\" massDelta=\"" + currentPtm.getRoundedMass()
+                    + "\" fixedMod= \"" + searchParameters.getPtmSettings().getFixedModifications().contains(ptm) + "\" >");
+            xmlWriter.increaseIndent();
 
             // add modification specificity
             if (ptmType != PTM.MODAA && ptmType != PTM.MODMAX) {
 
-                br.write(getCurrentTabSpace() + "<SpecificityRules>" + lineBreak);
-                tabCounter++;
+                xmlWriter.writeLine("<SpecificityRules>");
+                xmlWriter.increaseIndent();
 
                 switch (ptmType) {
                     case PTM.MODN:
                     case PTM.MODNAA:
-                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002057", "modification specificity protein N-term", null));
+                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002057", "modification specificity protein N-term", null));
                         break;
                     case PTM.MODNP:
                     case PTM.MODNPAA:
-                        writeCvTerm(new CvTerm("PSI-MS", "MS:1001189", "modification specificity peptide N-term", null));
+                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001189", "modification specificity peptide N-term", null));
                         break;
                     case PTM.MODC:
                     case PTM.MODCAA:
-                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002058", "modification specificity protein C-term", null));
+                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002058", "modification specificity protein C-term", null));
                         break;
                     case PTM.MODCP:
                     case PTM.MODCPAA:
-                        writeCvTerm(new CvTerm("PSI-MS", "MS:1001190", "modification specificity peptide C-term", null));
+                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001190", "modification specificity peptide C-term", null));
                         break;
                     default:
                         break;
                 }
 
-                tabCounter--;
-                br.write(getCurrentTabSpace() + "</SpecificityRules>" + lineBreak);
+                xmlWriter.decreaseIndent();
+                xmlWriter.writeLine("</SpecificityRules>");
             }
 
             // add the modification cv term
             CvTerm ptmCvTerm = currentPtm.getCvTerm();
             if (ptmCvTerm != null) {
-                writeCvTerm(ptmCvTerm);
+                xmlWriter.writeCvTerm(ptmCvTerm);
             } else {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1001460", "unknown modification", null));
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001460", "unknown modification", null));
             }
 
             // add modification type/index
@@ -849,52 +823,51 @@ public class MzIdentMLExport {
                 if (ptmIndex == null) {
                     throw new IllegalArgumentException("No index found for PTM " + currentPtm.getName() + " of mass " + ptmMass + ".");
                 }
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002504", "modification index", ptmIndex.toString()));
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002504", "modification index", ptmIndex.toString()));
             }
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SearchModification>" + lineBreak);
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</SearchModification>");
         }
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ModificationParams>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ModificationParams>");
 
         // enzyme
-        br.write(getCurrentTabSpace() + "<Enzymes independent=\"false\">" + lineBreak);
+        xmlWriter.writeLine("<Enzymes independent=\"false\">");
         // note: if multiple enzymes are specified, independent is set to true if cleavage with different enzymes is performed independently
-        tabCounter++;
+        xmlWriter.increaseIndent();
 
         Enzyme enzyme = searchParameters.getEnzyme();
-        br.write(getCurrentTabSpace() + "<Enzyme "
+        xmlWriter.writeLine("<Enzyme "
                 + "missedCleavages=\"" + searchParameters.getnMissedCleavages() + "\" "
                 + "semiSpecific=\"" + enzyme.isSemiSpecific() + "\" "
                 //+ "cTermGain=\"OH\" " // Element formula gained at CTerm
                 //+ "nTermGain=\"H\" " // Element formula gained at NTerm
                 + "id=\"Enz1\" "
-                + "name=\"" + enzyme.getName() + "\">"
-                + lineBreak); // @TODO: add <SiteRegexp><![CDATA[(?<=[KR])(?!P)]]></SiteRegexp>?
-        tabCounter++;
+                + "name=\"" + enzyme.getName() + "\">"); // @TODO: add <SiteRegexp><![CDATA[(?<=[KR])(?!P)]]></SiteRegexp>?
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<EnzymeName>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<EnzymeName>");
+        xmlWriter.increaseIndent();
         CvTerm enzymeCvTerm = EnzymeFactory.getEnzymeCvTerm(enzyme);
         if (enzymeCvTerm != null) {
-            writeCvTerm(enzymeCvTerm);
+            xmlWriter.writeCvTerm(enzymeCvTerm);
         } else {
-            writeUserParam(enzyme.getName());
+            xmlWriter.writeUserParam(enzyme.getName());
         }
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</EnzymeName>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</EnzymeName>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Enzyme>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Enzyme>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Enzymes>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Enzymes>");
 
         // fragment tolerance
-        br.write(getCurrentTabSpace() + "<FragmentTolerance>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<FragmentTolerance>");
+        xmlWriter.increaseIndent();
         String fragmentIonToleranceUnit;
         String unitAccession;
         switch (searchParameters.getFragmentAccuracyType()) {
@@ -909,30 +882,28 @@ public class MzIdentMLExport {
             default:
                 throw new UnsupportedOperationException("CV term not implemented for fragment accuracy in " + searchParameters.getFragmentAccuracyType() + ".");
         }
-        br.write(getCurrentTabSpace() + "<cvParam "
+        xmlWriter.writeLine("<cvParam "
                 + "accession=\"MS:1001412\" "
                 + "cvRef=\"PSI-MS\" "
                 + "unitCvRef=\"UO\" "
                 + "unitName=\"" + fragmentIonToleranceUnit + "\" "
                 + "unitAccession=\"" + unitAccession + "\" "
                 + "value=\"" + searchParameters.getFragmentIonAccuracy() + "\" "
-                + "name=\"search tolerance plus value\" />"
-                + lineBreak);
-        br.write(getCurrentTabSpace() + "<cvParam "
+                + "name=\"search tolerance plus value\" />");
+        xmlWriter.writeLine("<cvParam "
                 + "accession=\"MS:1001413\" "
                 + "cvRef=\"PSI-MS\" "
                 + "unitCvRef=\"UO\" "
                 + "unitName=\"" + fragmentIonToleranceUnit + "\" "
                 + "unitAccession=\"" + unitAccession + "\" "
                 + "value=\"" + searchParameters.getFragmentIonAccuracy() + "\" "
-                + "name=\"search tolerance minus value\" />"
-                + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</FragmentTolerance>" + lineBreak);
+                + "name=\"search tolerance minus value\" />");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</FragmentTolerance>");
 
         // precursor tolerance
-        br.write(getCurrentTabSpace() + "<ParentTolerance>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<ParentTolerance>");
+        xmlWriter.increaseIndent();
 
         String precursorIonToleranceUnit;
         switch (searchParameters.getPrecursorAccuracyType()) {
@@ -945,51 +916,49 @@ public class MzIdentMLExport {
             default:
                 throw new UnsupportedOperationException("CV term not implemented for precursor accuracy in " + searchParameters.getFragmentAccuracyType() + ".");
         }
-        br.write(getCurrentTabSpace() + "<cvParam "
+        xmlWriter.writeLine("<cvParam "
                 + "accession=\"MS:1001412\" "
                 + "cvRef=\"PSI-MS\" "
                 + "unitCvRef=\"UO\" "
                 + "unitName=\"" + precursorIonToleranceUnit + "\" "
                 + "unitAccession=\"UO:0000169\" "
                 + "value=\"" + searchParameters.getPrecursorAccuracy() + "\" "
-                + "name=\"search tolerance plus value\" />"
-                + lineBreak);
-        br.write(getCurrentTabSpace() + "<cvParam "
+                + "name=\"search tolerance plus value\" />");
+        xmlWriter.writeLine("<cvParam "
                 + "accession=\"MS:1001413\" "
                 + "cvRef=\"PSI-MS\" "
                 + "unitCvRef=\"UO\" "
                 + "unitName=\"" + precursorIonToleranceUnit + "\" "
                 + "unitAccession=\"UO:0000169\" "
                 + "value=\"" + searchParameters.getPrecursorAccuracy() + "\" "
-                + "name=\"search tolerance minus value\" />"
-                + lineBreak);
+                + "name=\"search tolerance minus value\" />");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ParentTolerance>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ParentTolerance>");
 
         // thresholds
-        br.write(getCurrentTabSpace() + "<Threshold>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<Threshold>");
+        xmlWriter.increaseIndent();
 
         boolean targetDecoy = sequenceFactory.concatenatedTargetDecoy();
 
         if (!targetDecoy) {
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001494", "no threshold", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001494", "no threshold", null));
         } else {
             // Initial global thresholds
             IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001364", "peptide sequence-level global FDR", Double.toString(Util.roundDouble(idMatchValidationPreferences.getDefaultPeptideFDR(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(idMatchValidationPreferences.getDefaultPsmFDR(), CONFIDENCE_DECIMALS))));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001364", "peptide sequence-level global FDR", Double.toString(Util.roundDouble(idMatchValidationPreferences.getDefaultPeptideFDR(), CONFIDENCE_DECIMALS))));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(idMatchValidationPreferences.getDefaultPsmFDR(), CONFIDENCE_DECIMALS))));
 
             PTMScoringPreferences ptmScoringPreferences = identificationParameters.getPtmScoringPreferences();
             if (ptmScoringPreferences.isProbabilitsticScoreCalculation()) {
                 if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.AScore) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002556", "Ascore threshold", ptmScoringPreferences.getProbabilisticScoreThreshold() + ""));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002556", "Ascore threshold", ptmScoringPreferences.getProbabilisticScoreThreshold() + ""));
                 } else if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.PhosphoRS) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002567", "phosphoRS score threshold", ptmScoringPreferences.getProbabilisticScoreThreshold() + ""));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002567", "phosphoRS score threshold", ptmScoringPreferences.getProbabilisticScoreThreshold() + ""));
                 }
             }
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002557", "D-Score threshold", dScoreThreshold.toString()));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002557", "D-Score threshold", dScoreThreshold.toString()));
 
             // @TODO: add peptide and psm level annotation
 //            // peptideshaker maps
@@ -1007,14 +976,14 @@ public class MzIdentMLExport {
 //                int thresholdType = targetDecoyResults.getInputType();
 //                if (peptideGroupsKeys.size() > 1) {
 //                    String peptideClass = PeptideSpecificMap.getKeyName(searchParameters.getModificationProfile(), key);
-//                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002544", "PeptideShaker peptide confidence type", peptideClass)); // peptide confidence type
+//                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002544", "PeptideShaker peptide confidence type", peptideClass)); // peptide confidence type
 //                }
 //                if (thresholdType == 0) {
-//                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002463", "distinct peptide-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
+//                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002463", "distinct peptide-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
 //                } else if (targetDecoyResults.getInputType() == 1) {
-//                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001364", "peptide sequence-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
+//                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001364", "peptide sequence-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
 //                } else if (targetDecoyResults.getInputType() == 2) {
-//                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002462", "distinct peptide-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
+//                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002462", "distinct peptide-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
 //                }
 //            }
 //
@@ -1031,13 +1000,13 @@ public class MzIdentMLExport {
 //                        double threshold = targetDecoyResults.getUserInput() / 100;
 //                        int thresholdType = targetDecoyResults.getInputType();
 //                        String psmClass = "Charge " + charge + " of file " + file; // @TODO: annotate class?
-//                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002543", "PeptideShaker PSM confidence type", "???")); // psm confidence type
+//                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002543", "PeptideShaker PSM confidence type", "???")); // psm confidence type
 //                        if (thresholdType == 0) {
-//                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002465", "PSM-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
+//                            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002465", "PSM-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
 //                        } else if (targetDecoyResults.getInputType() == 1) {
-//                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
+//                            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
 //                        } else if (targetDecoyResults.getInputType() == 2) {
-//                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002464", "PSM-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
+//                            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002464", "PSM-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
 //                        }
 //                    }
 //                }
@@ -1053,11 +1022,11 @@ public class MzIdentMLExport {
 //                    int thresholdType = targetDecoyResults.getInputType();
 //                    // @TODO: check the cv terms used!!!
 //                    if (thresholdType == 0) {
-//                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002465", "PSM-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
+//                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002465", "PSM-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
 //                    } else if (targetDecoyResults.getInputType() == 1) {
-//                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
+//                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002350", "PSM-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
 //                    } else if (targetDecoyResults.getInputType() == 2) {
-//                        writeCvTerm(new CvTerm("PSI-MS", "MS:1002464", "PSM-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
+//                        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002464", "PSM-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
 //                    }
 //                }
 //            }
@@ -1081,28 +1050,28 @@ public class MzIdentMLExport {
             // @TODO: match quality thresholds?? some are per file...
         }
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Threshold>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Threshold>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SpectrumIdentificationProtocol>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SpectrumIdentificationProtocol>");
 
         // add ProteinDetectionProtocol
-        br.write(getCurrentTabSpace() + "<ProteinDetectionProtocol "
-                + "analysisSoftware_ref=\"ID_software\" id=\"PeptideShaker_1\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<ProteinDetectionProtocol "
+                + "analysisSoftware_ref=\"ID_software\" id=\"PeptideShaker_1\">");
+        xmlWriter.increaseIndent();
 
-//        br.write(getCurrentTabSpace() + "<AnalysisParams>" + lineBreak);
-//        tabCounter++;
+//        xmlWriter.writeLine("<AnalysisParams>");
+//        xmlWriter.increaseIndent();
         // @TODO: add cv terms? (children of MS:1001302)
-//        tabCounter--;
-//        br.write(getCurrentTabSpace() + "</AnalysisParams>" + lineBreak);
+//        xmlWriter.decreaseIndent();
+//        xmlWriter.writeLine("</AnalysisParams>");
         // protein level threshold
-        br.write(getCurrentTabSpace() + "<Threshold>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<Threshold>");
+        xmlWriter.increaseIndent();
 
         if (!targetDecoy) {
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001494", "no threshold", null));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001494", "no threshold", null));
         } else {
             PSMaps psMaps = new PSMaps();
             psMaps = (PSMaps) identification.getUrParam(psMaps);
@@ -1114,21 +1083,21 @@ public class MzIdentMLExport {
             int thresholdType = targetDecoyResults.getInputType();
 
             if (thresholdType == 0) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002461", "protein group-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002461", "protein group-level global confidence", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // confidence
             } else if (targetDecoyResults.getInputType() == 1) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002369", "protein group-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002369", "protein group-level global FDR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FDR
             } else if (targetDecoyResults.getInputType() == 2) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002460", "protein group-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002460", "protein group-level global FNR", Double.toString(Util.roundDouble(threshold, CONFIDENCE_DECIMALS)))); // FNR
             }
         }
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Threshold>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Threshold>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ProteinDetectionProtocol>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ProteinDetectionProtocol>");
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AnalysisProtocolCollection>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AnalysisProtocolCollection>");
     }
 
     /**
@@ -1144,12 +1113,12 @@ public class MzIdentMLExport {
      * interacting with the database
      */
     private void writeDataCollection() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
-        br.write(getCurrentTabSpace() + "<DataCollection>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<DataCollection>");
+        xmlWriter.increaseIndent();
         writeInputFileDetails();
         writeDataAnalysis();
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</DataCollection>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</DataCollection>");
     }
 
     /**
@@ -1166,53 +1135,134 @@ public class MzIdentMLExport {
      */
     private void writeDataAnalysis() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-        br.write(getCurrentTabSpace() + "<AnalysisData>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<AnalysisData>");
+        xmlWriter.increaseIndent();
 
-        br.write(getCurrentTabSpace() + "<SpectrumIdentificationList id=\"SIL_1\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<SpectrumIdentificationList id=\"SIL_1\">");
+        xmlWriter.increaseIndent();
 
         writeFragmentationTable();
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        int psmCount = 0;
+        writeSpectrumIdentificationResults();
+
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        //xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002439", "final PSM list", null)); // @TODO: add children of MS:1001184 (search statistics)?
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SpectrumIdentificationList>");
+
+        writeProteinDetectionList();
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</AnalysisData>");
+    }
+
+    /**
+     * Writes the spectrum identification results of all spectrum files. The
+     * results of the different files are written in parallel, the first file
+     * directly to the output and the others to temporary files which are then
+     * appended to the output in order.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws MzMLUnmarshallerException exception thrown whenever an error
+     * occurred while reading an mzML file
+     */
+    private void writeSpectrumIdentificationResults() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        ArrayList<String> spectrumFiles = new ArrayList<String>(identification.getSpectrumFiles());
+        boolean parallel = nThreads > 1 && spectrumFiles.size() > 1;
+        ArrayList<File> tempFiles = new ArrayList<File>();
+        exportException = null;
+        ExecutorService pool = Executors.newFixedThreadPool(parallel ? Math.min(nThreads, spectrumFiles.size()) : 1);
 
-        // iterate the spectrum files
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
+        try {
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, true, waitingHandler);
+            int psmCount = 0;
 
-            while (psmIterator.hasNext()) {
+            for (int i = 0; i < spectrumFiles.size(); i++) {
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
+                String spectrumFileName = spectrumFiles.get(i);
+                IndentedXmlWriter fileWriter = xmlWriter;
 
-                writeSpectrumIdentificationResult(spectrumKey, ++psmCount);
-                waitingHandler.increasePrimaryProgressCounter();
+                if (parallel && i > 0) {
+                    File tempFile = File.createTempFile("SIL_" + i + "_", ".tmp", outputFile.getAbsoluteFile().getParentFile());
+                    tempFiles.add(tempFile);
+                    fileWriter = new IndentedXmlWriter(new FileWriter(tempFile), xmlWriter.getIndent());
+                }
 
-                if (waitingHandler.isRunCanceled()) {
-                    break;
+                try {
+                    pool.submit(new SpectrumFileRunnable(spectrumFileName, psmCount, fileWriter));
+                } catch (RuntimeException e) {
+                    if (fileWriter != xmlWriter) {
+                        fileWriter.close();
+                    }
+                    throw e;
                 }
+                psmCount += identification.getSpectrumIdentification(spectrumFileName).size();
             }
 
-            if (waitingHandler.isRunCanceled()) {
-                break;
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Writing the spectrum identification results timed out. Please contact the developers.");
             }
-        }
 
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            if (exportException != null) {
+                if (exportException instanceof IOException) {
+                    throw (IOException) exportException;
+                } else if (exportException instanceof SQLException) {
+                    throw (SQLException) exportException;
+                } else if (exportException instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) exportException;
+                } else if (exportException instanceof InterruptedException) {
+                    throw (InterruptedException) exportException;
+                } else if (exportException instanceof MzMLUnmarshallerException) {
+                    throw (MzMLUnmarshallerException) exportException;
+                } else if (exportException instanceof RuntimeException) {
+                    throw (RuntimeException) exportException;
+                } else if (exportException instanceof Error) {
+                    throw (Error) exportException;
+                }
+                throw new IOException("An error occurred while writing the spectrum identification results.", exportException);
+            }
 
-        //writeCvTerm(new CvTerm("PSI-MS", "MS:1002439", "final PSM list", null)); // @TODO: add children of MS:1001184 (search statistics)?
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SpectrumIdentificationList>" + lineBreak);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        writeProteinDetectionList();
+            // append the results of the other files in order
+            for (File tempFile : tempFiles) {
+                FileReader reader = new FileReader(tempFile);
+                try {
+                    xmlWriter.append(reader);
+                } finally {
+                    reader.close();
+                }
+            }
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</AnalysisData>" + lineBreak);
+        } finally {
+            if (!pool.isTerminated()) {
+                // an error occurred in this thread, stop the files being written before deleting them
+                synchronized (this) {
+                    if (exportException == null) {
+                        exportException = new InterruptedException("Writing the spectrum identification results was interrupted.");
+                    }
+                }
+                pool.shutdownNow();
+                pool.awaitTermination(7, TimeUnit.DAYS);
+            }
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+        }
     }
 
     /**
@@ -1229,8 +1279,8 @@ public class MzIdentMLExport {
      */
     private void writeProteinDetectionList() throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
-        br.write(getCurrentTabSpace() + "<ProteinDetectionList id=\"Protein_groups\">" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<ProteinDetectionList id=\"Protein_groups\">");
+        xmlWriter.increaseIndent();
 
         int groupCpt = 0;
 
@@ -1246,80 +1296,81 @@ public class MzIdentMLExport {
 
             String proteinGroupId = "PAG_" + groupCpt++;
 
-            br.write(getCurrentTabSpace() + "<ProteinAmbiguityGroup id=\"" + proteinGroupId + "\">" + lineBreak);
-            tabCounter++;
+            xmlWriter.writeLine("<ProteinAmbiguityGroup id=\"" + proteinGroupId + "\">");
+            xmlWriter.increaseIndent();
 
             psParameter = (PSParameter) identification.getProteinMatchParameter(proteinGroupKey, psParameter);
 
             String mainAccession = proteinMatch.getMainMatch();
 
+            // load the peptides of the group once for all proteins
+            ArrayList<PeptideMatch> peptideMatches = new ArrayList<PeptideMatch>(proteinMatch.getPeptideMatchesKeys().size());
+            PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), null, false, null, waitingHandler);
+            while (peptideMatchesIterator.hasNext()) {
+                peptideMatches.add(peptideMatchesIterator.next());
+            }
+
             for (int j = 0; j < proteinMatch.getTheoreticProteinsAccessions().size(); j++) {
 
                 String accession = proteinMatch.getTheoreticProteinsAccessions().get(j);
 
-                br.write(getCurrentTabSpace() + "<ProteinDetectionHypothesis id=\"" + proteinGroupId + "_" + (j + 1) + "\" dBSequence_ref=\"" + accession
-                        + "\" passThreshold=\"" + psParameter.getMatchValidationLevel().isValidated() + "\">" + lineBreak);
-                tabCounter++;
+                xmlWriter.startLine().append("<ProteinDetectionHypothesis id=\"").append(proteinGroupId).append('_').append(j + 1)
+                        .append("\" dBSequence_ref=\"").append(accession)
+                        .append("\" passThreshold=\"").append(psParameter.getMatchValidationLevel().isValidated()).append("\">");
+                xmlWriter.endLine();
+                xmlWriter.increaseIndent();
 
-                ArrayList<String> peptideMatches = identification.getProteinMatch(proteinGroupKey).getPeptideMatchesKeys();
-                PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(peptideMatches, null, false, null, waitingHandler);
+                for (PeptideMatch peptideMatch : peptideMatches) {
 
-                while (peptideMatchesIterator.hasNext()) {
-
-                    PeptideMatch peptideMatch = peptideMatchesIterator.next();
                     String peptideKey = peptideMatch.getKey();
-                    String peptideSequence = peptideMatch.getTheoreticPeptide().getSequence();
-
-                    ArrayList<Integer> peptideStarts = sequenceFactory.getProtein(accession).getPeptideStart(
-                            peptideSequence, identificationParameters.getSequenceMatchingPreferences());
+                    PeptideEvidences evidences = peptideEvidences.get(peptideKey);
 
-                    for (int start : peptideStarts) {
-                        String pepEvidenceKey = accession + "_" + start + "_" + peptideKey;
-                        String peptideEvidenceId = pepEvidenceIds.get(pepEvidenceKey);
-
-                        if (peptideEvidenceId != null) {
+                    if (evidences == null) {
+                        throw new IllegalArgumentException("No peptide evidence found for peptide '" + peptideKey + "'.");
+                    }
 
-                            br.write(getCurrentTabSpace() + "<PeptideHypothesis peptideEvidence_ref=\"" + peptideEvidenceId + "\">" + lineBreak);
-                            tabCounter++;
+                    for (int evidence : evidences.getEvidences(accession)) {
 
-                            for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
-                                br.write(getCurrentTabSpace() + "<SpectrumIdentificationItemRef spectrumIdentificationItem_ref=\""
-                                        + spectrumIds.get(spectrumKey) + "\"/>" + lineBreak);
-                            }
+                        evidences.appendId(xmlWriter.startLine().append("<PeptideHypothesis peptideEvidence_ref=\""), evidence).append("\">");
+                        xmlWriter.endLine();
+                        xmlWriter.increaseIndent();
 
-                            tabCounter--;
-                            br.write(getCurrentTabSpace() + "</PeptideHypothesis>" + lineBreak);
-                        } else {
-                            throw new IllegalArgumentException("No peptide evidence id found for key '" + pepEvidenceKey + "'.");
+                        for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
+                            xmlWriter.startLine().append("<SpectrumIdentificationItemRef spectrumIdentificationItem_ref=\"")
+                                    .append(spectrumIds.get(spectrumKey)).append("\"/>");
+                            xmlWriter.endLine();
                         }
+
+                        xmlWriter.decreaseIndent();
+                        xmlWriter.writeLine("</PeptideHypothesis>");
                     }
                 }
 
                 // add main protein cv terms
                 if (accession.equalsIgnoreCase(mainAccession)) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002403", "group representative", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002403", "group representative", null));
                 }
 
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002401", "leading protein", null));
+                xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002401", "leading protein", null));
 
                 // add protein coverage cv term - main protein only
                 if (accession.equalsIgnoreCase(mainAccession)) {
                     Double validatedCoverage = identificationFeaturesGenerator.getValidatedSequenceCoverage(proteinGroupKey);
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001093", "sequence coverage", Double.toString(Util.roundDouble(validatedCoverage, CONFIDENCE_DECIMALS))));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001093", "sequence coverage", Double.toString(Util.roundDouble(validatedCoverage, CONFIDENCE_DECIMALS))));
                 }
 
-                tabCounter--;
-                br.write(getCurrentTabSpace() + "</ProteinDetectionHypothesis>" + lineBreak);
+                xmlWriter.decreaseIndent();
+                xmlWriter.writeLine("</ProteinDetectionHypothesis>");
             }
 
             // add protein group cv terms
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002470", "PeptideShaker protein group score", Double.toString(Util.roundDouble(psParameter.getProteinScore(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002471", "PeptideShaker protein group confidence", Double.toString(Util.roundDouble(psParameter.getProteinConfidence(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002542", "PeptideShaker protein confidence type", psParameter.getMatchValidationLevel().getName()));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002415", "protein group passes threshold", "" + psParameter.getMatchValidationLevel().isValidated()));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002470", "PeptideShaker protein group score", Double.toString(Util.roundDouble(psParameter.getProteinScore(), CONFIDENCE_DECIMALS))));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002471", "PeptideShaker protein group confidence", Double.toString(Util.roundDouble(psParameter.getProteinConfidence(), CONFIDENCE_DECIMALS))));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002542", "PeptideShaker protein confidence type", psParameter.getMatchValidationLevel().getName()));
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002415", "protein group passes threshold", "" + psParameter.getMatchValidationLevel().isValidated()));
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</ProteinAmbiguityGroup>" + lineBreak);
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</ProteinAmbiguityGroup>");
 
             waitingHandler.increasePrimaryProgressCounter();
 
@@ -1328,18 +1379,20 @@ public class MzIdentMLExport {
             }
         }
 
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1002404", "count of identified proteins", "" + identificationFeaturesGenerator.getNValidatedProteins()));
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002404", "count of identified proteins", "" + identificationFeaturesGenerator.getNValidatedProteins()));
         // @TODO: add children of MS:1001184 - search statistics? (date / time search performed, number of molecular hypothesis considered, search time taken)
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ProteinDetectionList>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</ProteinDetectionList>");
     }
 
     /**
      * Write a spectrum identification result.
      *
-     * @param psmKey the key of the PSM to write
+     * @param spectrumMatch the PSM to write
      * @param psmIndex the index of the PSM
+     * @param writer the writer to use
+     * @param peptideSpectrumAnnotator the spectrum annotator to use
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading/writing a file
@@ -1352,19 +1405,18 @@ public class MzIdentMLExport {
      * @throws MzMLUnmarshallerException exception thrown whenever an error
      * occurred while reading an mzML file
      */
-    private void writeSpectrumIdentificationResult(String psmKey, int psmIndex)
+    private void writeSpectrumIdentificationResult(SpectrumMatch spectrumMatch, int psmIndex, IndentedXmlWriter writer, PeptideSpectrumAnnotator peptideSpectrumAnnotator)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-        SpectrumMatch spectrumMatch = identification.getSpectrumMatch(psmKey);
+        String psmKey = spectrumMatch.getKey();
         String spectrumTitle = Spectrum.getSpectrumTitle(psmKey);
         String spectrumFileName = Spectrum.getSpectrumFile(psmKey);
-        String spectrumIdentificationResultItemKey = "SIR_" + psmIndex;
 
-        br.write(getCurrentTabSpace() + "<SpectrumIdentificationResult "
-                + "spectraData_ref=\"" + spectrumFileName
-                + "\" spectrumID=\"" + "index=" + spectrumFactory.getSpectrumIndex(spectrumTitle, spectrumFileName)
-                + "\" id=\"" + spectrumIdentificationResultItemKey + "\">" + lineBreak);
-        tabCounter++;
+        writer.startLine().append("<SpectrumIdentificationResult spectraData_ref=\"").append(spectrumFileName)
+                .append("\" spectrumID=\"index=").append(spectrumFactory.getSpectrumIndex(spectrumTitle, spectrumFileName))
+                .append("\" id=\"SIR_").append(psmIndex).append("\">");
+        writer.endLine();
+        writer.increaseIndent();
 
         // @TODO: iterate all assumptions and not just the best one?
         PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
@@ -1379,33 +1431,21 @@ public class MzIdentMLExport {
             //String bestPeptideKey = bestPeptideAssumption.getPeptide().getMatchingKey(identificationParameters.getSequenceMatchingPreferences());
             String peptideKey = spectrumKeyToPeptideKeyMap.get(psmKey);
 
-            br.write(getCurrentTabSpace() + "<SpectrumIdentificationItem "
-                    + "passThreshold=\"" + psmParameter.getMatchValidationLevel().isValidated() + "\" "
-                    + "rank=\"" + rank + "\" "
-                    + "peptide_ref=\"" + peptideKey + "\" "
-                    + "calculatedMassToCharge=\"" + bestPeptideAssumption.getTheoreticMz() + "\" "
-                    + "experimentalMassToCharge=\"" + spectrumFactory.getPrecursorMz(psmKey) + "\" "
-                    + "chargeState=\"" + bestPeptideAssumption.getIdentificationCharge().value + "\" "
-                    + "id=\"" + spectrumIdentificationItemKey + "\">" + lineBreak);
-            tabCounter++;
-
-            // add the peptide evidence references
-            // get all the possible parent proteins
-            ArrayList<String> possibleProteins = bestPeptideAssumption.getPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences());
+            writer.startLine().append("<SpectrumIdentificationItem passThreshold=\"").append(psmParameter.getMatchValidationLevel().isValidated())
+                    .append("\" rank=\"").append(rank)
+                    .append("\" peptide_ref=\"").append(peptideKey)
+                    .append("\" calculatedMassToCharge=\"").append(bestPeptideAssumption.getTheoreticMz())
+                    .append("\" experimentalMassToCharge=\"").append(spectrumFactory.getPrecursorMz(psmKey))
+                    .append("\" chargeState=\"").append(bestPeptideAssumption.getIdentificationCharge().value)
+                    .append("\" id=\"").append(spectrumIdentificationItemKey).append("\">");
+            writer.endLine();
+            writer.increaseIndent();
+
+            // add the peptide evidence references, as located when writing the sequence collection
             String peptideSequence = bestPeptideAssumption.getPeptide().getSequence();
-
-            // iterate all the possible protein parents for each peptide
-            for (String tempProtein : possibleProteins) {
-
-                // get the start indexes and the surrounding amino acids
-                ArrayList<Integer> peptideStarts = sequenceFactory.getProtein(tempProtein).getPeptideStart(
-                        peptideSequence, identificationParameters.getSequenceMatchingPreferences());
-
-                for (int start : peptideStarts) {
-                    String pepEvidenceKey = tempProtein + "_" + start + "_" + peptideKey;
-                    String peptideEvidenceId = pepEvidenceIds.get(pepEvidenceKey);
-                    br.write(getCurrentTabSpace() + "<PeptideEvidenceRef peptideEvidence_ref=\"" + peptideEvidenceId + "\"/>" + lineBreak);
-                }
+            PeptideEvidences evidences = peptideEvidences.get(peptideKey);
+            if (evidences != null) {
+                evidences.writeReferences(writer);
             }
 
             // add the fragment ions detected
@@ -1450,8 +1490,8 @@ public class MzIdentMLExport {
 
                 if (!allFragmentIons.isEmpty()) {
 
-                    br.write(getCurrentTabSpace() + "<Fragmentation>" + lineBreak);
-                    tabCounter++;
+                    writer.writeLine("<Fragmentation>");
+                    writer.increaseIndent();
 
                     // add the fragment ions
                     Iterator<String> fragmentTypeIterator = allFragmentIons.keySet().iterator();
@@ -1468,16 +1508,16 @@ public class MzIdentMLExport {
                             Ion currentIon = ionMatches.get(0).ion;
                             CvTerm fragmentIonCvTerm = currentIon.getPsiMsCvTerm();
 
-                            String indexes = "";
-                            String mzValues = "";
-                            String intensityValues = "";
-                            String errorValues = "";
+                            StringBuilder indexes = new StringBuilder();
+                            StringBuilder mzValues = new StringBuilder();
+                            StringBuilder intensityValues = new StringBuilder();
+                            StringBuilder errorValues = new StringBuilder();
 
                             // get the fragment ion details
                             for (IonMatch ionMatch : ionMatches) {
 
                                 if (ionMatch.ion instanceof PeptideFragmentIon) {
-                                    indexes += ((PeptideFragmentIon) ionMatch.ion).getNumber() + " ";
+                                    indexes.append(((PeptideFragmentIon) ionMatch.ion).getNumber()).append(' ');
                                 } else if (ionMatch.ion instanceof ImmoniumIon) {
 
                                     // get the indexes of the corresponding residues
@@ -1485,31 +1525,36 @@ public class MzIdentMLExport {
                                     char[] peptideAsArray = peptideSequence.toCharArray();
                                     for (int i = 0; i < peptideAsArray.length; i++) {
                                         if (peptideAsArray[i] == residue) {
-                                            indexes += (i + 1) + " ";
+                                            indexes.append(i + 1).append(' ');
                                         }
                                     }
                                 } else if (ionMatch.ion instanceof ReporterIon
                                         || ionMatch.ion instanceof RelatedIon // @TODO: request cv terms for related ions?
                                         || ionMatch.ion instanceof PrecursorIon) {
-                                    indexes = "0";
+                                    indexes.setLength(0);
+                                    indexes.append('0');
                                 }
 
-                                mzValues += ionMatch.peak.mz + " ";
-                                intensityValues += ionMatch.peak.intensity + " ";
-                                errorValues += ionMatch.getAbsoluteError() + " ";
+                                mzValues.append(ionMatch.peak.mz).append(' ');
+                                intensityValues.append(ionMatch.peak.intensity).append(' ');
+                                errorValues.append(ionMatch.getAbsoluteError()).append(' ');
                             }
 
                             // add the supported fragment ions
                             if (fragmentIonCvTerm != null) {
-                                br.write(getCurrentTabSpace() + "<IonType charge=\"" + fragmentCharge + "\" index=\"" + indexes.trim() + "\">" + lineBreak);
-                                tabCounter++;
+                                writer.startLine().append("<IonType charge=\"").append(fragmentCharge).append("\" index=\"").append(trim(indexes)).append("\">");
+                                writer.endLine();
+                                writer.increaseIndent();
 
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_MZ\" values=\"" + mzValues.trim() + "\"/>" + lineBreak);
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Int\" values=\"" + intensityValues.trim() + "\"/>" + lineBreak);
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Error\" values=\"" + errorValues.trim() + "\"/>" + lineBreak);
+                                writer.startLine().append("<FragmentArray measure_ref=\"Measure_MZ\" values=\"").append(trim(mzValues)).append("\"/>");
+                                writer.endLine();
+                                writer.startLine().append("<FragmentArray measure_ref=\"Measure_Int\" values=\"").append(trim(intensityValues)).append("\"/>");
+                                writer.endLine();
+                                writer.startLine().append("<FragmentArray measure_ref=\"Measure_Error\" values=\"").append(trim(errorValues)).append("\"/>");
+                                writer.endLine();
 
                                 // add the cv term for the fragment ion type
-                                writeCvTerm(fragmentIonCvTerm);
+                                writer.writeCvTerm(fragmentIonCvTerm);
 
                                 // add the cv term for the neutral losses
                                 int neutralLossesCount = currentIon.getNeutralLosses().size();
@@ -1517,24 +1562,24 @@ public class MzIdentMLExport {
                                     throw new IllegalArgumentException("A maximum of " + maxNeutralLosses + " neutral losses is allowed!");
                                 } else {
                                     for (NeutralLoss tempNeutralLoss : currentIon.getNeutralLosses()) {
-                                        writeCvTerm(tempNeutralLoss.getPsiMsCvTerm());
+                                        writer.writeCvTerm(tempNeutralLoss.getPsiMsCvTerm());
                                     }
                                 }
 
-                                tabCounter--;
-                                br.write(getCurrentTabSpace() + "</IonType>" + lineBreak);
+                                writer.decreaseIndent();
+                                writer.writeLine("</IonType>");
                             }
                         }
                     }
 
-                    tabCounter--;
-                    br.write(getCurrentTabSpace() + "</Fragmentation>" + lineBreak);
+                    writer.decreaseIndent();
+                    writer.writeLine("</Fragmentation>");
                 }
             }
 
             // add peptide shaker score and confidence
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002466", "PeptideShaker PSM score", Double.toString(Util.roundDouble(psmParameter.getPsmScore(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002467", "PeptideShaker PSM confidence", Double.toString(Util.roundDouble(psmParameter.getPsmConfidence(), CONFIDENCE_DECIMALS))));
+            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002466", "PeptideShaker PSM score", Double.toString(Util.roundDouble(psmParameter.getPsmScore(), CONFIDENCE_DECIMALS))));
+            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002467", "PeptideShaker PSM confidence", Double.toString(Util.roundDouble(psmParameter.getPsmConfidence(), CONFIDENCE_DECIMALS))));
 
             if (mzidVersion_1_2) {
 
@@ -1574,9 +1619,9 @@ public class MzIdentMLExport {
                                                 }
 
                                                 if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.AScore) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001985", "Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001985", "Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 } else if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.PhosphoRS) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001969", "phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001969", "phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 }
                                             }
                                         }
@@ -1587,7 +1632,7 @@ public class MzIdentMLExport {
                                             if (score < dScoreThreshold) {
                                                 valid = "false";
                                             }
-                                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002536", "D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002536", "D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                         }
                                     }
                                 }
@@ -1597,10 +1642,10 @@ public class MzIdentMLExport {
                 }
 
                 PSParameter peptideParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psmParameter);
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002469", "PeptideShaker peptide confidence", peptideParameter.getPeptideConfidence() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002468", "PeptideShaker peptide score", peptideParameter.getPeptideScore() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002500", "peptide passes threshold", peptideParameter.getMatchValidationLevel().isValidated() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002520", "peptide group ID", peptideKey));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002469", "PeptideShaker peptide confidence", peptideParameter.getPeptideConfidence() + ""));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002468", "PeptideShaker peptide score", peptideParameter.getPeptideScore() + ""));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002500", "peptide passes threshold", peptideParameter.getMatchValidationLevel().isValidated() + ""));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002520", "peptide group ID", peptideKey));
 
                 psPtmScores = (PSPtmScores) peptideMatch.getUrParam(new PSPtmScores());
 
@@ -1636,9 +1681,9 @@ public class MzIdentMLExport {
                                                 }
 
                                                 if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.AScore) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002551", "peptide:Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002551", "peptide:Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 } else if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.PhosphoRS) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002550", "peptide:phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002550", "peptide:phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 }
                                             }
                                         }
@@ -1648,8 +1693,8 @@ public class MzIdentMLExport {
                                             if (score < dScoreThreshold) {
                                                 valid = "false";
                                             }
-                                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002553", "peptide:D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
-                                            //writeCvTerm(new CvTerm("PSI-MS", "MS:???", "PeptideShaker PTM confidence type", "???")); // @TODO: can be at both the psm and peptide level...
+                                            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002553", "peptide:D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                            //writer.writeCvTerm(new CvTerm("PSI-MS", "MS:???", "PeptideShaker PTM confidence type", "???")); // @TODO: can be at both the psm and peptide level...
                                         }
                                     }
                                 }
@@ -1692,51 +1737,51 @@ public class MzIdentMLExport {
             for (int tempAdvocate : algorithms) {
                 double eValue = scores.get(tempAdvocate);
                 if (tempAdvocate == Advocate.msgf.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002052", "MS-GF:SpecEValue", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002052", "MS-GF:SpecEValue", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.mascot.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001172", "Mascot:expectation value", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001172", "Mascot:expectation value", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.omssa.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001328", "OMSSA:evalue", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001328", "OMSSA:evalue", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.xtandem.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001330", "X!Tandem:expect", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001330", "X!Tandem:expect", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.comet.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002257", "Comet:expectation value", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002257", "Comet:expectation value", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.myriMatch.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001589", "MyriMatch:MVH", Double.toString(eValue)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001589", "MyriMatch:MVH", Double.toString(eValue)));
                 } else {
-                    writeUserParam(Advocate.getAdvocate(tempAdvocate).getName() + " e-value", "" + eValue); // @TODO: add Tide if Tide CV term is added
+                    writer.writeUserParam(Advocate.getAdvocate(tempAdvocate).getName() + " e-value", "" + eValue); // @TODO: add Tide if Tide CV term is added
                 }
             }
 
             // add the additional search engine scores
             if (mascotScore != null) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1001171", "Mascot:score", "" + mascotScore));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001171", "Mascot:score", "" + mascotScore));
             }
             if (msAmandaScore != null) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002319", "Amanda:AmandaScore", "" + msAmandaScore));
+                writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002319", "Amanda:AmandaScore", "" + msAmandaScore));
             }
 
             // add other cv and user params
-            br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001117\" name=\"theoretical mass\" value=\"" + String.valueOf(bestPeptideAssumption.getTheoreticMass()) + "\" "
-                    + "unitCvRef=\"UO\" unitAccession=\"UO:0000221\" unitName=\"dalton\"/>" + lineBreak);
+            writer.writeLine("<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001117\" name=\"theoretical mass\" value=\"" + String.valueOf(bestPeptideAssumption.getTheoreticMass()) + "\" "
+                    + "unitCvRef=\"UO\" unitAccession=\"UO:0000221\" unitName=\"dalton\"/>");
 
             // add validation level information
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002540", "PeptideShaker PSM confidence type", psmParameter.getMatchValidationLevel().getName()));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectrumIdentificationItem>" + lineBreak);
+            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002540", "PeptideShaker PSM confidence type", psmParameter.getMatchValidationLevel().getName()));
+            writer.decreaseIndent();
+            writer.writeLine("</SpectrumIdentificationItem>");
 
             // add the spectrum title
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1000796", "spectrum title", spectrumTitle));
+            writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1000796", "spectrum title", spectrumTitle));
 
             // add the precursor retention time
             Precursor precursor = spectrumFactory.getPrecursor(psmKey);
             if (precursor != null) {
-                br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1000894\" name=\"retention time\" value=\"" + String.valueOf(precursor.getRt()) + "\" "
-                        + "unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>" + lineBreak);
+                writer.writeLine("<cvParam cvRef=\"PSI-MS\" accession=\"MS:1000894\" name=\"retention time\" value=\"" + String.valueOf(precursor.getRt()) + "\" "
+                        + "unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>");
             }
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectrumIdentificationResult>" + lineBreak);
+            writer.decreaseIndent();
+            writer.writeLine("</SpectrumIdentificationResult>");
         }
     }
 
@@ -1748,35 +1793,35 @@ public class MzIdentMLExport {
      */
     private void writeFragmentationTable() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<FragmentationTable>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<FragmentationTable>");
+        xmlWriter.increaseIndent();
 
         // mz
-        br.write(getCurrentTabSpace() + "<Measure id=\"Measure_MZ\">" + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001225\" name=\"product ion m/z\" "
-                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\" />" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Measure>" + lineBreak);
+        xmlWriter.writeLine("<Measure id=\"Measure_MZ\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001225\" name=\"product ion m/z\" "
+                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\" />");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Measure>");
 
         // intensity
-        br.write(getCurrentTabSpace() + "<Measure id=\"Measure_Int\">" + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001226\" name=\"product ion intensity\" "
-                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000131\" unitName=\"number of detector counts\"/>" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Measure>" + lineBreak);
+        xmlWriter.writeLine("<Measure id=\"Measure_Int\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001226\" name=\"product ion intensity\" "
+                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000131\" unitName=\"number of detector counts\"/>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Measure>");
 
         // mass error
-        br.write(getCurrentTabSpace() + "<Measure id=\"Measure_Error\">" + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001227\" name=\"product ion m/z error\" "
-                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>" + lineBreak);
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Measure>" + lineBreak);
-
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</FragmentationTable>" + lineBreak);
+        xmlWriter.writeLine("<Measure id=\"Measure_Error\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001227\" name=\"product ion m/z error\" "
+                + "unitCvRef=\"PSI-MS\" unitAccession=\"MS:1000040\" unitName=\"m/z\"/>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Measure>");
+
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</FragmentationTable>");
     }
 
     /**
@@ -1787,8 +1832,8 @@ public class MzIdentMLExport {
      */
     private void writeInputFileDetails() throws IOException {
 
-        br.write(getCurrentTabSpace() + "<Inputs>" + lineBreak);
-        tabCounter++;
+        xmlWriter.writeLine("<Inputs>");
+        xmlWriter.increaseIndent();
 
         int sourceFileCounter = 1;
 
@@ -1799,10 +1844,10 @@ public class MzIdentMLExport {
 //            FileInputStream fis = new FileInputStream(new File("foo"));
 //            String md5 = DigestUtils.md5Hex(fis);
 //            fis.close();
-            br.write(getCurrentTabSpace() + "<SourceFile location=\"" + idFile.toURI().toString() + "\" id=\"SourceFile_" + sourceFileCounter++ + "\">" + lineBreak);
-            tabCounter++;
-            br.write(getCurrentTabSpace() + "<FileFormat>" + lineBreak);
-            tabCounter++;
+            xmlWriter.writeLine("<SourceFile location=\"" + idFile.toURI().toString() + "\" id=\"SourceFile_" + sourceFileCounter++ + "\">");
+            xmlWriter.increaseIndent();
+            xmlWriter.writeLine("<FileFormat>");
+            xmlWriter.increaseIndent();
 
             String idFileName = Util.getFileName(idFile);
             HashMap<String, ArrayList<String>> algorithms = projectDetails.getIdentificationAlgorithmsForFile(idFileName);
@@ -1811,79 +1856,79 @@ public class MzIdentMLExport {
                 Advocate advocate = Advocate.getAdvocate(algorithmName);
                 int advocateIndex = advocate.getIndex();
                 if (advocateIndex == Advocate.mascot.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001199", "Mascot DAT format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001199", "Mascot DAT format", null));
                 } else if (advocateIndex == Advocate.xtandem.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001401", "X!Tandem xml format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001401", "X!Tandem xml format", null));
                 } else if (advocateIndex == Advocate.omssa.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001400", "OMSSA xml format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001400", "OMSSA xml format", null));
                 } else if (advocateIndex == Advocate.msgf.getIndex() || advocateIndex == Advocate.myriMatch.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002073", "mzIdentML format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002073", "mzIdentML format", null));
                 } else if (advocateIndex == Advocate.msAmanda.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002459", "MS Amanda csv format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002459", "MS Amanda csv format", null));
                 } else if (advocateIndex == Advocate.comet.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001421", "pepXML format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001421", "pepXML format", null));
                 } else if (advocateIndex == Advocate.tide.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1000914", "tab delimited text format", null));
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000914", "tab delimited text format", null));
                 } else if (advocateIndex == Advocate.andromeda.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002576", "Andromeda result file", null)); // @TODO: term does not exist..?
+                    xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1002576", "Andromeda result file", null)); // @TODO: term does not exist..?
                 } else {
                     // no cv term available for the given advocate...
                 }
             }
 
             // @TODO: add children of MS:1000561 - data file checksum type?
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</FileFormat>" + lineBreak);
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SourceFile>" + lineBreak);
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</FileFormat>");
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</SourceFile>");
         }
 
         // add the database
         File database = identificationParameters.getProteinInferencePreferences().getProteinSequenceDatabase();
-        br.write(getCurrentTabSpace() + "<SearchDatabase numDatabaseSequences=\"" + sequenceFactory.getNSequences()
+        xmlWriter.writeLine("<SearchDatabase numDatabaseSequences=\"" + sequenceFactory.getNSequences()
                 + "\" location=\"" + database.toURI().toString() + "\" "
-                + "id=\"" + "SearchDB_1\">" + lineBreak);
-        tabCounter++;
-        br.write(getCurrentTabSpace() + "<FileFormat>" + lineBreak);
-        tabCounter++;
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001348", "FASTA format", null));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</FileFormat>" + lineBreak);
-        br.write(getCurrentTabSpace() + "<DatabaseName>" + lineBreak);
-        tabCounter++;
-        writeUserParam(database.getName()); // @TODO: add database type? children of MS:1001013 - database name??? for example: MS:1001104 (database UniProtKB/Swiss-Prot)
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</DatabaseName>" + lineBreak);
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1001073", "database type amino acid", null));
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</SearchDatabase>" + lineBreak);
+                + "id=\"" + "SearchDB_1\">");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeLine("<FileFormat>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001348", "FASTA format", null));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</FileFormat>");
+        xmlWriter.writeLine("<DatabaseName>");
+        xmlWriter.increaseIndent();
+        xmlWriter.writeUserParam(database.getName()); // @TODO: add database type? children of MS:1001013 - database name??? for example: MS:1001104 (database UniProtKB/Swiss-Prot)
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</DatabaseName>");
+        xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001073", "database type amino acid", null));
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</SearchDatabase>");
 
         // add the spectra location
         for (String mgfFileName : spectrumFactory.getMgfFileNames()) {
             File mgfFile = projectDetails.getSpectrumFile(mgfFileName);
 
-            br.write(getCurrentTabSpace() + "<SpectraData location=\"" + mgfFile.toURI().toString() + "\" id=\"" + mgfFileName
-                    + "\" name=\"" + mgfFile.getName() + "\">" + lineBreak);
-            tabCounter++;
+            xmlWriter.writeLine("<SpectraData location=\"" + mgfFile.toURI().toString() + "\" id=\"" + mgfFileName
+                    + "\" name=\"" + mgfFile.getName() + "\">");
+            xmlWriter.increaseIndent();
 
-            br.write(getCurrentTabSpace() + "<FileFormat>" + lineBreak);
-            tabCounter++;
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1001062", "Mascot MGF format", null));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</FileFormat>" + lineBreak);
+            xmlWriter.writeLine("<FileFormat>");
+            xmlWriter.increaseIndent();
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1001062", "Mascot MGF format", null));
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</FileFormat>");
 
-            br.write(getCurrentTabSpace() + "<SpectrumIDFormat>" + lineBreak);
-            tabCounter++;
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1000774", "multiple peak list nativeID format", null));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectrumIDFormat>" + lineBreak);
+            xmlWriter.writeLine("<SpectrumIDFormat>");
+            xmlWriter.increaseIndent();
+            xmlWriter.writeCvTerm(new CvTerm("PSI-MS", "MS:1000774", "multiple peak list nativeID format", null));
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</SpectrumIDFormat>");
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectraData>" + lineBreak);
+            xmlWriter.decreaseIndent();
+            xmlWriter.writeLine("</SpectraData>");
         }
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</Inputs>" + lineBreak);
+        xmlWriter.decreaseIndent();
+        xmlWriter.writeLine("</Inputs>");
     }
 
     /**
@@ -1894,24 +1939,22 @@ public class MzIdentMLExport {
      */
     private void writeMzIdentMLStartTag() throws IOException {
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        br.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + lineBreak);
+        xmlWriter.writeLine("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
 
         if (mzidVersion_1_2) {
-            br.write("<MzIdentML id=\"PeptideShaker v" + peptideShakerVersion + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+            xmlWriter.writeLine("<MzIdentML id=\"PeptideShaker v" + peptideShakerVersion + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
                     + "xsi:schemaLocation=\"http://psidev.info/psi/pi/mzIdentML/1.2 http://www.psidev.info/files/mzIdentML1.2.0.xsd\" "
                     + "xmlns=\"http://psidev.info/psi/pi/mzIdentML/1.2\" version=\"1.2.0\" "
-                    + "creationDate=\"" + df.format(new Date()) + "\">"
-                    + lineBreak);
+                    + "creationDate=\"" + df.format(new Date()) + "\">");
         } else {
             // assumes version 1.1
-            br.write("<MzIdentML id=\"PeptideShaker v" + peptideShakerVersion + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+            xmlWriter.writeLine("<MzIdentML id=\"PeptideShaker v" + peptideShakerVersion + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
                     + "xsi:schemaLocation=\"http://psidev.info/psi/pi/mzIdentML/1.1 http://www.psidev.info/files/mzIdentML1.1.0.xsd\" "
                     + "xmlns=\"http://psidev.info/psi/pi/mzIdentML/1.1\" version=\"1.1.0\" "
-                    + "creationDate=\"" + df.format(new Date()) + "\">"
-                    + lineBreak);
+                    + "creationDate=\"" + df.format(new Date()) + "\">");
         }
 
-        tabCounter++;
+        xmlWriter.increaseIndent();
     }
 
     /**
@@ -1921,112 +1964,265 @@ public class MzIdentMLExport {
      * reading/writing a file
      */
     private void writeMzIdentMLEndTag() throws IOException {
-        tabCounter--;
-        br.write("</MzIdentML>");
+        xmlWriter.decreaseIndent();
+        xmlWriter.write("</MzIdentML>");
     }
 
     /**
-     * Convenience method returning the tabs in the beginning of each line
-     * depending on the tabCounter.
+     * Returns the throughput of the last export.
      *
-     * @return the tabs in the beginning of each line as a string
+     * @return the throughput of the last export
      */
-    private String getCurrentTabSpace() {
-
-        switch (tabCounter) {
-            case 0:
-                return "";
-            case 1:
-                return "\t";
-            case 2:
-                return "\t\t";
-            case 3:
-                return "\t\t\t";
-            case 4:
-                return "\t\t\t\t";
-            case 5:
-                return "\t\t\t\t\t";
-            case 6:
-                return "\t\t\t\t\t\t";
-            case 7:
-                return "\t\t\t\t\t\t\t";
-            case 8:
-                return "\t\t\t\t\t\t\t\t";
-            case 9:
-                return "\t\t\t\t\t\t\t\t\t";
-            case 10:
-                return "\t\t\t\t\t\t\t\t\t\t";
-            case 11:
-                return "\t\t\t\t\t\t\t\t\t\t\t";
-            case 12:
-                return "\t\t\t\t\t\t\t\t\t\t\t\t";
-            default:
-                return "";
-        }
+    public ExportThroughput getExportThroughput() {
+        return exportThroughput;
     }
 
     /**
-     * Convenience method writing a CV term.
+     * Removes the trailing spaces of a list of values.
      *
-     * @param cvTerm the CV term
-     * @throws IOException exception thrown whenever a problem occurred while
-     * reading/writing a file
+     * @param values the values separated by spaces
+     *
+     * @return the values without trailing spaces
      */
-    private void writeCvTerm(CvTerm cvTerm) throws IOException {
-        writeCvTerm(cvTerm, true);
+    private static StringBuilder trim(StringBuilder values) {
+        int length = values.length();
+        while (length > 0 && values.charAt(length - 1) == ' ') {
+            length--;
+        }
+        values.setLength(length);
+        return values;
     }
 
     /**
-     * Convenience method writing a CV term.
-     *
-     * @param cvTerm the CV term
-     * @param showValue decides if the CV terms value (if existing) is printed
-     * or not
-     * @throws IOException exception thrown whenever a problem occurred while
-     * reading/writing a file
+     * Runnable writing the spectrum identification results of a spectrum
+     * file.
      */
-    private void writeCvTerm(CvTerm cvTerm, boolean showValue) throws IOException {
+    private class SpectrumFileRunnable implements Runnable {
+
+        /**
+         * The name of the spectrum file.
+         */
+        private final String spectrumFileName;
+        /**
+         * The number of PSMs written before this file.
+         */
+        private final int psmOffset;
+        /**
+         * The writer to use.
+         */
+        private final IndentedXmlWriter writer;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumFileName the name of the spectrum file
+         * @param psmOffset the number of PSMs written before this file
+         * @param writer the writer to use, closed at the end of the file
+         * unless it is the writer of the output file
+         */
+        private SpectrumFileRunnable(String spectrumFileName, int psmOffset, IndentedXmlWriter writer) {
+            this.spectrumFileName = spectrumFileName;
+            this.psmOffset = psmOffset;
+            this.writer = writer;
+        }
 
-        br.write(getCurrentTabSpace() + "<cvParam "
-                + "cvRef=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getOntology()) + "\" "
-                + "accession=\"" + cvTerm.getAccession() + "\" "
-                + "name=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getName()) + "\"");
+        @Override
+        public void run() {
+            try {
+                try {
+                    ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+                    parameters.add(new PSParameter());
+                    PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+                    int psmCount = psmOffset;
 
-        writeCvTermValue(cvTerm, showValue);
-    }
+                    PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, true, waitingHandler);
 
-    /**
-     * Convenience method writing the value element of a CV term.
-     *
-     * @param cvTerm the CV term
-     * @param showValue decides if the CV terms value (if existing) is printed
-     * or not
-     * @throws IOException
-     */
-    private void writeCvTermValue(CvTerm cvTerm, boolean showValue) throws IOException {
-        if (showValue && cvTerm.getValue() != null) {
-            br.write(" value=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getValue()) + "\"/>" + lineBreak);
-        } else {
-            br.write("/>" + lineBreak);
+                    while (psmIterator.hasNext() && exportException == null && !waitingHandler.isRunCanceled()) {
+                        writeSpectrumIdentificationResult(psmIterator.next(), ++psmCount, writer, peptideSpectrumAnnotator);
+                        waitingHandler.increasePrimaryProgressCounter();
+                    }
+                } finally {
+                    if (writer != xmlWriter) {
+                        writer.close();
+                    }
+                }
+            } catch (Throwable e) {
+                synchronized (MzIdentMLExport.this) {
+                    if (exportException == null) {
+                        exportException = e;
+                    }
+                }
+            }
         }
     }
 
     /**
-     * Convenience method writing a user parameter.
-     *
-     * @param userParamAsString the user parameter as a string
+     * The evidences of a peptide in the protein sequences: the proteins, the
+     * positions and the surrounding amino acids of every occurrence of the
+     * peptide. The evidence identifiers are consecutive.
      */
-    private void writeUserParam(String userParamAsString) throws IOException {
-        br.write(getCurrentTabSpace() + "<userParam name=\"" + StringEscapeUtils.escapeHtml4(userParamAsString) + "\"/>" + lineBreak); // @replace...
-    }
+    private static class PeptideEvidences {
+
+        /**
+         * The index of the first evidence.
+         */
+        private final int firstIndex;
+        /**
+         * The length of the peptide.
+         */
+        private final int length;
+        /**
+         * Boolean indicating whether the peptide is a decoy.
+         */
+        private final boolean decoy;
+        /**
+         * The accession of the protein of every evidence.
+         */
+        private final String[] accessions;
+        /**
+         * The start of the peptide on the protein of every evidence.
+         */
+        private final int[] starts;
+        /**
+         * The amino acid before the peptide of every evidence, '-' at the
+         * protein terminus.
+         */
+        private final char[] before;
+        /**
+         * The amino acid after the peptide of every evidence, '-' at the
+         * protein terminus.
+         */
+        private final char[] after;
+
+        /**
+         * Constructor.
+         *
+         * @param peptide the peptide
+         * @param firstIndex the index of the first evidence
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         *
+         * @throws IOException exception thrown whenever an error occurred while
+         * reading a protein sequence
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while mapping the peptide
+         * @throws SQLException exception thrown whenever an error occurred
+         * while interacting with the database
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurred while deserializing an object
+         */
+        private PeptideEvidences(Peptide peptide, int firstIndex, SequenceMatchingPreferences sequenceMatchingPreferences)
+                throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+
+            this.firstIndex = firstIndex;
+            String sequence = peptide.getSequence();
+            length = sequence.length();
+            decoy = peptide.isDecoy(sequenceMatchingPreferences);
+
+            SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+            ArrayList<String> accessionsList = new ArrayList<String>(1);
+            ArrayList<Integer> startsList = new ArrayList<Integer>(1);
+            StringBuilder beforeList = new StringBuilder(1);
+            StringBuilder afterList = new StringBuilder(1);
+
+            for (String accession : peptide.getParentProteins(sequenceMatchingPreferences)) {
+                HashMap<Integer, String[]> aaSurrounding = sequenceFactory.getProtein(accession).getSurroundingAA(sequence, 1, sequenceMatchingPreferences);
+                ArrayList<Integer> indexes = new ArrayList<Integer>(aaSurrounding.keySet());
+                Collections.sort(indexes);
+                for (int index : indexes) {
+                    String[] surrounding = aaSurrounding.get(index);
+                    accessionsList.add(accession);
+                    startsList.add(index);
+                    beforeList.append(surrounding[0].isEmpty() ? '-' : surrounding[0].charAt(0));
+                    afterList.append(surrounding[1].isEmpty() ? '-' : surrounding[1].charAt(0));
+                }
+            }
 
-    /**
-     * Convenience method writing a user parameter.
-     *
-     * @param name the name of the user parameter
-     * @param value the value of the user parameter
-     */
-    private void writeUserParam(String name, String value) throws IOException {
-        br.write(getCurrentTabSpace() + "<userParam name=\"" + StringEscapeUtils.escapeHtml4(name) + "\" value=\"" + StringEscapeUtils.escapeHtml4(value) + "\" />" + lineBreak);
+            accessions = accessionsList.toArray(new String[accessionsList.size()]);
+            starts = new int[startsList.size()];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = startsList.get(i);
+            }
+            before = beforeList.toString().toCharArray();
+            after = afterList.toString().toCharArray();
+        }
+
+        /**
+         * Returns the number of evidences.
+         *
+         * @return the number of evidences
+         */
+        private int size() {
+            return accessions.length;
+        }
+
+        /**
+         * Appends the identifier of an evidence.
+         *
+         * @param line the line where to append the identifier
+         * @param i the index of the evidence in this peptide
+         *
+         * @return the line
+         */
+        private StringBuilder appendId(StringBuilder line, int i) {
+            return line.append("PepEv_").append(firstIndex + i);
+        }
+
+        /**
+         * Writes the PeptideEvidence elements of the peptide.
+         *
+         * @param peptideKey the key of the peptide
+         * @param xmlWriter the writer
+         *
+         * @throws IOException exception thrown whenever an error occurred while
+         * writing the file
+         */
+        private void write(String peptideKey, IndentedXmlWriter xmlWriter) throws IOException {
+            for (int i = 0; i < accessions.length; i++) {
+                StringBuilder line = xmlWriter.startLine();
+                line.append("<PeptideEvidence isDecoy=\"").append(decoy)
+                        .append("\" pre=\"").append(before[i])
+                        .append("\" post=\"").append(after[i])
+                        .append("\" start=\"").append(starts[i])
+                        .append("\" end=\"").append(starts[i] + length - 1)
+                        .append("\" peptide_ref=\"").append(peptideKey)
+                        .append("\" dBSequence_ref=\"").append(accessions[i])
+                        .append("\" id=\"");
+                appendId(line, i).append("\" />");
+                xmlWriter.endLine();
+            }
+        }
+
+        /**
+         * Writes the PeptideEvidenceRef elements of the peptide.
+         *
+         * @param xmlWriter the writer
+         *
+         * @throws IOException exception thrown whenever an error occurred while
+         * writing the file
+         */
+        private void writeReferences(IndentedXmlWriter xmlWriter) throws IOException {
+            for (int i = 0; i < accessions.length; i++) {
+                appendId(xmlWriter.startLine().append("<PeptideEvidenceRef peptideEvidence_ref=\""), i).append("\"/>");
+                xmlWriter.endLine();
+            }
+        }
+
+        /**
+         * Returns the indexes in this peptide of the evidences on the given
+         * protein.
+         *
+         * @param accession the accession of the protein
+         *
+         * @return the indexes of the evidences on the given protein
+         */
+        private ArrayList<Integer> getEvidences(String accession) {
+            ArrayList<Integer> result = new ArrayList<Integer>(1);
+            for (int i = 0; i < accessions.length; i++) {
+                if (accessions[i].equals(accession)) {
+                    result.add(i);
+                }
+            }
+            return result;
+        }
     }
 }
@@ -267,6 +267,86 @@ public class PSExportFactory implements ExportFactory {
             String proteinMatchKey, int nSurroundingAA, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
             SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        writeExport(exportScheme, destinationFile, exportFormat, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
+                proteinKeys, peptideKeys, psmKeys, proteinMatchKey, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, 1, waitingHandler);
+    }
+
+    /**
+     * Writes the desired export in text format. If an argument is not needed,
+     * provide null (at your own risks).
+     *
+     * @param exportScheme the scheme of the export
+     * @param destinationFile the destination file
+     * @param exportFormat the format of export to use
+     * @param experiment the experiment corresponding to this project (mandatory
+     * for the Project section)
+     * @param sample the sample of the project (mandatory for the Project
+     * section)
+     * @param replicateNumber the replicate number of the project (mandatory for
+     * the Project section)
+     * @param projectDetails the project details (mandatory for the Project
+     * section)
+     * @param identification the identification (mandatory for the Protein,
+     * Peptide and PSM sections)
+     * @param identificationFeaturesGenerator the identification features
+     * generator (mandatory for the Protein, Peptide and PSM sections)
+     * @param geneMaps the gene maps
+     * @param proteinKeys the protein keys to export (mandatory for the Protein
+     * section)
+     * @param peptideKeys the peptide keys to export (mandatory for the Peptide
+     * section)
+     * @param psmKeys the keys of the PSMs to export (mandatory for the PSM
+     * section)
+     * @param proteinMatchKey the protein match key when exporting peptides from
+     * a single protein match (optional for the Peptide sections)
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * (mandatory for the Peptide section)
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * (mandatory for the spectrum counting section)
+     * @param nThreads the number of threads to use to compute the lines of the
+     * Protein, Peptide and PSM sections
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    public static void writeExport(ExportScheme exportScheme, File destinationFile, ExportFormat exportFormat, String experiment, String sample, int replicateNumber,
+            ProjectDetails projectDetails, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            ArrayList<String> proteinKeys, ArrayList<String> peptideKeys, ArrayList<String> psmKeys,
+            String proteinMatchKey, int nSurroundingAA, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
+            SpectrumCountingPreferences spectrumCountingPreferences, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        ExportWriter exportWriter = getExportWriter(exportScheme, exportFormat, destinationFile);
+
+        for (String sectionName : exportScheme.getSections()) {
+            writeSection(exportScheme, sectionName, exportWriter, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator,
+                    geneMaps, proteinKeys, peptideKeys, psmKeys, nSurroundingAA, shotgunProtocol, identificationParameters, spectrumCountingPreferences, nThreads, waitingHandler);
+        }
+
+        exportWriter.close();
+    }
+
+    /**
+     * Returns the writer for the given report with the main title written.
+     *
+     * @param exportScheme the scheme of the export
+     * @param exportFormat the format of export to use
+     * @param destinationFile the destination file
+     *
+     * @return the writer for the given report
+     *
+     * @throws IOException thrown if an IOException occurs
+     */
+    public static ExportWriter getExportWriter(ExportScheme exportScheme, ExportFormat exportFormat, File destinationFile) throws IOException {
 
         ExportWriter exportWriter = ExportWriter.getExportWriter(exportFormat, destinationFile, exportScheme.getSeparator(), exportScheme.getSeparationLines());
         if (exportWriter instanceof ExcelWriter) {
@@ -277,53 +357,118 @@ public class PSExportFactory implements ExportFactory {
 
         exportWriter.writeMainTitle(exportScheme.getMainTitle());
 
-        for (String sectionName : exportScheme.getSections()) {
-            if (exportScheme.isIncludeSectionTitles()) {
-                exportWriter.startNewSection(sectionName);
-            } else {
-                exportWriter.startNewSection();
-            }
-            if (sectionName.equals(PsAnnotationFeature.type)) {
-                PsAnnotationSection section = new PsAnnotationSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identificationParameters.getAnnotationPreferences(), waitingHandler);
-            } else if (sectionName.equals(PsInputFilterFeature.type)) {
-                PsInputFilterSection section = new PsInputFilterSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identificationParameters.getPeptideAssumptionFilter(), waitingHandler);
-            } else if (sectionName.equals(PsPeptideFeature.type)) {
-                PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
-            } else if (sectionName.equals(PsProjectFeature.type)) {
-                PsProjectSection section = new PsProjectSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(experiment, sample, replicateNumber, projectDetails, waitingHandler);
-            } else if (sectionName.equals(PsProteinFeature.type)) {
-                PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, psmKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
-            } else if (sectionName.equals(PsPsmFeature.type)) {
-                PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
-            } else if (sectionName.equals(PsIdentificationAlgorithmMatchesFeature.type)) {
-                PsIdentificationAlgorithmMatchesSection section = new PsIdentificationAlgorithmMatchesSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, waitingHandler);
-            } else if (sectionName.equals(PsPtmScoringFeature.type)) {
-                PsPtmScoringSection section = new PsPtmScoringSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identificationParameters.getPtmScoringPreferences(), waitingHandler);
-            } else if (sectionName.equals(PsSearchFeature.type)) {
-                PsSearchParametersSection section = new PsSearchParametersSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identificationParameters.getSearchParameters(), waitingHandler);
-            } else if (sectionName.equals(PsSpectrumCountingFeature.type)) {
-                PsSpectrumCountingSection section = new PsSpectrumCountingSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(spectrumCountingPreferences, waitingHandler);
-            } else if (sectionName.equals(PsValidationFeature.type)) {
-                PsValidationSection section = new PsValidationSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                PSMaps psMaps = new PSMaps();
-                psMaps = (PSMaps) identification.getUrParam(psMaps);
-                section.writeSection(psMaps, identificationParameters, waitingHandler);
-            } else {
-                throw new UnsupportedOperationException("Section " + sectionName + " not implemented.");
-            }
+        return exportWriter;
+    }
+
+    /**
+     * Starts a new section of a report.
+     *
+     * @param exportScheme the scheme of the export
+     * @param sectionName the name of the section
+     * @param exportWriter the writer of the report
+     *
+     * @throws IOException thrown if an IOException occurs
+     */
+    public static void startSection(ExportScheme exportScheme, String sectionName, ExportWriter exportWriter) throws IOException {
+        if (exportScheme.isIncludeSectionTitles()) {
+            exportWriter.startNewSection(sectionName);
+        } else {
+            exportWriter.startNewSection();
         }
+    }
 
-        exportWriter.close();
+    /**
+     * Writes a section of a report.
+     *
+     * @param exportScheme the scheme of the export
+     * @param sectionName the name of the section to write
+     * @param exportWriter the writer of the report
+     * @param experiment the experiment corresponding to this project (mandatory
+     * for the Project section)
+     * @param sample the sample of the project (mandatory for the Project
+     * section)
+     * @param replicateNumber the replicate number of the project (mandatory for
+     * the Project section)
+     * @param projectDetails the project details (mandatory for the Project
+     * section)
+     * @param identification the identification (mandatory for the Protein,
+     * Peptide and PSM sections)
+     * @param identificationFeaturesGenerator the identification features
+     * generator (mandatory for the Protein, Peptide and PSM sections)
+     * @param geneMaps the gene maps
+     * @param proteinKeys the protein keys to export (mandatory for the Protein
+     * section)
+     * @param peptideKeys the peptide keys to export (mandatory for the Peptide
+     * section)
+     * @param psmKeys the keys of the PSMs to export (mandatory for the PSM
+     * section)
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * (mandatory for the Peptide section)
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * (mandatory for the spectrum counting section)
+     * @param nThreads the number of threads to use to compute the lines of the
+     * Protein, Peptide and PSM sections
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if an ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
+     * occurs
+     * @throws org.apache.commons.math.MathException thrown if an MathException
+     * occurs
+     */
+    public static void writeSection(ExportScheme exportScheme, String sectionName, ExportWriter exportWriter, String experiment, String sample, int replicateNumber,
+            ProjectDetails projectDetails, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            ArrayList<String> proteinKeys, ArrayList<String> peptideKeys, ArrayList<String> psmKeys, int nSurroundingAA, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        startSection(exportScheme, sectionName, exportWriter);
+        if (sectionName.equals(PsAnnotationFeature.type)) {
+            PsAnnotationSection section = new PsAnnotationSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(identificationParameters.getAnnotationPreferences(), waitingHandler);
+        } else if (sectionName.equals(PsInputFilterFeature.type)) {
+            PsInputFilterSection section = new PsInputFilterSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(identificationParameters.getPeptideAssumptionFilter(), waitingHandler);
+        } else if (sectionName.equals(PsPeptideFeature.type)) {
+            PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.setnThreads(nThreads);
+            section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+        } else if (sectionName.equals(PsProjectFeature.type)) {
+            PsProjectSection section = new PsProjectSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(experiment, sample, replicateNumber, projectDetails, waitingHandler);
+        } else if (sectionName.equals(PsProteinFeature.type)) {
+            PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.setnThreads(nThreads);
+            section.writeSection(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, psmKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+        } else if (sectionName.equals(PsPsmFeature.type)) {
+            PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.setnThreads(nThreads);
+            section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+        } else if (sectionName.equals(PsIdentificationAlgorithmMatchesFeature.type)) {
+            PsIdentificationAlgorithmMatchesSection section = new PsIdentificationAlgorithmMatchesSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, psmKeys, "", nSurroundingAA, waitingHandler);
+        } else if (sectionName.equals(PsPtmScoringFeature.type)) {
+            PsPtmScoringSection section = new PsPtmScoringSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(identificationParameters.getPtmScoringPreferences(), waitingHandler);
+        } else if (sectionName.equals(PsSearchFeature.type)) {
+            PsSearchParametersSection section = new PsSearchParametersSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(identificationParameters.getSearchParameters(), waitingHandler);
+        } else if (sectionName.equals(PsSpectrumCountingFeature.type)) {
+            PsSpectrumCountingSection section = new PsSpectrumCountingSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            section.writeSection(spectrumCountingPreferences, waitingHandler);
+        } else if (sectionName.equals(PsValidationFeature.type)) {
+            PsValidationSection section = new PsValidationSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
+            PSMaps psMaps = new PSMaps();
+            psMaps = (PSMaps) identification.getUrParam(psMaps);
+            section.writeSection(psMaps, identificationParameters, waitingHandler);
+        } else {
+            throw new UnsupportedOperationException("Section " + sectionName + " not implemented.");
+        }
     }
 
     /**
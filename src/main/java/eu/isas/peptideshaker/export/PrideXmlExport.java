@@ -42,6 +42,7 @@ import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
 import eu.isas.peptideshaker.scoring.PtmScoring;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStream;
 import java.io.*;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -95,9 +96,25 @@ public class PrideXmlExport {
      */
     private Instrument instrument;
     /**
-     * The fileWriter.
+     * The output file.
      */
-    private FileWriter r;
+    private File outputFile;
+    /**
+     * The writer of the output file.
+     */
+    private Writer r;
+    /**
+     * The compressing stream, null if the output is not compressed.
+     */
+    private ParallelGzipOutputStream gzipStream = null;
+    /**
+     * The throughput of the export.
+     */
+    private ExportThroughput exportThroughput = new ExportThroughput("PRIDE XML");
+    /**
+     * The number of PSMs written.
+     */
+    private long nPsms = 0;
     /**
      * The buffered writer which will write the results in the desired file.
      */
@@ -216,6 +233,55 @@ public class PrideXmlExport {
             String experimentTitle, String experimentLabel, String experimentDescription, String experimentProject,
             ReferenceGroup referenceGroup, ContactGroup contactGroup, Sample sample, Protocol protocol, Instrument instrument,
             File outputFolder, String fileName, WaitingHandler waitingHandler) throws FileNotFoundException, IOException, ClassNotFoundException {
+        this(peptideShakerVersion, identification, projectDetails, shotgunProtocol, identificationParameters, spectrumCountingPreferences, identificationFeaturesGenerator, spectrumAnnotator,
+                experimentTitle, experimentLabel, experimentDescription, experimentProject, referenceGroup, contactGroup, sample, protocol, instrument,
+                outputFolder, fileName, waitingHandler, false, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param peptideShakerVersion the PeptideShaker version
+     * @param identification the identification object which can be used to
+     * retrieve identification matches and parameters
+     * @param projectDetails the project details
+     * @param shotgunProtocol information on the protocol
+     * @param identificationParameters the identification parameters
+     * @param experimentTitle Title of the experiment
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param spectrumAnnotator the spectrum annotator to use
+     * @param experimentLabel Label of the experiment
+     * @param experimentDescription Description of the experiment
+     * @param experimentProject project of the experiment
+     * @param referenceGroup References for the experiment
+     * @param contactGroup Contacts for the experiment
+     * @param sample Samples in this experiment
+     * @param protocol Protocol used in this experiment
+     * @param instrument Instruments used in this experiment
+     * @param outputFolder Output folder
+     * @param fileName the file name without extension
+     * @param waitingHandler waiting handler used to display progress to the
+     * user and interrupt the process
+     * @param gzip if true the output is compressed in the gzip format and the
+     * file gets the .xml.gz extension
+     * @param gzipBlockSize the size in bytes of the blocks compressed in
+     * parallel
+     * @param nThreads the number of threads to use to compress the output
+     *
+     * @throws FileNotFoundException Exception thrown whenever a file was not
+     * found
+     * @throws IOException Exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException Exception thrown whenever an error
+     * occurred while deserializing a pride object
+     */
+    public PrideXmlExport(String peptideShakerVersion, Identification identification, ProjectDetails projectDetails, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
+            SpectrumCountingPreferences spectrumCountingPreferences, IdentificationFeaturesGenerator identificationFeaturesGenerator, PeptideSpectrumAnnotator spectrumAnnotator,
+            String experimentTitle, String experimentLabel, String experimentDescription, String experimentProject,
+            ReferenceGroup referenceGroup, ContactGroup contactGroup, Sample sample, Protocol protocol, Instrument instrument,
+            File outputFolder, String fileName, WaitingHandler waitingHandler, boolean gzip, int gzipBlockSize, int nThreads) throws FileNotFoundException, IOException, ClassNotFoundException {
         this.peptideShakerVersion = peptideShakerVersion;
         this.identification = identification;
         this.projectDetails = projectDetails;
@@ -236,8 +302,15 @@ public class PrideXmlExport {
         this.waitingHandler = waitingHandler;
         PrideObjectsFactory prideObjectsFactory = PrideObjectsFactory.getInstance();
         ptmToPrideMap = prideObjectsFactory.getPtmToPrideMap();
-        r = new FileWriter(new File(outputFolder, fileName + ".xml"));
-        br = new BufferedWriter(r);
+        if (gzip) {
+            outputFile = new File(outputFolder, fileName + ".xml.gz");
+            gzipStream = new ParallelGzipOutputStream(new FileOutputStream(outputFile), gzipBlockSize, nThreads);
+            r = new OutputStreamWriter(gzipStream);
+        } else {
+            outputFile = new File(outputFolder, fileName + ".xml");
+            r = new FileWriter(outputFile);
+        }
+        br = new BufferedWriter(r, 64 * 1024);
     }
 
     /**
@@ -258,77 +331,87 @@ public class PrideXmlExport {
      */
     public void createPrideXmlFile(ProgressDialogX progressDialog) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
-        // the experiment start tag
-        writeExperimentCollectionStartTag();
+        exportThroughput.start();
+        nPsms = 0;
 
-        // the experiment title
-        writeTitle();
+        try {
 
-        // the references, if any
-        if (referenceGroup != null && referenceGroup.getReferences().size() > 0) {
-            writeReferences();
-        }
+            // the experiment start tag
+            writeExperimentCollectionStartTag();
 
-        // the short label
-        writeShortLabel();
+            // the experiment title
+            writeTitle();
 
-        // the protocol
-        writeProtocol();
+            // the references, if any
+            if (referenceGroup != null && referenceGroup.getReferences().size() > 0) {
+                writeReferences();
+            }
 
-        if (waitingHandler.isRunCanceled()) {
-            br.close();
-            r.close();
-            return;
-        }
+            // the short label
+            writeShortLabel();
 
-        // get the spectrum count
-        totalProgress = 0;
-        for (String mgfFile : spectrumFactory.getMgfFileNames()) {
-            totalProgress += spectrumFactory.getNSpectra(mgfFile);
-        }
-        totalProgress = 2 * totalProgress;
-        progressDialog.setPrimaryProgressCounterIndeterminate(false);
-        progressDialog.setMaxPrimaryProgressCounter(100);
-        progressDialog.setValue(0);
+            // the protocol
+            writeProtocol();
 
-        if (waitingHandler.isRunCanceled()) {
-            br.close();
-            r.close();
-            return;
-        }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        // the mzData element
-        writeMzData(progressDialog);
+            // get the spectrum count
+            totalProgress = 0;
+            for (String mgfFile : spectrumFactory.getMgfFileNames()) {
+                totalProgress += spectrumFactory.getNSpectra(mgfFile);
+            }
+            totalProgress = 2 * totalProgress;
+            progressDialog.setPrimaryProgressCounterIndeterminate(false);
+            progressDialog.setMaxPrimaryProgressCounter(100);
+            progressDialog.setValue(0);
 
-        if (waitingHandler.isRunCanceled()) {
-            br.close();
-            r.close();
-            return;
-        }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        // the PSMs
-        writePsms(progressDialog);
+            // the mzData element
+            writeMzData(progressDialog);
 
-        if (waitingHandler.isRunCanceled()) {
-            br.close();
-            r.close();
-            return;
-        }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        // the additional tags
-        writeAdditionalTags();
+            // the PSMs
+            writePsms(progressDialog);
 
-        if (waitingHandler.isRunCanceled()) {
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            // the additional tags
+            writeAdditionalTags();
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            // the experiment end tag
+            writeExperimentCollectionEndTag();
+
+        } finally {
             br.close();
             r.close();
-            return;
         }
 
-        // the experiment end tag
-        writeExperimentCollectionEndTag();
+        long nBytes = gzipStream != null ? gzipStream.getUncompressedSize() : outputFile.length();
+        exportThroughput.stop(nBytes, outputFile.length(), nPsms);
+        waitingHandler.appendReport(exportThroughput.getReport(), true, true);
+    }
 
-        br.close();
-        r.close();
+    /**
+     * Returns the throughput of the last export.
+     *
+     * @return the throughput of the last export
+     */
+    public ExportThroughput getExportThroughput() {
+        return exportThroughput;
     }
 
     /**
@@ -437,6 +520,7 @@ public class PrideXmlExport {
                     // the peptide
                     br.write(getCurrentTabSpace() + "<PeptideItem>" + lineBreak);
                     tabCounter++;
+                    nPsms++;
 
                     // peptide sequence
                     br.write(getCurrentTabSpace() + "<Sequence>" + tempPeptide.getSequence() + "</Sequence>" + lineBreak);
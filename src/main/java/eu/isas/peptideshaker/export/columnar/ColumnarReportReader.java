@@ -0,0 +1,476 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads reports written by the ColumnarReportWriter. The file is read block
+ * by block, only the current block and the dictionaries of the current table
+ * are kept in memory. Example:
+ * <pre>
+ * ColumnarReportReader reader = new ColumnarReportReader(file);
+ * try {
+ *     Table table;
+ *     while ((table = reader.nextTable()) != null) {
+ *         Block block;
+ *         while ((block = reader.nextBlock()) != null) {
+ *             ...
+ *         }
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportReader {
+
+    /**
+     * The name of the file.
+     */
+    private final String fileName;
+    /**
+     * The input stream.
+     */
+    private final DataInputStream inputStream;
+    /**
+     * The inflater used to decompress the columns.
+     */
+    private final Inflater inflater = new Inflater();
+    /**
+     * The table being read, null if none.
+     */
+    private Table currentTable = null;
+    /**
+     * Boolean indicating whether the end of the file was reached.
+     */
+    private boolean endOfFile = false;
+
+    /**
+     * Constructor. Opens the given report and reads its header.
+     *
+     * @param file the report file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ColumnarReportReader(File file) throws IOException {
+        fileName = file.getName();
+        inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (inputStream.readInt() != ColumnarReportWriter.MAGIC) {
+                throw new IOException(fileName + " is not a columnar report.");
+            }
+            int version = inputStream.readInt();
+            if (version < 1 || version > ColumnarReportWriter.VERSION) {
+                throw new IOException("Version " + version + " of the columnar report format not supported.");
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void close() throws IOException {
+        inflater.end();
+        inputStream.close();
+    }
+
+    /**
+     * Moves to the next table of the report, skipping the blocks of the
+     * current table which were not read. Returns null if the report has no
+     * more table.
+     *
+     * @return the next table of the report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public Table nextTable() throws IOException {
+
+        while (currentTable != null) {
+            nextBlock();
+        }
+        if (endOfFile) {
+            return null;
+        }
+
+        byte marker = inputStream.readByte();
+        if (marker == ColumnarReportWriter.END_OF_FILE) {
+            endOfFile = true;
+            return null;
+        }
+        if (marker != ColumnarReportWriter.TABLE) {
+            throw new IOException("Unexpected marker " + marker + " in " + fileName + ".");
+        }
+
+        String name = inputStream.readUTF();
+        int nColumns = inputStream.readInt();
+        ArrayList<String> titles = new ArrayList<String>(nColumns);
+        for (int i = 0; i < nColumns; i++) {
+            titles.add(inputStream.readUTF());
+        }
+        currentTable = new Table(name, titles);
+
+        return currentTable;
+    }
+
+    /**
+     * Reads the next block of the current table. Returns null if the table has
+     * no more block or if no table is being read.
+     *
+     * @return the next block of the current table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public Block nextBlock() throws IOException {
+
+        if (!startBlock()) {
+            return null;
+        }
+
+        int nRows = inputStream.readInt();
+        int nColumns = currentTable.columnTitles.size();
+        Object[] values = new Object[nColumns];
+        try {
+            for (int column = 0; column < nColumns; column++) {
+                values[column] = readColumn(nRows, currentTable.dictionaries.get(column));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Error while decompressing " + fileName + ".", e);
+        }
+
+        Block block = new Block(currentTable, currentTable.nRows, nRows, values);
+        currentTable.nRows += nRows;
+
+        return block;
+    }
+
+    /**
+     * Reads the marker preceding a block. Ends the current table if the marker
+     * is the end of the table.
+     *
+     * @return a boolean indicating whether a block follows
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private boolean startBlock() throws IOException {
+        if (currentTable == null) {
+            return false;
+        }
+        byte marker = inputStream.readByte();
+        if (marker == ColumnarReportWriter.END_OF_TABLE) {
+            currentTable = null;
+            return false;
+        }
+        if (marker != ColumnarReportWriter.BLOCK) {
+            throw new IOException("Unexpected marker " + marker + " in table " + currentTable.name + ".");
+        }
+        return true;
+    }
+
+    /**
+     * Reads a column of a block.
+     *
+     * @param nRows the number of rows of the block
+     * @param dictionary the dictionary of the column
+     *
+     * @return the values of the column: an int array, a double array or a
+     * String array
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     * @throws DataFormatException exception thrown whenever an error occurred
+     * while decompressing a column
+     */
+    private Object readColumn(int nRows, ArrayList<String> dictionary) throws IOException, DataFormatException {
+
+        byte type = inputStream.readByte();
+        int rawLength = inputStream.readInt();
+        int compressedLength = inputStream.readInt();
+        byte[] compressed = new byte[compressedLength];
+        inputStream.readFully(compressed);
+
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        int offset = 0;
+        while (offset < rawLength) {
+            int read = inflater.inflate(raw, offset, rawLength - offset);
+            if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new DataFormatException("Truncated column.");
+            }
+            offset += read;
+        }
+        DataInputStream rawStream = new DataInputStream(new ByteArrayInputStream(raw));
+
+        switch (type) {
+            case ColumnarReportWriter.TYPE_INT:
+                int[] intValues = new int[nRows];
+                for (int i = 0; i < nRows; i++) {
+                    intValues[i] = rawStream.readInt();
+                }
+                return intValues;
+            case ColumnarReportWriter.TYPE_DOUBLE:
+                double[] doubleValues = new double[nRows];
+                for (int i = 0; i < nRows; i++) {
+                    doubleValues[i] = rawStream.readDouble();
+                }
+                return doubleValues;
+            case ColumnarReportWriter.TYPE_STRING:
+                int nNewEntries = rawStream.readInt();
+                for (int i = 0; i < nNewEntries; i++) {
+                    dictionary.add(readString(rawStream));
+                }
+                String[] stringValues = new String[nRows];
+                for (int i = 0; i < nRows; i++) {
+                    stringValues[i] = dictionary.get(rawStream.readInt());
+                }
+                return stringValues;
+            case ColumnarReportWriter.TYPE_PLAIN_STRING:
+                String[] plainValues = new String[nRows];
+                for (int i = 0; i < nRows; i++) {
+                    plainValues[i] = readString(rawStream);
+                }
+                return plainValues;
+            default:
+                throw new IOException("Column type " + type + " not supported.");
+        }
+    }
+
+    /**
+     * Reads a string written as its length in bytes followed by its UTF-8
+     * encoding.
+     *
+     * @param stream the stream to read from
+     *
+     * @return the string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     */
+    private static String readString(DataInputStream stream) throws IOException {
+        byte[] bytes = new byte[stream.readInt()];
+        stream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A table of a columnar report.
+     *
+     * @author Marc Vaudel
+     */
+    public static class Table {
+
+        /**
+         * The name of the table.
+         */
+        private final String name;
+        /**
+         * The titles of the columns.
+         */
+        private final ArrayList<String> columnTitles;
+        /**
+         * The dictionaries of the columns.
+         */
+        private final ArrayList<ArrayList<String>> dictionaries;
+        /**
+         * The number of rows read.
+         */
+        private int nRows = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the table
+         * @param columnTitles the titles of the columns
+         */
+        private Table(String name, ArrayList<String> columnTitles) {
+            this.name = name;
+            this.columnTitles = columnTitles;
+            dictionaries = new ArrayList<ArrayList<String>>(columnTitles.size());
+            for (int i = 0; i < columnTitles.size(); i++) {
+                dictionaries.add(new ArrayList<String>());
+            }
+        }
+
+        /**
+         * Returns the name of the table.
+         *
+         * @return the name of the table
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the titles of the columns.
+         *
+         * @return the titles of the columns
+         */
+        public ArrayList<String> getColumnTitles() {
+            return columnTitles;
+        }
+
+        /**
+         * Returns the index of the column of the given title, -1 if not found.
+         *
+         * @param title the title of the column
+         *
+         * @return the index of the column
+         */
+        public int getColumnIndex(String title) {
+            return columnTitles.indexOf(title);
+        }
+
+        /**
+         * Returns the number of rows read so far.
+         *
+         * @return the number of rows read so far
+         */
+        public int getNRowsRead() {
+            return nRows;
+        }
+    }
+
+    /**
+     * A block of rows of a table.
+     *
+     * @author Marc Vaudel
+     */
+    public static class Block {
+
+        /**
+         * The table of the block.
+         */
+        private final Table table;
+        /**
+         * The index of the first row of the block in the table.
+         */
+        private final int firstRow;
+        /**
+         * The number of rows of the block.
+         */
+        private final int nRows;
+        /**
+         * The values of every column.
+         */
+        private final Object[] values;
+
+        /**
+         * Constructor.
+         *
+         * @param table the table of the block
+         * @param firstRow the index of the first row of the block in the table
+         * @param nRows the number of rows of the block
+         * @param values the values of every column
+         */
+        private Block(Table table, int firstRow, int nRows, Object[] values) {
+            this.table = table;
+            this.firstRow = firstRow;
+            this.nRows = nRows;
+            this.values = values;
+        }
+
+        /**
+         * Returns the table of the block.
+         *
+         * @return the table of the block
+         */
+        public Table getTable() {
+            return table;
+        }
+
+        /**
+         * Returns the index of the first row of the block in the table.
+         *
+         * @return the index of the first row of the block in the table
+         */
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        /**
+         * Returns the number of rows of the block.
+         *
+         * @return the number of rows of the block
+         */
+        public int getNRows() {
+            return nRows;
+        }
+
+        /**
+         * Returns the value of the given cell as text, as it would have been
+         * written in a text report.
+         *
+         * @param row the index of the row in the block
+         * @param column the index of the column
+         *
+         * @return the value of the given cell as text
+         */
+        public String getString(int row, int column) {
+            Object columnValues = values[column];
+            if (columnValues instanceof int[]) {
+                return Integer.toString(((int[]) columnValues)[row]);
+            } else if (columnValues instanceof double[]) {
+                return Double.toString(((double[]) columnValues)[row]);
+            }
+            return ((String[]) columnValues)[row];
+        }
+
+        /**
+         * Returns the value of the given cell as a double. Text cells are
+         * parsed, NaN is returned for text which does not represent a number.
+         *
+         * @param row the index of the row in the block
+         * @param column the index of the column
+         *
+         * @return the value of the given cell as a double
+         */
+        public double getDouble(int row, int column) {
+            Object columnValues = values[column];
+            if (columnValues instanceof int[]) {
+                return ((int[]) columnValues)[row];
+            } else if (columnValues instanceof double[]) {
+                return ((double[]) columnValues)[row];
+            }
+            try {
+                return Double.parseDouble(((String[]) columnValues)[row]);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        /**
+         * Returns the values of the given column as doubles. Text cells are
+         * parsed, NaN is used for text which does not represent a number.
+         *
+         * @param column the index of the column
+         *
+         * @return the values of the given column as doubles
+         */
+        public double[] getDoubleColumn(int column) {
+            double[] result = new double[nRows];
+            for (int i = 0; i < nRows; i++) {
+                result[i] = getDouble(i, column);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes reports in a compact columnar binary format. A file contains one or
+ * more tables. The rows of a table are stored in blocks, every column of a
+ * block is typed (integer, double, dictionary encoded string or plain string)
+ * and compressed separately. Files can be read block by block using the
+ * ColumnarReportReader.
+ *
+ * File layout (big endian, as written by DataOutputStream):
+ * <pre>
+ * file   := MAGIC VERSION table* END_OF_FILE
+ * table  := TABLE name nColumns title* block* END_OF_TABLE
+ * block  := BLOCK nRows column*
+ * column := type rawLength compressedLength deflate(payload)
+ * </pre>
+ * Integer payloads contain nRows int values, double payloads nRows double
+ * values. String payloads contain the number of new dictionary entries, the
+ * new entries, and nRows int codes. The dictionary of a column is shared by
+ * all blocks of a table. Plain string payloads contain nRows strings. A column
+ * is written as plain strings for the rest of the table once its dictionary
+ * reaches the maximal size or when a block brings too many new entries, i.e.
+ * when the column has a high ratio of distinct values.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportWriter {
+
+    /**
+     * The magic number at the start of the files.
+     */
+    public static final int MAGIC = 0x50534352;
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * Marker of the end of the file.
+     */
+    public static final byte END_OF_FILE = 0;
+    /**
+     * Marker of the start of a table.
+     */
+    public static final byte TABLE = 1;
+    /**
+     * Marker of the start of a block.
+     */
+    public static final byte BLOCK = 2;
+    /**
+     * Marker of the end of a table.
+     */
+    public static final byte END_OF_TABLE = 3;
+    /**
+     * Type of the integer columns.
+     */
+    public static final byte TYPE_INT = 1;
+    /**
+     * Type of the double columns.
+     */
+    public static final byte TYPE_DOUBLE = 2;
+    /**
+     * Type of the dictionary encoded string columns.
+     */
+    public static final byte TYPE_STRING = 3;
+    /**
+     * Type of the plain string columns.
+     */
+    public static final byte TYPE_PLAIN_STRING = 4;
+    /**
+     * The default number of rows per block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 8192;
+    /**
+     * The default maximal number of entries in the dictionary of a column.
+     */
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 65536;
+    /**
+     * The maximal share of new dictionary entries in a block. Above, the
+     * column is considered to have too many distinct values to benefit from
+     * the dictionary.
+     */
+    public static final double MAX_NEW_ENTRIES_RATIO = 0.5;
+    /**
+     * The destination file.
+     */
+    private final File destinationFile;
+    /**
+     * The output stream.
+     */
+    private final DataOutputStream outputStream;
+    /**
+     * The number of rows per block.
+     */
+    private final int blockSize;
+    /**
+     * The maximal number of entries in the dictionary of a column.
+     */
+    private final int maxDictionarySize;
+    /**
+     * The number of columns of the current table, -1 if no table is open.
+     */
+    private int nColumns = -1;
+    /**
+     * The rows of the current block.
+     */
+    private final ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
+    /**
+     * The dictionaries of the string columns of the current table, null for
+     * the columns written as plain strings.
+     */
+    private ArrayList<HashMap<String, Integer>> dictionaries;
+    /**
+     * The deflater used to compress the columns.
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public ColumnarReportWriter(File destinationFile) throws IOException {
+        this(destinationFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the report
+     * @param blockSize the number of rows per block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public ColumnarReportWriter(File destinationFile, int blockSize) throws IOException {
+        this(destinationFile, blockSize, DEFAULT_MAX_DICTIONARY_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the report
+     * @param blockSize the number of rows per block
+     * @param maxDictionarySize the maximal number of entries in the
+     * dictionary of a column
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public ColumnarReportWriter(File destinationFile, int blockSize, int maxDictionarySize) throws IOException {
+        this.destinationFile = destinationFile;
+        this.blockSize = blockSize;
+        this.maxDictionarySize = maxDictionarySize;
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destinationFile)));
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+    }
+
+    /**
+     * Starts a new table. The previous table is closed if needed.
+     *
+     * @param name the name of the table
+     * @param columnTitles the titles of the columns
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public void startTable(String name, ArrayList<String> columnTitles) throws IOException {
+        endTable();
+        nColumns = columnTitles.size();
+        dictionaries = new ArrayList<HashMap<String, Integer>>(nColumns);
+        for (int i = 0; i < nColumns; i++) {
+            dictionaries.add(new HashMap<String, Integer>());
+        }
+        outputStream.writeByte(TABLE);
+        outputStream.writeUTF(name);
+        outputStream.writeInt(nColumns);
+        for (String title : columnTitles) {
+            outputStream.writeUTF(title);
+        }
+    }
+
+    /**
+     * Adds a row to the current table.
+     *
+     * @param row the content of the cells of the row
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public void addRow(ArrayList<String> row) throws IOException {
+        if (nColumns == -1) {
+            throw new IllegalArgumentException("No table started.");
+        }
+        if (row.size() != nColumns) {
+            throw new IllegalArgumentException(row.size() + " cells provided for a table of " + nColumns + " columns.");
+        }
+        rows.add(row);
+        if (rows.size() == blockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Ends the current table if any.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public void endTable() throws IOException {
+        if (nColumns != -1) {
+            writeBlock();
+            outputStream.writeByte(END_OF_TABLE);
+            nColumns = -1;
+            dictionaries = null;
+        }
+    }
+
+    /**
+     * Ends the current table if any and closes the file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    public void close() throws IOException {
+        endTable();
+        outputStream.writeByte(END_OF_FILE);
+        outputStream.close();
+        deflater.end();
+    }
+
+    /**
+     * Closes the file without ending it and deletes it. To be used when the
+     * export is canceled or fails.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void delete() throws IOException {
+        nColumns = -1;
+        dictionaries = null;
+        rows.clear();
+        try {
+            outputStream.close();
+        } finally {
+            deflater.end();
+            if (destinationFile.exists() && !destinationFile.delete()) {
+                throw new IOException("Impossible to delete " + destinationFile.getAbsolutePath() + ".");
+            }
+        }
+    }
+
+    /**
+     * Writes the rows buffered as a block.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    private void writeBlock() throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        outputStream.writeByte(BLOCK);
+        outputStream.writeInt(rows.size());
+        for (int column = 0; column < nColumns; column++) {
+            writeColumn(column);
+        }
+        rows.clear();
+    }
+
+    /**
+     * Writes a column of the current block using the most compact type
+     * allowing an exact restoration of the text.
+     *
+     * @param column the index of the column
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    private void writeColumn(int column) throws IOException {
+
+        int nRows = rows.size();
+        boolean isInt = true;
+        boolean isDouble = true;
+        int[] intValues = new int[nRows];
+        double[] doubleValues = new double[nRows];
+
+        for (int i = 0; i < nRows && (isInt || isDouble); i++) {
+            String cell = rows.get(i).get(column);
+            if (isInt) {
+                try {
+                    intValues[i] = Integer.parseInt(cell);
+                    isInt = Integer.toString(intValues[i]).equals(cell);
+                } catch (NumberFormatException e) {
+                    isInt = false;
+                }
+            }
+            if (isDouble) {
+                try {
+                    doubleValues[i] = Double.parseDouble(cell);
+                    isDouble = Double.toString(doubleValues[i]).equals(cell);
+                } catch (NumberFormatException e) {
+                    isDouble = false;
+                }
+            }
+        }
+
+        ByteArrayOutputStream rawBytes = new ByteArrayOutputStream(8 * nRows);
+        DataOutputStream rawStream = new DataOutputStream(rawBytes);
+        byte type;
+
+        if (isInt) {
+            type = TYPE_INT;
+            for (int value : intValues) {
+                rawStream.writeInt(value);
+            }
+        } else if (isDouble) {
+            type = TYPE_DOUBLE;
+            for (double value : doubleValues) {
+                rawStream.writeDouble(value);
+            }
+        } else {
+            HashMap<String, Integer> dictionary = dictionaries.get(column);
+            ArrayList<String> newEntries = null;
+            if (dictionary != null) {
+                HashMap<String, Integer> newCodes = new HashMap<String, Integer>();
+                newEntries = new ArrayList<String>();
+                for (int i = 0; i < nRows; i++) {
+                    String cell = rows.get(i).get(column);
+                    Integer code = dictionary.get(cell);
+                    if (code == null) {
+                        code = newCodes.get(cell);
+                        if (code == null) {
+                            code = dictionary.size() + newEntries.size();
+                            newCodes.put(cell, code);
+                            newEntries.add(cell);
+                        }
+                    }
+                    intValues[i] = code;
+                }
+                if (dictionary.size() + newEntries.size() > maxDictionarySize || newEntries.size() > MAX_NEW_ENTRIES_RATIO * nRows) {
+                    dictionaries.set(column, null);
+                    newEntries = null;
+                } else {
+                    dictionary.putAll(newCodes);
+                }
+            }
+            if (newEntries != null) {
+                type = TYPE_STRING;
+                rawStream.writeInt(newEntries.size());
+                for (String entry : newEntries) {
+                    writeString(rawStream, entry);
+                }
+                for (int code : intValues) {
+                    rawStream.writeInt(code);
+                }
+            } else {
+                type = TYPE_PLAIN_STRING;
+                for (int i = 0; i < nRows; i++) {
+                    writeString(rawStream, rows.get(i).get(column));
+                }
+            }
+        }
+
+        rawStream.flush();
+        byte[] raw = rawBytes.toByteArray();
+
+        ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(raw.length / 2 + 16);
+        deflater.reset();
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressedBytes, deflater);
+        deflaterStream.write(raw);
+        deflaterStream.finish();
+        byte[] compressed = compressedBytes.toByteArray();
+
+        outputStream.writeByte(type);
+        outputStream.writeInt(raw.length);
+        outputStream.writeInt(compressed.length);
+        outputStream.write(compressed);
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 encoding.
+     * Contrary to DataOutputStream.writeUTF, the length of the string is not
+     * limited.
+     *
+     * @param stream the stream to write to
+     * @param text the string to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the stream
+     */
+    private static void writeString(DataOutputStream stream, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+}
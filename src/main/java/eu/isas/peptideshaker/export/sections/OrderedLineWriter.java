@@ -0,0 +1,454 @@
+package eu.isas.peptideshaker.export.sections;
+
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Writes the lines of a section in parallel. Matches are pulled by blocks by
+ * worker threads which compute the content of the lines, the lines are then
+ * written by the calling thread in the order the matches were pulled.
+ *
+ * @author Marc Vaudel
+ *
+ * @param <T> the type of match exported
+ */
+public class OrderedLineWriter<T> {
+
+    /**
+     * The default number of matches per block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+    /**
+     * The number of blocks which can be computed ahead of the writer per
+     * thread.
+     */
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+    /**
+     * The writer used to send the output to file.
+     */
+    private final ExportWriter writer;
+    /**
+     * Boolean indicating whether the line shall be indexed.
+     */
+    private final boolean indexes;
+    /**
+     * The line prefix, can be null.
+     */
+    private final String linePrefix;
+    /**
+     * The number of threads to use to compute the lines.
+     */
+    private final int nThreads;
+    /**
+     * The number of matches per block.
+     */
+    private final int blockSize;
+    /**
+     * The maximal number of blocks which can be pulled and not written yet.
+     */
+    private final int maxPendingBlocks;
+    /**
+     * The waiting handler.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The blocks computed and not written yet indexed by block number. Null
+     * lines correspond to matches which should not be exported.
+     */
+    private final HashMap<Integer, ArrayList<ArrayList<String>>> computedBlocks = new HashMap<Integer, ArrayList<ArrayList<String>>>();
+    /**
+     * Lock used to pull the matches from the provider.
+     */
+    private final Object pullLock = new Object();
+    /**
+     * The number of the next block to pull.
+     */
+    private volatile int nextBlock = 0;
+    /**
+     * The number of the next block to write.
+     */
+    private volatile int nextBlockToWrite = 0;
+    /**
+     * Boolean indicating whether all matches were pulled.
+     */
+    private volatile boolean exhausted = false;
+    /**
+     * The first error encountered, null if none.
+     */
+    private volatile Throwable error = null;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the writer which will write to the file
+     * @param indexes indicates whether the line index should be written
+     * @param linePrefix the line prefix, can be null
+     * @param nThreads the number of threads to use to compute the lines
+     * @param blockSize the number of matches per block
+     * @param waitingHandler the waiting handler, can be null
+     */
+    public OrderedLineWriter(ExportWriter writer, boolean indexes, String linePrefix, int nThreads, int blockSize, WaitingHandler waitingHandler) {
+        this.writer = writer;
+        this.indexes = indexes;
+        this.linePrefix = linePrefix;
+        this.nThreads = nThreads;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = BLOCKS_AHEAD_PER_THREAD * nThreads;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Computes the lines of the matches provided in parallel and writes them
+     * in the order of the provider.
+     *
+     * @param matchProvider the provider of the matches to export
+     * @param lineGenerator the generator of the lines
+     *
+     * @return the number of lines written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public int write(MatchProvider<T> matchProvider, LineGenerator<T> lineGenerator)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        boolean completed = false;
+
+        try {
+            for (int i = 1; i <= nThreads; i++) {
+                pool.submit(new LineRunnable(matchProvider, lineGenerator));
+            }
+            pool.shutdown();
+
+            int line = 1;
+
+            try {
+                ArrayList<ArrayList<String>> block;
+                while ((block = getNextBlockToWrite()) != null) {
+                    for (ArrayList<String> cells : block) {
+                        if (cells != null) {
+                            writeLine(line, cells);
+                            line++;
+                        }
+                    }
+                    blockWritten();
+                }
+            } catch (IOException e) {
+                setError(e);
+            }
+
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Export timed out. Please contact the developers.");
+            }
+            completed = true;
+
+            if (error != null) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                } else if (error instanceof SQLException) {
+                    throw (SQLException) error;
+                } else if (error instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) error;
+                } else if (error instanceof InterruptedException) {
+                    throw (InterruptedException) error;
+                } else if (error instanceof MzMLUnmarshallerException) {
+                    throw (MzMLUnmarshallerException) error;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error instanceof Error) {
+                    throw (Error) error;
+                } else {
+                    throw new IllegalArgumentException("An error occurred while exporting the matches.", error);
+                }
+            }
+
+            return line - 1;
+
+        } finally {
+            if (!completed) {
+                // stop the workers in case the writer was interrupted or failed
+                setError(new InterruptedException("Export interrupted."));
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a line.
+     *
+     * @param line the index of the line
+     * @param cells the content of the cells
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing to the file
+     */
+    private void writeLine(int line, ArrayList<String> cells) throws IOException {
+        boolean first = true;
+        if (indexes) {
+            if (linePrefix != null) {
+                writer.write(linePrefix);
+            }
+            writer.write(line + "");
+            first = false;
+        }
+        for (String cell : cells) {
+            if (!first) {
+                writer.addSeparator();
+            } else {
+                first = false;
+            }
+            writer.write(cell);
+        }
+        writer.newLine();
+    }
+
+    /**
+     * Returns true if the export should stop because of an error or because
+     * the process was canceled.
+     *
+     * @return true if the export should stop
+     */
+    private boolean isStopped() {
+        return error != null || waitingHandler != null && waitingHandler.isRunCanceled();
+    }
+
+    /**
+     * Pulls the next block of matches from the provider. Waits if too many
+     * blocks are waiting to be written.
+     *
+     * @param matchProvider the provider of the matches
+     *
+     * @return the block number and the matches of the block, null if there
+     * is nothing more to pull
+     *
+     * @throws Exception exception thrown by the match provider
+     */
+    private Block<T> pullBlock(MatchProvider<T> matchProvider) throws Exception {
+        synchronized (pullLock) {
+            waitForWriter();
+            if (exhausted || isStopped()) {
+                return null;
+            }
+            ArrayList<T> matches = new ArrayList<T>(blockSize);
+            boolean lastBlock = false;
+            for (int i = 0; i < blockSize; i++) {
+                T match = matchProvider.next();
+                if (match == null) {
+                    lastBlock = true;
+                    break;
+                }
+                matches.add(match);
+            }
+            Block<T> block = new Block<T>(nextBlock++, matches);
+            if (lastBlock) {
+                // set after incrementing the block number so that the writer does not miss the last block
+                exhausted = true;
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Waits until the number of blocks pulled and not written is below the
+     * maximal number of pending blocks.
+     *
+     * @throws InterruptedException exception thrown if the thread was
+     * interrupted while waiting
+     */
+    private synchronized void waitForWriter() throws InterruptedException {
+        while (!isStopped() && nextBlock - nextBlockToWrite >= maxPendingBlocks) {
+            wait(100);
+        }
+    }
+
+    /**
+     * Stores a computed block and notifies the writer.
+     *
+     * @param blockNumber the number of the block
+     * @param lines the lines of the block
+     */
+    private synchronized void blockComputed(int blockNumber, ArrayList<ArrayList<String>> lines) {
+        computedBlocks.put(blockNumber, lines);
+        notifyAll();
+    }
+
+    /**
+     * Returns the next block to write, waiting for it to be computed if
+     * needed.
+     *
+     * @return the next block to write, null if the export is finished
+     *
+     * @throws InterruptedException exception thrown if the thread was
+     * interrupted while waiting
+     */
+    private synchronized ArrayList<ArrayList<String>> getNextBlockToWrite() throws InterruptedException {
+        while (!isStopped()) {
+            ArrayList<ArrayList<String>> block = computedBlocks.remove(nextBlockToWrite);
+            if (block != null) {
+                return block.isEmpty() ? null : block;
+            }
+            if (exhausted && nextBlockToWrite >= nextBlock) {
+                // all blocks were written
+                return null;
+            }
+            wait(100);
+        }
+        return null;
+    }
+
+    /**
+     * Indicates that the current block was written and wakes up the waiting
+     * workers.
+     */
+    private synchronized void blockWritten() {
+        nextBlockToWrite++;
+        notifyAll();
+    }
+
+    /**
+     * Stores the first error encountered and cancels the export.
+     *
+     * @param e the error
+     */
+    private synchronized void setError(Throwable e) {
+        if (error == null) {
+            error = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Interface for the providers of the matches to export.
+     *
+     * @param <T> the type of match
+     */
+    public interface MatchProvider<T> {
+
+        /**
+         * Returns the next match to export, null if none. Calls are
+         * synchronized by the writer.
+         *
+         * @return the next match to export, null if none
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * loading the match
+         */
+        public T next() throws Exception;
+    }
+
+    /**
+     * Interface for the generators of the lines.
+     *
+     * @param <T> the type of match
+     */
+    public interface LineGenerator<T> {
+
+        /**
+         * Returns the content of the cells of the line of a given match
+         * without index, null if the match should not be exported. Called
+         * concurrently by the worker threads.
+         *
+         * @param match the match
+         *
+         * @return the content of the cells of the line
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * computing a feature
+         */
+        public ArrayList<String> getLine(T match) throws Exception;
+    }
+
+    /**
+     * A block of matches.
+     *
+     * @param <T> the type of match
+     */
+    private static class Block<T> {
+
+        /**
+         * The number of the block.
+         */
+        private final int number;
+        /**
+         * The matches of the block.
+         */
+        private final ArrayList<T> matches;
+
+        /**
+         * Constructor.
+         *
+         * @param number the number of the block
+         * @param matches the matches of the block
+         */
+        private Block(int number, ArrayList<T> matches) {
+            this.number = number;
+            this.matches = matches;
+        }
+    }
+
+    /**
+     * Runnable computing the lines of the blocks of matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class LineRunnable implements Runnable {
+
+        /**
+         * The provider of the matches.
+         */
+        private final MatchProvider<T> matchProvider;
+        /**
+         * The generator of the lines.
+         */
+        private final LineGenerator<T> lineGenerator;
+
+        /**
+         * Constructor.
+         *
+         * @param matchProvider the provider of the matches
+         * @param lineGenerator the generator of the lines
+         */
+        public LineRunnable(MatchProvider<T> matchProvider, LineGenerator<T> lineGenerator) {
+            this.matchProvider = matchProvider;
+            this.lineGenerator = lineGenerator;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Block<T> block;
+                while ((block = pullBlock(matchProvider)) != null) {
+                    ArrayList<ArrayList<String>> lines = new ArrayList<ArrayList<String>>(block.matches.size());
+                    for (T match : block.matches) {
+                        if (isStopped()) {
+                            return;
+                        }
+                        lines.add(lineGenerator.getLine(match));
+                        if (waitingHandler != null) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                    blockComputed(block.number, lines);
+                }
+            } catch (Throwable e) {
+                setError(e);
+            }
+        }
+    }
+}
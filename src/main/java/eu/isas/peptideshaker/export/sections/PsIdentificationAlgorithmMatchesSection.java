@@ -69,9 +69,15 @@ public class PsIdentificationAlgorithmMatchesSection {
      */
     private ExportWriter writer;
     /**
-     * A peptide spectrum annotator.
+     * The peptide spectrum annotators, one per thread as annotators are not
+     * thread safe.
      */
-    private static final PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+    private static final ThreadLocal<PeptideSpectrumAnnotator> peptideSpectrumAnnotators = new ThreadLocal<PeptideSpectrumAnnotator>() {
+        @Override
+        protected PeptideSpectrumAnnotator initialValue() {
+            return new PeptideSpectrumAnnotator();
+        }
+    };
 
     /**
      * Constructor.
@@ -351,6 +357,8 @@ public class PsIdentificationAlgorithmMatchesSection {
             WaitingHandler waitingHandler) throws IOException, SQLException,
             ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
+        PeptideSpectrumAnnotator peptideSpectrumAnnotator = peptideSpectrumAnnotators.get();
+
         switch (exportFeature) {
             case rank:
                 return peptideAssumption.getRank() + "";
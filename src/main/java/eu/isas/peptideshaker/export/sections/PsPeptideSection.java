@@ -60,6 +60,10 @@ public class PsPeptideSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The number of threads to use to compute the lines of the section.
+     */
+    private int nThreads = 1;
 
     /**
      * Constructor.
@@ -89,6 +93,16 @@ public class PsPeptideSection {
         this.writer = writer;
     }
 
+    /**
+     * Sets the number of threads to use to compute the lines of the section.
+     * Lines are computed in parallel only when no PSM subsection is exported.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public void setnThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
     /**
      * Writes the desired section.
      *
@@ -146,6 +160,12 @@ public class PsPeptideSection {
 
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, psmSection != null, parameters, waitingHandler);
 
+        if (nThreads > 1 && psmSection == null) {
+            writeLinesInParallel(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA,
+                    linePrefix, peptideMatchesIterator, validatedOnly, decoys, waitingHandler);
+            return;
+        }
+
         while (peptideMatchesIterator.hasNext()) {
 
             if (waitingHandler != null) {
@@ -156,53 +176,243 @@ public class PsPeptideSection {
             }
 
             PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), psParameter);
 
-            if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+            if (writeMatch(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA,
+                    linePrefix, peptideMatch, psParameter, line, validatedOnly, decoys, waitingHandler)) {
+                line++;
+            }
+        }
+    }
 
-                if (decoys || !peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+    /**
+     * Indicates whether the PSMs need to be loaded along with the peptide
+     * matches to write this section.
+     *
+     * @return a boolean indicating whether the PSMs need to be loaded along
+     * with the peptide matches
+     */
+    public boolean requiresPsms() {
+        return psmSection != null;
+    }
 
-                    boolean first = true;
+    /**
+     * Writes the line of the given peptide match and its PSM subsection if
+     * needed. Nothing is written if the match is filtered out.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the peptide matches to output
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param linePrefix the line prefix to use.
+     * @param peptideMatch the peptide match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param line the index of the line
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @return a boolean indicating whether a line was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public boolean writeMatch(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAA,
+            String linePrefix, PeptideMatch peptideMatch, PSParameter psParameter, int line, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-                    if (indexes) {
-                        if (linePrefix != null) {
-                            writer.write(linePrefix);
-                        }
-                        writer.write(line + "");
-                        first = false;
-                    }
+        if (!isExported(identificationParameters, peptideMatch, psParameter, validatedOnly, decoys)) {
+            return false;
+        }
 
-                    for (ExportFeature exportFeature : peptideFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsPeptideFeature peptideFeature = (PsPeptideFeature) exportFeature;
-                        writer.write(getfeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
-                    }
-                    writer.newLine();
-                    if (psmSection != null) {
-                        String psmSectionPrefix = "";
-                        if (linePrefix != null) {
-                            psmSectionPrefix += linePrefix;
-                        }
-                        psmSectionPrefix += line + ".";
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        psmSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), psmSectionPrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
-                    }
-                    line++;
-                }
+        boolean first = true;
+
+        if (indexes) {
+            if (linePrefix != null) {
+                writer.write(linePrefix);
+            }
+            writer.write(line + "");
+            first = false;
+        }
+
+        for (String cell : getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA,
+                linePrefix, peptideMatch, psParameter, validatedOnly, decoys, waitingHandler)) {
+            if (!first) {
+                writer.addSeparator();
+            } else {
+                first = false;
             }
+            writer.write(cell);
+        }
+        writer.newLine();
+        if (psmSection != null) {
+            String psmSectionPrefix = "";
+            if (linePrefix != null) {
+                psmSectionPrefix += linePrefix;
+            }
+            psmSectionPrefix += line + ".";
+            writer.increaseDepth();
+            if (waitingHandler != null) {
+                waitingHandler.setDisplayProgress(false);
+            }
+            psmSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), psmSectionPrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
+            if (waitingHandler != null) {
+                waitingHandler.setDisplayProgress(true);
+            }
+            writer.decreseDepth();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the content of the cells of the line of the given peptide match,
+     * without index.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the peptide matches to output
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param linePrefix the line prefix to use.
+     * @param peptideMatch the peptide match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @return the content of the cells of the line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public ArrayList<String> getLine(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAA,
+            String linePrefix, PeptideMatch peptideMatch, PSParameter psParameter, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        ArrayList<String> line = new ArrayList<String>(peptideFeatures.size());
+        for (PsPeptideFeature peptideFeature : peptideFeatures) {
+            line.add(getfeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
         }
+        return line;
+    }
+
+    /**
+     * Returns the titles of the columns of this section, without index
+     * column.
+     *
+     * @return the titles of the columns of this section
+     */
+    public ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(peptideFeatures.size());
+        for (ExportFeature exportFeature : peptideFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
+
+    /**
+     * Indicates whether a peptide match passes the validation and decoy
+     * filters of the export.
+     *
+     * @param identificationParameters the identification parameters
+     * @param peptideMatch the peptide match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     *
+     * @return a boolean indicating whether the match should be exported
+     */
+    public boolean isExported(IdentificationParameters identificationParameters, PeptideMatch peptideMatch, PSParameter psParameter,
+            boolean validatedOnly, boolean decoys) {
+        if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+            return false;
+        }
+        return decoys || !peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences());
+    }
+
+    /**
+     * Writes the lines of the section using multiple threads. The lines are
+     * computed by blocks of peptides and written in the order of the
+     * iterator.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the peptide matches to output
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param linePrefix the line prefix to use.
+     * @param peptideMatchesIterator the iterator of the peptide matches to
+     * export
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private void writeLinesInParallel(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, final ArrayList<String> keys,
+            final int nSurroundingAA, final String linePrefix, final PeptideMatchesIterator peptideMatchesIterator, final boolean validatedOnly,
+            final boolean decoys, final WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        OrderedLineWriter.MatchProvider<PeptideMatch> matchProvider = new OrderedLineWriter.MatchProvider<PeptideMatch>() {
+            @Override
+            public PeptideMatch next() throws Exception {
+                if (peptideMatchesIterator.hasNext()) {
+                    return peptideMatchesIterator.next();
+                }
+                return null;
+            }
+        };
+
+        OrderedLineWriter.LineGenerator<PeptideMatch> lineGenerator = new OrderedLineWriter.LineGenerator<PeptideMatch>() {
+            @Override
+            public ArrayList<String> getLine(PeptideMatch peptideMatch) throws Exception {
+                PSParameter psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), new PSParameter());
+                if (!isExported(identificationParameters, peptideMatch, psParameter, validatedOnly, decoys)) {
+                    return null;
+                }
+                return PsPeptideSection.this.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys,
+                        nSurroundingAA, linePrefix, peptideMatch, psParameter, validatedOnly, decoys, waitingHandler);
+            }
+        };
+
+        OrderedLineWriter<PeptideMatch> orderedLineWriter = new OrderedLineWriter<PeptideMatch>(writer, indexes, linePrefix, nThreads,
+                OrderedLineWriter.DEFAULT_BLOCK_SIZE, waitingHandler);
+        orderedLineWriter.write(matchProvider, lineGenerator);
     }
 
     /**
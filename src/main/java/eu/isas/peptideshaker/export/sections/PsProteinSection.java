@@ -67,6 +67,10 @@ public class PsProteinSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The number of threads to use to compute the lines of the section.
+     */
+    private int nThreads = 1;
 
     /**
      * Constructor.
@@ -98,6 +102,16 @@ public class PsProteinSection {
         this.writer = writer;
     }
 
+    /**
+     * Sets the number of threads to use to compute the lines of the section.
+     * Lines are computed in parallel only when no peptide subsection is exported.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public void setnThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
     /**
      * Writes the desired section.
      *
@@ -158,6 +172,12 @@ public class PsProteinSection {
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(
                 keys, parameters, peptideSection != null, parameters, peptideSection != null, parameters, waitingHandler); // @TODO: find a better way to know if we need psms
 
+        if (nThreads > 1 && peptideSection == null) {
+            writeLinesInParallel(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys,
+                    nSurroundingAas, proteinMatchesIterator, validatedOnly, decoys, waitingHandler);
+            return;
+        }
+
         while (proteinMatchesIterator.hasNext()) {
 
             if (waitingHandler != null) {
@@ -174,39 +194,249 @@ public class PsProteinSection {
 
                 psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
 
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+                if (writeMatch(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys,
+                        nSurroundingAas, proteinMatch, psParameter, line, validatedOnly, decoys, waitingHandler)) {
+                    line++;
+                }
+            }
+        }
+    }
 
-                    boolean first = true;
+    /**
+     * Indicates whether the peptides and PSMs need to be loaded along with the
+     * protein matches to write this section.
+     *
+     * @return a boolean indicating whether the peptides and PSMs need to be
+     * loaded along with the protein matches
+     */
+    public boolean requiresPeptides() {
+        return peptideSection != null;
+    }
 
-                    if (indexes) {
-                        writer.write(line + "");
-                        first = false;
-                    }
+    /**
+     * Writes the line of the given protein match and its peptide subsection if
+     * needed. Nothing is written if the match is filtered out.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param geneMaps the gene maps
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the protein matches to output
+     * @param nSurroundingAas in case a peptide export is included with
+     * surrounding amino-acids, the number of surrounding amino acids to use
+     * @param proteinMatch the protein match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param line the index of the line
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @return a boolean indicating whether a line was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error is encountered while calculating the observable coverage
+     */
+    public boolean writeMatch(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAas,
+            ProteinMatch proteinMatch, PSParameter psParameter, int line, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
-                    for (ExportFeature exportFeature : proteinFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsProteinFeature tempProteinFeatures = (PsProteinFeature) exportFeature;
-                        writer.write(getFeature(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys, nSurroundingAas, proteinKey, proteinMatch, psParameter, tempProteinFeatures, waitingHandler));
-                    }
-                    writer.newLine();
-                    if (peptideSection != null) {
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        peptideSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, proteinMatch.getPeptideMatchesKeys(), nSurroundingAas, line + ".", validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
-                    }
-                    line++;
+        String proteinKey = proteinMatch.getKey();
+
+        if (!isExported(proteinKey, psParameter, validatedOnly, decoys)) {
+            return false;
+        }
+
+        boolean first = true;
+
+        if (indexes) {
+            writer.write(line + "");
+            first = false;
+        }
+
+        for (String cell : getLine(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys, nSurroundingAas,
+                proteinMatch, psParameter, waitingHandler)) {
+            if (!first) {
+                writer.addSeparator();
+            } else {
+                first = false;
+            }
+            writer.write(cell);
+        }
+        writer.newLine();
+        if (peptideSection != null) {
+            writer.increaseDepth();
+            if (waitingHandler != null) {
+                waitingHandler.setDisplayProgress(false);
+            }
+            peptideSection.writeSection(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, proteinMatch.getPeptideMatchesKeys(), nSurroundingAas, line + ".", validatedOnly, decoys, waitingHandler);
+            if (waitingHandler != null) {
+                waitingHandler.setDisplayProgress(true);
+            }
+            writer.decreseDepth();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the content of the cells of the line of the given protein match,
+     * without index.
+     *
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param geneMaps the gene maps
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the protein matches to output
+     * @param nSurroundingAas in case a peptide export is included with
+     * surrounding amino-acids, the number of surrounding amino acids to use
+     * @param proteinMatch the protein match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param waitingHandler the waiting handler
+     *
+     * @return the content of the cells of the line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error is encountered while calculating the observable coverage
+     */
+    public ArrayList<String> getLine(IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAas, ProteinMatch proteinMatch, PSParameter psParameter,
+            WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        String proteinKey = proteinMatch.getKey();
+        ArrayList<String> line = new ArrayList<String>(proteinFeatures.size());
+        for (PsProteinFeature proteinFeature : proteinFeatures) {
+            line.add(getFeature(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys, nSurroundingAas, proteinKey, proteinMatch, psParameter, proteinFeature, waitingHandler));
+        }
+        return line;
+    }
+
+    /**
+     * Returns the titles of the columns of this section, without index
+     * column.
+     *
+     * @return the titles of the columns of this section
+     */
+    public ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(proteinFeatures.size());
+        for (ExportFeature exportFeature : proteinFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
+
+    /**
+     * Indicates whether a protein match passes the validation and decoy
+     * filters of the export.
+     *
+     * @param proteinKey the key of the protein match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     *
+     * @return a boolean indicating whether the match should be exported
+     */
+    public boolean isExported(String proteinKey, PSParameter psParameter, boolean validatedOnly, boolean decoys) {
+        return (decoys || !ProteinMatch.isDecoy(proteinKey))
+                && (!validatedOnly || psParameter.getMatchValidationLevel().isValidated());
+    }
+
+    /**
+     * Writes the lines of the section using multiple threads. The lines are
+     * computed by blocks of proteins and written in the order of the
+     * iterator.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param geneMaps the gene maps
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the protein matches to output
+     * @param nSurroundingAas in case a peptide export is included with
+     * surrounding amino-acids, the number of surrounding amino acids to use
+     * @param proteinMatchesIterator the iterator of the protein matches to
+     * export
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error is encountered while calculating the observable coverage
+     */
+    private void writeLinesInParallel(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final GeneMaps geneMaps, final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters,
+            final ArrayList<String> keys, final int nSurroundingAas, final ProteinMatchesIterator proteinMatchesIterator, final boolean validatedOnly,
+            final boolean decoys, final WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        OrderedLineWriter.MatchProvider<ProteinMatch> matchProvider = new OrderedLineWriter.MatchProvider<ProteinMatch>() {
+            @Override
+            public ProteinMatch next() throws Exception {
+                if (proteinMatchesIterator.hasNext()) {
+                    return proteinMatchesIterator.next();
                 }
+                return null;
+            }
+        };
+
+        OrderedLineWriter.LineGenerator<ProteinMatch> lineGenerator = new OrderedLineWriter.LineGenerator<ProteinMatch>() {
+            @Override
+            public ArrayList<String> getLine(ProteinMatch proteinMatch) throws Exception {
+                String proteinKey = proteinMatch.getKey();
+                if (!decoys && ProteinMatch.isDecoy(proteinKey)) {
+                    return null;
+                }
+                PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, new PSParameter());
+                if (!isExported(proteinKey, psParameter, validatedOnly, decoys)) {
+                    return null;
+                }
+                return PsProteinSection.this.getLine(identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, keys,
+                        nSurroundingAas, proteinMatch, psParameter, waitingHandler);
+            }
+        };
+
+        OrderedLineWriter<ProteinMatch> orderedLineWriter = new OrderedLineWriter<ProteinMatch>(writer, indexes, null, nThreads,
+                OrderedLineWriter.DEFAULT_BLOCK_SIZE, waitingHandler);
+        try {
+            orderedLineWriter.write(matchProvider, lineGenerator);
+        } catch (IllegalArgumentException e) {
+            if (e.getCause() instanceof MathException) {
+                throw (MathException) e.getCause();
             }
+            throw e;
         }
     }
 
@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -66,6 +67,10 @@ public class PsPsmSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
+    /**
+     * The number of threads to use to compute the lines of the section.
+     */
+    private int nThreads = 1;
 
     /**
      * Constructor.
@@ -98,6 +103,17 @@ public class PsPsmSection {
         this.writer = writer;
     }
 
+    /**
+     * Sets the number of threads to use to compute the lines of the section.
+     * Lines are computed in parallel only when no fragment subsection is
+     * exported.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public void setnThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
     /**
      * Writes the desired section.
      *
@@ -168,6 +184,12 @@ public class PsPsmSection {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
+        if (nThreads > 1 && fragmentSection == null) {
+            writeLinesInParallel(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, psmMap, parameters,
+                    linePrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
+            return;
+        }
+
         for (String spectrumFile : psmMap.keySet()) {
 
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(
@@ -183,76 +205,290 @@ public class PsPsmSection {
                 }
 
                 SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), psParameter);
 
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                if (writeMatch(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, keys, linePrefix,
+                        nSurroundingAA, spectrumMatch, psParameter, line, validatedOnly, decoys, waitingHandler)) {
+                    line++;
+                }
+            }
+        }
+    }
 
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+    /**
+     * Indicates whether a fragment subsection is exported.
+     *
+     * @return a boolean indicating whether a fragment subsection is exported
+     */
+    public boolean hasFragmentSection() {
+        return fragmentSection != null;
+    }
 
-                    PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+    /**
+     * Returns the titles of the columns of this section, without index
+     * column.
+     *
+     * @return the titles of the columns of this section
+     */
+    public ArrayList<String> getColumnTitles() {
+        ArrayList<String> titles = new ArrayList<String>(identificationAlgorithmMatchesFeatures.size() + psmFeatures.size());
+        for (ExportFeature exportFeature : identificationAlgorithmMatchesFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        for (ExportFeature exportFeature : psmFeatures) {
+            titles.add(exportFeature.getTitle());
+        }
+        return titles;
+    }
 
-                    if (decoys || peptideAssumption == null || !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+    /**
+     * Indicates whether the spectrum assumptions need to be loaded along with
+     * the spectrum matches to write this section.
+     *
+     * @return a boolean indicating whether the spectrum assumptions need to be
+     * loaded along with the spectrum matches
+     */
+    public boolean requiresAssumptions() {
+        return !identificationAlgorithmMatchesFeatures.isEmpty();
+    }
 
-                        boolean first = true;
+    /**
+     * Writes the line of the given spectrum match and its fragment subsection
+     * if needed. Nothing is written if the match is filtered out.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the PSM matches to output
+     * @param linePrefix the line prefix
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param spectrumMatch the spectrum match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param line the index of the line
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @return a boolean indicating whether a line was written
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public boolean writeMatch(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, String linePrefix,
+            int nSurroundingAA, SpectrumMatch spectrumMatch, PSParameter psParameter, int line, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-                        if (indexes) {
-                            if (linePrefix != null) {
-                                writer.write(linePrefix);
-                            }
-                            writer.write(line + "");
-                            first = false;
-                        }
-                        for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            String feature;
-                            if (peptideAssumption != null) {
-                                peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        shotgunProtocol, identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
-                                        psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        shotgunProtocol, identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
-                                        identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else {
-                                throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
-                            }
-                            writer.write(feature);
-                        }
-                        for (PsPsmFeature psmFeature : psmFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            writer.write(getFeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
-                                    keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
-                        }
-                        writer.newLine();
-                        if (fragmentSection != null) {
-                            String fractionPrefix = "";
-                            if (linePrefix != null) {
-                                fractionPrefix += linePrefix;
-                            }
-                            fractionPrefix += line + ".";
-                            writer.increaseDepth();
-                            if (spectrumMatch.getBestPeptideAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestPeptideAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestTagAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
-                            }
-                            writer.decreseDepth();
-                        }
-                        line++;
+        if (!isExported(identificationParameters, spectrumMatch, psParameter, validatedOnly, decoys)) {
+            return false;
+        }
+
+        boolean first = true;
+
+        if (indexes) {
+            if (linePrefix != null) {
+                writer.write(linePrefix);
+            }
+            writer.write(line + "");
+            first = false;
+        }
+        for (String cell : getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
+                keys, linePrefix, nSurroundingAA, spectrumMatch, psParameter, validatedOnly, decoys, waitingHandler)) {
+            if (!first) {
+                writer.addSeparator();
+            } else {
+                first = false;
+            }
+            writer.write(cell);
+        }
+        writer.newLine();
+        if (fragmentSection != null) {
+            String spectrumKey = spectrumMatch.getKey();
+            String fractionPrefix = "";
+            if (linePrefix != null) {
+                fractionPrefix += linePrefix;
+            }
+            fractionPrefix += line + ".";
+            writer.increaseDepth();
+            if (spectrumMatch.getBestPeptideAssumption() != null) {
+                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestPeptideAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
+            } else if (spectrumMatch.getBestTagAssumption() != null) {
+                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestTagAssumption(), shotgunProtocol, identificationParameters, fractionPrefix, null);
+            }
+            writer.decreseDepth();
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether a spectrum match passes the validation and decoy
+     * filters of the export.
+     *
+     * @param identificationParameters the identification parameters
+     * @param spectrumMatch the spectrum match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     *
+     * @return a boolean indicating whether the match should be exported
+     */
+    public boolean isExported(IdentificationParameters identificationParameters, SpectrumMatch spectrumMatch, PSParameter psParameter,
+            boolean validatedOnly, boolean decoys) {
+        if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+            return false;
+        }
+        PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+        return decoys || peptideAssumption == null || !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences());
+    }
+
+    /**
+     * Writes the lines of the section using multiple threads. The lines are
+     * computed by blocks of PSMs and written in the order of the PSM
+     * iterators.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the PSM matches to output
+     * @param psmMap the keys of the PSMs to export indexed by spectrum file
+     * @param parameters the parameters to load along with the matches
+     * @param linePrefix the line prefix
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private void writeLinesInParallel(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, final ArrayList<String> keys,
+            final HashMap<String, HashSet<String>> psmMap, final ArrayList<UrParameter> parameters, final String linePrefix, final int nSurroundingAA,
+            final boolean validatedOnly, final boolean decoys, final WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        final Iterator<String> spectrumFiles = psmMap.keySet().iterator();
+
+        OrderedLineWriter.MatchProvider<SpectrumMatch> matchProvider = new OrderedLineWriter.MatchProvider<SpectrumMatch>() {
+
+            /**
+             * The iterator of the current spectrum file.
+             */
+            private PsmIterator psmIterator = null;
+
+            @Override
+            public SpectrumMatch next() throws Exception {
+                while (psmIterator == null || !psmIterator.hasNext()) {
+                    if (!spectrumFiles.hasNext()) {
+                        return null;
                     }
+                    String spectrumFile = spectrumFiles.next();
+                    psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(psmMap.get(spectrumFile)),
+                            parameters, !identificationAlgorithmMatchesFeatures.isEmpty(), waitingHandler);
                 }
+                return psmIterator.next();
             }
+        };
+
+        OrderedLineWriter.LineGenerator<SpectrumMatch> lineGenerator = new OrderedLineWriter.LineGenerator<SpectrumMatch>() {
+
+            @Override
+            public ArrayList<String> getLine(SpectrumMatch spectrumMatch) throws Exception {
+                PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), new PSParameter());
+                if (!isExported(identificationParameters, spectrumMatch, psParameter, validatedOnly, decoys)) {
+                    return null;
+                }
+                return PsPsmSection.this.getLine(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
+                        keys, linePrefix, nSurroundingAA, spectrumMatch, psParameter, validatedOnly, decoys, waitingHandler);
+            }
+        };
+
+        OrderedLineWriter<SpectrumMatch> orderedLineWriter = new OrderedLineWriter<SpectrumMatch>(writer, indexes, linePrefix, nThreads,
+                OrderedLineWriter.DEFAULT_BLOCK_SIZE, waitingHandler);
+        orderedLineWriter.write(matchProvider, lineGenerator);
+    }
+
+    /**
+     * Returns the content of the cells of the line of the given spectrum
+     * match, without index.
+     *
+     * @param identification the identification of the project
+     * @param identificationFeaturesGenerator the identification features
+     * generator of the project
+     * @param shotgunProtocol information on the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param keys the keys of the PSM matches to output
+     * @param linePrefix the line prefix
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * @param spectrumMatch the spectrum match
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param validatedOnly whether only validated matches should be exported
+     * @param decoys whether decoy matches should be exported as well
+     * @param waitingHandler the waiting handler
+     *
+     * @return the content of the cells of the line
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public ArrayList<String> getLine(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ArrayList<String> keys, String linePrefix,
+            int nSurroundingAA, SpectrumMatch spectrumMatch, PSParameter psParameter, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        ArrayList<String> line = new ArrayList<String>(identificationAlgorithmMatchesFeatures.size() + psmFeatures.size());
+        PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+
+        for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
+            String feature;
+            if (peptideAssumption != null) {
+                feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
+                        shotgunProtocol, identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
+                        psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
+            } else if (spectrumMatch.getBestTagAssumption() != null) {
+                TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
+                feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
+                        shotgunProtocol, identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
+                        identificationAlgorithmMatchesFeature, waitingHandler);
+            } else {
+                throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
+            }
+            line.add(feature);
         }
+        for (PsPsmFeature psmFeature : psmFeatures) {
+            line.add(getFeature(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters,
+                    keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
+        }
+
+        return line;
     }
 
     /**
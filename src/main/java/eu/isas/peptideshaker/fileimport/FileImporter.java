@@ -12,7 +12,6 @@ import com.compomics.software.CompomicsWrapper;
 import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
@@ -28,7 +27,6 @@ import com.compomics.util.gui.JOptionEditorPane;
 import eu.isas.peptideshaker.PeptideShaker;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingDialog;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PeptideVariantsPreferences;
@@ -38,8 +36,10 @@ import com.compomics.util.preferences.UtilitiesUserPreferences;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.protein_inference.PeptideMapper;
+import eu.isas.peptideshaker.protein_inference.ProteinMappingCache;
 import eu.isas.peptideshaker.protein_inference.TagMapper;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import eu.isas.peptideshaker.utils.Metrics;
 import org.xml.sax.SAXException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
@@ -50,6 +50,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is responsible for the import of identifications.
@@ -84,6 +87,15 @@ public class FileImporter {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The memory governor.
+     */
+    private MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
+    /**
+     * The name under which the protein mappings are registered to the memory
+     * governor.
+     */
+    private static final String PROTEIN_MAPPINGS = "protein mappings";
     /**
      * If a Mascot dat file is bigger than this size, an indexed parsing will be
      * used.
@@ -99,6 +111,10 @@ public class FileImporter {
      * resolution in X!Tandem result files.
      */
     public static final double PTM_MASS_TOLERANCE = 0.01;
+    /**
+     * The number of spectrum matches mapped and imported at once.
+     */
+    public static final int IMPORT_CHUNK_SIZE = 10000;
     /**
      * The shotgun protocol.
      */
@@ -107,6 +123,12 @@ public class FileImporter {
      * The identification parameters.
      */
     private IdentificationParameters identificationParameters;
+    /**
+     * The number of identification files to import in parallel. Note that
+     * every file is imported using the number of threads set in the
+     * processing preferences.
+     */
+    private int nFileThreads = 1;
 
     /**
      * Constructor for the importer.
@@ -159,6 +181,27 @@ public class FileImporter {
         }
     }
 
+    /**
+     * Returns the number of identification files imported in parallel.
+     *
+     * @return the number of identification files imported in parallel
+     */
+    public int getnFileThreads() {
+        return nFileThreads;
+    }
+
+    /**
+     * Sets the number of identification files imported in parallel. Note that
+     * every file is imported using the number of threads set in the
+     * processing preferences.
+     *
+     * @param nFileThreads the number of identification files imported in
+     * parallel
+     */
+    public void setnFileThreads(int nFileThreads) {
+        this.nFileThreads = nFileThreads;
+    }
+
     /**
      * Imports sequences from a FASTA file.
      *
@@ -354,6 +397,10 @@ public class FileImporter {
          * List of one hit wonders.
          */
         private HashSet<String> singleProteinList = new HashSet<String>();
+        /**
+         * The proteins mapped to the peptide sequences during the import.
+         */
+        private ProteinMappingCache proteinMappingCache = new ProteinMappingCache();
         /**
          * Map of proteins found several times with the number of times they
          * appeared as first hit.
@@ -375,6 +422,10 @@ public class FileImporter {
          * The identification parameters.
          */
         private IdentificationParameters identificationParameters;
+        /**
+         * The first error encountered while importing files in parallel.
+         */
+        private Throwable importError = null;
 
         /**
          * Constructor for a worker importing matches from a list of files.
@@ -430,9 +481,11 @@ public class FileImporter {
                 this.spectrumFiles.put(file.getName(), file);
             }
 
+            memoryGovernor.registerMemoryConsumer(PROTEIN_MAPPINGS, proteinMappingCache);
+
             UtilitiesUserPreferences userPreferences = UtilitiesUserPreferences.loadUserPreferences();
             if (userPreferences.getMemoryPreference() > 2000) {
-                peptideMapper = new PeptideMapper(identificationParameters, waitingHandler, exceptionHandler);
+                peptideMapper = new PeptideMapper(identificationParameters, proteinMappingCache, waitingHandler, exceptionHandler);
             }
         }
 
@@ -484,17 +537,15 @@ public class FileImporter {
 
                     waitingHandler.appendReport("Reading identification files.", true, true);
 
-                    for (File idFile : idFiles) {
-                        importPsms(idFile);
+                    importPsms(idFiles);
 
-                        if (waitingHandler.isRunCanceled()) {
-                            try {
-                                identification.close();
-                            } catch (Exception e) {
-                                e.printStackTrace(); // Let derby crash
-                            }
-                            return 1;
+                    if (waitingHandler.isRunCanceled()) {
+                        try {
+                            identification.close();
+                        } catch (Exception e) {
+                            e.printStackTrace(); // Let derby crash
                         }
+                        return 1;
                     }
 
                     while (!missingMgfFiles.isEmpty()) {
@@ -530,9 +581,7 @@ public class FileImporter {
                             projectDetails.addSpectrumFile(newFile);
                         }
                         missingMgfFiles.clear();
-                        for (File idFile : filesToProcess) {
-                            importPsms(idFile);
-                        }
+                        importPsms(filesToProcess);
                         if (waitingHandler.isRunCanceled()) {
                             identification.close();
                             sequenceFactory.clearFactory();
@@ -542,6 +591,8 @@ public class FileImporter {
 
                     // clear the objects not needed anymore
                     singleProteinList.clear();
+                    memoryGovernor.unregisterMemoryConsumer(PROTEIN_MAPPINGS);
+                    proteinMappingCache.clear();
                     sequenceFactory.emptyCache();
 
                     if (nRetained == 0) {
@@ -649,6 +700,75 @@ public class FileImporter {
             identification.establishConnection(dbFolder, true, peptideShaker.getCache());
         }
 
+        /**
+         * Imports the PSMs from a list of identification files. Sequencing
+         * files are imported first one at a time, the other files are
+         * imported in parallel according to the number of file threads.
+         *
+         * @param idFilesToImport the identification files to import
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * importing a file
+         * @throws OutOfMemoryError thrown if the parser if the id files runs
+         * out of memory
+         */
+        private void importPsms(ArrayList<File> idFilesToImport) throws Exception, OutOfMemoryError {
+
+            ArrayList<File> otherFiles = new ArrayList<File>(idFilesToImport.size());
+            for (File idFile : idFilesToImport) {
+                if (idFile.getName().endsWith("tags")) {
+                    // Process sequencing files sequentially, they need much more memory
+                    importPsms(idFile);
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                } else {
+                    otherFiles.add(idFile);
+                }
+            }
+
+            int nThreads = Math.min(nFileThreads, otherFiles.size());
+
+            if (nThreads <= 1) {
+                for (File idFile : otherFiles) {
+                    importPsms(idFile);
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            } else {
+                ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+                for (File idFile : otherFiles) {
+                    pool.submit(new IdFileImportRunnable(idFile));
+                }
+                pool.shutdown();
+                if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                    throw new InterruptedException("Identification files import timed out. Please contact the developers.");
+                }
+                if (importError != null) {
+                    Throwable error = importError;
+                    importError = null;
+                    if (error instanceof OutOfMemoryError) {
+                        throw (OutOfMemoryError) error;
+                    }
+                    throw (Exception) error;
+                }
+            }
+        }
+
+        /**
+         * Stores the first error encountered while importing files in
+         * parallel and cancels the import of the other files.
+         *
+         * @param error the error encountered
+         */
+        private synchronized void setImportError(Throwable error) {
+            if (importError == null) {
+                importError = error;
+            }
+            waitingHandler.setRunCanceled();
+        }
+
         /**
          * Imports the PSMs from an identification file.
          *
@@ -666,7 +786,6 @@ public class FileImporter {
          */
         public void importPsms(File idFile) throws FileNotFoundException, IOException, SAXException, MzMLUnmarshallerException, IllegalArgumentException, Exception, OutOfMemoryError {
 
-            identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
             waitingHandler.appendReport("Parsing " + idFile.getName() + ".", true, true);
 
@@ -703,7 +822,9 @@ public class FileImporter {
 
             // set the search engine name and version for this file
             HashMap<String, ArrayList<String>> software = fileReader.getSoftwareVersions();
-            projectDetails.setIdentificationAlgorithmsForFile(Util.getFileName(idFile), software);
+            synchronized (projectDetails) {
+                projectDetails.setIdentificationAlgorithmsForFile(Util.getFileName(idFile), software);
+            }
 
             // check for unsupported software
             if (!software.isEmpty()) {
@@ -724,122 +845,101 @@ public class FileImporter {
                     waitingHandler.appendReport("No PSM found in " + idFile.getName() + ".", true, true);
                 } else {
 
-                    boolean allLoaded = true;
                     int numberOfMatches = idFileSpectrumMatches.size();
-                    waitingHandler.resetSecondaryProgressCounter();
-                    waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                    boolean tagsMapped = fileReader.getTagsMap() != null && !fileReader.getTagsMap().isEmpty();
+
+                    // verify that the spectrum files are available before importing anything
+                    boolean allLoaded = true;
                     waitingHandler.appendReport("Loading spectra for " + idFile.getName() + ".", true, true);
-                    int nTags = 0;
+                    HashSet<String> spectrumFileNames = new HashSet<String>();
                     for (SpectrumMatch spectrumMatch : idFileSpectrumMatches) {
-                        // Verify that the spectrum is in the provided mgf files
-                        if (!importSpectrum(idFile, spectrumMatch, numberOfMatches)) {
-                            allLoaded = false;
-                        }
-                        // Load spectrum in cache for tag mapping
-                        if (fileReader.getTagsMap() != null && !fileReader.getTagsMap().isEmpty()) {
-                            nTags++;
-                            if (spectrumFactory.getCacheSize() < nTags) {
-                                spectrumFactory.setCacheSize(nTags);
+                        String fileName = Spectrum.getSpectrumFile(spectrumMatch.getKey());
+                        if (spectrumFileNames.add(fileName)) {
+                            File spectrumFile = spectrumFactory.getSpectrumFileFromIdName(fileName);
+                            if (spectrumFile != null) {
+                                fileName = spectrumFile.getName();
+                            }
+                            if (!loadSpectrumFile(idFile, fileName, numberOfMatches)) {
+                                allLoaded = false;
                             }
-                            spectrumFactory.getSpectrum(spectrumMatch.getKey());
                         }
-                        waitingHandler.increaseSecondaryProgressCounter();
                     }
 
                     if (allLoaded) {
 
-                        // if any map spectrum sequencing matches on protein sequences
-                        if (tagMapper == null) {
-                            tagMapper = new TagMapper(identificationParameters, exceptionHandler);
-                        }
-                        if (fileReader.getTagsMap() != null && !fileReader.getTagsMap().isEmpty()) {
-                            if (!peptideShaker.getCache().isEmpty()) {
-                                peptideShaker.getCache().reduceMemoryConsumption(0.9, waitingHandler);
-                            }
-                            tagMapper.mapTags(fileReader, identification, waitingHandler, processingPreferences.getnThreads());
-                        }
-
-                        // Batch map the peptides on protein sequences
-                        if (peptideMapper != null && !peptideMapper.isCanceled()) {
-                            try {
-                                // Get map of peptides likely to need protein mapping
-                                waitingHandler.resetSecondaryProgressCounter();
-                                waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                                waitingHandler.appendReport("Collecting peptides to map.", true, true);
-                                HashMap<String, LinkedList<Peptide>> peptideMap = PeptideMapper.getPeptideMap(fileReader, idFileSpectrumMatches, identification, identificationParameters, waitingHandler);
-                                if (!peptideMapper.isCanceled()) {
-                                    peptideMapper.mapPeptides(peptideMap, processingPreferences.getnThreads(), waitingHandler);
+                        // if any map spectrum sequencing matches on protein sequences, the spectra need to be in cache
+                        if (tagsMapped) {
+                            waitingHandler.resetSecondaryProgressCounter();
+                            waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                            int nTags = 0;
+                            for (SpectrumMatch spectrumMatch : idFileSpectrumMatches) {
+                                if (!importSpectrum(idFile, spectrumMatch, numberOfMatches)) {
+                                    allLoaded = false;
+                                    break;
                                 }
-                                if (peptideMapper.isCanceled()) {
-                                    peptideMap.clear();
+                                nTags++;
+                                if (spectrumFactory.getCacheSize() < nTags) {
+                                    spectrumFactory.setCacheSize(nTags);
                                 }
-                            } catch (OutOfMemoryError e) {
-                                // Skip batch mapping and empty caches
-                                SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                                if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                                    ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
-                                    sequenceFactory.getDefaultPeptideMapper().emptyCache();
-                                }
-                                peptideMapper.setCanceled(true);
+                                spectrumFactory.getSpectrum(spectrumMatch.getKey());
+                                waitingHandler.increaseSecondaryProgressCounter();
                             }
-                        }
-                        // empty protein caches
-                        if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-                            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                            if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
-                                sequenceFactory.emptyCache();
+                            if (allLoaded) {
+                                if (!peptideShaker.getCache().isEmpty()) {
+                                    peptideShaker.getCache().reduceMemoryConsumption(0.9, waitingHandler);
+                                }
+                                getTagMapper().mapTags(fileReader, identification, waitingHandler, processingPreferences.getnThreads());
                             }
                         }
 
+                        waitingHandler.resetSecondaryProgressCounter();
                         waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                        waitingHandler.appendReport("Importing PSMs from " + idFile.getName(), true, true);
 
-                        PsmImporter psmImporter = new PsmImporter(peptideShaker.getCache(), shotgunProtocol, identificationParameters, processingPreferences, fileReader, idFile, identification,
-                                inputMap, proteinCount, singleProteinList, exceptionHandler);
-                        psmImporter.importPsms(idFileSpectrumMatches, processingPreferences.getnThreads(), waitingHandler);
+                        // Drain the matches by chunks through the spectrum verification, the peptide mapping and the import
+                        PsmImporter psmImporter = new PsmImporter(shotgunProtocol, identificationParameters, processingPreferences, fileReader, idFile, identification,
+                                inputMap, proteinCount, singleProteinList, proteinMappingCache, exceptionHandler);
+                        boolean firstChunk = true;
+                        while (allLoaded && !idFileSpectrumMatches.isEmpty() && !waitingHandler.isRunCanceled()) {
+                            LinkedList<SpectrumMatch> chunk = new LinkedList<SpectrumMatch>();
+                            while (!idFileSpectrumMatches.isEmpty() && chunk.size() < IMPORT_CHUNK_SIZE) {
+                                SpectrumMatch spectrumMatch = idFileSpectrumMatches.pollFirst();
+                                if (!tagsMapped && !importSpectrum(idFile, spectrumMatch, numberOfMatches)) {
+                                    allLoaded = false;
+                                    break;
+                                }
+                                chunk.add(spectrumMatch);
+                            }
+                            if (!allLoaded) {
+                                break;
+                            }
+                            mapPeptides(fileReader, chunk, firstChunk);
+                            if (firstChunk) {
+                                waitingHandler.appendReport("Importing PSMs from " + idFile.getName(), true, true);
+                                firstChunk = false;
+                            }
+                            psmImporter.importPsms(chunk, processingPreferences.getnThreads(), waitingHandler);
+                        }
 
                         if (waitingHandler.isRunCanceled()) {
                             return;
                         }
 
-                        nPSMs += psmImporter.getnPSMs();
-                        nSecondary += psmImporter.getnSecondary();
-                        nRetained += psmImporter.getnRetained();
-
-                        metrics.addFoundCharges(psmImporter.getCharges());
-                        if (psmImporter.getMaxPeptideErrorDa() > metrics.getMaxPeptidePrecursorErrorDa()) {
-                            metrics.setMaxPeptidePrecursorErrorDa(psmImporter.getMaxPeptideErrorDa());
-                        }
-                        if (psmImporter.getMaxPeptideErrorPpm() > metrics.getMaxPeptidePrecursorErrorPpm()) {
-                            metrics.setMaxPeptidePrecursorErrorPpm(psmImporter.getMaxPeptideErrorPpm());
-                        }
-                        if (psmImporter.getMaxTagErrorDa() > metrics.getMaxTagPrecursorErrorDa()) {
-                            metrics.setMaxTagPrecursorErrorDa(psmImporter.getMaxTagErrorDa());
-                        }
-                        if (psmImporter.getMaxTagErrorPpm() > metrics.getMaxTagPrecursorErrorPpm()) {
-                            metrics.setMaxTagPrecursorErrorPpm(psmImporter.getMaxTagErrorPpm());
+                        // a spectrum file could not be loaded, the file is skipped as when verifying the spectrum files
+                        if (!allLoaded) {
+                            waitingHandler.increasePrimaryProgressCounter();
+                            return;
                         }
 
-                        // Free at least 0.5GB for the next parser if not anymore available
-                        if (!MemoryConsumptionStatus.halfGbFree() && !peptideShaker.getCache().isEmpty()) {
+                        mergeImportResults(psmImporter);
+
+                        // the caches are reduced by the memory governor, warn the user if they cannot keep up
+                        if (memoryGovernor.isMemoryCritical()) {
                             waitingHandler.appendReport("PeptideShaker is encountering memory issues! "
                                     + "See http://compomics.github.io/projects/peptide-shaker.html for help.", true, true);
-                            waitingHandler.appendReport("Reducing Memory Consumption.", true, true);
-                            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                            double share = ((double) 1073741824) / (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-                            share = Math.min(share, 1);
-                            peptideShaker.getCache().reduceMemoryConsumption(share, waitingHandler);
-                            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
                         }
-                        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-                            if (!MemoryConsumptionStatus.halfGbFree() && proteinTree.getNodesInCache() > 0) {
-                                proteinTree.reduceNodeCacheSize(0.5);
-                            }
+                        synchronized (projectDetails) {
+                            projectDetails.addIdentificationFiles(idFile);
                         }
-                        projectDetails.addIdentificationFiles(idFile);
 
                         int psmsRejected = psmImporter.getPsmsRejected();
                         int noProteins = psmImporter.getMissingProteins();
@@ -960,6 +1060,88 @@ public class FileImporter {
             waitingHandler.increasePrimaryProgressCounter();
         }
 
+        /**
+         * Adds the numbers and metrics gathered by the importer of an
+         * identification file to the ones of the project.
+         *
+         * @param psmImporter the importer of an identification file
+         */
+        private synchronized void mergeImportResults(PsmImporter psmImporter) {
+
+            nPSMs += psmImporter.getnPSMs();
+            nSecondary += psmImporter.getnSecondary();
+            nRetained += psmImporter.getnRetained();
+
+            metrics.addFoundCharges(psmImporter.getCharges());
+            if (psmImporter.getMaxPeptideErrorDa() > metrics.getMaxPeptidePrecursorErrorDa()) {
+                metrics.setMaxPeptidePrecursorErrorDa(psmImporter.getMaxPeptideErrorDa());
+            }
+            if (psmImporter.getMaxPeptideErrorPpm() > metrics.getMaxPeptidePrecursorErrorPpm()) {
+                metrics.setMaxPeptidePrecursorErrorPpm(psmImporter.getMaxPeptideErrorPpm());
+            }
+            if (psmImporter.getMaxTagErrorDa() > metrics.getMaxTagPrecursorErrorDa()) {
+                metrics.setMaxTagPrecursorErrorDa(psmImporter.getMaxTagErrorDa());
+            }
+            if (psmImporter.getMaxTagErrorPpm() > metrics.getMaxTagPrecursorErrorPpm()) {
+                metrics.setMaxTagPrecursorErrorPpm(psmImporter.getMaxTagErrorPpm());
+            }
+        }
+
+        /**
+         * Returns the tag mapper, creates it if not done already.
+         *
+         * @return the tag mapper
+         */
+        private synchronized TagMapper getTagMapper() {
+            if (tagMapper == null) {
+                tagMapper = new TagMapper(identificationParameters, exceptionHandler);
+            }
+            return tagMapper;
+        }
+
+        /**
+         * Batch maps the peptides of a chunk of spectrum matches on the
+         * protein sequences. Mapping is canceled for the following chunks if
+         * memory runs out.
+         *
+         * @param fileReader the reader of the identification file
+         * @param spectrumMatches the spectrum matches
+         * @param firstChunk boolean indicating whether this is the first chunk
+         * of the file, the steps are then reported to the user
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * mapping the peptides
+         */
+        private void mapPeptides(IdfileReader fileReader, LinkedList<SpectrumMatch> spectrumMatches, boolean firstChunk) throws Exception {
+
+            if (peptideMapper != null && !peptideMapper.isCanceled()) {
+                try {
+                    // Get map of peptides likely to need protein mapping
+                    if (firstChunk) {
+                        waitingHandler.appendReport("Collecting peptides to map.", true, true);
+                    }
+                    HashMap<String, LinkedList<Peptide>> peptideMap = PeptideMapper.getPeptideMap(fileReader, spectrumMatches, identification, identificationParameters, null);
+                    if (firstChunk && !peptideMapper.isCanceled()) {
+                        waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+                    }
+                    if (!peptideMapper.isCanceled()) {
+                        peptideMapper.mapPeptides(peptideMap, processingPreferences.getnThreads(), waitingHandler, false);
+                    }
+                    if (peptideMapper.isCanceled()) {
+                        peptideMap.clear();
+                    }
+                } catch (OutOfMemoryError e) {
+                    // Skip batch mapping and empty caches
+                    SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+                    if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
+                        ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
+                        sequenceFactory.getDefaultPeptideMapper().emptyCache();
+                    }
+                    peptideMapper.setCanceled(true);
+                }
+            }
+        }
+
         /**
          * Checks whether the spectrum file needed for the given spectrum match
          * is loaded and if the spectrum is present. Try to load it from the
@@ -987,22 +1169,8 @@ public class FileImporter {
             }
 
             // import the mgf file if not done already
-            if (!mgfUsed.contains(fileName)) {
-                File spectrumFile = spectrumFiles.get(fileName);
-                if (spectrumFile != null && spectrumFile.exists()) {
-                    importSpectra(fileName);
-                    waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                    waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                    mgfUsed.add(fileName);
-                    projectDetails.addSpectrumFile(spectrumFile);
-                    nSpectra += spectrumFactory.getNSpectra(fileName);
-                } else {
-                    if (!missingMgfFiles.containsKey(idFile)) {
-                        missingMgfFiles.put(idFile, fileName);
-                        waitingHandler.appendReport(fileName + " not found.", true, true);
-                    }
-                    return false;
-                }
+            if (!loadSpectrumFile(idFile, fileName, numberOfMatches)) {
+                return false;
             }
 
             // remap missing spectrum titles
@@ -1040,6 +1208,41 @@ public class FileImporter {
             return true;
         }
 
+        /**
+         * Imports the given spectrum file if not done already. Files needed
+         * but not found are stored in the missing mgf files map.
+         *
+         * @param idFile the identification file
+         * @param fileName the name of the spectrum file
+         * @param numberOfMatches the number of matches expected for this
+         * identification file
+         *
+         * @return indicates whether the spectrum file is imported, false if
+         * the file was not found
+         */
+        private synchronized boolean loadSpectrumFile(File idFile, String fileName, int numberOfMatches) {
+            if (!mgfUsed.contains(fileName)) {
+                File spectrumFile = spectrumFiles.get(fileName);
+                if (spectrumFile != null && spectrumFile.exists()) {
+                    importSpectra(fileName);
+                    waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+                    waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                    mgfUsed.add(fileName);
+                    synchronized (projectDetails) {
+                        projectDetails.addSpectrumFile(spectrumFile);
+                    }
+                    nSpectra += spectrumFactory.getNSpectra(fileName);
+                } else {
+                    if (!missingMgfFiles.containsKey(idFile)) {
+                        missingMgfFiles.put(idFile, fileName);
+                        waitingHandler.appendReport(fileName + " not found.", true, true);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Verify that the spectra are imported and imports spectra from the
          * desired spectrum file if necessary.
@@ -1068,6 +1271,41 @@ public class FileImporter {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Runnable importing the PSMs of an identification file.
+         *
+         * @author Marc Vaudel
+         */
+        private class IdFileImportRunnable implements Runnable {
+
+            /**
+             * The identification file to import.
+             */
+            private final File idFile;
+
+            /**
+             * Constructor.
+             *
+             * @param idFile the identification file to import
+             */
+            public IdFileImportRunnable(File idFile) {
+                this.idFile = idFile;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (!waitingHandler.isRunCanceled()) {
+                        importPsms(idFile);
+                    }
+                } catch (Exception e) {
+                    setImportError(e);
+                } catch (OutOfMemoryError error) {
+                    setImportError(error);
+                }
+            }
+        }
     }
 
     /**
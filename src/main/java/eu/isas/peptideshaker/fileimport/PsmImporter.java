@@ -1,7 +1,6 @@
 package eu.isas.peptideshaker.fileimport;
 
 import com.compomics.mascotdatfile.util.io.MascotIdfileReader;
-import com.compomics.util.db.ObjectsCache;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.PTM;
@@ -12,7 +11,6 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.identification_parameters.IdentificationAlgorithmParameter;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
-import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
 import com.compomics.util.experiment.identification.spectrum_assumptions.TagAssumption;
 import com.compomics.util.experiment.identification.identification_parameters.tool_specific.AndromedaParameters;
@@ -20,7 +18,6 @@ import com.compomics.util.experiment.identification.identification_parameters.to
 import com.compomics.util.experiment.identification.identification_parameters.tool_specific.XtandemParameters;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.identification.ptm.PtmSiteMapping;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.io.identifications.IdfileReader;
@@ -32,18 +29,16 @@ import com.compomics.util.experiment.io.identifications.idfilereaders.PepxmlIdfi
 import com.compomics.util.experiment.io.identifications.idfilereaders.TideIdfileReader;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.experiment.identification.filtering.PeptideAssumptionFilter;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
-import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.io.identifications.idfilereaders.NovorIdfileReader;
 import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import de.proteinms.omxparser.util.OMSSAIdfileReader;
 import de.proteinms.xtandemparser.parser.XTandemIdfileReader;
+import eu.isas.peptideshaker.protein_inference.ProteinMappingCache;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
 import java.io.File;
@@ -54,9 +49,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
 
@@ -68,9 +66,9 @@ import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
 public class PsmImporter {
 
     /**
-     * The protein sequence factory.
+     * The number of spectrum matches handed to an importing thread at once.
      */
-    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    public static final int BATCH_SIZE = 100;
     /**
      * The PTM factory.
      */
@@ -79,10 +77,6 @@ public class PsmImporter {
      * The spectrum factory.
      */
     private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
-    /**
-     * The object cache to use when encountering memory issues.
-     */
-    private ObjectsCache peptideShakerCache;
     /**
      * Indicates whether the check for X!Tandem modifications was done.
      */
@@ -90,11 +84,11 @@ public class PsmImporter {
     /**
      * The number of first hits.
      */
-    private long nPSMs = 0;
+    private AtomicLong nPSMs = new AtomicLong();
     /**
      * The number of secondary hits.
      */
-    private long nSecondary = 0;
+    private AtomicLong nSecondary = new AtomicLong();
     /**
      * The processing preferences.
      */
@@ -102,35 +96,35 @@ public class PsmImporter {
     /**
      * The progress of the import.
      */
-    private int progress = 0;
+    private AtomicInteger progress = new AtomicInteger();
     /**
      * The number of PSMs which did not pass the import filters.
      */
-    private int psmsRejected = 0;
+    private AtomicInteger psmsRejected = new AtomicInteger();
     /**
      * The number of PSMs which were rejected due to a protein issue.
      */
-    private int proteinIssue = 0;
+    private AtomicInteger proteinIssue = new AtomicInteger();
     /**
      * The number of PSMs which were rejected due to a peptide issue.
      */
-    private int peptideIssue = 0;
+    private AtomicInteger peptideIssue = new AtomicInteger();
     /**
      * The number of PSMs which were rejected due to a precursor issue.
      */
-    private int precursorIssue = 0;
+    private AtomicInteger precursorIssue = new AtomicInteger();
     /**
      * The number of PSMs which were rejected due to a PTM issue.
      */
-    private int ptmIssue = 0;
+    private AtomicInteger ptmIssue = new AtomicInteger();
     /**
      * The number of retained first hits.
      */
-    private int nRetained = 0;
+    private AtomicInteger nRetained = new AtomicInteger();
     /**
      * The number of PTMs where no protein was found.
      */
-    private int missingProteins = 0;
+    private AtomicInteger missingProteins = new AtomicInteger();
     /**
      * The id file reader where the PSMs are from.
      */
@@ -172,6 +166,10 @@ public class PsmImporter {
      * List of one hit wonders.
      */
     private HashSet<String> singleProteinList;
+    /**
+     * The cache of the proteins mapped to the peptide sequences.
+     */
+    private ProteinMappingCache proteinMappingCache;
     /**
      * Map of proteins found several times with the number of times they
      * appeared as first hit.
@@ -197,12 +195,18 @@ public class PsmImporter {
      * The identification parameters.
      */
     private IdentificationParameters identificationParameters;
+    /**
+     * The number of importing threads still running.
+     */
+    private AtomicInteger nWorkers = new AtomicInteger();
+    /**
+     * The error which stopped an importing thread, null if none.
+     */
+    private volatile Error workerError = null;
 
     /**
      * Constructor.
      *
-     * @param peptideShakerCache the cache to use when memory issues are
-     * encountered
      * @param shotgunProtocol information on the shotgun protocol
      * @param identificationParameters the identification parameters
      * @param processingPreferences the processing preferences
@@ -214,12 +218,13 @@ public class PsmImporter {
      * @param inputMap the input map to use for scoring
      * @param proteinCount the protein count of this project
      * @param singleProteinList list of one hit wonders for this project
+     * @param proteinMappingCache the cache of the proteins mapped to the
+     * peptide sequences of this project
      * @param exceptionHandler handler for exceptions
      */
-    public PsmImporter(ObjectsCache peptideShakerCache, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences, IdfileReader fileReader, File idFile,
+    public PsmImporter(ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences, IdfileReader fileReader, File idFile,
             Identification identification, InputMap inputMap, HashMap<String, Integer> proteinCount, HashSet<String> singleProteinList,
-            ExceptionHandler exceptionHandler) {
-        this.peptideShakerCache = peptideShakerCache;
+            ProteinMappingCache proteinMappingCache, ExceptionHandler exceptionHandler) {
         this.shotgunProtocol = shotgunProtocol;
         this.identificationParameters = identificationParameters;
         this.processingPreferences = processingPreferences;
@@ -229,6 +234,7 @@ public class PsmImporter {
         this.inputMap = inputMap;
         this.proteinCount = proteinCount;
         this.singleProteinList = singleProteinList;
+        this.proteinMappingCache = proteinMappingCache;
         this.exceptionHandler = exceptionHandler;
     }
 
@@ -261,7 +267,8 @@ public class PsmImporter {
     }
 
     /**
-     * Imports PSMs using multiple threads.
+     * Imports PSMs using multiple threads. The matches are removed from the
+     * list and handed to the threads in batches through a bounded queue.
      *
      * @param idFileSpectrumMatches the PSMs to import
      * @param nThreads the number of threads to use
@@ -282,20 +289,71 @@ public class PsmImporter {
     public void importPsmsMultipleThreads(LinkedList<SpectrumMatch> idFileSpectrumMatches, int nThreads, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
+        ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue = new ArrayBlockingQueue<ArrayList<SpectrumMatch>>(2 * nThreads);
+        workerError = null;
+        nWorkers.set(nThreads);
         ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-        while (!idFileSpectrumMatches.isEmpty()) {
-            SpectrumMatch match = idFileSpectrumMatches.pollLast();
-            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(match, waitingHandler);
-            pool.submit(psmImporterRunnable);
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(batchQueue, waitingHandler);
+                pool.submit(psmImporterRunnable);
+            }
+
+            ArrayList<SpectrumMatch> batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+            while (!idFileSpectrumMatches.isEmpty()) {
+                batch.add(idFileSpectrumMatches.pollLast());
+                if (batch.size() == BATCH_SIZE) {
+                    if (!queueBatch(batchQueue, batch, waitingHandler)) {
+                        return;
+                    }
+                    batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty() && !queueBatch(batchQueue, batch, waitingHandler)) {
                 return;
             }
+
+            // an empty batch tells a thread that the import is complete
+            for (int i = 0; i < nThreads; i++) {
+                if (!queueBatch(batchQueue, new ArrayList<SpectrumMatch>(0), waitingHandler)) {
+                    return;
+                }
+            }
+
+            pool.shutdown();
+            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
+                throw new InterruptedException("PSM import timed out. Please contact the developers.");
+            }
+        } finally {
+            pool.shutdownNow();
+            if (workerError != null) {
+                throw workerError;
+            }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM import timed out. Please contact the developers.");
+    }
+
+    /**
+     * Puts a batch of matches in the queue of the importing threads, waits as
+     * long as the queue is full.
+     *
+     * @param batchQueue the queue of batches
+     * @param batch the batch to queue
+     * @param waitingHandler waiting handler to display progress and allow
+     * canceling the import
+     *
+     * @return false if the import was canceled or all importing threads
+     * stopped before the batch could be queued
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    private boolean queueBatch(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, ArrayList<SpectrumMatch> batch, WaitingHandler waitingHandler) throws InterruptedException {
+        while (!batchQueue.offer(batch, 1, TimeUnit.SECONDS)) {
+            if (waitingHandler.isRunCanceled() || nWorkers.get() == 0) {
+                return false;
+            }
         }
+        return !waitingHandler.isRunCanceled() && nWorkers.get() > 0;
     }
 
     /**
@@ -349,23 +407,7 @@ public class PsmImporter {
     private void importPsm(SpectrumMatch spectrumMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
-        // free memory if needed
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9 && !peptideShakerCache.isEmpty()) {
-            peptideShakerCache.reduceMemoryConsumption(0.5, null);
-        }
-        // free memory from the tree if used
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-            if (MemoryConsumptionStatus.memoryUsed() > 0.9 && !ProteinTreeComponentsFactory.getInstance().getCache().isEmpty()) {
-                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(0.5, null);
-            }
-            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-            if (!MemoryConsumptionStatus.halfGbFree() && proteinTree.getNodesInCache() > 0) {
-                proteinTree.reduceNodeCacheSize(0.5);
-            }
-        }
-
-        nPSMs++;
+        nPSMs.incrementAndGet();
 
         String spectrumKey = spectrumMatch.getKey();
 
@@ -428,7 +470,7 @@ public class PsmImporter {
         if (waitingHandler.isRunCanceled()) {
             return;
         }
-        waitingHandler.setSecondaryProgressCounter(++progress);
+        waitingHandler.setSecondaryProgressCounter(progress.incrementAndGet());
     }
 
     /**
@@ -469,7 +511,7 @@ public class PsmImporter {
 
         for (HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> assumptionsForAdvocate : assumptions.values()) {
             for (ArrayList<SpectrumIdentificationAssumption> assumptionsAtScore : assumptionsForAdvocate.values()) {
-                nSecondary += assumptionsAtScore.size();
+                nSecondary.addAndGet(assumptionsAtScore.size());
             }
         }
 
@@ -512,7 +554,7 @@ public class PsmImporter {
                                 if (peptideAssumptionFilter.removeUnknownPTMs()) {
                                     // Exclude peptides with aberrant PTM mapping
                                     System.out.println(e.getMessage());
-                                    ptmIssue++;
+                                    ptmIssue.incrementAndGet();
                                     fixedPtmIssue = true;
                                 } else {
                                     throw e;
@@ -542,10 +584,9 @@ public class PsmImporter {
                                                 }
                                                 String omssaName = omssaParameters.getModificationName(omssaIndex);
                                                 if (omssaName == null) {
-                                                    if (!ignoredModifications.contains(omssaIndex)) {
+                                                    if (addIgnoredModification(omssaIndex)) {
                                                         waitingHandler.appendReport("Impossible to find OMSSA modification of index "
                                                                 + omssaIndex + ". The corresponding peptides will be ignored.", true, true);
-                                                        ignoredModifications.add(omssaIndex);
                                                     }
                                                     omssaName = PTMFactory.unknownPTM.getName();
                                                 }
@@ -563,10 +604,9 @@ public class PsmImporter {
                                                 }
                                                 String andromedaName = andromedaParameters.getModificationName(andromedaIndex);
                                                 if (andromedaName == null) {
-                                                    if (!ignoredModifications.contains(andromedaIndex)) {
+                                                    if (addIgnoredModification(andromedaIndex)) {
                                                         waitingHandler.appendReport("Impossible to find Andromeda modification of index "
                                                                 + andromedaIndex + ". The corresponding peptides will be ignored.", true, true);
-                                                        ignoredModifications.add(andromedaIndex);
                                                     }
                                                     andromedaName = PTMFactory.unknownPTM.getName();
                                                 }
@@ -626,7 +666,7 @@ public class PsmImporter {
                                 newAssumptions.add(assumption);
                             }
                         } else {
-                            peptideIssue++;
+                            peptideIssue.incrementAndGet();
                         }
                     }
                 }
@@ -656,23 +696,27 @@ public class PsmImporter {
                             boolean filterPassed = true;
                             if (!peptideAssumptionFilter.validatePeptide(peptide, sequenceMatchingPreferences, searchParameters.getEnzyme())) {
                                 filterPassed = false;
-                                peptideIssue++;
+                                peptideIssue.incrementAndGet();
                             } else if (!peptideAssumptionFilter.validateModifications(peptide, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())) {
                                 filterPassed = false;
-                                ptmIssue++;
+                                ptmIssue.incrementAndGet();
                             } else if (!peptideAssumptionFilter.validatePrecursor(peptideAssumption, spectrumKey, spectrumFactory, searchParameters)) {
                                 filterPassed = false;
-                                precursorIssue++;
-                            } else if (!peptideAssumptionFilter.validateProteins(peptide, sequenceMatchingPreferences)) {
-                                filterPassed = false;
-                                proteinIssue++;
+                                precursorIssue.incrementAndGet();
                             } else {
-                                ArrayList<String> accessions = peptide.getParentProteins(sequenceMatchingPreferences);
-                                if (accessions == null || accessions.isEmpty()) {
-                                    missingProteins++;
+                                // sequences already mapped for another search engine or file are taken from the cache
+                                proteinMappingCache.mapPeptide(peptide, sequenceMatchingPreferences);
+                                if (!peptideAssumptionFilter.validateProteins(peptide, sequenceMatchingPreferences)) {
                                     filterPassed = false;
-                                    if (firstPeptideHitNoProtein != null) {
-                                        firstHitsNoProteins.add(peptideAssumption);
+                                    proteinIssue.incrementAndGet();
+                                } else {
+                                    ArrayList<String> accessions = peptide.getParentProteins(sequenceMatchingPreferences);
+                                    if (accessions == null || accessions.isEmpty()) {
+                                        missingProteins.incrementAndGet();
+                                        filterPassed = false;
+                                        if (firstPeptideHitNoProtein != null) {
+                                            firstHitsNoProteins.add(peptideAssumption);
+                                        }
                                     }
                                 }
                             }
@@ -687,7 +731,7 @@ public class PsmImporter {
                     }
                     if (firstPeptideHit != null) {
                         inputMap.addEntry(advocateId, spectrumFileName, firstPeptideHit.getScore(), firstPeptideHit.getPeptide().isDecoy(sequenceMatchingPreferences));
-                        nRetained++;
+                        nRetained.incrementAndGet();
                         break;
                     } else if (!firstHitsNoProteins.isEmpty()) {
                         // See if a peptide without protein can be a best match
@@ -730,12 +774,28 @@ public class PsmImporter {
                     }
                 }
                 if (firstPeptideHit == null && firstPeptideHitNoProtein == null && firstTagHit == null) {
-                    psmsRejected++;
+                    psmsRejected.incrementAndGet();
                 }
             }
         }
     }
 
+    /**
+     * Adds a modification to the list of ignored modifications if not done
+     * already.
+     *
+     * @param modificationIndex the index of the modification
+     *
+     * @return true if the modification was not ignored before
+     */
+    private synchronized boolean addIgnoredModification(Integer modificationIndex) {
+        if (ignoredModifications.contains(modificationIndex)) {
+            return false;
+        }
+        ignoredModifications.add(modificationIndex);
+        return true;
+    }
+
     /**
      * Attempts at guessing whether a peptide as parsed from the search engine
      * results can carry a protein terminal PTM.
@@ -1174,17 +1234,19 @@ public class PsmImporter {
         }
 
         ArrayList<String> accessions = peptideAssumption.getPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences());
-        for (String protein : accessions) {
-            Integer count = proteinCount.get(protein);
-            if (count != null) {
-                proteinCount.put(protein, count + 1);
-            } else {
-                boolean oneHitWonder = singleProteinList.contains(protein);
-                if (oneHitWonder) {
-                    singleProteinList.remove(protein);
-                    proteinCount.put(protein, 2);
+        synchronized (proteinCount) { // the protein count can be shared by the importers of different files
+            for (String protein : accessions) {
+                Integer count = proteinCount.get(protein);
+                if (count != null) {
+                    proteinCount.put(protein, count + 1);
                 } else {
-                    singleProteinList.add(protein);
+                    boolean oneHitWonder = singleProteinList.contains(protein);
+                    if (oneHitWonder) {
+                        singleProteinList.remove(protein);
+                        proteinCount.put(protein, 2);
+                    } else {
+                        singleProteinList.add(protein);
+                    }
                 }
             }
         }
@@ -1304,7 +1366,7 @@ public class PsmImporter {
      * @return the number of PSMs processed
      */
     public long getnPSMs() {
-        return nPSMs;
+        return nPSMs.get();
     }
 
     /**
@@ -1313,7 +1375,7 @@ public class PsmImporter {
      * @return the number of secondary hits processed
      */
     public long getnSecondary() {
-        return nSecondary;
+        return nSecondary.get();
     }
 
     /**
@@ -1322,7 +1384,7 @@ public class PsmImporter {
      * @return the number of PSMs which did not pass the import filters
      */
     public int getPsmsRejected() {
-        return psmsRejected;
+        return psmsRejected.get();
     }
 
     /**
@@ -1333,7 +1395,7 @@ public class PsmImporter {
      * protein issue
      */
     public int getProteinIssue() {
-        return proteinIssue;
+        return proteinIssue.get();
     }
 
     /**
@@ -1344,7 +1406,7 @@ public class PsmImporter {
      * peptide issue
      */
     public int getPeptideIssue() {
-        return peptideIssue;
+        return peptideIssue.get();
     }
 
     /**
@@ -1355,7 +1417,7 @@ public class PsmImporter {
      * precursor issue
      */
     public int getPrecursorIssue() {
-        return precursorIssue;
+        return precursorIssue.get();
     }
 
     /**
@@ -1366,7 +1428,7 @@ public class PsmImporter {
      * PTM issue
      */
     public int getPtmIssue() {
-        return ptmIssue;
+        return ptmIssue.get();
     }
 
     /**
@@ -1375,7 +1437,7 @@ public class PsmImporter {
      * @return the number of PSMs where a protein was missing
      */
     public int getMissingProteins() {
-        return missingProteins;
+        return missingProteins.get();
     }
 
     /**
@@ -1384,7 +1446,7 @@ public class PsmImporter {
      * @return the number of PSMs retained after filtering
      */
     public int getnRetained() {
-        return nRetained;
+        return nRetained.get();
     }
 
     /**
@@ -1433,14 +1495,17 @@ public class PsmImporter {
     }
 
     /**
-     * Private runnable to import PSMs.
+     * Private runnable to import PSMs. The runnable imports batches of spectrum
+     * matches from a queue until it finds an empty batch. Errors are stored
+     * and cancel the import so that the thread queuing the batches does not
+     * wait for a stopped thread.
      */
     private class PsmImporterRunnable implements Runnable {
 
         /**
-         * The spectrum match to import.
+         * The queue of batches of spectrum matches to import.
          */
-        private SpectrumMatch spectrumMatch;
+        private ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue;
 
         /**
          * The waiting handler.
@@ -1456,12 +1521,12 @@ public class PsmImporter {
         /**
          * Constructor.
          *
-         * @param spectrumMatch the match to import
+         * @param batchQueue the queue of batches of spectrum matches to import
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          */
-        public PsmImporterRunnable(SpectrumMatch spectrumMatch, WaitingHandler waitingHandler) {
-            this.spectrumMatch = spectrumMatch;
+        public PsmImporterRunnable(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, WaitingHandler waitingHandler) {
+            this.batchQueue = batchQueue;
             this.waitingHandler = waitingHandler;
         }
 
@@ -1469,14 +1534,30 @@ public class PsmImporter {
         public void run() {
 
             try {
-                if (!waitingHandler.isRunCanceled()) {
-                    importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                while (!waitingHandler.isRunCanceled()) {
+                    ArrayList<SpectrumMatch> batch = batchQueue.poll(1, TimeUnit.SECONDS);
+                    if (batch != null) {
+                        if (batch.isEmpty()) {
+                            return;
+                        }
+                        for (SpectrumMatch spectrumMatch : batch) {
+                            if (waitingHandler.isRunCanceled()) {
+                                return;
+                            }
+                            importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                        }
+                    }
                 }
             } catch (Exception e) {
                 if (!waitingHandler.isRunCanceled()) {
                     exceptionHandler.catchException(e);
                     waitingHandler.setRunCanceled();
                 }
+            } catch (Error e) {
+                workerError = e;
+                waitingHandler.setRunCanceled();
+            } finally {
+                nWorkers.decrementAndGet();
             }
         }
     }
@@ -14,6 +14,12 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -63,115 +69,266 @@ public class RecalibrationExporter {
     public static void writeRecalibratedSpectra(boolean recalibratePrecursors, boolean recalibrateFragmentIons, File folder,
             Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+        writeRecalibratedSpectra(recalibratePrecursors, recalibrateFragmentIons, folder, identification, identificationParameters, 1, waitingHandler);
+    }
+
+    /**
+     * Writes the recalibrated spectra in files named according to
+     * getRecalibratedFileName in the given folder using the given number of
+     * threads. Spectrum files are recalibrated in parallel, the remaining
+     * threads are used to estimate the m/z errors of every file. The files
+     * written are the same for any number of threads.
+     *
+     * @param recalibratePrecursors boolean indicating whether precursor ions
+     * shall be recalibrated
+     * @param recalibrateFragmentIons boolean indicating whether fragment ions
+     * shall be recalibrated
+     * @param folder folder where recalibrated files shall be written
+     * @param identification identification of the project
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler waiting handler displaying progress and used to
+     * cancel the process. Can be null. The method does not call RunFinished.
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    public static void writeRecalibratedSpectra(final boolean recalibratePrecursors, final boolean recalibrateFragmentIons, final File folder,
+            final Identification identification, final IdentificationParameters identificationParameters, int nThreads, final WaitingHandler waitingHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
         SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
-        SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
+        final SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
+        ArrayList<String> fileNames = spectrumFactory.getMgfFileNames();
 
-        int progress = 1;
+        int nFileThreads = Math.min(nThreads, fileNames.size());
 
-        for (String fileName : spectrumFactory.getMgfFileNames()) {
+        if (nFileThreads <= 1) {
 
-            if (waitingHandler != null) {
-                if (waitingHandler.isRunCanceled()) {
-                    break;
-                }
+            int progress = 1;
 
-                waitingHandler.setWaitingText("Recalibrating Spectra. Inspecting Mass Deviations. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(2 * spectrumFactory.getNSpectra(fileName));
-            }
+            for (String fileName : fileNames) {
 
-            spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
-
-            // Debug part
-            if (debug) {
+                if (waitingHandler != null) {
+                    if (waitingHandler.isRunCanceled()) {
+                        break;
+                    }
 
-                RunMzDeviation runMzDeviation = spectrumRecalibrator.getRunMzDeviations(fileName);
+                    waitingHandler.setWaitingText("Recalibrating Spectra. Inspecting Mass Deviations. Please Wait... (" + progress + "/" + fileNames.size() + ")");
+                    waitingHandler.resetSecondaryProgressCounter();
+                    waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+                    waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
+                }
 
-                File debugFile = new File(folder, "debug" + getRecalibratedFileName(fileName) + "_precursors.txt");
-                BufferedWriter debugWriter = new BufferedWriter(new FileWriter(debugFile));
-                debugWriter.write("rt\tgrade\toffset");
-                debugWriter.newLine();
+                spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, nThreads, waitingHandler);
 
-                for (double key : runMzDeviation.getPrecursorRTList()) {
+                if (debug) {
+                    writeDebugFiles(folder, fileName, spectrumRecalibrator.getRunMzDeviations(fileName), waitingHandler);
+                }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return;
+                }
 
-                    debugWriter.write(key + "\t");
-                    debugWriter.write(runMzDeviation.getSlope(key) + "\t");
-                    debugWriter.write(runMzDeviation.getOffset(key) + "\t");
-                    debugWriter.newLine();
+                if (waitingHandler != null) {
+                    waitingHandler.setWaitingText("Recalibrating Spectra. Writing Spectra. Please Wait... (" + progress + "/" + fileNames.size() + ")");
+                    waitingHandler.resetSecondaryProgressCounter();
+                    waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
                 }
 
-                debugWriter.flush();
-                debugWriter.close();
+                writeRecalibratedFile(fileName, spectrumRecalibrator, recalibratePrecursors, recalibrateFragmentIons, folder, waitingHandler);
+                progress++;
+            }
 
-                debugFile = new File(folder, getRecalibratedFileName(fileName) + "_fragments.txt");
-                debugWriter = new BufferedWriter(new FileWriter(debugFile));
+        } else {
 
-                for (double rtKey : runMzDeviation.getPrecursorRTList()) {
+            final int nDeviationThreads = Math.max(1, nThreads / nFileThreads);
 
-                    debugWriter.write(rtKey + "\nm/z");
+            if (waitingHandler != null) {
+                int nSpectra = 0;
+                for (String fileName : fileNames) {
+                    nSpectra += spectrumFactory.getNSpectra(fileName);
+                }
+                waitingHandler.setWaitingText("Recalibrating Spectra. Please Wait...");
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+                waitingHandler.setMaxSecondaryProgressCounter(2 * nSpectra);
+            }
 
-                    for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+            ExecutorService pool = Executors.newFixedThreadPool(nFileThreads);
+            ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(fileNames.size());
 
-                        debugWriter.write("\t" + mzKey);
+            for (final String fileName : fileNames) {
+                futures.add(pool.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
 
-                    }
-                    debugWriter.newLine();
-                    debugWriter.write("Error");
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            return null;
+                        }
+
+                        spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, nDeviationThreads, waitingHandler);
 
-                    for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+                        if (debug) {
+                            writeDebugFiles(folder, fileName, spectrumRecalibrator.getRunMzDeviations(fileName), waitingHandler);
+                        }
 
-                        debugWriter.write("\t" + runMzDeviation.getFragmentMzError(rtKey, mzKey));
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            return null;
+                        }
 
+                        writeRecalibratedFile(fileName, spectrumRecalibrator, recalibratePrecursors, recalibrateFragmentIons, folder, waitingHandler);
+
+                        return null;
                     }
+                }));
+            }
+
+            pool.shutdown();
 
-                    debugWriter.newLine();
+            try {
+                for (Future<Object> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else if (cause instanceof MzMLUnmarshallerException) {
+                    throw (MzMLUnmarshallerException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalArgumentException("An error occurred while recalibrating the spectra.", cause);
                 }
-                debugWriter.flush();
-                debugWriter.close();
-                // End of debug part
             }
+        }
+    }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
+    /**
+     * Writes the recalibrated spectra of a file. The m/z errors of the file
+     * must have been estimated, they are cleared from the recalibrator once
+     * the file is written.
+     *
+     * @param fileName the name of the spectrum file
+     * @param spectrumRecalibrator the spectrum recalibrator
+     * @param recalibratePrecursors boolean indicating whether precursor ions
+     * shall be recalibrated
+     * @param recalibrateFragmentIons boolean indicating whether fragment ions
+     * shall be recalibrated
+     * @param folder folder where recalibrated files shall be written
+     * @param waitingHandler waiting handler displaying progress and used to
+     * cancel the process. Can be null
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    private static void writeRecalibratedFile(String fileName, SpectrumRecalibrator spectrumRecalibrator, boolean recalibratePrecursors, boolean recalibrateFragmentIons,
+            File folder, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException {
 
-            File file = new File(folder, getRecalibratedFileName(fileName));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Recalibrating Spectra. Writing Spectra. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
-            }
+        SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+        File file = new File(folder, getRecalibratedFileName(fileName));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
 
+        try {
             for (String spectrumTitle : spectrumFactory.getSpectrumTitles(fileName)) {
 
-                if (debug) {
-                    //System.out.println(new Date() + " recalibrating " + spectrumTitle + "\n");
-                }
-
                 MSnSpectrum recalibratedSpectrum = spectrumRecalibrator.recalibrateSpectrum(fileName, spectrumTitle, recalibratePrecursors, recalibrateFragmentIons);
                 recalibratedSpectrum.writeMgf(writer);
-                writer.flush();
 
                 if (waitingHandler != null) {
                     if (waitingHandler.isRunCanceled()) {
                         break;
                     }
-                    waitingHandler.increasePrimaryProgressCounter();
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
             }
-
+        } finally {
             spectrumRecalibrator.clearErrors(fileName);
             writer.close();
         }
     }
 
+    /**
+     * Writes the ion distributions of a file for debugging.
+     *
+     * @param folder the folder where to write the files
+     * @param fileName the name of the spectrum file
+     * @param runMzDeviation the m/z deviations of the file
+     * @param waitingHandler waiting handler used to cancel the process. Can be
+     * null
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while writing to a file
+     */
+    private static void writeDebugFiles(File folder, String fileName, RunMzDeviation runMzDeviation, WaitingHandler waitingHandler) throws IOException {
+
+        File debugFile = new File(folder, "debug" + getRecalibratedFileName(fileName) + "_precursors.txt");
+        BufferedWriter debugWriter = new BufferedWriter(new FileWriter(debugFile));
+        debugWriter.write("rt\tgrade\toffset");
+        debugWriter.newLine();
+
+        for (double key : runMzDeviation.getPrecursorRTList()) {
+
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                break;
+            }
+
+            debugWriter.write(key + "\t");
+            debugWriter.write(runMzDeviation.getSlope(key) + "\t");
+            debugWriter.write(runMzDeviation.getOffset(key) + "\t");
+            debugWriter.newLine();
+        }
+
+        debugWriter.flush();
+        debugWriter.close();
+
+        debugFile = new File(folder, getRecalibratedFileName(fileName) + "_fragments.txt");
+        debugWriter = new BufferedWriter(new FileWriter(debugFile));
+
+        for (double rtKey : runMzDeviation.getPrecursorRTList()) {
+
+            debugWriter.write(rtKey + "\nm/z");
+
+            for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+
+                debugWriter.write("\t" + mzKey);
+
+            }
+            debugWriter.newLine();
+            debugWriter.write("Error");
+
+            for (double mzKey : runMzDeviation.getFragmentMZList(rtKey)) {
+
+                debugWriter.write("\t" + runMzDeviation.getFragmentMzError(rtKey, mzKey));
+
+            }
+
+            debugWriter.newLine();
+        }
+        debugWriter.flush();
+        debugWriter.close();
+    }
+
     /**
      * Returns the name of the recalibrated file.
      *
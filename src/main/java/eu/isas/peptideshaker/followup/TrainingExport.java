@@ -119,7 +119,7 @@ public class TrainingExport {
                     waitingHandler.setWaitingText("Recalibrating Spectra. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
                     waitingHandler.setSecondaryProgressCounter(0);
                     waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                    waitingHandler.setMaxSecondaryProgressCounter(2 * spectrumFactory.getNSpectra(fileName));
+                    waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
                 }
 
                 spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
@@ -11,6 +11,7 @@ import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.export.MzIdentMLExport;
 import eu.isas.peptideshaker.gui.PeptideShakerGUI;
 import eu.isas.peptideshaker.scoring.MatchValidationLevel;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStream;
 import java.awt.Color;
 import java.awt.Toolkit;
 import java.io.*;
@@ -648,7 +649,8 @@ public class MzIdentMLExportDialog extends javax.swing.JDialog {
                 try {
                     MzIdentMLExport mzIdentMLExport = new MzIdentMLExport(PeptideShaker.getVersion(), peptideShakerGUI.getIdentification(), peptideShakerGUI.getProjectDetails(),
                             peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getIdentificationFeaturesGenerator(),
-                            finalOutputFile, progressDialog, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
+                            finalOutputFile, progressDialog, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none,
+                            peptideShakerGUI.getProcessingPreferences().getnThreads(), false, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
                     mzIdentMLExport.createMzIdentMLFile(mzIdentML_v1_2);
 
                     // validate the mzidentml file
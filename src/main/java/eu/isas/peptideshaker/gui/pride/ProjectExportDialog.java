@@ -29,6 +29,7 @@ import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.export.PrideXmlExport;
 import eu.isas.peptideshaker.gui.PeptideShakerGUI;
 import eu.isas.peptideshaker.gui.tabpanels.PtmPanel;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStream;
 import java.awt.Color;
 import java.awt.Toolkit;
 import java.io.*;
@@ -382,6 +383,7 @@ public class ProjectExportDialog extends javax.swing.JDialog {
         outputFolderLabel = new javax.swing.JLabel();
         outputFolderJTextField = new javax.swing.JTextField();
         browseOutputFolderJButton = new javax.swing.JButton();
+        gzipJCheckBox = new javax.swing.JCheckBox();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("PeptideShaker - Export");
@@ -707,6 +709,11 @@ public class ProjectExportDialog extends javax.swing.JDialog {
             }
         });
 
+        gzipJCheckBox.setText("Compress (gzip)");
+        gzipJCheckBox.setToolTipText("Compress the PRIDE XML file in the gzip format, the file is not validated when compressed");
+        gzipJCheckBox.setIconTextGap(10);
+        gzipJCheckBox.setOpaque(false);
+
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
@@ -718,6 +725,8 @@ public class ProjectExportDialog extends javax.swing.JDialog {
                 .addComponent(outputFolderJTextField)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addComponent(browseOutputFolderJButton, javax.swing.GroupLayout.PREFERRED_SIZE, 80, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addComponent(gzipJCheckBox)
                 .addContainerGap())
         );
         jPanel1Layout.setVerticalGroup(
@@ -727,7 +736,8 @@ public class ProjectExportDialog extends javax.swing.JDialog {
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(outputFolderLabel)
                     .addComponent(outputFolderJTextField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                    .addComponent(browseOutputFolderJButton))
+                    .addComponent(browseOutputFolderJButton)
+                    .addComponent(gzipJCheckBox))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -1017,7 +1027,9 @@ public class ProjectExportDialog extends javax.swing.JDialog {
 
         // check if the xml file already exists
         String fileName = titleJTextField.getText().trim().replaceAll(" ", "_"); // @TODO: not sure why this is needed?
-        File outputFile = new File(outputFolderJTextField.getText(), fileName + ".xml");
+        final boolean gzip = gzipJCheckBox.isSelected();
+        final String extension = gzip ? ".xml.gz" : ".xml";
+        File outputFile = new File(outputFolderJTextField.getText(), fileName + extension);
 
         if (outputFile.exists()) {
             int selection = JOptionPane.showConfirmDialog(this, "The file \'"
@@ -1098,12 +1110,13 @@ public class ProjectExportDialog extends javax.swing.JDialog {
                             peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getSpectrumCountingPreferences(),
                             peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getSpectrumAnnotator(),
                             selectedSample, selectedSample, selectedProtocol, selectedProtocol, referenceGroup, contactGroup, sample, protocol, instrument,
-                            new File(outputFolderJTextField.getText()), outputFileName, progressDialog);
+                            new File(outputFolderJTextField.getText()), outputFileName, progressDialog,
+                            gzip, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, peptideShakerGUI.getProcessingPreferences().getnThreads());
 
                     prideExport.createPrideXmlFile(progressDialog);
 
-                    // validate the pride xml file
-                    if (validatePrideXml && !projectExportDialog.progressCancelled()) {
+                    // validate the pride xml file, compressed files are not validated
+                    if (validatePrideXml && !gzip && !projectExportDialog.progressCancelled()) {
                         progressDialog.setPrimaryProgressCounterIndeterminate(true);
                         progressDialog.setTitle("Validating PRIDE XML. Please Wait...");
                         PrideXmlValidator validator = new PrideXmlValidator();
@@ -1139,7 +1152,7 @@ public class ProjectExportDialog extends javax.swing.JDialog {
                     // html content 
                     JEditorPane ep = new JEditorPane("text/html", "<html><body bgcolor=\"#" + Util.color2Hex(label.getBackground()) + "\">"
                             + "PRIDE XML file \'"
-                            + new File(outputFolderJTextField.getText(), outputFileName + ".xml").getAbsolutePath() + "\' created.<br><br>"
+                            + new File(outputFolderJTextField.getText(), outputFileName + extension).getAbsolutePath() + "\' created.<br><br>"
                             + "Please see <a href=\"http://www.ebi.ac.uk/pride\">www.ebi.ac.uk/pride</a> for how to submit data to PRIDE.<br><br>"
                             + "We recommend checking the file in <a href=\"https://github.com/PRIDE-Toolsuite/pride-inspector\">PRIDE Inspector</a> before uploading."
                             + "</body></html>");
@@ -1222,6 +1235,7 @@ public class ProjectExportDialog extends javax.swing.JDialog {
     private javax.swing.JLabel experimentLabel;
     private javax.swing.JLabel experimentPropertiesLabel;
     private javax.swing.JPanel experimentPropertiesPanel;
+    private javax.swing.JCheckBox gzipJCheckBox;
     private javax.swing.JLabel helpLabel;
     private javax.swing.JComboBox instrumentJComboBox;
     private javax.swing.JLabel instrumentLabel;
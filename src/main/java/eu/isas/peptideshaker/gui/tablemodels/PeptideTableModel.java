@@ -30,7 +30,7 @@ import no.uib.jsparklines.renderers.JSparklinesArrayListBarChartTableCellRendere
  * @author Marc Vaudel
  * @author Harald Barsnes
  */
-public class PeptideTableModel extends SelfUpdatingTableModel {
+public class PeptideTableModel extends SelfUpdatingTableModel implements RowPrefetcher.PrefetchingTableModel {
 
     /**
      * The identification.
@@ -74,6 +74,34 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
      * The exception handler catches exceptions.
      */
     private ExceptionHandler exceptionHandler;
+    /**
+     * The prefetcher loading the rows ahead of the displayed rows.
+     */
+    private final RowPrefetcher rowPrefetcher = new RowPrefetcher(this, new RowPrefetcher.RowLoader() {
+        @Override
+        public int getKeyIndex(int row) {
+            return getViewIndex(row);
+        }
+
+        @Override
+        public void loadRows(ArrayList<Integer> keyIndexes) {
+            if (identification != null && peptideKeys != null) {
+                loadDataForRows(keyIndexes, null);
+            }
+        }
+
+        @Override
+        public boolean isInCache(int keyIndex) {
+            if (identification == null || peptideKeys == null || keyIndex >= peptideKeys.size()) {
+                return false;
+            }
+            try {
+                return identification.peptideDetailsInCache(peptideKeys.get(keyIndex));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    });
 
     /**
      * Constructor which sets a new table.
@@ -108,6 +136,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
         this.proteinAccession = proteinAccession;
         this.showScores = displayScores;
         this.exceptionHandler = exceptionHandler;
+        rowPrefetcher.setExceptionHandler(exceptionHandler);
     }
 
     /**
@@ -134,6 +163,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
         this.peptideKeys = peptideKeys;
         this.proteinAccession = proteinAccession;
         this.showScores = showScores;
+        rowPrefetcher.reset();
     }
 
     /**
@@ -141,6 +171,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
      */
     public void reset() {
         peptideKeys = null;
+        rowPrefetcher.reset();
     }
 
     /**
@@ -242,7 +273,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
                     }
                     return displayFeaturesGenerator.getTaggedPeptideSequence(peptideMatch, true, true, true);
                 case 4:
-                    if (isScrolling) {
+                    if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                         return null;
                     }
                     ArrayList<Integer> indexes;
@@ -261,7 +292,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
                     Collections.sort(indexes);
                     return new StartIndexes(indexes); // note: have to be "packed" like this in order to be able to resetSorting on the first index if multiple indexes
                 case 5:
-                    if (isScrolling) {
+                    if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                         return null;
                     }
                     peptideMatch = identification.getPeptideMatch(peptideKey, useDB);
@@ -332,6 +363,11 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
         }
     }
     
+    @Override
+    public RowPrefetcher getRowPrefetcher() {
+        return rowPrefetcher;
+    }
+
     /**
      * Indicates whether the table content was instantiated.
      * 
@@ -382,7 +418,7 @@ public class PeptideTableModel extends SelfUpdatingTableModel {
             int i = 0;
             while (peptideMatchesIterator.hasNext()) {
                 PeptideMatch peptideMatch = peptideMatchesIterator.next();
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 String peptideKey = peptideMatch.getKey();
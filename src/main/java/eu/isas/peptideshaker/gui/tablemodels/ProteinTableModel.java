@@ -44,7 +44,7 @@ import org.jfree.chart.plot.PlotOrientation;
  * @author Marc Vaudel
  * @author Harald Barsnes
  */
-public class ProteinTableModel extends SelfUpdatingTableModel {
+public class ProteinTableModel extends SelfUpdatingTableModel implements RowPrefetcher.PrefetchingTableModel {
 
     /**
      * The sequence factory.
@@ -83,6 +83,34 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
      * The gene maps.
      */
     private GeneMaps geneMaps;
+    /**
+     * The prefetcher loading the rows ahead of the displayed rows.
+     */
+    private final RowPrefetcher rowPrefetcher = new RowPrefetcher(this, new RowPrefetcher.RowLoader() {
+        @Override
+        public int getKeyIndex(int row) {
+            return getViewIndex(row);
+        }
+
+        @Override
+        public void loadRows(ArrayList<Integer> keyIndexes) {
+            if (identification != null && proteinKeys != null) {
+                loadDataForRows(keyIndexes, null);
+            }
+        }
+
+        @Override
+        public boolean isInCache(int keyIndex) {
+            if (identification == null || proteinKeys == null || keyIndex >= proteinKeys.size()) {
+                return false;
+            }
+            try {
+                return identification.proteinDetailsInCache(proteinKeys.get(keyIndex));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    });
 
     /**
      * Constructor which sets a new empty table.
@@ -111,6 +139,8 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
         this.displayFeaturesGenerator = displayFeaturesGenerator;
         this.exceptionHandler = exceptionHandler;
         this.proteinKeys = proteinKeys;
+        rowPrefetcher.setExceptionHandler(exceptionHandler);
+        rowPrefetcher.reset();
     }
 
     /**
@@ -135,6 +165,8 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
         this.displayFeaturesGenerator = displayFeaturesGenerator;
         this.exceptionHandler = exceptionHandler;
         this.proteinKeys = proteinKeys;
+        rowPrefetcher.setExceptionHandler(exceptionHandler);
+        rowPrefetcher.reset();
     }
 
     /**
@@ -152,6 +184,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
      */
     public void reset() {
         proteinKeys = null;
+        rowPrefetcher.reset();
     }
 
     @Override
@@ -297,7 +330,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
                             return new Chromosome(chromosomeName);
                         }
                     case 6:
-                        if (isScrolling) {
+                        if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                             return null;
                         }
                         proteinMatch = identification.getProteinMatch(proteinKey, useDB);
@@ -331,7 +364,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
                         ArrrayListDataPoints arrrayListDataPoints = new ArrrayListDataPoints(doubleValues, JSparklinesArrayListBarChartTableCellRenderer.ValueDisplayType.sumExceptLastNumber);
                         return arrrayListDataPoints;
                     case 7:
-                        if (isScrolling) {
+                        if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                             return null;
                         }
                         proteinMatch = identification.getProteinMatch(proteinKey, useDB);
@@ -351,7 +384,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
                         arrrayListDataPoints = new ArrrayListDataPoints(doubleValues, JSparklinesArrayListBarChartTableCellRenderer.ValueDisplayType.sumOfNumbers);
                         return arrrayListDataPoints;
                     case 8:
-                        if (isScrolling) {
+                        if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                             return null;
                         }
                         proteinMatch = identification.getProteinMatch(proteinKey, useDB);
@@ -373,7 +406,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
                         arrrayListDataPoints = new ArrrayListDataPoints(doubleValues, JSparklinesArrayListBarChartTableCellRenderer.ValueDisplayType.sumOfNumbers);
                         return arrrayListDataPoints;
                     case 9:
-                        if (isScrolling) {
+                        if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                             return null;
                         }
                         proteinMatch = identification.getProteinMatch(proteinKey, useDB);
@@ -384,7 +417,7 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
                         }
                         return identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
                     case 10:
-                        if (isScrolling) {
+                        if (isScrolling && !rowPrefetcher.isLoaded(viewIndex)) {
                             return null;
                         }
                         proteinMatch = identification.getProteinMatch(proteinKey, useDB);
@@ -452,6 +485,11 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
         }
     }
 
+    @Override
+    public RowPrefetcher getRowPrefetcher() {
+        return rowPrefetcher;
+    }
+
     /**
      * Indicates whether the table content was instantiated.
      *
@@ -487,8 +525,10 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
 
         ArrayList<String> tempKeys = new ArrayList<String>();
         for (int i : rows) {
-            String proteinKey = proteinKeys.get(i);
-            tempKeys.add(proteinKey);
+            if (i < proteinKeys.size()) {
+                String proteinKey = proteinKeys.get(i);
+                tempKeys.add(proteinKey);
+            }
         }
 
         try {
@@ -502,31 +542,31 @@ public class ProteinTableModel extends SelfUpdatingTableModel {
             while (proteinMatchesIterator.hasNext()) {
                 ProteinMatch proteinMatch = proteinMatchesIterator.next();
                 String proteinKey = proteinMatch.getKey();
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getSequenceCoverage(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getObservableCoverage(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getNValidatedPeptides(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getNValidatedSpectra(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getNSpectra(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 identificationFeaturesGenerator.getSpectrumCounting(proteinKey);
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 i++;
@@ -28,7 +28,7 @@ import java.util.HashMap;
  * @author Marc Vaudel
  * @author Harald Barsnes
  */
-public class PsmTableModel extends SelfUpdatingTableModel {
+public class PsmTableModel extends SelfUpdatingTableModel implements RowPrefetcher.PrefetchingTableModel {
 
     /**
      * The identification of this project.
@@ -63,6 +63,34 @@ public class PsmTableModel extends SelfUpdatingTableModel {
      * The exception handler catches exceptions.
      */
     private ExceptionHandler exceptionHandler;
+    /**
+     * The prefetcher loading the rows ahead of the displayed rows.
+     */
+    private final RowPrefetcher rowPrefetcher = new RowPrefetcher(this, new RowPrefetcher.RowLoader() {
+        @Override
+        public int getKeyIndex(int row) {
+            return getViewIndex(row);
+        }
+
+        @Override
+        public void loadRows(ArrayList<Integer> keyIndexes) {
+            if (identification != null && psmKeys != null) {
+                loadDataForRows(keyIndexes, null);
+            }
+        }
+
+        @Override
+        public boolean isInCache(int keyIndex) {
+            if (identification == null || psmKeys == null || keyIndex >= psmKeys.size()) {
+                return false;
+            }
+            try {
+                return identification.getSpectrumMatch(psmKeys.get(keyIndex), false) != null;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    });
 
     /**
      * Constructor which sets a new table.
@@ -83,6 +111,7 @@ public class PsmTableModel extends SelfUpdatingTableModel {
         this.psmKeys = psmKeys;
         this.showScores = displayScores;
         this.exceptionHandler = exceptionHandler;
+        rowPrefetcher.setExceptionHandler(exceptionHandler);
 
         PSMaps pSMaps = new PSMaps();
         pSMaps = (PSMaps) identification.getUrParam(pSMaps);
@@ -107,7 +136,8 @@ public class PsmTableModel extends SelfUpdatingTableModel {
         this.identificationParameters = identificationParameters;
         this.psmKeys = psmKeys;
         this.showScores = displayScores;
-        
+        rowPrefetcher.reset();
+
         PSMaps pSMaps = new PSMaps();
         pSMaps = (PSMaps) identification.getUrParam(pSMaps);
         inputMap = pSMaps.getInputMap();
@@ -118,6 +148,7 @@ public class PsmTableModel extends SelfUpdatingTableModel {
      */
     public void reset() {
         psmKeys = null;
+        rowPrefetcher.reset();
     }
 
     /**
@@ -303,6 +334,11 @@ public class PsmTableModel extends SelfUpdatingTableModel {
         }
     }
     
+    @Override
+    public RowPrefetcher getRowPrefetcher() {
+        return rowPrefetcher;
+    }
+
     /**
      * Indicates whether the table content was instantiated.
      * 
@@ -338,7 +374,9 @@ public class PsmTableModel extends SelfUpdatingTableModel {
         try {
             ArrayList<String> tempPsmKeys = new ArrayList<String>();
             for (int i : rows) {
-                tempPsmKeys.add(psmKeys.get(i));
+                if (i < psmKeys.size()) {
+                    tempPsmKeys.add(psmKeys.get(i));
+                }
             }
 
             ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
@@ -349,7 +387,7 @@ public class PsmTableModel extends SelfUpdatingTableModel {
             int i = 0;
             while (psmIterator.hasNext()) {
                 psmIterator.next();
-                if (waitingHandler.isRunCanceled()) {
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     return rows.get(i);
                 }
                 i++;
@@ -0,0 +1,386 @@
+package eu.isas.peptideshaker.gui.tablemodels;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JScrollBar;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableModel;
+
+/**
+ * Prefetcher loading the rows of a table model in the background before they
+ * are displayed. The first visible row is followed via the vertical scroll bar
+ * of the table, see addScrollListener, giving the scrolling direction. Every
+ * time the visible rows moved by a page, the pages of rows ahead are scanned
+ * and loaded on a background thread. The size of the pages is adapted to the
+ * loading time so that every page is loaded in about the same time. Once a
+ * page is loaded, the table is notified that the rows were updated. As the
+ * matches can be evicted from the cache afterwards, the rows scanned are
+ * checked against the cache on the background thread and the evicted ones
+ * are loaded again.
+ *
+ * @author Marc Vaudel
+ */
+public class RowPrefetcher {
+
+    /**
+     * Interface for the table models loading their rows via a prefetcher.
+     */
+    public interface RowLoader {
+
+        /**
+         * Returns the index of the key displayed at the given row of the
+         * table.
+         *
+         * @param row the row of the table
+         *
+         * @return the index of the key displayed at the given row
+         */
+        public int getKeyIndex(int row);
+
+        /**
+         * Loads the matches and computes the features of the given keys.
+         *
+         * @param keyIndexes the indexes of the keys to load
+         */
+        public void loadRows(ArrayList<Integer> keyIndexes);
+
+        /**
+         * Indicates whether the match of the given key is still in the cache.
+         *
+         * @param keyIndex the index of the key
+         *
+         * @return a boolean indicating whether the match of the given key is
+         * still in the cache
+         */
+        public boolean isInCache(int keyIndex);
+    }
+
+    /**
+     * Interface for the table models using a prefetcher.
+     */
+    public interface PrefetchingTableModel {
+
+        /**
+         * Returns the prefetcher of the table model.
+         *
+         * @return the prefetcher of the table model
+         */
+        public RowPrefetcher getRowPrefetcher();
+    }
+
+    /**
+     * The minimal number of rows in a page.
+     */
+    private static final int MIN_PAGE_SIZE = 20;
+    /**
+     * The maximal number of rows in a page.
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+    /**
+     * The time in milliseconds a page should take to load.
+     */
+    private static final double TARGET_PAGE_DURATION = 200;
+    /**
+     * The number of pages to load ahead of the displayed rows.
+     */
+    private static final int PAGES_AHEAD = 2;
+    /**
+     * The executor scanning and loading the pages, shared by all tables so
+     * that the database is not accessed concurrently by the prefetchers.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Table Prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * The table model to notify.
+     */
+    private final AbstractTableModel tableModel;
+    /**
+     * The loader of the rows.
+     */
+    private final RowLoader rowLoader;
+    /**
+     * The exception handler.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * The indexes of the keys loaded. The matches of these keys might have been
+     * evicted from the cache since, they are checked again when scanned.
+     */
+    private final BitSet loaded = new BitSet();
+    /**
+     * The generation of the content, incremented at every reset so that the
+     * pages of a previous content are discarded.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+    /**
+     * The number of the last scan scheduled, the scans superseded by a more
+     * recent one are discarded.
+     */
+    private final AtomicInteger scanNumber = new AtomicInteger();
+    /**
+     * The number of rows in a page.
+     */
+    private volatile int pageSize = MIN_PAGE_SIZE;
+    /**
+     * The first visible row.
+     */
+    private volatile int firstVisibleRow = -1;
+    /**
+     * The first visible row when the last scan was scheduled.
+     */
+    private int lastScannedRow = -1;
+    /**
+     * The size of the pages when the last scan was scheduled.
+     */
+    private int lastScannedPageSize = MIN_PAGE_SIZE;
+    /**
+     * The scrolling direction, 1 for down and -1 for up.
+     */
+    private volatile int direction = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param tableModel the table model to notify when rows are loaded
+     * @param rowLoader the loader of the rows
+     */
+    public RowPrefetcher(AbstractTableModel tableModel, RowLoader rowLoader) {
+        this.tableModel = tableModel;
+        this.rowLoader = rowLoader;
+    }
+
+    /**
+     * Adds a listener to the vertical scroll bar of a table notifying the
+     * prefetcher of the table model of the visible rows. The model of the
+     * table can be replaced afterwards, the listener is ignored for the
+     * models not using a prefetcher.
+     *
+     * @param table the table
+     * @param scrollBar the vertical scroll bar of the table
+     */
+    public static void addScrollListener(final JTable table, JScrollBar scrollBar) {
+        scrollBar.addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                TableModel model = table.getModel();
+                if (model instanceof PrefetchingTableModel) {
+                    Rectangle visibleRect = table.getVisibleRect();
+                    int firstRow = table.rowAtPoint(visibleRect.getLocation());
+                    if (firstRow != -1) {
+                        int lastRow = table.rowAtPoint(new Point(visibleRect.x, visibleRect.y + visibleRect.height - 1));
+                        if (lastRow == -1) {
+                            lastRow = table.getRowCount() - 1;
+                        }
+                        ((PrefetchingTableModel) model).getRowPrefetcher().visibleRowsChanged(firstRow, lastRow);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the exception handler.
+     *
+     * @param exceptionHandler the exception handler
+     */
+    public void setExceptionHandler(ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    /**
+     * Indicates whether the given key was loaded. The matches evicted from
+     * the cache since are only detected when their rows are scanned again.
+     *
+     * @param keyIndex the index of the key
+     *
+     * @return a boolean indicating whether the given key was loaded
+     */
+    public synchronized boolean isLoaded(int keyIndex) {
+        return loaded.get(keyIndex);
+    }
+
+    /**
+     * Discards the loaded rows. To be called whenever the content of the table
+     * changes.
+     */
+    public synchronized void reset() {
+        generation.incrementAndGet();
+        loaded.clear();
+        firstVisibleRow = -1;
+        lastScannedRow = -1;
+        direction = 1;
+    }
+
+    /**
+     * Notifies the prefetcher of the rows visible in the table. The
+     * scrolling direction is given by the first visible row and the rows
+     * ahead are scanned whenever the first visible row moved by a page since
+     * the last scan.
+     * Called by the event dispatch thread.
+     *
+     * @param firstRow the first visible row
+     * @param lastRow the last visible row
+     */
+    public void visibleRowsChanged(int firstRow, int lastRow) {
+
+        int previousRow = firstVisibleRow;
+        if (firstRow == previousRow) {
+            return;
+        }
+        if (previousRow != -1) {
+            direction = firstRow > previousRow ? 1 : -1;
+        }
+        firstVisibleRow = firstRow;
+
+        int currentPageSize = pageSize;
+        synchronized (this) {
+            if (lastScannedRow != -1 && Math.abs(firstRow - lastScannedRow) < lastScannedPageSize) {
+                return;
+            }
+            lastScannedRow = firstRow;
+            lastScannedPageSize = currentPageSize;
+        }
+
+        if (MemoryGovernor.getInstance().isMemoryHigh()) {
+            return;
+        }
+
+        int rowCount = tableModel.getRowCount();
+        int start, end;
+        if (direction > 0) {
+            start = firstRow;
+            end = Math.min(lastRow + 1 + PAGES_AHEAD * currentPageSize, rowCount);
+        } else {
+            start = Math.max(firstRow - PAGES_AHEAD * currentPageSize, 0);
+            end = Math.min(lastRow + 1, rowCount);
+        }
+        if (start < end) {
+            scan(start, end, direction);
+        }
+    }
+
+    /**
+     * Schedules the scan of the given rows. The rows are checked in the
+     * scrolling direction and the ones not loaded are loaded page by page.
+     *
+     * @param start the first row to scan
+     * @param end the row after the last row to scan
+     * @param scanDirection the scrolling direction
+     */
+    private void scan(final int start, final int end, final int scanDirection) {
+
+        final int scanGeneration = generation.get();
+        final int scan = scanNumber.incrementAndGet();
+
+        EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+
+                ArrayList<Integer> rows = new ArrayList<Integer>(pageSize);
+                ArrayList<Integer> keyIndexes = new ArrayList<Integer>(pageSize);
+
+                try {
+                    for (int i = 0; i < end - start; i++) {
+
+                        // stop if the content changed or the user scrolled on
+                        if (scanGeneration != generation.get() || scan != scanNumber.get()) {
+                            return;
+                        }
+
+                        int row = scanDirection > 0 ? start + i : end - 1 - i;
+                        int keyIndex = rowLoader.getKeyIndex(row);
+                        boolean load = !isLoaded(keyIndex);
+                        if (!load && !rowLoader.isInCache(keyIndex)) {
+                            synchronized (RowPrefetcher.this) {
+                                loaded.clear(keyIndex);
+                            }
+                            load = true;
+                        }
+                        if (load) {
+                            rows.add(row);
+                            keyIndexes.add(keyIndex);
+                            if (keyIndexes.size() >= pageSize) {
+                                loadPage(rows, keyIndexes, scanGeneration);
+                                rows = new ArrayList<Integer>(pageSize);
+                                keyIndexes = new ArrayList<Integer>(pageSize);
+                            }
+                        }
+                    }
+                    if (!keyIndexes.isEmpty() && scanGeneration == generation.get()) {
+                        loadPage(rows, keyIndexes, scanGeneration);
+                    }
+                } catch (Exception e) {
+                    if (exceptionHandler != null) {
+                        exceptionHandler.catchException(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads a page and notifies the table that its rows were updated. Called
+     * by the prefetching thread.
+     *
+     * @param rows the rows of the table
+     * @param keyIndexes the indexes of the keys displayed at these rows
+     * @param pageGeneration the generation of the content of the page
+     */
+    private void loadPage(ArrayList<Integer> rows, ArrayList<Integer> keyIndexes, final int pageGeneration) {
+
+        long start = System.nanoTime();
+        rowLoader.loadRows(keyIndexes);
+        adaptPageSize(keyIndexes.size(), (System.nanoTime() - start) / 1e6);
+
+        synchronized (this) {
+            if (pageGeneration != generation.get()) {
+                return;
+            }
+            for (int keyIndex : keyIndexes) {
+                loaded.set(keyIndex);
+            }
+        }
+
+        final int first = Math.min(rows.get(0), rows.get(rows.size() - 1));
+        final int last = Math.max(rows.get(0), rows.get(rows.size() - 1));
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (pageGeneration == generation.get() && last < tableModel.getRowCount()) {
+                    tableModel.fireTableRowsUpdated(first, last);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adapts the size of the pages to the time taken to load the last page.
+     *
+     * @param nRows the number of rows in the last page
+     * @param duration the time in milliseconds taken to load the last page
+     */
+    private void adaptPageSize(int nRows, double duration) {
+        double rowDuration = Math.max(duration / nRows, 1e-3);
+        int targetSize = (int) (TARGET_PAGE_DURATION / rowDuration);
+        int newPageSize = (pageSize + targetSize) / 2;
+        pageSize = Math.max(MIN_PAGE_SIZE, Math.min(newPageSize, MAX_PAGE_SIZE));
+    }
+}
@@ -1,6 +1,7 @@
 package eu.isas.peptideshaker.gui.tabpanels;
 
 import eu.isas.peptideshaker.gui.tablemodels.ProteinTableModel;
+import eu.isas.peptideshaker.gui.tablemodels.RowPrefetcher;
 import com.compomics.util.Util;
 import com.compomics.util.examples.BareBonesBrowserLaunch;
 import com.compomics.util.experiment.biology.AminoAcidPattern;
@@ -264,8 +265,11 @@ public class OverviewPanel extends javax.swing.JPanel implements ProteinSequence
 
         // add table scrolling listeners
         SelfUpdatingTableModel.addScrollListeners(proteinTable, proteinScrollPane, proteinScrollPane.getVerticalScrollBar());
+        RowPrefetcher.addScrollListener(proteinTable, proteinScrollPane.getVerticalScrollBar());
         SelfUpdatingTableModel.addScrollListeners(peptideTable, peptideScrollPane, peptideScrollPane.getVerticalScrollBar());
+        RowPrefetcher.addScrollListener(peptideTable, peptideScrollPane.getVerticalScrollBar());
         SelfUpdatingTableModel.addScrollListeners(psmTable, spectraScrollPane, spectraScrollPane.getVerticalScrollBar());
+        RowPrefetcher.addScrollListener(psmTable, spectraScrollPane.getVerticalScrollBar());
 
         // make sure that the scroll panes are see-through
         proteinScrollPane.getViewport().setOpaque(false);
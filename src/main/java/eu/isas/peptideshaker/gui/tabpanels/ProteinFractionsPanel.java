@@ -21,6 +21,7 @@ import eu.isas.peptideshaker.gui.protein_sequence.ProteinSequencePanel;
 import eu.isas.peptideshaker.gui.protein_sequence.ProteinSequencePanelParent;
 import eu.isas.peptideshaker.gui.protein_sequence.ResidueAnnotation;
 import eu.isas.peptideshaker.gui.tablemodels.ProteinTableModel;
+import eu.isas.peptideshaker.gui.tablemodels.RowPrefetcher;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import java.awt.*;
 import java.awt.event.MouseEvent;
@@ -134,6 +135,7 @@ public class ProteinFractionsPanel extends javax.swing.JPanel implements Protein
 
         // add scrolling listeners
         SelfUpdatingTableModel.addScrollListeners(proteinTable, proteinTableScrollPane, proteinTableScrollPane.getVerticalScrollBar());
+        RowPrefetcher.addScrollListener(proteinTable, proteinTableScrollPane.getVerticalScrollBar());
 
         // make sure that the scroll panes are see-through
         proteinTableScrollPane.getViewport().setOpaque(false);
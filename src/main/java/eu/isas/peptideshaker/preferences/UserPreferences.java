@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * In this class are stored the user preferences for PeptideShaker.
@@ -25,6 +26,11 @@ public class UserPreferences implements Serializable {
      * Show/hide sliders.
      */
     private boolean showSliders = false;
+    /**
+     * The number of identification features kept in cache indexed by name of
+     * the type of feature. Null or missing types for the default size.
+     */
+    private HashMap<String, Integer> identificationFeaturesCacheSizes = null;
 
     /**
      * Constructor.
@@ -94,4 +100,39 @@ public class UserPreferences implements Serializable {
     public void addRecentProject(File recentProject) {
         addRecentProject(recentProject.getAbsolutePath());
     }
+
+    /**
+     * Returns the number of identification features of the given type to keep
+     * in cache. Null if not set.
+     *
+     * @param typeName the name of the type of identification feature
+     *
+     * @return the number of identification features of the given type to keep
+     * in cache
+     */
+    public Integer getIdentificationFeaturesCacheSize(String typeName) {
+        if (identificationFeaturesCacheSizes == null) {
+            return null;
+        }
+        return identificationFeaturesCacheSizes.get(typeName);
+    }
+
+    /**
+     * Sets the number of identification features of the given type to keep in
+     * cache. Null for the default size.
+     *
+     * @param typeName the name of the type of identification feature
+     * @param cacheSize the number of identification features of the given
+     * type to keep in cache
+     */
+    public void setIdentificationFeaturesCacheSize(String typeName, Integer cacheSize) {
+        if (identificationFeaturesCacheSizes == null) {
+            identificationFeaturesCacheSizes = new HashMap<String, Integer>();
+        }
+        if (cacheSize == null) {
+            identificationFeaturesCacheSizes.remove(typeName);
+        } else {
+            identificationFeaturesCacheSizes.put(typeName, cacheSize);
+        }
+    }
 }
@@ -14,23 +14,21 @@ import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
 import com.compomics.util.experiment.io.identifications.IdfileReader;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.fileimport.PsmImporter;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutionException;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +40,14 @@ import java.util.concurrent.TimeUnit;
  */
 public class PeptideMapper {
 
+    /**
+     * The maximal number of sequences mapped in a batch.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+    /**
+     * The number of batches per thread when the sequences are few.
+     */
+    private static final int BATCHES_PER_THREAD = 4;
     /**
      * The identification parameters.
      */
@@ -53,25 +59,32 @@ public class PeptideMapper {
     /**
      * Boolean indicating whether the mapping was canceled for memory issues.
      */
-    private boolean canceled = false;
+    private volatile boolean canceled = false;
     /**
-     * The sequence factory.
+     * The memory governor.
      */
-    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    private MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
     /**
      * Exception handler used to catch exceptions.
      */
     private ExceptionHandler exceptionHandler;
+    /**
+     * The cache of the proteins mapped to the peptide sequences.
+     */
+    private final ProteinMappingCache proteinMappingCache;
 
     /**
      * Constructor.
      *
      * @param identificationParameters the identification parameters
+     * @param proteinMappingCache the cache of the proteins mapped to the
+     * peptide sequences, shared by the mappings of all files of the project
      * @param waitingHandler a waiting handler
      * @param exceptionHandler an exception handler
      */
-    public PeptideMapper(IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+    public PeptideMapper(IdentificationParameters identificationParameters, ProteinMappingCache proteinMappingCache, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
         this.identificationParameters = identificationParameters;
+        this.proteinMappingCache = proteinMappingCache;
         this.waitingHandler = waitingHandler;
         this.exceptionHandler = exceptionHandler;
     }
@@ -95,21 +108,23 @@ public class PeptideMapper {
      */
     public void mapPeptides(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException,
             ClassNotFoundException {
-        if (nThreads == 1) {
-            mapPeptidesSingleThreaded(peptideMap, waitingHandler);
-        } else {
-            mapPeptidesThreadingPerKey(peptideMap, nThreads, waitingHandler);
-        }
+        mapPeptides(peptideMap, nThreads, waitingHandler, true);
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Maps the peptides found to the proteins. The peptides are grouped by
+     * matching sequence so that every sequence is mapped only once, sequences
+     * already mapped for a previous batch or file are taken from the protein
+     * mapping cache. The remaining sequences are sorted and mapped in batches
+     * of consecutive sequences so that every thread works on sequences
+     * sharing their first amino acids.
      *
      * @param peptideMap a map of the peptides to map: start of the sequence
      * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter The import filter
-     * @param waitingHandler A waiting handler
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler
+     * @param displayProgress boolean indicating whether the progress should be
+     * displayed, false when mapping the peptides of a chunk of matches
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -120,63 +135,50 @@ public class PeptideMapper {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database
      */
-    private void mapPeptidesSingleThreaded(HashMap<String, LinkedList<Peptide>> peptideMap, WaitingHandler waitingHandler)
-            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+    public void mapPeptides(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads, WaitingHandler waitingHandler, boolean displayProgress) throws IOException, InterruptedException, SQLException,
+            ClassNotFoundException {
 
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                Iterator<Peptide> peptideIterator = peptides.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    mapPeptide(peptide, !peptideIterator.hasNext());
+        if (peptideMap == null || peptideMap.isEmpty()) {
+            return;
+        }
+
+        // group the peptides by sequence, peptides already mapped or in cache do not need mapping
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        HashMap<String, ArrayList<Peptide>> sequenceToPeptides = new HashMap<String, ArrayList<Peptide>>();
+        for (LinkedList<Peptide> peptides : peptideMap.values()) {
+            for (Peptide peptide : peptides) {
+                if (peptide.getParentProteinsNoRemapping() == null) {
+                    String mappingKey = ProteinMappingCache.getMappingKey(peptide.getSequence(), sequenceMatchingPreferences);
+                    if (!proteinMappingCache.setParentProteins(mappingKey, peptide)) {
+                        ArrayList<Peptide> sequencePeptides = sequenceToPeptides.get(mappingKey);
+                        if (sequencePeptides == null) {
+                            sequencePeptides = new ArrayList<Peptide>(1);
+                            sequenceToPeptides.put(mappingKey, sequencePeptides);
+                        }
+                        sequencePeptides.add(peptide);
+                    }
                 }
-                peptideMap.remove(key);
             }
         }
-    }
+        peptideMap.clear();
 
-    /**
-     * Maps the peptides found to the proteins.
-     *
-     * @param peptideMap a map of the peptides to map: start of the sequence
-     * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter the import filter
-     * @param nThreads the number of threads to use
-     * @param waitingHandler a waiting handler
-     *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file
-     * @throws InterruptedException exception thrown whenever a threading issue
-     * occurred while mapping the peptides to the proteins
-     * @throws SQLException exception thrown whenever an error occurred while
-     * interacting with the database
-     * @throws ClassNotFoundException exception thrown whenever an error
-     * occurred while deserializing an object from the database
-     */
-    private void mapPeptidesThreadingPerKey(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        ArrayList<String> mappingKeys = new ArrayList<String>(sequenceToPeptides.keySet());
+        Collections.sort(mappingKeys);
 
-        if (peptideMap != null && !peptideMap.isEmpty()) {
+        if (displayProgress) {
             waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
+            waitingHandler.setMaxSecondaryProgressCounter(mappingKeys.size());
             waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
+        }
+
+        if (nThreads == 1) {
+            mapSequences(mappingKeys, sequenceToPeptides, displayProgress);
+        } else {
+            int batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, mappingKeys.size() / (BATCHES_PER_THREAD * nThreads)));
             ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                PeptideListMapperRunnable peptideMapperRunnable = new PeptideListMapperRunnable(peptides);
-                pool.submit(peptideMapperRunnable);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
-                peptideMap.remove(key);
+            for (int start = 0; start < mappingKeys.size(); start += batchSize) {
+                List<String> batch = mappingKeys.subList(start, Math.min(start + batchSize, mappingKeys.size()));
+                pool.submit(new SequenceBatchMapperRunnable(batch, sequenceToPeptides, displayProgress));
                 if (canceled || waitingHandler.isRunCanceled()) {
                     pool.shutdownNow();
                     return;
@@ -190,55 +192,12 @@ public class PeptideMapper {
     }
 
     /**
-     * Maps the peptides found to the proteins.
-     *
-     * @param peptideMap a map of the peptides to map: start of the sequence
-     * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter the import filter
-     * @param nThreads the number of threads to use
-     * @param waitingHandler a waiting handler
+     * Returns the cache of the proteins mapped to the peptide sequences.
      *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file
-     * @throws InterruptedException exception thrown whenever a threading issue
-     * occurred while mapping the peptides to the proteins
-     * @throws SQLException exception thrown whenever an error occurred while
-     * interacting with the database
-     * @throws ClassNotFoundException exception thrown whenever an error
-     * occurred while deserializing an object from the database
+     * @return the cache of the proteins mapped to the peptide sequences
      */
-    private void mapPeptidesThreadingPerPeptide(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException, ExecutionException {
-
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                Iterator<Peptide> peptideIterator = peptides.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    PeptideMapperRunnable peptideMapperRunnable = new PeptideMapperRunnable(peptide, !peptideIterator.hasNext());
-                    pool.submit(peptideMapperRunnable);
-                    if (canceled || waitingHandler.isRunCanceled()) {
-                        pool.shutdownNow();
-                        return;
-                    }
-                }
-                peptideMap.remove(key);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
-            }
-            pool.shutdown();
-            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-                waitingHandler.appendReport("Mapping peptides timed out. Please contact the developers.", true, true);
-            }
-        }
+    public ProteinMappingCache getProteinMappingCache() {
+        return proteinMappingCache;
     }
 
     /**
@@ -261,11 +220,42 @@ public class PeptideMapper {
     }
 
     /**
-     * Maps a list of peptides.
+     * Maps the given sequences to the proteins. For every sequence, the first
+     * peptide is mapped and the mapping is copied to the other peptides and
+     * stored in the protein mapping cache.
+     *
+     * @param mappingKeys the keys of the sequences to map in the order of
+     * mapping
+     * @param sequenceToPeptides the peptides to map indexed by sequence key
+     * @param displayProgress boolean indicating whether the progress bar
+     * should be increased after mapping every sequence
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database
+     */
+    private void mapSequences(List<String> mappingKeys, HashMap<String, ArrayList<Peptide>> sequenceToPeptides, boolean displayProgress)
+            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        for (String mappingKey : mappingKeys) {
+            if (canceled || waitingHandler.isRunCanceled()) {
+                return;
+            }
+            mapSequence(mappingKey, sequenceToPeptides.get(mappingKey), displayProgress);
+        }
+    }
+
+    /**
+     * Maps the peptides of a sequence to the proteins.
      *
-     * @param peptide the peptide to map
+     * @param mappingKey the key of the sequence
+     * @param peptides the peptides of this sequence
      * @param increaseProgressBar boolean indicating whether the progress bar
-     * should be increased after mapping the peptide
+     * should be increased after mapping the sequence
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -276,11 +266,12 @@ public class PeptideMapper {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database
      */
-    private void mapPeptide(Peptide peptide, boolean increaseProgressBar) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+    private void mapSequence(String mappingKey, ArrayList<Peptide> peptides, boolean increaseProgressBar) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        Peptide peptide = peptides.get(0);
         if (identificationParameters.getPeptideAssumptionFilter().validatePeptide(peptide, sequenceMatchingPreferences, identificationParameters.getSearchParameters().getEnzyme())) {
             try {
-                peptide.getParentProteins(sequenceMatchingPreferences);
+                proteinMappingCache.putParentProteins(mappingKey, peptide.getParentProteins(sequenceMatchingPreferences));
             } catch (java.sql.SQLNonTransientConnectionException derbyException) {
                 derbyException.printStackTrace();
                 throw new IllegalArgumentException("PeptideShaker could not access the FASTA index database. "
@@ -288,26 +279,28 @@ public class PeptideMapper {
                         + "If the problem persists, restart your computer." 
                         + System.getProperty("line.separator"));
             }
+            for (int i = 1; i < peptides.size(); i++) {
+                proteinMappingCache.setParentProteins(mappingKey, peptides.get(i));
+            }
         }
         if (increaseProgressBar) {
             waitingHandler.increaseSecondaryProgressCounter();
         }
-        // free memory if needed
-        if (MemoryConsumptionStatus.memoryUsed() > 0.8 && !ProteinTreeComponentsFactory.getInstance().getCache().isEmpty()) {
-            ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(0.5, null);
+        if (!canceled && memoryGovernor.isMemoryExhausted()) {
+            // all peptides/protein mappings cannot be kept in memory at the same time, abort
+            cancelForMemory();
         }
-        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-            if (MemoryConsumptionStatus.memoryUsed() > 0.9 && proteinTree.getNodesInCache() > 0) {
-                proteinTree.reduceNodeCacheSize(0.5);
-            }
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-            Runtime.getRuntime().gc();
-            if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-                // all peptides/protein mappings cannot be kept in memory at the same time, abort
-                canceled = true;
-            }
+    }
+
+    /**
+     * Cancels the mapping because the peptide to protein mappings cannot be
+     * kept in memory and notifies the user. The remaining peptides will be
+     * mapped when needed.
+     */
+    private synchronized void cancelForMemory() {
+        if (!canceled) {
+            canceled = true;
+            waitingHandler.appendReport("Not enough memory to map all peptides in advance, the remaining peptides will be mapped on demand.", true, true);
         }
     }
 
@@ -523,85 +516,43 @@ public class PeptideMapper {
     }
 
     /**
-     * Private runnable to map peptides from a list.
+     * Private runnable to map a batch of sequences.
      */
-    private class PeptideListMapperRunnable implements Runnable {
+    private class SequenceBatchMapperRunnable implements Runnable {
 
         /**
-         * The peptides to map.
+         * The keys of the sequences to map.
          */
-        private LinkedList<Peptide> peptideList;
-
-        /**
-         * Constructor.
-         *
-         * @param peptideList the peptides to map
-         */
-        public PeptideListMapperRunnable(LinkedList<Peptide> peptideList) {
-            this.peptideList = peptideList;
-        }
-
-        @Override
-        public void run() {
-
-            try {
-                Iterator<Peptide> peptideIterator = peptideList.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    if (!canceled && !waitingHandler.isRunCanceled()) {
-                        mapPeptide(peptide, !peptideIterator.hasNext());
-                    }
-                }
-            } catch (Exception e) {
-                if (!canceled && !waitingHandler.isRunCanceled()) {
-                    exceptionHandler.catchException(e);
-                    canceled = true;
-                }
-            }
-        }
-    }
-
-    /**
-     * Private runnable to map a peptide.
-     */
-    private class PeptideMapperRunnable implements Runnable {
-
+        private final List<String> mappingKeys;
         /**
-         * The peptide to map.
+         * The peptides to map indexed by sequence key.
          */
-        private Peptide peptide;
-
+        private final HashMap<String, ArrayList<Peptide>> sequenceToPeptides;
         /**
          * Boolean indicating whether the progress bar should be increased.
          */
-        private boolean increaseProgressBar;
-
-        /**
-         * Constructor.
-         */
-        public PeptideMapperRunnable() {
-
-        }
+        private final boolean displayProgress;
 
         /**
          * Constructor.
          *
-         * @param peptide the peptide to map
-         * @param increaseProgressBar boolean indicating whether the progress
-         * bar should be increased after mapping the peptide
+         * @param mappingKeys the keys of the sequences to map
+         * @param sequenceToPeptides the peptides to map indexed by sequence
+         * key
+         * @param displayProgress boolean indicating whether the progress bar
+         * should be increased after mapping every sequence
          */
-        public PeptideMapperRunnable(Peptide peptide, boolean increaseProgressBar) {
-            this.peptide = peptide;
-            this.increaseProgressBar = increaseProgressBar;
+        public SequenceBatchMapperRunnable(List<String> mappingKeys, HashMap<String, ArrayList<Peptide>> sequenceToPeptides, boolean displayProgress) {
+            this.mappingKeys = mappingKeys;
+            this.sequenceToPeptides = sequenceToPeptides;
+            this.displayProgress = displayProgress;
         }
 
         @Override
         public void run() {
 
             try {
-                if (!canceled && !waitingHandler.isRunCanceled()) {
-                    mapPeptide(peptide, increaseProgressBar);
-                }
+                mapSequences(mappingKeys, sequenceToPeptides, displayProgress);
             } catch (Exception e) {
                 if (!canceled && !waitingHandler.isRunCanceled()) {
                     exceptionHandler.catchException(e);
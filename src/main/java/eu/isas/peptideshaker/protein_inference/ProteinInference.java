@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.protein_inference;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.biology.Protein;
@@ -24,9 +25,17 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class groups the methods for protein inference.
+ * This class groups the methods for protein inference. Protein groups sharing
+ * proteins are only compared to each other, the groups are therefore
+ * partitioned in connected components which are simplified independently and,
+ * when more than one thread is used, concurrently.
  *
  * @author Marc Vaudel
  */
@@ -35,35 +44,27 @@ public class ProteinInference {
     /**
      * Number of groups deleted because of protein evidence issues.
      */
-    private int evidenceIssue = 0;
+    private AtomicInteger evidenceIssue = new AtomicInteger();
     /**
      * Number of groups deleted because of enzymatic issues.
      */
-    private int enzymaticIssue = 0;
+    private AtomicInteger enzymaticIssue = new AtomicInteger();
     /**
      * Number of groups deleted because of protein characterization issues.
      */
-    private int uncharacterizedIssue = 0;
+    private AtomicInteger uncharacterizedIssue = new AtomicInteger();
     /**
      * Number of groups deleted because explained by a simpler group.
      */
-    private int explainedGroup = 0;
+    private AtomicInteger explainedGroup = new AtomicInteger();
     /**
-     * The protein sequence factory.
+     * Number of unlikely protein mappings found.
      */
-    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    private AtomicInteger unlikelyMappings = new AtomicInteger();
     /**
-     * Map of the most complex groups: key | proteins
-     */
-    private HashMap<String, ArrayList<String>> proteinGroupCache = new HashMap<String, ArrayList<String>>(100);
-    /**
-     * Size of the protein groups cahce
-     */
-    private int cacheSize = 100;
-    /**
-     * The minimal group size to include a protein in the cache
+     * The protein sequence factory.
      */
-    private int sizeOfProteinsInCache = 10;
+    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
 
     /**
      * Reduce artifact groups which can be explained by a simpler group.
@@ -86,6 +87,35 @@ public class ProteinInference {
     public void removeRedundantGroups(Identification identification, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
             IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+        removeRedundantGroups(identification, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, 1, waitingHandler, null);
+    }
+
+    /**
+     * Reduce artifact groups which can be explained by a simpler group. The
+     * connected components of the protein groups are processed using the
+     * given number of threads.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param shotgunProtocol the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param identificationFeaturesGenerator the identification feature
+     * generator
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for the exceptions encountered by the
+     * threads, can be null when a single thread is used
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
+     */
+    public void removeRedundantGroups(final Identification identification, final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters,
+            final IdentificationFeaturesGenerator identificationFeaturesGenerator, int nThreads, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
 
         ArrayList<String> toRemove = new ArrayList<String>();
         int max = identification.getProteinIdentification().size();
@@ -96,51 +126,44 @@ public class ProteinInference {
             waitingHandler.setMaxSecondaryProgressCounter(max);
         }
 
-        HashSet<String> toDelete = new HashSet<String>();
-        HashMap<String, String> processedKeys = new HashMap<String, String>();
+        final ProteinPeptideGraph proteinPeptideGraph = getProteinPeptideGraph(identification, identificationFeaturesGenerator, waitingHandler);
+        ArrayList<ProteinGroupComponent> components = getConnectedComponents(proteinPeptideGraph);
+        if (waitingHandler != null) {
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+            waitingHandler.increaseSecondaryProgressCounter(max - getNGroups(components));
+        }
 
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
-        while (proteinMatchesIterator.hasNext()) {
-            ProteinMatch proteinSharedGroup = proteinMatchesIterator.next();
-            if (proteinSharedGroup.getNProteins() > 1) {
-                String proteinSharedKey = proteinSharedGroup.getKey();
-                if (!processedKeys.containsKey(proteinSharedKey)) {
-                    String uniqueKey = getSubgroup(identification, proteinSharedKey, proteinSharedGroup, processedKeys, toDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
-                    if (uniqueKey != null) {
-                        mergeProteinGroups(identification, proteinSharedKey, uniqueKey, toDelete);
-                        processedKeys.put(proteinSharedKey, uniqueKey);
-                    } else {
-                        processedKeys.put(proteinSharedKey, proteinSharedKey);
-                    }
-                }
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    waitingHandler.increaseSecondaryProgressCounter();
-                }
+        processComponents(components, new ComponentTask() {
+            @Override
+            public void process(ProteinGroupComponent component) throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+                removeRedundantGroups(identification, proteinPeptideGraph, component, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, waitingHandler);
             }
+        }, nThreads, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
         }
 
-        if (enzymaticIssue + evidenceIssue + uncharacterizedIssue + explainedGroup > 0) { // special case to not divide by zero
+        if (enzymaticIssue.get() + evidenceIssue.get() + uncharacterizedIssue.get() + explainedGroup.get() > 0) { // special case to not divide by zero
 
             if (waitingHandler != null) {
                 waitingHandler.setWaitingText("Removing Mapping Artifacts. Please Wait...");
-                waitingHandler.appendReport(toDelete.size() + " unlikely protein mappings found:", true, true);
+                waitingHandler.appendReport(unlikelyMappings.get() + " unlikely protein mappings found:", true, true);
 
                 String padding = "    ";
 
-                if (enzymaticIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + enzymaticIssue + " protein groups supported by non-enzymatic shared peptides.", true, true);
+                if (enzymaticIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + enzymaticIssue.get() + " protein groups supported by non-enzymatic shared peptides.", true, true);
                 }
-                if (evidenceIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + evidenceIssue + " protein groups explained by peptides shared to less confident mappings.", true, true);
+                if (evidenceIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + evidenceIssue.get() + " protein groups explained by peptides shared to less confident mappings.", true, true);
                 }
-                if (uncharacterizedIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
+                if (uncharacterizedIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue.get() + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
                 }
-                if (explainedGroup > 0) {
-                    waitingHandler.appendReport(padding + "- " + explainedGroup + " groups explained by a simpler group.", true, true);
+                if (explainedGroup.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + explainedGroup.get() + " groups explained by a simpler group.", true, true);
                 }
                 waitingHandler.appendReport(padding + "Note: a group can present combinations of these criteria.", true, true);
                 waitingHandler.setSecondaryProgressCounterIndeterminate(false);
@@ -159,6 +182,57 @@ public class ProteinInference {
         }
     }
 
+    /**
+     * Reduce the artifact groups of a connected component which can be
+     * explained by a simpler group.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param proteinPeptideGraph the protein peptide graph
+     * @param component the connected component to process
+     * @param shotgunProtocol the shotgun protocol
+     * @param identificationParameters the identification parameters
+     * @param identificationFeaturesGenerator the identification feature
+     * generator
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
+     */
+    private void removeRedundantGroups(Identification identification, ProteinPeptideGraph proteinPeptideGraph, ProteinGroupComponent component, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+
+        HashSet<String> toDelete = new HashSet<String>();
+        HashMap<String, String> processedKeys = new HashMap<String, String>();
+
+        for (String proteinSharedKey : component.getProteinKeys()) {
+            if (proteinPeptideGraph.getAccessions(proteinSharedKey).size() > 1) {
+                if (!processedKeys.containsKey(proteinSharedKey)) {
+                    String uniqueKey = getSubgroup(identification, proteinPeptideGraph, proteinSharedKey, processedKeys, toDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
+                    if (uniqueKey != null) {
+                        mergeProteinGroups(identification, proteinPeptideGraph, proteinSharedKey, uniqueKey, toDelete);
+                        processedKeys.put(proteinSharedKey, uniqueKey);
+                    } else {
+                        processedKeys.put(proteinSharedKey, proteinSharedKey);
+                    }
+                }
+            }
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+        }
+
+        unlikelyMappings.addAndGet(toDelete.size());
+    }
+
     /**
      * Returns the best subgroup of a protein key, null if none found. If
      * intermediate groups are found they will be processed. Processed keys are
@@ -166,14 +240,15 @@ public class ProteinInference {
      * Returns null if no simpler group is found.
      *
      * @param identification the identification where to get the matches from.
+     * @param proteinPeptideGraph the protein peptide graph
      * @param sharedKey the key of the group to inspect
      * @param processedKeys map of already processed keys and their best smaller
      * key
      * @param keysToDelete list of keys to delete
      * @param shotgunProtocol the protocol containing the enzyme used
+     * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification features
      * generator
-     * @param proteinInferencePreferences the protein inference preferences
      *
      * @return the best smaller group, null if none found.
      *
@@ -186,62 +261,36 @@ public class ProteinInference {
      * @throws SQLException exception thrown whenever an error occurred while
      * interacting with the back-end database
      */
-    private String getSubgroup(Identification identification, String sharedKey, ProteinMatch sharedProteinMatch, HashMap<String, String> processedKeys,
+    private String getSubgroup(Identification identification, ProteinPeptideGraph proteinPeptideGraph, String sharedKey, HashMap<String, String> processedKeys,
             HashSet<String> keysToDelete, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ProteinInferencePreferences proteinInferencePreferences = identificationParameters.getProteinInferencePreferences();
 
-        ArrayList<String> sharedAccessions;
-        if (sharedProteinMatch == null) {
-            sharedAccessions = proteinGroupCache.get(sharedKey);
-            if (sharedAccessions == null) {
-                sharedProteinMatch = identification.getProteinMatch(sharedKey, false);
-            }
-        }
-        if (sharedProteinMatch != null) {
-            sharedAccessions = sharedProteinMatch.getTheoreticProteinsAccessions();
-        } else {
-            sharedAccessions = getProteins(sharedKey);
-        }
+        ArrayList<String> sharedAccessions = proteinPeptideGraph.getAccessions(sharedKey);
         HashSet<String> candidateUnique = new HashSet<String>(1);
-        HashSet<String> sharedAccessionsAsSet = null;
 
         for (String accession : sharedAccessions) {
-            HashSet<String> otherGroups = identification.getProteinMap().get(accession);
+            ArrayList<String> otherGroups = proteinPeptideGraph.getGroups(accession);
             for (String uniqueKey : otherGroups) {
                 if (!uniqueKey.equals(sharedKey)) {
-                    ArrayList<String> uniqueAccessions = proteinGroupCache.get(uniqueKey);
-                    if (uniqueAccessions == null) {
-                        ProteinMatch uniqueProteinMatch = identification.getProteinMatch(uniqueKey, false);
-                        if (uniqueProteinMatch != null) {
-                            uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
-                        } else {
-                            uniqueAccessions = getProteins(uniqueKey);
-                        }
-                    }
-                    if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                        if (sharedAccessionsAsSet == null) {
-                            sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                        }
-                        if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions) && !keysToDelete.contains(uniqueKey)) {
-                            String subGroup = uniqueKey;
-                            if (uniqueAccessions.size() > 1) {
-                                String reducedGroup = processedKeys.get(uniqueKey);
-                                if (reducedGroup == null) {
-                                    reducedGroup = getSubgroup(identification, uniqueKey, null, processedKeys, keysToDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
-                                    if (reducedGroup != null) {
-                                        mergeProteinGroups(identification, uniqueKey, reducedGroup, keysToDelete);
-                                        processedKeys.put(uniqueKey, reducedGroup);
-                                        subGroup = reducedGroup;
-                                    } else {
-                                        processedKeys.put(uniqueKey, uniqueKey);
-                                    }
+                    if (proteinPeptideGraph.contains(sharedKey, uniqueKey) && !keysToDelete.contains(uniqueKey)) {
+                        String subGroup = uniqueKey;
+                        if (proteinPeptideGraph.getNProteins(uniqueKey) > 1) {
+                            String reducedGroup = processedKeys.get(uniqueKey);
+                            if (reducedGroup == null) {
+                                reducedGroup = getSubgroup(identification, proteinPeptideGraph, uniqueKey, processedKeys, keysToDelete, shotgunProtocol, identificationParameters, identificationFeaturesGenerator);
+                                if (reducedGroup != null) {
+                                    mergeProteinGroups(identification, proteinPeptideGraph, uniqueKey, reducedGroup, keysToDelete);
+                                    processedKeys.put(uniqueKey, reducedGroup);
+                                    subGroup = reducedGroup;
+                                } else {
+                                    processedKeys.put(uniqueKey, uniqueKey);
                                 }
                             }
-                            if (!candidateUnique.contains(subGroup)) {
-                                candidateUnique.add(subGroup);
-                            }
+                        }
+                        if (!candidateUnique.contains(subGroup)) {
+                            candidateUnique.add(subGroup);
                         }
                     }
                 }
@@ -262,17 +311,17 @@ public class ProteinInference {
                 ProteinMatch match = identification.getProteinMatch(sharedKey);
                 HashMap<String, Integer> preferenceReason = new HashMap<String, Integer>();
                 for (String key1 : keys) {
-                    for (String accession1 : ProteinMatch.getAccessions(key1)) {
+                    for (String accession1 : proteinPeptideGraph.getAccessions(key1)) {
                         if (minimalKey == null) {
                             preferenceReason = new HashMap<String, Integer>();
                             boolean best = true;
                             for (String key2 : keys) {
                                 if (!key1.equals(key2)) {
-                                    if (!ProteinMatch.contains(key1, key2)) {
-                                        if (!ProteinMatch.getCommonProteins(key1, key2).isEmpty()) {
+                                    if (!proteinPeptideGraph.contains(key1, key2)) {
+                                        if (proteinPeptideGraph.hasCommonProteins(key1, key2)) {
                                             best = false;
                                         }
-                                        for (String accession2 : ProteinMatch.getAccessions(key2)) {
+                                        for (String accession2 : proteinPeptideGraph.getAccessions(key2)) {
                                             int tempPrefernce = compareMainProtein(match, accession2, match, accession1, shotgunProtocol, identificationFeaturesGenerator, proteinInferencePreferences);
                                             if (tempPrefernce != 1) {
                                                 best = false;
@@ -287,7 +336,7 @@ public class ProteinInference {
                                 }
                             }
                             if (best) {
-                                ArrayList<String> accessions = ProteinMatch.getOtherProteins(sharedKey, key1);
+                                ArrayList<String> accessions = proteinPeptideGraph.getOtherProteins(sharedKey, key1);
                                 for (String accession2 : accessions) {
                                     int tempPrefernce = compareMainProtein(match, accession2, match, accession1, shotgunProtocol, identificationFeaturesGenerator, proteinInferencePreferences);
                                     if (tempPrefernce == 0) {
@@ -314,13 +363,13 @@ public class ProteinInference {
                                 keysToDelete.add(key2);
                                 for (int reason : preferenceReason.values()) {
                                     if (reason == 1) {
-                                        enzymaticIssue++;
+                                        enzymaticIssue.incrementAndGet();
                                     }
                                     if (reason == 2) {
-                                        evidenceIssue++;
+                                        evidenceIssue.incrementAndGet();
                                     }
                                     if (reason == 3) {
-                                        uncharacterizedIssue++;
+                                        uncharacterizedIssue.incrementAndGet();
                                     }
                                 }
                             }
@@ -339,6 +388,7 @@ public class ProteinInference {
      * shared group to the list of proteins to delete.
      *
      * @param identification the identification whether to get the matches
+     * @param proteinPeptideGraph the protein peptide graph
      * @param sharedGroup the key of the shared group
      * @param uniqueGroup the key of the unique group
      * @param keysToDelete list of keys to be deleted where sharedGroup will be
@@ -349,7 +399,7 @@ public class ProteinInference {
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private void mergeProteinGroups(Identification identification, String sharedGroup, String uniqueGroup, HashSet<String> keysToDelete)
+    private void mergeProteinGroups(Identification identification, ProteinPeptideGraph proteinPeptideGraph, String sharedGroup, String uniqueGroup, HashSet<String> keysToDelete)
             throws IllegalArgumentException, SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ProteinMatch sharedMatch = identification.getProteinMatch(sharedGroup);
@@ -358,9 +408,10 @@ public class ProteinInference {
         for (String peptideKey : sharedMatch.getPeptideMatchesKeys()) {
             uniqueMatch.addPeptideMatchKey(peptideKey);
         }
+        proteinPeptideGraph.mergeGroups(sharedGroup, uniqueGroup);
 
         keysToDelete.add(sharedGroup);
-        explainedGroup++;
+        explainedGroup.incrementAndGet();
     }
 
     /**
@@ -387,6 +438,39 @@ public class ProteinInference {
     public void retainBestScoringGroups(Identification identification, Metrics metrics, ProteinMap proteinMap, ShotgunProtocol shotgunProtocol,
             IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+        retainBestScoringGroups(identification, metrics, proteinMap, shotgunProtocol, identificationParameters, identificationFeaturesGenerator, 1, waitingHandler, null);
+    }
+
+    /**
+     * Retains the best scoring of intricate groups. The simplification of the
+     * groups is conducted on the connected components of the protein groups
+     * using the given number of threads.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param metrics if provided protein metrics will be loaded while iterating
+     * the groups
+     * @param proteinMap the protein matches scoring map
+     * @param shotgunProtocol information on the protocol
+     * @param identificationParameters the identification parameters
+     * @param identificationFeaturesGenerator the identification feature
+     * generator
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for the exceptions encountered by the
+     * threads, can be null when a single thread is used
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
+     */
+    public void retainBestScoringGroups(final Identification identification, Metrics metrics, ProteinMap proteinMap, ShotgunProtocol shotgunProtocol,
+            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, int nThreads,
+            final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Simplifying Redundant Protein Groups. Please Wait...");
 
@@ -405,68 +489,25 @@ public class ProteinInference {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         if (proteinInferencePreferences.getSimplifyGroups() && proteinInferencePreferences.getSimplifyGroupsScore()) {
-            ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-
-            while (proteinMatchesIterator.hasNext()) {
 
-                ProteinMatch proteinMatch = proteinMatchesIterator.next();
+            final ProteinPeptideGraph proteinPeptideGraph = getProteinPeptideGraph(identification, identificationFeaturesGenerator, waitingHandler);
+            ArrayList<ProteinGroupComponent> components = getConnectedComponents(proteinPeptideGraph);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-                if (waitingHandler.isRunCanceled()) {
-                    return;
+            processComponents(components, new ComponentTask() {
+                @Override
+                public void process(ProteinGroupComponent component) throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+                    retainBestScoringGroups(identification, proteinPeptideGraph, component, waitingHandler);
                 }
+            }, nThreads, waitingHandler, exceptionHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-                String proteinSharedKey = proteinMatch.getKey();
-                ArrayList<String> sharedAccessions = proteinMatch.getTheoreticProteinsAccessions();
-
-                if (sharedAccessions.size() > 1) {
-
-                    HashSet<String> sharedAccessionsAsSet = null;
-                    psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
-                    double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                    boolean better = false;
-
-                    for (String accession : sharedAccessions) {
-                        HashSet<String> otherGroups = identification.getProteinMap().get(accession);
-                        for (String proteinUniqueKey : otherGroups) {
-                            if (!proteinUniqueKey.equals(proteinSharedKey)) {
-                                ProteinMatch uniqueProteinMatch = identification.getProteinMatch(proteinUniqueKey, false);
-                                ArrayList<String> uniqueAccessions;
-                                if (uniqueProteinMatch != null) {
-                                    uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
-                                } else {
-                                    uniqueAccessions = getProteins(proteinUniqueKey);
-                                }
-                                if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                                    if (sharedAccessionsAsSet == null) {
-                                        sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                                    }
-                                    if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions)) {
-                                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
-                                        double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                                        ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
-                                        ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
-                                        for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
-                                            proteinUnique.addPeptideMatchKey(sharedPeptideKey);
-                                        }
-                                        identification.updateProteinMatch(proteinUnique);
-                                        if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
-                                            better = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    if (better) {
-                        toRemove.add(proteinSharedKey);
-                    } else {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
-                    }
-                }
+            for (ProteinGroupComponent component : components) {
+                toRemove.addAll(component.getGroupsToRemove());
             }
 
             if (!toRemove.isEmpty()) {
@@ -474,13 +515,13 @@ public class ProteinInference {
                     psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
                     proteinMap.removePoint(psParameter.getProteinProbabilityScore(), ProteinMatch.isDecoy(proteinKey));
                     identification.removeProteinMatch(proteinKey);
+                    proteinPeptideGraph.removeGroup(proteinKey);
                     waitingHandler.increaseSecondaryProgressCounter();
                 }
                 proteinMap.cleanUp();
             }
         }
 
-        clearCache();
         ProteinMatch.clearCache();
 
         int nSolved = toRemove.size();
@@ -931,43 +972,325 @@ public class ProteinInference {
     }
 
     /**
-     * Returns the proteins of a group key. Uses
-     * ProteinMatch.getAccessions(groupKey) after checking if the protein group
-     * is in cache. Manages cache update and size.
+     * Merges the groups of a connected component which are explained by a
+     * group with a better or equal score, the merged groups are stored in the
+     * component as groups to remove.
      *
-     * @param groupKey the group key of interest
+     * @param identification the identification class containing all
+     * identification matches
+     * @param proteinPeptideGraph the protein peptide graph
+     * @param component the connected component to process
+     * @param waitingHandler the handler displaying feedback to the user
      *
-     * @return the proteins of a group key
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
      */
-    private ArrayList<String> getProteins(String groupKey) {
-        ArrayList<String> result = proteinGroupCache.get(groupKey);
-        if (result == null) {
-            result = new ArrayList<String>(Arrays.asList(ProteinMatch.getAccessions(groupKey)));
-            if (result.size() > sizeOfProteinsInCache) {
-                proteinGroupCache.put(groupKey, result);
-                if (proteinGroupCache.size() > cacheSize) {
-                    int smallestSize = sizeOfProteinsInCache;
-                    String smallestGroup = null;
-                    for (String key : proteinGroupCache.keySet()) {
-                        ArrayList<String> group = proteinGroupCache.get(key);
-                        if (smallestGroup == null || group.size() < smallestSize) {
-                            smallestGroup = key;
-                            smallestSize = group.size();
+    private void retainBestScoringGroups(Identification identification, ProteinPeptideGraph proteinPeptideGraph, ProteinGroupComponent component, WaitingHandler waitingHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+
+        PSParameter psParameter = new PSParameter();
+
+        for (String proteinSharedKey : component.getProteinKeys()) {
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            ArrayList<String> sharedAccessions = proteinPeptideGraph.getAccessions(proteinSharedKey);
+
+            if (sharedAccessions.size() > 1) {
+
+                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
+                double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+                boolean better = false;
+
+                for (String accession : sharedAccessions) {
+                    ArrayList<String> otherGroups = proteinPeptideGraph.getGroups(accession);
+                    for (String proteinUniqueKey : otherGroups) {
+                        if (!proteinUniqueKey.equals(proteinSharedKey)) {
+                            if (proteinPeptideGraph.contains(proteinSharedKey, proteinUniqueKey)) {
+                                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
+                                double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+                                ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
+                                ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
+                                for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
+                                    proteinUnique.addPeptideMatchKey(sharedPeptideKey);
+                                }
+                                identification.updateProteinMatch(proteinUnique);
+                                proteinPeptideGraph.mergeGroups(proteinSharedKey, proteinUniqueKey);
+                                if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
+                                    better = true;
+                                }
+                            }
                         }
                     }
-                    proteinGroupCache.remove(smallestGroup);
-                    sizeOfProteinsInCache = smallestSize;
+                }
+
+                if (better) {
+                    component.addGroupToRemove(proteinSharedKey);
+                } else {
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
             }
         }
+    }
+
+    /**
+     * Returns the connected components of the protein groups: two groups
+     * sharing a protein belong to the same component. Groups sharing no
+     * protein with another group cannot be simplified and are not returned.
+     * The components and the groups within a component are ordered like the
+     * protein identification.
+     *
+     * @param proteinPeptideGraph the protein peptide graph
+     *
+     * @return the connected components of the protein groups
+     */
+    private ArrayList<ProteinGroupComponent> getConnectedComponents(ProteinPeptideGraph proteinPeptideGraph) {
+        ArrayList<ArrayList<String>> groupKeys = proteinPeptideGraph.getConnectedComponents();
+        ArrayList<ProteinGroupComponent> components = new ArrayList<ProteinGroupComponent>(groupKeys.size());
+        for (ArrayList<String> componentKeys : groupKeys) {
+            components.add(new ProteinGroupComponent(componentKeys));
+        }
+        return components;
+    }
+
+    /**
+     * Returns the protein peptide graph of the identification features
+     * generator. If no identification features generator is given, the graph
+     * is built from the identification.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param identificationFeaturesGenerator the identification feature
+     * generator, can be null
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @return the protein peptide graph
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    private ProteinPeptideGraph getProteinPeptideGraph(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        if (identificationFeaturesGenerator != null) {
+            return identificationFeaturesGenerator.getProteinPeptideGraph();
+        }
+        return new ProteinPeptideGraph(identification, waitingHandler);
+    }
+
+    /**
+     * Returns the number of protein groups in the given components.
+     *
+     * @param components the connected components
+     *
+     * @return the number of protein groups in the given components
+     */
+    private static int getNGroups(ArrayList<ProteinGroupComponent> components) {
+        int result = 0;
+        for (ProteinGroupComponent component : components) {
+            result += component.getProteinKeys().size();
+        }
         return result;
     }
 
     /**
-     * Clears the cache.
+     * Processes the given components using the given number of threads. With
+     * a single thread the components are processed in the calling thread and
+     * exceptions are thrown, otherwise they are sent to the exception handler
+     * and cancel the process.
+     *
+     * @param components the components to process
+     * @param componentTask the task to execute on every component
+     * @param nThreads the number of threads to use
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for the exceptions encountered by the
+     * threads
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws IllegalArgumentException thrown if an IllegalArgumentException
+     * occurs
+     */
+    private void processComponents(ArrayList<ProteinGroupComponent> components, ComponentTask componentTask, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+
+        if (nThreads <= 1 || components.size() <= 1) {
+            for (ProteinGroupComponent component : components) {
+                componentTask.process(component);
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        Iterator<ProteinGroupComponent> componentsIterator = components.iterator();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 1; i <= nThreads; i++) {
+            pool.submit(new ComponentRunnable(componentsIterator, componentTask, waitingHandler, exceptionHandler));
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein inference timed out. Please contact the developers.");
+        }
+    }
+
+    /**
+     * Returns the next component to process, null if none left.
+     *
+     * @param componentsIterator the iterator of the components
+     *
+     * @return the next component to process
      */
-    private void clearCache() {
-        proteinGroupCache.clear();
-        sizeOfProteinsInCache = 10;
+    private static synchronized ProteinGroupComponent nextComponent(Iterator<ProteinGroupComponent> componentsIterator) {
+        if (componentsIterator.hasNext()) {
+            return componentsIterator.next();
+        }
+        return null;
+    }
+
+    /**
+     * Interface for the work done on a connected component.
+     */
+    private interface ComponentTask {
+
+        /**
+         * Processes a component.
+         *
+         * @param component the component to process
+         *
+         * @throws IOException thrown if an IOException occurs
+         * @throws InterruptedException thrown if an InterruptedException
+         * occurs
+         * @throws SQLException thrown if an SQLException occurs
+         * @throws ClassNotFoundException thrown if a ClassNotFoundException
+         * occurs
+         * @throws IllegalArgumentException thrown if an
+         * IllegalArgumentException occurs
+         */
+        public void process(ProteinGroupComponent component) throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException;
+    }
+
+    /**
+     * A connected component of protein groups, i.e. groups linked by shared
+     * proteins. A component is processed by a single thread.
+     */
+    private static class ProteinGroupComponent {
+
+        /**
+         * The keys of the protein groups in the identification order.
+         */
+        private final ArrayList<String> proteinKeys;
+        /**
+         * The keys of the groups to remove.
+         */
+        private final ArrayList<String> groupsToRemove = new ArrayList<String>(0);
+
+        /**
+         * Constructor.
+         *
+         * @param proteinKeys the keys of the protein groups in the
+         * identification order
+         */
+        private ProteinGroupComponent(ArrayList<String> proteinKeys) {
+            this.proteinKeys = proteinKeys;
+        }
+
+        /**
+         * Returns the keys of the protein groups.
+         *
+         * @return the keys of the protein groups
+         */
+        private ArrayList<String> getProteinKeys() {
+            return proteinKeys;
+        }
+
+        /**
+         * Adds a group to remove.
+         *
+         * @param groupKey the key of the group
+         */
+        private void addGroupToRemove(String groupKey) {
+            groupsToRemove.add(groupKey);
+        }
+
+        /**
+         * Returns the groups to remove.
+         *
+         * @return the groups to remove
+         */
+        private ArrayList<String> getGroupsToRemove() {
+            return groupsToRemove;
+        }
+    }
+
+    /**
+     * Runnable processing the connected components of the protein groups.
+     *
+     * @author Marc Vaudel
+     */
+    private class ComponentRunnable implements Runnable {
+
+        /**
+         * The iterator of the components, shared between threads.
+         */
+        private final Iterator<ProteinGroupComponent> componentsIterator;
+        /**
+         * The task to execute on every component.
+         */
+        private final ComponentTask componentTask;
+        /**
+         * The handler displaying feedback to the user.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param componentsIterator the iterator of the components, shared
+         * between threads
+         * @param componentTask the task to execute on every component
+         * @param waitingHandler the handler displaying feedback to the user
+         * @param exceptionHandler handler for the exceptions
+         */
+        public ComponentRunnable(Iterator<ProteinGroupComponent> componentsIterator, ComponentTask componentTask, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.componentsIterator = componentsIterator;
+            this.componentTask = componentTask;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ProteinGroupComponent component;
+                while ((component = nextComponent(componentsIterator)) != null) {
+                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                    componentTask.process(component);
+                }
+            } catch (Exception e) {
+                if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    if (waitingHandler != null) {
+                        waitingHandler.setRunCanceled();
+                    }
+                }
+            }
+        }
     }
 }
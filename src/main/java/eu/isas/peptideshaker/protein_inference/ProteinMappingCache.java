@@ -0,0 +1,150 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the proteins mapped to the peptide sequences during the import of
+ * a project. The sequences are stored as matching sequences according to the
+ * sequence matching preferences so that sequences matching the same proteins
+ * are mapped only once, whatever the search engine or identification file
+ * they come from. The cache is thread safe.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinMappingCache implements MemoryGovernor.MemoryConsumer {
+
+    /**
+     * The protein accessions indexed by matching sequence.
+     */
+    private final ConcurrentHashMap<String, ArrayList<String>> mappings = new ConcurrentHashMap<String, ArrayList<String>>();
+
+    /**
+     * Constructor.
+     */
+    public ProteinMappingCache() {
+    }
+
+    /**
+     * Returns the key under which the proteins of a peptide sequence are
+     * stored, i.e. the matching sequence according to the given preferences.
+     *
+     * @param sequence the peptide sequence
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the key under which the proteins of the sequence are stored
+     */
+    public static String getMappingKey(String sequence, SequenceMatchingPreferences sequenceMatchingPreferences) {
+        return AminoAcid.getMatchingSequence(sequence, sequenceMatchingPreferences);
+    }
+
+    /**
+     * Returns the protein accessions stored for the given key, null if not in
+     * cache.
+     *
+     * @param mappingKey the key of the sequence as obtained from
+     * getMappingKey
+     *
+     * @return the protein accessions stored for the given key
+     */
+    public ArrayList<String> getParentProteins(String mappingKey) {
+        return mappings.get(mappingKey);
+    }
+
+    /**
+     * Stores the protein accessions of a sequence. Nothing is stored if the
+     * accessions are null.
+     *
+     * @param mappingKey the key of the sequence as obtained from
+     * getMappingKey
+     * @param accessions the protein accessions
+     */
+    public void putParentProteins(String mappingKey, ArrayList<String> accessions) {
+        if (accessions != null) {
+            mappings.put(mappingKey, new ArrayList<String>(accessions));
+        }
+    }
+
+    /**
+     * Sets the protein accessions stored for the given key to the peptide.
+     *
+     * @param mappingKey the key of the sequence of the peptide as obtained
+     * from getMappingKey
+     * @param peptide the peptide
+     *
+     * @return a boolean indicating whether the proteins of the sequence were
+     * in cache
+     */
+    public boolean setParentProteins(String mappingKey, Peptide peptide) {
+        ArrayList<String> accessions = mappings.get(mappingKey);
+        if (accessions == null) {
+            return false;
+        }
+        peptide.setParentProteins(new ArrayList<String>(accessions));
+        return true;
+    }
+
+    /**
+     * Maps a peptide to the proteins using the cache. Peptides already mapped
+     * are not changed. Otherwise, the proteins are taken from the cache if
+     * the sequence was already mapped, or mapped and stored in the cache.
+     *
+     * @param peptide the peptide
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a protein sequence
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while mapping the peptide
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database
+     */
+    public void mapPeptide(Peptide peptide, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        if (peptide.getParentProteinsNoRemapping() != null) {
+            return;
+        }
+        String mappingKey = getMappingKey(peptide.getSequence(), sequenceMatchingPreferences);
+        if (!setParentProteins(mappingKey, peptide)) {
+            putParentProteins(mappingKey, peptide.getParentProteins(sequenceMatchingPreferences));
+        }
+    }
+
+    /**
+     * Returns the number of sequences in cache.
+     *
+     * @return the number of sequences in cache
+     */
+    public int size() {
+        return mappings.size();
+    }
+
+    /**
+     * Removes all sequences from the cache.
+     */
+    public void clear() {
+        mappings.clear();
+    }
+
+    @Override
+    public boolean releaseMemory(double share) {
+        int nToRemove = (int) Math.ceil(share * mappings.size());
+        int nRemoved = 0;
+        Iterator<String> iterator = mappings.keySet().iterator();
+        while (nRemoved < nToRemove && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            nRemoved++;
+        }
+        return nRemoved > 0;
+    }
+}
@@ -0,0 +1,414 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Bipartite graph linking the protein groups to their proteins and peptides.
+ * Accessions, group keys and peptide keys are interned as integers and the
+ * adjacency is stored as bit sets so that group membership, subset and shared
+ * peptide queries do not need to parse keys or query the database.
+ *
+ * The graph can be queried concurrently. Groups of different connected
+ * components can be modified concurrently, see getConnectedComponents.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinPeptideGraph {
+
+    /**
+     * The index of every protein accession.
+     */
+    private final HashMap<String, Integer> accessionIndexes = new HashMap<String, Integer>();
+    /**
+     * The protein accessions indexed by their index.
+     */
+    private final ArrayList<String> accessions = new ArrayList<String>();
+    /**
+     * The index of every protein group key.
+     */
+    private final HashMap<String, Integer> groupIndexes = new HashMap<String, Integer>();
+    /**
+     * The protein group keys indexed by their index, in the order of the
+     * identification.
+     */
+    private final ArrayList<String> groupKeys = new ArrayList<String>();
+    /**
+     * The index of every peptide key.
+     */
+    private final HashMap<String, Integer> peptideIndexes = new HashMap<String, Integer>();
+    /**
+     * The proteins of every group.
+     */
+    private final ArrayList<BitSet> groupAccessions = new ArrayList<BitSet>();
+    /**
+     * The peptides of every group.
+     */
+    private final ArrayList<BitSet> groupPeptides = new ArrayList<BitSet>();
+    /**
+     * The groups containing every protein.
+     */
+    private final ArrayList<BitSet> accessionGroups = new ArrayList<BitSet>();
+    /**
+     * The groups containing every peptide.
+     */
+    private final ArrayList<BitSet> peptideGroups = new ArrayList<BitSet>();
+
+    /**
+     * Constructor. Builds the graph from the protein matches of the given
+     * identification, typically after the peptides and proteins were built.
+     *
+     * @param identification the identification containing the matches
+     * @param waitingHandler a waiting handler allowing canceling the process,
+     * can be null
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * loading the object from the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the object in the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while casting the database input in the desired match class
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the database
+     */
+    public ProteinPeptideGraph(Identification identification, WaitingHandler waitingHandler)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
+        while (proteinMatchesIterator.hasNext()) {
+            ProteinMatch proteinMatch = proteinMatchesIterator.next();
+            addGroup(proteinMatch.getKey(), proteinMatch.getPeptideMatchesKeys());
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a protein group to the graph.
+     *
+     * @param groupKey the key of the group
+     * @param peptideKeys the keys of the peptides of the group
+     */
+    private void addGroup(String groupKey, Collection<String> peptideKeys) {
+        int groupIndex = groupKeys.size();
+        groupKeys.add(groupKey);
+        groupIndexes.put(groupKey, groupIndex);
+        BitSet proteins = new BitSet();
+        for (String accession : ProteinMatch.getAccessions(groupKey)) {
+            Integer accessionIndex = accessionIndexes.get(accession);
+            if (accessionIndex == null) {
+                accessionIndex = accessions.size();
+                accessions.add(accession);
+                accessionIndexes.put(accession, accessionIndex);
+                accessionGroups.add(new BitSet());
+            }
+            proteins.set(accessionIndex);
+            accessionGroups.get(accessionIndex).set(groupIndex);
+        }
+        groupAccessions.add(proteins);
+        BitSet peptides = new BitSet();
+        for (String peptideKey : peptideKeys) {
+            Integer peptideIndex = peptideIndexes.get(peptideKey);
+            if (peptideIndex == null) {
+                peptideIndex = peptideGroups.size();
+                peptideIndexes.put(peptideKey, peptideIndex);
+                peptideGroups.add(new BitSet());
+            }
+            peptides.set(peptideIndex);
+            peptideGroups.get(peptideIndex).set(groupIndex);
+        }
+        groupPeptides.add(peptides);
+    }
+
+    /**
+     * Returns the index of a group, null if not in the graph.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return the index of the group
+     */
+    private Integer getGroupIndex(String groupKey) {
+        return groupIndexes.get(groupKey);
+    }
+
+    /**
+     * Returns the proteins of a group as bit set. An empty bit set is returned
+     * if the group is not in the graph.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return the proteins of the group
+     */
+    private BitSet getAccessionsBitSet(String groupKey) {
+        Integer groupIndex = getGroupIndex(groupKey);
+        if (groupIndex == null) {
+            return new BitSet(0);
+        }
+        return groupAccessions.get(groupIndex);
+    }
+
+    /**
+     * Returns the keys corresponding to the set bits of a bit set of groups.
+     *
+     * @param groups the groups as bit set
+     *
+     * @return the keys of the groups
+     */
+    private ArrayList<String> getGroupKeys(BitSet groups) {
+        ArrayList<String> result = new ArrayList<String>(groups.cardinality());
+        for (int i = groups.nextSetBit(0); i >= 0; i = groups.nextSetBit(i + 1)) {
+            result.add(groupKeys.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether a group is in the graph.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return a boolean indicating whether the group is in the graph
+     */
+    public boolean contains(String groupKey) {
+        Integer groupIndex = getGroupIndex(groupKey);
+        return groupIndex != null && !groupAccessions.get(groupIndex).isEmpty();
+    }
+
+    /**
+     * Returns the number of proteins in a group.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return the number of proteins in the group
+     */
+    public int getNProteins(String groupKey) {
+        return getAccessionsBitSet(groupKey).cardinality();
+    }
+
+    /**
+     * Returns the accessions of the proteins of a group.
+     *
+     * @param groupKey the key of the group
+     *
+     * @return the accessions of the proteins of the group
+     */
+    public ArrayList<String> getAccessions(String groupKey) {
+        BitSet proteins = getAccessionsBitSet(groupKey);
+        ArrayList<String> result = new ArrayList<String>(proteins.cardinality());
+        for (int i = proteins.nextSetBit(0); i >= 0; i = proteins.nextSetBit(i + 1)) {
+            result.add(accessions.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether a group contains all the proteins of another group.
+     * Returns false if the keys are the same.
+     *
+     * @param sharedKey the key of the shared group
+     * @param uniqueKey the key of the unique group
+     *
+     * @return a boolean indicating whether the shared group contains all the
+     * proteins of the unique group
+     */
+    public boolean contains(String sharedKey, String uniqueKey) {
+        if (sharedKey.equals(uniqueKey)) {
+            return false;
+        }
+        BitSet uniqueProteins = (BitSet) getAccessionsBitSet(uniqueKey).clone();
+        uniqueProteins.andNot(getAccessionsBitSet(sharedKey));
+        return uniqueProteins.isEmpty();
+    }
+
+    /**
+     * Indicates whether two groups have proteins in common.
+     *
+     * @param groupKey1 the key of the first group
+     * @param groupKey2 the key of the second group
+     *
+     * @return a boolean indicating whether the groups have proteins in common
+     */
+    public boolean hasCommonProteins(String groupKey1, String groupKey2) {
+        return getAccessionsBitSet(groupKey1).intersects(getAccessionsBitSet(groupKey2));
+    }
+
+    /**
+     * Returns the proteins of a group which are not in another group.
+     *
+     * @param sharedKey the key of the group of interest
+     * @param uniqueKey the key of the other group
+     *
+     * @return the proteins of the shared group which are not in the unique
+     * group
+     */
+    public ArrayList<String> getOtherProteins(String sharedKey, String uniqueKey) {
+        BitSet otherProteins = (BitSet) getAccessionsBitSet(sharedKey).clone();
+        otherProteins.andNot(getAccessionsBitSet(uniqueKey));
+        ArrayList<String> result = new ArrayList<String>(otherProteins.cardinality());
+        for (int i = otherProteins.nextSetBit(0); i >= 0; i = otherProteins.nextSetBit(i + 1)) {
+            result.add(accessions.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the keys of the groups containing a protein.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the keys of the groups containing the protein
+     */
+    public ArrayList<String> getGroups(String accession) {
+        Integer accessionIndex = accessionIndexes.get(accession);
+        if (accessionIndex == null) {
+            return new ArrayList<String>(0);
+        }
+        return getGroupKeys(accessionGroups.get(accessionIndex));
+    }
+
+    /**
+     * Returns the keys of the groups containing at least one of the given
+     * proteins, typically the parent proteins of a peptide.
+     *
+     * @param proteinAccessions the accessions of the proteins
+     *
+     * @return the keys of the groups containing at least one of the proteins
+     */
+    public ArrayList<String> getGroups(Collection<String> proteinAccessions) {
+        BitSet groups = new BitSet();
+        for (String accession : proteinAccessions) {
+            Integer accessionIndex = accessionIndexes.get(accession);
+            if (accessionIndex != null) {
+                groups.or(accessionGroups.get(accessionIndex));
+            }
+        }
+        return getGroupKeys(groups);
+    }
+
+    /**
+     * Returns the keys of the groups containing a peptide.
+     *
+     * @param peptideKey the key of the peptide
+     *
+     * @return the keys of the groups containing the peptide
+     */
+    public ArrayList<String> getPeptideGroups(String peptideKey) {
+        Integer peptideIndex = peptideIndexes.get(peptideKey);
+        if (peptideIndex == null) {
+            return new ArrayList<String>(0);
+        }
+        return getGroupKeys(peptideGroups.get(peptideIndex));
+    }
+
+    /**
+     * Returns the number of peptides shared by two groups.
+     *
+     * @param groupKey1 the key of the first group
+     * @param groupKey2 the key of the second group
+     *
+     * @return the number of peptides shared by the two groups
+     */
+    public int getNSharedPeptides(String groupKey1, String groupKey2) {
+        Integer groupIndex1 = getGroupIndex(groupKey1);
+        Integer groupIndex2 = getGroupIndex(groupKey2);
+        if (groupIndex1 == null || groupIndex2 == null) {
+            return 0;
+        }
+        BitSet sharedPeptides = (BitSet) groupPeptides.get(groupIndex1).clone();
+        sharedPeptides.and(groupPeptides.get(groupIndex2));
+        return sharedPeptides.cardinality();
+    }
+
+    /**
+     * Returns the connected components of the graph, i.e. the groups linked
+     * by shared proteins. Groups sharing no protein with another group are not
+     * returned. The components and the groups in every component are ordered
+     * like the identification.
+     *
+     * @return the keys of the groups of every connected component
+     */
+    public ArrayList<ArrayList<String>> getConnectedComponents() {
+        ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>();
+        BitSet visited = new BitSet(groupKeys.size());
+        for (int groupIndex = 0; groupIndex < groupKeys.size(); groupIndex++) {
+            if (!visited.get(groupIndex) && !groupAccessions.get(groupIndex).isEmpty()) {
+                BitSet component = new BitSet();
+                component.set(groupIndex);
+                BitSet toVisit = new BitSet();
+                toVisit.set(groupIndex);
+                BitSet visitedProteins = new BitSet();
+                while (!toVisit.isEmpty()) {
+                    int currentGroup = toVisit.nextSetBit(0);
+                    toVisit.clear(currentGroup);
+                    visited.set(currentGroup);
+                    BitSet proteins = groupAccessions.get(currentGroup);
+                    for (int i = proteins.nextSetBit(0); i >= 0; i = proteins.nextSetBit(i + 1)) {
+                        if (!visitedProteins.get(i)) {
+                            visitedProteins.set(i);
+                            BitSet newGroups = (BitSet) accessionGroups.get(i).clone();
+                            newGroups.andNot(component);
+                            component.or(newGroups);
+                            toVisit.or(newGroups);
+                        }
+                    }
+                }
+                if (component.cardinality() > 1) {
+                    result.add(getGroupKeys(component));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the peptides of a shared group to a unique group.
+     *
+     * @param sharedKey the key of the shared group
+     * @param uniqueKey the key of the unique group
+     */
+    public void mergeGroups(String sharedKey, String uniqueKey) {
+        Integer sharedIndex = getGroupIndex(sharedKey);
+        Integer uniqueIndex = getGroupIndex(uniqueKey);
+        if (sharedIndex == null || uniqueIndex == null) {
+            return;
+        }
+        BitSet sharedPeptides = groupPeptides.get(sharedIndex);
+        BitSet uniquePeptides = groupPeptides.get(uniqueIndex);
+        for (int i = sharedPeptides.nextSetBit(0); i >= 0; i = sharedPeptides.nextSetBit(i + 1)) {
+            if (!uniquePeptides.get(i)) {
+                uniquePeptides.set(i);
+                peptideGroups.get(i).set(uniqueIndex);
+            }
+        }
+    }
+
+    /**
+     * Removes a group from the graph.
+     *
+     * @param groupKey the key of the group
+     */
+    public void removeGroup(String groupKey) {
+        Integer groupIndex = getGroupIndex(groupKey);
+        if (groupIndex == null) {
+            return;
+        }
+        BitSet proteins = groupAccessions.get(groupIndex);
+        for (int i = proteins.nextSetBit(0); i >= 0; i = proteins.nextSetBit(i + 1)) {
+            accessionGroups.get(i).clear(groupIndex);
+        }
+        proteins.clear();
+        BitSet peptides = groupPeptides.get(groupIndex);
+        for (int i = peptides.nextSetBit(0); i >= 0; i = peptides.nextSetBit(i + 1)) {
+            peptideGroups.get(i).clear(groupIndex);
+        }
+        peptides.clear();
+    }
+}
@@ -16,7 +16,6 @@ import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
 import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
 import com.compomics.util.experiment.identification.ptm.PtmScore;
 import com.compomics.util.experiment.identification.ptm.PtmSiteMapping;
@@ -43,6 +42,8 @@ import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.PsmChunkProcessor;
+import eu.isas.peptideshaker.utils.SpectrumAnnotationCache;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.MathContext;
@@ -53,9 +54,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -83,6 +81,15 @@ public class PtmScorer {
      * The PSM PTM localization conflict map.
      */
     private PsmPTMMap psmPTMMap;
+    /**
+     * Cache for the spectrum annotations, null if annotations are not cached.
+     */
+    private SpectrumAnnotationCache spectrumAnnotationCache = null;
+    /**
+     * Lock making the verification and the change of peptide keys atomic when
+     * peptides are scored by multiple threads.
+     */
+    private final Object peptideKeyLock = new Object();
 
     /**
      * Constructor.
@@ -322,40 +329,20 @@ public class PtmScorer {
                 }
                 if (scores != null) {
                     // remap to searched PTMs
+                    PtmSiteCandidates siteCandidates = new PtmSiteCandidates(peptide, modifications.get(ptmMass), sequenceMatchingPreferences, ptmSequenceMatchingPreferences);
                     PTM mappedModification = null;
                     String peptideSequence = peptide.getSequence();
                     for (int site : scores.keySet()) {
-                        if (site == 0) {
-                            // N-term ptm
-                            for (PTM ptm : modifications.get(ptmMass)) {
-                                if (ptm.isNTerm() && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(1)) {
-                                    mappedModification = ptm;
-                                    break;
-                                }
-                            }
-                            if (mappedModification == null) {
+                        PTM sitePtm = siteCandidates.getPtm(site);
+                        if (sitePtm != null) {
+                            mappedModification = sitePtm;
+                        } else if (mappedModification == null) {
+                            if (site == 0) {
                                 throw new IllegalArgumentException("Could not map the PTM of mass " + ptmMass + " on the N-terminus of the peptide " + peptideSequence + ".");
-                            }
-                        } else if (site == peptideSequence.length() + 1) {
-                            // C-term ptm
-                            for (PTM ptm : modifications.get(ptmMass)) {
-                                if (ptm.isCTerm() && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(peptideSequence.length())) {
-                                    mappedModification = ptm;
-                                    break;
-                                }
-                            }
-                            if (mappedModification == null) {
+                            } else if (site == peptideSequence.length() + 1) {
                                 throw new IllegalArgumentException("Could not map the PTM of mass " + ptmMass + " on the C-terminus of the peptide " + peptideSequence + ".");
-                            }
-                        } else {
-                            for (PTM ptm : modifications.get(ptmMass)) {
-                                if (peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(site)) {
-                                    mappedModification = ptm;
-                                    break;
-                                }
-                            }
-                            if (mappedModification == null) {
-                                throw new IllegalArgumentException("Could not map the PTM of mass " + ptmMass + " at site " + site + " in peptide " + peptide.getSequence() + ".");
+                            } else {
+                                throw new IllegalArgumentException("Could not map the PTM of mass " + ptmMass + " at site " + site + " in peptide " + peptideSequence + ".");
                             }
                         }
 
@@ -970,10 +957,12 @@ public class PtmScorer {
 
         String newKey = peptide.getMatchingKey(sequenceMatchingPreferences);
         if (!newKey.equals(originalKey)) {
-            if (identification.getPeptideIdentification().contains(newKey)) {
-                throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
+            synchronized (peptideKeyLock) {
+                if (identification.getPeptideIdentification().contains(newKey)) {
+                    throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
+                }
+                identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
             }
-            identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
         } else {
             identification.updatePeptideMatch(peptideMatch);
         }
@@ -1409,149 +1398,125 @@ public class PtmScorer {
     }
 
     /**
-     * Scores the PTMs of all PSMs contained in an identification object.
+     * Scores the PTMs of a PSM and infers the PTM sites.
      *
      * @param identification identification object containing the identification
      * matches
-     * @param waitingHandler the handler displaying feedback to the user
-     * @param exceptionHandler handler for exceptions
+     * @param spectrumMatch the spectrum match to score, ignored if null or
+     * without best peptide assumption
      * @param identificationParameters the identification parameters
-     * @param metrics the dataset metrics
-     * @param processingPreferences the processing preferences
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param peptideSpectrumAnnotator the spectrum annotator to use, one per
+     * thread
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scorePsmPtms(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, IdentificationParameters identificationParameters,
-            Metrics metrics, ProcessingPreferences processingPreferences) throws Exception {
-
-        waitingHandler.setWaitingText("Scoring PSM PTMs. Please Wait...");
-
-        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
-
-        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-
-        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
-            ArrayList<String> spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, null, true, null);
-            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
-                PsmPtmScorerRunnable runnable = new PsmPtmScorerRunnable(psmIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
-                pool.submit(runnable);
-            }
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
-            }
-        }
-        pool.shutdown();
-        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM PTM scoring timed out. Please contact the developers.");
+    public void scorePsmPtms(Identification identification, SpectrumMatch spectrumMatch, IdentificationParameters identificationParameters,
+            WaitingHandler waitingHandler, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception {
+        if (spectrumMatch != null && spectrumMatch.getBestPeptideAssumption() != null) {
+            scorePTMs(identification, spectrumMatch, identificationParameters, waitingHandler, peptideSpectrumAnnotator);
+            ptmSiteInference(spectrumMatch, identificationParameters);
         }
     }
 
     /**
      * Scores the PTMs of all peptide matches contained in an identification
-     * object.
+     * object using multiple threads.
      *
      * @param identification identification object containing the identification
      * matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scorePeptidePtms(Identification identification, WaitingHandler waitingHandler, IdentificationParameters identificationParameters) throws Exception {
+    public void scorePeptidePtms(final Identification identification, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            final IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Peptide PTMs. Please Wait...");
 
-        int max = identification.getPeptideIdentification().size();
+        ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxSecondaryProgressCounter(max);
+        waitingHandler.setMaxSecondaryProgressCounter(peptideKeys.size());
 
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(new PSParameter());
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, null, waitingHandler);
-        while (peptideMatchesIterator.hasNext()) {
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
+
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+        psmChunkProcessor.processPeptides(peptideKeys, parameters, new PsmChunkProcessor.PeptideTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PeptideTask getPeptideTask() {
+                return new PsmChunkProcessor.PeptideTask() {
+                    @Override
+                    public void process(PeptideMatch peptideMatch) throws Exception {
+                        scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
+                    }
+                };
             }
-        }
+        }, waitingHandler, exceptionHandler);
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
      * Scores the PTMs of all protein matches contained in an identification
-     * object.
+     * object using multiple threads.
      *
      * @param identification identification object containing the identification
      * matches
      * @param metrics if provided, metrics on proteins will be saved while
      * iterating the matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param shotgunProtocol information on the protocol used
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator identification features generator
      * used to generate metrics which will be stored for later reuse
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scoreProteinPtms(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator) throws Exception {
+    public void scoreProteinPtms(final Identification identification, final Metrics metrics, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ShotgunProtocol shotgunProtocol,
+            final IdentificationParameters identificationParameters, final IdentificationFeaturesGenerator identificationFeaturesGenerator, ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Protein PTMs. Please Wait...");
 
-        int max = identification.getProteinIdentification().size();
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxSecondaryProgressCounter(max);
-
-        // If needed, while we are iterating proteins, we will take the maximal spectrum counting value and number of validated proteins as well.
-        int nValidatedProteins = 0;
-        int nConfidentProteins = 0;
-        double tempSpectrumCounting, maxSpectrumCounting = 0;
+        waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
 
-        PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-
-        while (proteinMatchesIterator.hasNext()) {
-
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
-
-            scorePTMs(identification, proteinMatch, identificationParameters, false, waitingHandler);
+        parameters.add(new PSParameter());
 
-            if (metrics != null) {
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-                if (psParameter.getMatchValidationLevel().isValidated()) {
-                    nValidatedProteins++;
-                    if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
-                        nConfidentProteins++;
-                    }
-                }
-                if (identificationFeaturesGenerator != null) {
-                    tempSpectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
-                    if (tempSpectrumCounting > maxSpectrumCounting) {
-                        maxSpectrumCounting = tempSpectrumCounting;
-                    }
-                }
-            }
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
+        final ArrayList<ProteinPtmScorerTask> proteinTasks = new ArrayList<ProteinPtmScorerTask>(processingPreferences.getnThreads());
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+        psmChunkProcessor.processProteins(proteinKeys, parameters, true, true, new PsmChunkProcessor.ProteinTaskFactory() {
+            @Override
+            public PsmChunkProcessor.ProteinTask getProteinTask() {
+                ProteinPtmScorerTask proteinTask = new ProteinPtmScorerTask(identification, identificationParameters, identificationFeaturesGenerator, metrics != null, waitingHandler);
+                proteinTasks.add(proteinTask);
+                return proteinTask;
             }
+        }, waitingHandler, exceptionHandler);
+
+        if (waitingHandler.isRunCanceled()) {
+            return;
         }
+
         if (metrics != null) {
+            int nValidatedProteins = 0;
+            int nConfidentProteins = 0;
+            double maxSpectrumCounting = 0;
+            for (ProteinPtmScorerTask proteinTask : proteinTasks) {
+                nValidatedProteins += proteinTask.getnValidatedProteins();
+                nConfidentProteins += proteinTask.getnConfidentProteins();
+                maxSpectrumCounting = Math.max(maxSpectrumCounting, proteinTask.getMaxSpectrumCounting());
+            }
             metrics.setMaxSpectrumCounting(maxSpectrumCounting);
             metrics.setnValidatedProteins(nValidatedProteins);
             metrics.setnConfidentProteins(nConfidentProteins);
@@ -1710,6 +1675,14 @@ public class PtmScorer {
                 ArrayList<String> spectrumKeys = peptidesOfFile.get(ptmMass);
                 PsmIterator psmIterator = identification.getPsmIterator(spectrumKeys, true, waitingHandler);
 
+                ArrayList<PTM> ptmsAtMass = new ArrayList<PTM>(1);
+                for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                    PTM ptm = ptmFactory.getPTM(ptmName);
+                    if (ptm.getMass() == ptmMass) { // @TODO: compare against the accuracy
+                        ptmsAtMass.add(ptm);
+                    }
+                }
+
                 while (psmIterator.hasNext()) {
 
                     SpectrumMatch spectrumMatch = psmIterator.next();
@@ -1721,6 +1694,7 @@ public class PtmScorer {
                     int nMod = Peptide.getModificationCount(notConfidentKey, ptmMass);
                     ArrayList<Integer> tempLocalizations, oldLocalizations = Peptide.getNModificationLocalized(notConfidentKey, ptmMass);
                     ArrayList<Integer> newLocalizationCandidates = new ArrayList<Integer>(oldLocalizations.size());
+                    PtmSiteCandidates siteCandidates = null;
 
                     HashMap<String, ArrayList<String>> ptmConfidentPeptides = confidentPeptideInference.get(ptmMass);
 
@@ -1781,13 +1755,10 @@ public class PtmScorer {
                                                     }
                                                     boolean candidatePtm = false;
                                                     if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
+                                                        if (siteCandidates == null) {
+                                                            siteCandidates = new PtmSiteCandidates(peptide, ptmsAtMass, sequenceMatchingPreferences, ptmSequenceMatchingPreferences);
                                                         }
+                                                        candidatePtm = siteCandidates.isCandidate(shiftedLocalization);
                                                     }
                                                     if (candidatePtm && !siteOccupied) {
                                                         newLocalizationCandidates.add(shiftedLocalization);
@@ -1820,13 +1791,10 @@ public class PtmScorer {
                                                     }
                                                     boolean candidatePtm = false;
                                                     if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
+                                                        if (siteCandidates == null) {
+                                                            siteCandidates = new PtmSiteCandidates(peptide, ptmsAtMass, sequenceMatchingPreferences, ptmSequenceMatchingPreferences);
                                                         }
+                                                        candidatePtm = siteCandidates.isCandidate(shiftedLocalization);
                                                     }
                                                     if (candidatePtm && !siteOccupied) {
                                                         newLocalizationCandidates.add(shiftedLocalization);
@@ -1859,17 +1827,14 @@ public class PtmScorer {
                                 }
                                 if (newLocalization != null) {
                                     if (!newLocalization.equals(oldLocalization)) {
-                                        String ptmCandidateName = null;
-                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(newLocalization)) { // @TODO: compare against the accuracy
-                                                ptmCandidateName = ptm.getName();
-                                                break;
-                                            }
+                                        if (siteCandidates == null) {
+                                            siteCandidates = new PtmSiteCandidates(peptide, ptmsAtMass, sequenceMatchingPreferences, ptmSequenceMatchingPreferences);
                                         }
-                                        if (ptmCandidateName == null) {
+                                        PTM candidatePtm = siteCandidates.getPtm(newLocalization);
+                                        if (candidatePtm == null) {
                                             throw new IllegalArgumentException("No PTM found for site " + newLocalization + " on  peptide " + peptide.getSequence() + " in spectrum " + spectrumKey + ".");
                                         }
+                                        String ptmCandidateName = candidatePtm.getName();
                                         modificationMatch.setModificationSite(newLocalization);
                                         modificationMatch.setTheoreticPtm(ptmCandidateName);
                                         PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
@@ -2304,73 +2269,142 @@ public class PtmScorer {
     }
 
     /**
-     * Runnable scoring PSM PTMs.
+     * Returns the cache where the spectrum annotations are stored, null if
+     * annotations are not cached.
+     *
+     * @return the cache where the spectrum annotations are stored
+     */
+    public SpectrumAnnotationCache getSpectrumAnnotationCache() {
+        return spectrumAnnotationCache;
+    }
+
+    /**
+     * Sets the cache where to store the spectrum annotations. Null to not
+     * cache annotations.
+     *
+     * @param spectrumAnnotationCache the cache where to store the spectrum
+     * annotations
+     */
+    public void setSpectrumAnnotationCache(SpectrumAnnotationCache spectrumAnnotationCache) {
+        this.spectrumAnnotationCache = spectrumAnnotationCache;
+    }
+
+    /**
+     * Task scoring the PTMs of protein matches. If requested, the metrics on
+     * the proteins are gathered while processing the matches.
      *
      * @author Marc Vaudel
      */
-    private class PsmPtmScorerRunnable implements Runnable {
+    private class ProteinPtmScorerTask implements PsmChunkProcessor.ProteinTask {
 
-        /**
-         * An iterator for the PSMs.
-         */
-        private PsmIterator psmIterator;
         /**
          * The identification.
          */
-        private Identification identification;
+        private final Identification identification;
         /**
          * The identification parameters.
          */
-        private IdentificationParameters identificationParameters;
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator used to estimate the spectrum
+         * counting, can be null.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * Boolean indicating whether the protein metrics should be gathered.
+         */
+        private final boolean gatherMetrics;
         /**
          * The waiting handler.
          */
-        private WaitingHandler waitingHandler;
+        private final WaitingHandler waitingHandler;
         /**
-         * Handler for the exceptions.
+         * The PSParameter used to load the protein parameters.
          */
-        private ExceptionHandler exceptionHandler;
+        private PSParameter psParameter = new PSParameter();
         /**
-         * The peptide spectrum annotator.
+         * The number of validated proteins processed by this thread.
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private int nValidatedProteins = 0;
+        /**
+         * The number of confident proteins processed by this thread.
+         */
+        private int nConfidentProteins = 0;
+        /**
+         * The maximal spectrum counting of the proteins processed by this
+         * thread.
+         */
+        private double maxSpectrumCounting = 0;
 
         /**
          * Constructor.
          *
-         * @param psmIterator a PSM iterator
          * @param identification the identification containing the matches
          * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator used to estimate the spectrum counting, can be null
+         * @param gatherMetrics boolean indicating whether the protein metrics
+         * should be gathered
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
-         * @param exceptionHandler handler for exceptions
          */
-        public PsmPtmScorerRunnable(PsmIterator psmIterator, Identification identification,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
-            this.psmIterator = psmIterator;
+        public ProteinPtmScorerTask(Identification identification, IdentificationParameters identificationParameters,
+                IdentificationFeaturesGenerator identificationFeaturesGenerator, boolean gatherMetrics, WaitingHandler waitingHandler) {
             this.identification = identification;
             this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.gatherMetrics = gatherMetrics;
             this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
         }
 
         @Override
-        public void run() {
-            try {
-                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
-                    SpectrumMatch spectrumMatch = psmIterator.next();
-                    if (spectrumMatch != null && spectrumMatch.getBestPeptideAssumption() != null) {
-                        scorePTMs(identification, spectrumMatch, identificationParameters, waitingHandler, peptideSpectrumAnnotator);
-                        ptmSiteInference(spectrumMatch, identificationParameters);
+        public void process(ProteinMatch proteinMatch) throws Exception {
+            String proteinKey = proteinMatch.getKey();
+            scorePTMs(identification, proteinMatch, identificationParameters, false, waitingHandler);
+            if (gatherMetrics) {
+                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                if (psParameter.getMatchValidationLevel().isValidated()) {
+                    nValidatedProteins++;
+                    if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
+                        nConfidentProteins++;
                     }
-                    if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
-                        waitingHandler.increaseSecondaryProgressCounter();
+                }
+                if (identificationFeaturesGenerator != null) {
+                    double spectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
+                    if (spectrumCounting > maxSpectrumCounting) {
+                        maxSpectrumCounting = spectrumCounting;
                     }
                 }
-            } catch (Exception e) {
-                exceptionHandler.catchException(e);
-                waitingHandler.setRunCanceled();
             }
         }
+
+        /**
+         * Returns the number of validated proteins processed by this thread.
+         *
+         * @return the number of validated proteins processed by this thread
+         */
+        public int getnValidatedProteins() {
+            return nValidatedProteins;
+        }
+
+        /**
+         * Returns the number of confident proteins processed by this thread.
+         *
+         * @return the number of confident proteins processed by this thread
+         */
+        public int getnConfidentProteins() {
+            return nConfidentProteins;
+        }
+
+        /**
+         * Returns the maximal spectrum counting of the proteins processed by
+         * this thread.
+         *
+         * @return the maximal spectrum counting of the proteins processed by
+         * this thread
+         */
+        public double getMaxSpectrumCounting() {
+            return maxSpectrumCounting;
+        }
     }
 }
@@ -0,0 +1,94 @@
+package eu.isas.peptideshaker.ptm;
+
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * The candidate modifications of every site of a peptide for a list of PTMs
+ * of the same mass. The potential modification sites of every PTM are
+ * computed once and stored in an array indexed by site: 0 for the N-terminus,
+ * 1 to the peptide length for the amino acids and the peptide length + 1 for
+ * the C-terminus. For every site, the first PTM of the list which can be
+ * located there is retained.
+ *
+ * @author Marc Vaudel
+ */
+public class PtmSiteCandidates {
+
+    /**
+     * The PTM which can be located at every site, null if none.
+     */
+    private final PTM[] sitePtms;
+
+    /**
+     * Constructor.
+     *
+     * @param peptide the peptide
+     * @param ptms the PTMs to locate on the peptide, in order of preference
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param ptmSequenceMatchingPreferences the sequence matching preferences
+     * for PTM to peptide mapping
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a protein sequence
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while reading a protein sequence
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing a protein sequence
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     */
+    public PtmSiteCandidates(Peptide peptide, ArrayList<PTM> ptms, SequenceMatchingPreferences sequenceMatchingPreferences,
+            SequenceMatchingPreferences ptmSequenceMatchingPreferences) throws IOException, InterruptedException, ClassNotFoundException, SQLException {
+
+        int length = peptide.getSequence().length();
+        sitePtms = new PTM[length + 2];
+
+        for (PTM ptm : ptms) {
+            ArrayList<Integer> potentialSites = peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences);
+            for (int site : potentialSites) {
+                if (site >= 1 && site <= length && sitePtms[site] == null) {
+                    sitePtms[site] = ptm;
+                }
+            }
+            if (ptm.isNTerm() && sitePtms[0] == null && potentialSites.contains(1)) {
+                sitePtms[0] = ptm;
+            }
+            if (ptm.isCTerm() && sitePtms[length + 1] == null && potentialSites.contains(length)) {
+                sitePtms[length + 1] = ptm;
+            }
+        }
+    }
+
+    /**
+     * Returns the PTM which can be located at the given site, null if none.
+     *
+     * @param site the site: 0 for the N-terminus, 1 to the peptide length for
+     * the amino acids and the peptide length + 1 for the C-terminus
+     *
+     * @return the PTM which can be located at the given site
+     */
+    public PTM getPtm(int site) {
+        if (site < 0 || site >= sitePtms.length) {
+            return null;
+        }
+        return sitePtms[site];
+    }
+
+    /**
+     * Indicates whether a PTM can be located at the given site.
+     *
+     * @param site the site: 0 for the N-terminus, 1 to the peptide length for
+     * the amino acids and the peptide length + 1 for the C-terminus
+     *
+     * @return a boolean indicating whether a PTM can be located at the given
+     * site
+     */
+    public boolean isCandidate(int site) {
+        return getPtm(site) != null;
+    }
+}
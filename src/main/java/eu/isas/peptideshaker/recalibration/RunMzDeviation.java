@@ -18,8 +18,11 @@ import com.compomics.util.experiment.identification.spectrum_annotation.Specific
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -34,22 +37,28 @@ public class RunMzDeviation {
      */
     private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
     /**
-     * The precursor slopes.
+     * The retention times of the precursor bins in ascending order.
      */
-    private HashMap<Double, Double> precursorSlopes = new HashMap<Double, Double>();
+    private double[] precursorRTs;
     /**
-     * The precursor offsets.
+     * The precursor slopes, one per precursor retention time bin.
      */
-    private HashMap<Double, Double> precursorOffsets = new HashMap<Double, Double>();
+    private double[] precursorSlopes;
     /**
-     * The precursor RT list.
+     * The precursor offsets, one per precursor retention time bin.
      */
-    private ArrayList<Double> precursorRTList;
+    private double[] precursorOffsets;
     /**
-     * The fragments errors binned by mz and rt. error = experimental value -
-     * theoretic (identification) value.
+     * The m/z of the fragment bins in ascending order, one array per
+     * precursor retention time bin.
      */
-    private HashMap<Double, HashMap<Double, Double>> fragmentsRtDeviations = new HashMap<Double, HashMap<Double, Double>>();
+    private double[][] fragmentMzs;
+    /**
+     * The fragments errors, one array per precursor retention time bin
+     * aligned with fragmentMzs. error = experimental value - theoretic
+     * (identification) value.
+     */
+    private double[][] fragmentErrors;
     /**
      * The bin size used for ms2 correction.
      */
@@ -62,6 +71,28 @@ public class RunMzDeviation {
      * The bin size in m/z in number of MS/MS spectra.
      */
     public static final int mzBinSize = 101;
+    /**
+     * The number of retention time cells of the grid gathering the errors.
+     */
+    public static final int N_RT_CELLS = 64;
+    /**
+     * The number of precursor m/z cells of the grid gathering the errors.
+     */
+    public static final int N_PRECURSOR_MZ_CELLS = 32;
+    /**
+     * The number of fragment m/z cells of the grid gathering the errors.
+     */
+    public static final int N_FRAGMENT_MZ_CELLS = 64;
+    /**
+     * The number of bins of the histograms used to estimate the median
+     * errors.
+     */
+    public static final int N_HISTOGRAM_BINS = 128;
+    /**
+     * The grid gathering the errors of the run, null once the deviations are
+     * estimated.
+     */
+    private DeviationGrid deviationGrid;
 
     /**
      * Returns the list of precursor retention time bins.
@@ -69,7 +100,11 @@ public class RunMzDeviation {
      * @return the list of precursor retention time bins
      */
     public ArrayList<Double> getPrecursorRTList() {
-        return precursorRTList;
+        ArrayList<Double> result = new ArrayList<Double>(precursorRTs.length);
+        for (double rt : precursorRTs) {
+            result.add(rt);
+        }
+        return result;
     }
 
     /**
@@ -81,7 +116,12 @@ public class RunMzDeviation {
      * @return the list for fragment ion m/z bins
      */
     public ArrayList<Double> getFragmentMZList(double precursorRT) {
-        return new ArrayList<Double>(fragmentsRtDeviations.get(precursorRT).keySet());
+        double[] mzs = fragmentMzs[Arrays.binarySearch(precursorRTs, precursorRT)];
+        ArrayList<Double> result = new ArrayList<Double>(mzs.length);
+        for (double mz : mzs) {
+            result.add(mz);
+        }
+        return result;
     }
 
     /**
@@ -93,7 +133,8 @@ public class RunMzDeviation {
      * @return the precursor m/z deviation slope
      */
     public Double getSlope(Double rtBin) {
-        return precursorSlopes.get(rtBin);
+        int index = Arrays.binarySearch(precursorRTs, rtBin);
+        return index >= 0 ? precursorSlopes[index] : null;
     }
 
     /**
@@ -105,7 +146,33 @@ public class RunMzDeviation {
      * @return the precursor m/z deviation offset
      */
     public Double getOffset(Double rtBin) {
-        return precursorOffsets.get(rtBin);
+        int index = Arrays.binarySearch(precursorRTs, rtBin);
+        return index >= 0 ? precursorOffsets[index] : null;
+    }
+
+    /**
+     * Returns the indexes of the bins surrounding the given value in a sorted
+     * array of bins. Both indexes are the same if the value is outside the
+     * range of the bins or equal to a bin.
+     *
+     * @param bins the bins in ascending order
+     * @param value the value
+     *
+     * @return the indexes of the lower and upper bins
+     */
+    private static int[] getSurroundingBins(double[] bins, double value) {
+        int index = Arrays.binarySearch(bins, value);
+        if (index >= 0) {
+            return new int[]{index, index};
+        }
+        int insertion = -index - 1;
+        if (insertion == 0) {
+            return new int[]{0, 0};
+        }
+        if (insertion == bins.length) {
+            return new int[]{bins.length - 1, bins.length - 1};
+        }
+        return new int[]{insertion - 1, insertion};
     }
 
     /**
@@ -118,30 +185,9 @@ public class RunMzDeviation {
      * @return the median error
      */
     public double getPrecursorMzCorrection(Double precursorMz, Double precursorRT) {
-
-        double key1 = precursorRTList.get(0);
-        double key2 = key1;
-
-        if (precursorRT > key1) {
-            key1 = precursorRTList.get(precursorRTList.size() - 1);
-            key2 = key1;
-            if (precursorRT < key1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    key1 = precursorRTList.get(i);
-                    if (precursorRT == key1) {
-                        key2 = precursorRT;
-                        break;
-                    }
-                    key2 = precursorRTList.get(i + 1);
-                    if (key1 < precursorRT && precursorRT < key2) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        double grade = (precursorSlopes.get(key1) + precursorSlopes.get(key2)) / 2;
-        double offset = (precursorOffsets.get(key1) + precursorOffsets.get(key2)) / 2;
+        int[] rtBins = getSurroundingBins(precursorRTs, precursorRT);
+        double grade = (precursorSlopes[rtBins[0]] + precursorSlopes[rtBins[1]]) / 2;
+        double offset = (precursorOffsets[rtBins[0]] + precursorOffsets[rtBins[1]]) / 2;
         return grade * precursorMz + offset;
     }
 
@@ -154,83 +200,46 @@ public class RunMzDeviation {
      * @return the error found
      */
     public Double getFragmentMzError(double precursorRT, double fragmentMZ) {
+        return interpolateFragmentMzError(getSurroundingBins(precursorRTs, precursorRT), fragmentMZ);
+    }
 
-        double rtKey1 = precursorRTList.get(0);
-        double rtKey2 = rtKey1;
-
-        if (precursorRT > rtKey1) {
-            rtKey1 = precursorRTList.get(precursorRTList.size() - 1);
-            rtKey2 = rtKey1;
-            if (precursorRT < rtKey1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    rtKey1 = precursorRTList.get(i);
-                    if (precursorRT == rtKey1) {
-                        rtKey2 = precursorRT;
-                        break;
-                    }
-                    rtKey2 = precursorRTList.get(i + 1);
-                    if (rtKey1 < precursorRT && precursorRT < rtKey2) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        ArrayList<Double> mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey1).keySet());
-        Collections.sort(mzList);
-        double mzKey1 = mzList.get(0);
-        double mzKey2 = mzKey1;
-
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        double correction11 = fragmentsRtDeviations.get(rtKey1).get(mzKey1);
-        double correction12 = fragmentsRtDeviations.get(rtKey1).get(mzKey2);
-        double correction1 = correction11 * mzKey1 / (mzKey1 + mzKey2) + correction12 * mzKey2 / (mzKey1 + mzKey2);
-
-        mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey2).keySet());
-        Collections.sort(mzList);
-        mzKey1 = mzList.get(0);
-        mzKey2 = mzKey1;
+    /**
+     * Returns the fragment error at the given retention time bins and
+     * fragment m/z.
+     *
+     * @param rtBins the indexes of the retention time bins surrounding the
+     * precursor retention time
+     * @param fragmentMZ the fragment m/z
+     *
+     * @return the error found
+     */
+    private double interpolateFragmentMzError(int[] rtBins, double fragmentMZ) {
+        double rtKey1 = precursorRTs[rtBins[0]];
+        double rtKey2 = precursorRTs[rtBins[1]];
+        double correction1 = getBinFragmentMzError(rtBins[0], fragmentMZ);
+        double correction2 = getBinFragmentMzError(rtBins[1], fragmentMZ);
+        return correction1 * rtKey1 / (rtKey1 + rtKey2) + correction2 * rtKey2 / (rtKey1 + rtKey2);
+    }
 
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
+    /**
+     * Returns the fragment error at the given fragment m/z in the given
+     * retention time bin. 0 if no fragment error was found in this bin.
+     *
+     * @param rtBin the index of the retention time bin
+     * @param fragmentMZ the fragment m/z
+     *
+     * @return the error found
+     */
+    private double getBinFragmentMzError(int rtBin, double fragmentMZ) {
+        double[] mzs = fragmentMzs[rtBin];
+        if (mzs.length == 0) {
+            return 0.0;
         }
-
-        double correction21 = fragmentsRtDeviations.get(rtKey2).get(mzKey1);
-        double correction22 = fragmentsRtDeviations.get(rtKey2).get(mzKey2);
-        double correction2 = correction21 * mzKey1 / (mzKey1 + mzKey2) + correction22 * mzKey2 / (mzKey1 + mzKey2);
-
-        return correction1 * rtKey1 / (rtKey1 + rtKey2) + correction2 * rtKey2 / (rtKey1 + rtKey2);
+        double[] errors = fragmentErrors[rtBin];
+        int[] mzBins = getSurroundingBins(mzs, fragmentMZ);
+        double mzKey1 = mzs[mzBins[0]];
+        double mzKey2 = mzs[mzBins[1]];
+        return errors[mzBins[0]] * mzKey1 / (mzKey1 + mzKey2) + errors[mzBins[1]] * mzKey2 / (mzKey1 + mzKey2);
     }
 
     /**
@@ -243,9 +252,10 @@ public class RunMzDeviation {
      */
     public HashMap<Double, Peak> recalibratePeakList(double precursorRT, HashMap<Double, Peak> originalPeakList) {
         HashMap<Double, Peak> recalibratedPeakList = new HashMap<Double, Peak>(originalPeakList.size());
+        int[] rtBins = getSurroundingBins(precursorRTs, precursorRT);
 
         for (double mz : originalPeakList.keySet()) {
-            double correction = getFragmentMzError(precursorRT, mz);
+            double correction = interpolateFragmentMzError(rtBins, mz);
             double newMz = mz - correction;
             Peak peak = new Peak(newMz, originalPeakList.get(mz).intensity);
             recalibratedPeakList.put(newMz, peak);
@@ -254,7 +264,9 @@ public class RunMzDeviation {
     }
 
     /**
-     * Creates a map of m/z deviations for a given run.
+     * Creates a map of m/z deviations for a given run. The progress of the
+     * waiting handler is increased by one for every PSM, the maximal value
+     * should be set by the caller.
      *
      * @param spectrumFileName the name of the file of the run
      * @param identification the corresponding identification
@@ -275,102 +287,72 @@ public class RunMzDeviation {
      */
     public RunMzDeviation(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+        this(spectrumFileName, identification, identificationParameters, 1, waitingHandler);
+    }
 
-        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
-        PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
-        ms2Bin = 100 * annotationPreferences.getFragmentIonAccuracy();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, ArrayList<Double>> spectrumFragmentMap;
+    /**
+     * Creates a map of m/z deviations for a given run using the given number
+     * of threads to annotate the spectra. The PSMs are annotated by blocks and
+     * the errors of the blocks are gathered in the order of the PSM iterator,
+     * the deviations obtained are thus the same for any number of threads. The
+     * progress of the waiting handler is increased by one for every PSM, the
+     * maximal value should be set by the caller.
+     *
+     * @param spectrumFileName the name of the file of the run
+     * @param identification the corresponding identification
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler displaying the progress and
+     * allowing the user to cancel the process. Can be null
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    public RunMzDeviation(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+
+        this(100 * identificationParameters.getAnnotationPreferences().getFragmentIonAccuracy());
 
         PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
-        if (waitingHandler != null) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getSpectrumTitles(spectrumFileName).size());
-        }
-
         PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
 
-        while (psmIterator.hasNext()) {
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                break;
-            }
-
-            SpectrumMatch spectrumMatch = psmIterator.next();
-            String spectrumKey = spectrumMatch.getKey();
-
-            psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+        if (nThreads <= 1) {
 
-            if (psParameter.getMatchValidationLevel().isValidated()) {
+            PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
 
-                Precursor precursor = spectrumFactory.getPrecursor(spectrumKey);
-                double precursorMz = precursor.getMz();
-                double precursorRT = precursor.getRt();
+            while (psmIterator.hasNext()) {
 
-                if (!precursorRawMap.containsKey(precursorRT)) {
-                    precursorRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
-                }
-                if (!precursorRawMap.get(precursorRT).containsKey(precursorMz)) {
-                    precursorRawMap.get(precursorRT).put(precursorMz, new ArrayList<Double>());
+                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                    break;
                 }
 
-                PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
+                SpectrumMatch spectrumMatch = psmIterator.next();
+                PsmDeviation psmDeviation = getPsmDeviation(spectrumMatch, identification, identificationParameters, spectrumAnnotator, psParameter);
 
-                if (bestPeptideAssumption != null) {
-
-                    SearchParameters searchParameters = identificationParameters.getSearchParameters();
-                    double error = bestPeptideAssumption.getDeltaMass(precursorMz, false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
-                    precursorRawMap.get(precursorRT).get(precursorMz).add(error);
-
-                    MSnSpectrum currentSpectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(currentSpectrum.getSpectrumKey(), bestPeptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                    ArrayList<IonMatch> ionMatches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
-                            (MSnSpectrum) currentSpectrum, bestPeptideAssumption.getPeptide());
-                    spectrumFragmentMap = new HashMap<Double, ArrayList<Double>>();
-
-                    for (IonMatch ionMatch : ionMatches) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        double fragmentMz = ionMatch.peak.mz;
-                        int roundedValue = (int) (fragmentMz / ms2Bin);
-                        double fragmentMzKey = (double) roundedValue * ms2Bin;
-
-                        if (!spectrumFragmentMap.containsKey(fragmentMzKey)) {
-                            spectrumFragmentMap.put(fragmentMzKey, new ArrayList<Double>());
-                        }
-
-                        spectrumFragmentMap.get(fragmentMzKey).add(ionMatch.getAbsoluteError());
-                    }
-
-                    if (!fragmentRawMap.containsKey(precursorRT)) {
-                        fragmentRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
-                    }
-
-                    for (double key : spectrumFragmentMap.keySet()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        if (!fragmentRawMap.get(precursorRT).containsKey(key)) {
-                            fragmentRawMap.get(precursorRT).put(key, new ArrayList<Double>());
-                        }
+                if (psmDeviation != null) {
+                    psmDeviation.addTo(deviationGrid);
+                }
 
-                        fragmentRawMap.get(precursorRT).get(key).add(BasicMathFunctions.median(spectrumFragmentMap.get(key)));
-                    }
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
             }
 
-            if (waitingHandler != null) {
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
+        } else {
+
+            DeviationCollector deviationCollector = new DeviationCollector(psmIterator, waitingHandler);
+            deviationCollector.collect(identification, identificationParameters, nThreads);
         }
 
         if (waitingHandler != null) {
@@ -380,399 +362,1094 @@ public class RunMzDeviation {
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        ArrayList<Double> keys = new ArrayList<Double>(precursorRawMap.keySet());
-        if (keys.isEmpty()) {
+        estimateDeviations(spectrumFileName, waitingHandler);
+    }
+
+    /**
+     * Creates an empty map of m/z deviations. The errors of the validated PSMs
+     * are added using addErrors and the deviations are then estimated using
+     * estimateDeviations.
+     *
+     * @param ms2Bin the bin size used for ms2 correction
+     */
+    RunMzDeviation(double ms2Bin) {
+        this.ms2Bin = ms2Bin;
+        deviationGrid = new DeviationGrid(ms2Bin);
+    }
+
+    /**
+     * Adds the errors of a validated PSM.
+     *
+     * @param precursorRT the precursor retention time
+     * @param precursorMz the precursor m/z
+     * @param precursorError the precursor error, null if no best peptide
+     * assumption was found
+     * @param fragmentErrors the median fragment error in every fragment m/z
+     * bin, ignored if the precursor error is null
+     */
+    void addErrors(double precursorRT, double precursorMz, Double precursorError, HashMap<Double, Double> fragmentErrors) {
+        deviationGrid.add(precursorRT, precursorMz, precursorError, fragmentErrors);
+    }
+
+    /**
+     * Estimates the precursor and fragment deviations from the errors
+     * gathered in the grid. Consecutive retention time cells are grouped so
+     * that every bin contains more than rtBinSize precursor errors,
+     * consecutive bins overlapping. If the run has not enough errors, a single
+     * bin is used.
+     *
+     * @param spectrumFileName the name of the file of the run
+     * @param waitingHandler a waiting handler allowing the user to cancel the
+     * process. Can be null
+     */
+    void estimateDeviations(String spectrumFileName, WaitingHandler waitingHandler) {
+
+        int[] nErrors = new int[N_RT_CELLS];
+        int total = 0;
+        for (int i = 0; i < N_RT_CELLS; i++) {
+            nErrors[i] = deviationGrid.getNPrecursorErrors(i);
+            total += nErrors[i];
+        }
+        if (total == 0) {
             throw new IllegalArgumentException("No validated PSM found for file " + spectrumFileName + ".");
         }
-        Collections.sort(keys);
-        int cpt1 = 0;
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
 
-        for (double rt : keys) {
+        DeviationBins deviationBins = new DeviationBins();
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                break;
-            }
+        if (total > rtBinSize) {
 
-            HashMap<Double, ArrayList<Double>> tempValues = precursorRawMap.get(rt);
-            precursorTempMap.put(rt, tempValues);
-            fragmentTempMap.put(rt, fragmentRawMap.get(rt));
+            int start = 0;
+            int count = 0;
 
-            for (ArrayList<Double> errors : tempValues.values()) {
+            for (int end = 0; end < N_RT_CELLS; end++) {
 
                 if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+                    return;
                 }
 
-                cpt1 += errors.size();
-            }
-
-            if (cpt1 > rtBinSize && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                count += nErrors[end];
 
-                ArrayList<Double> rtList = new ArrayList<Double>(precursorTempMap.keySet());
-                Collections.sort(rtList);
-                double rtRef = BasicMathFunctions.median(rtList);
-                HashMap<Double, ArrayList<Double>> mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
+                if (count > rtBinSize) {
 
-                for (HashMap<Double, ArrayList<Double>> errors : precursorTempMap.values()) {
+                    addBin(deviationBins, deviationGrid, start, end + 1);
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    for (double mz : errors.keySet()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
+                    do {
+                        count -= nErrors[start];
+                        start++;
+                    } while (count > rtBinSize && start <= end);
+                }
+            }
 
-                        if (!mzToErrorMap.containsKey(mz)) {
-                            mzToErrorMap.put(mz, new ArrayList<Double>());
-                        }
+        } else {
+            addBin(deviationBins, deviationGrid, 0, N_RT_CELLS);
+        }
 
-                        mzToErrorMap.get(mz).addAll(errors.get(mz));
-                    }
-                }
+        int nBins = deviationBins.rts.size();
+        precursorRTs = new double[nBins];
+        precursorSlopes = new double[nBins];
+        precursorOffsets = new double[nBins];
+        fragmentMzs = new double[nBins][];
+        this.fragmentErrors = new double[nBins][];
+        for (int i = 0; i < nBins; i++) {
+            precursorRTs[i] = deviationBins.rts.get(i);
+            precursorSlopes[i] = deviationBins.slopes.get(i);
+            precursorOffsets[i] = deviationBins.offsets.get(i);
+            fragmentMzs[i] = deviationBins.fragmentMzs.get(i);
+            this.fragmentErrors[i] = deviationBins.fragmentErrors.get(i);
+        }
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
+        deviationGrid = null;
+    }
 
-                ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-                Collections.sort(mzList);
-                ArrayList<Double> mz1 = new ArrayList<Double>();
-                ArrayList<Double> mz2 = new ArrayList<Double>();
-                ArrayList<Double> err1 = new ArrayList<Double>();
-                ArrayList<Double> err2 = new ArrayList<Double>();
-                int cpt2 = 0;
+    /**
+     * Estimates the precursor slope and offset and the fragment errors of a
+     * retention time bin.
+     *
+     * @param deviationBins the bins estimated so far
+     * @param deviationGrid the grid gathering the errors
+     * @param start the index of the first retention time cell of the bin
+     * @param end the index after the last retention time cell of the bin
+     */
+    private static void addBin(DeviationBins deviationBins, DeviationGrid deviationGrid, int start, int end) {
+
+        double rtRef = deviationGrid.getMedianRt(start, end);
+
+        // Precursors: linear fit between the medians of the lower and upper halves in m/z
+        int[] counts = new int[N_PRECURSOR_MZ_CELLS];
+        double[] mzs = new double[N_PRECURSOR_MZ_CELLS];
+        ErrorHistogram[] histograms = new ErrorHistogram[N_PRECURSOR_MZ_CELLS];
+        int count = DeviationGrid.mergeRows(deviationGrid.precursorErrors, deviationGrid.precursorMzSums, start, end, counts, mzs, histograms);
+
+        int half = count / 2;
+        int split = 0;
+        int cumulative = 0;
+        while (split < N_PRECURSOR_MZ_CELLS && cumulative + counts[split] / 2.0 < half) {
+            cumulative += counts[split];
+            split++;
+        }
 
-                for (double mz : mzList) {
+        double x2 = weightedMedian(mzs, counts, split, N_PRECURSOR_MZ_CELLS);
+        double y2 = mergeHistograms(histograms, split, N_PRECURSOR_MZ_CELLS).getMedian();
+        double x1 = cumulative > 0 ? weightedMedian(mzs, counts, 0, split) : x2;
+        double y1 = cumulative > 0 ? mergeHistograms(histograms, 0, split).getMedian() : y2;
+        double slope;
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+        if (x1 == x2) {
+            slope = 0;
+        } else {
+            slope = (y2 - y1) / (x2 - x1);
+        }
 
-                    for (double err : mzToErrorMap.get(mz)) {
+        double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
 
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
+        // Fragments: bins of consecutive fragment m/z cells containing at least mzBinSize errors, the last one merged with the previous if too small
+        counts = new int[N_FRAGMENT_MZ_CELLS];
+        mzs = new double[N_FRAGMENT_MZ_CELLS];
+        histograms = new ErrorHistogram[N_FRAGMENT_MZ_CELLS];
+        DeviationGrid.mergeRows(deviationGrid.fragmentErrors, deviationGrid.fragmentMzSums, start, end, counts, mzs, histograms);
 
-                        if (cpt2 < cpt1 / 2) {
-                            mz1.add(mz);
-                            err1.add(err);
-                            cpt2++;
-                        } else {
-                            mz2.add(mz);
-                            err2.add(err);
-                        }
-                    }
-                }
+        double[] binMzs = new double[N_FRAGMENT_MZ_CELLS];
+        double[] mzRefs = new double[N_FRAGMENT_MZ_CELLS];
+        double[] errorRefs = new double[N_FRAGMENT_MZ_CELLS];
+        ErrorHistogram binErrors = new ErrorHistogram();
+        ErrorHistogram previousErrors = null;
+        int nBins = 0;
+        int nMzs = 0;
+        int binMzStart = 0;
+        int previousMzStart = -1;
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
+        for (int i = 0; i < N_FRAGMENT_MZ_CELLS; i++) {
 
-                double x1 = BasicMathFunctions.median(mz1);
-                double x2 = BasicMathFunctions.median(mz2);
-                double y1 = BasicMathFunctions.median(err1);
-                double y2 = BasicMathFunctions.median(err2);
-                double slope;
+            if (counts[i] == 0) {
+                continue;
+            }
 
-                if (x1 == x2) {
-                    slope = 0;
-                } else {
-                    slope = (y2 - y1) / (x2 - x1);
-                }
+            binMzs[nMzs++] = mzs[i];
+            binErrors.addAll(histograms[i]);
+
+            if (binErrors.getSize() >= mzBinSize) {
+                mzRefs[nBins] = median(binMzs, binMzStart, nMzs);
+                errorRefs[nBins] = binErrors.getMedian();
+                nBins++;
+                previousMzStart = binMzStart;
+                previousErrors = binErrors;
+                binMzStart = nMzs;
+                binErrors = new ErrorHistogram();
+            }
+        }
 
-                double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
-                precursorSlopes.put(rtRef, slope);
-                precursorOffsets.put(rtRef, offset);
+        if (nMzs > binMzStart) {
+            if (previousMzStart >= 0) {
+                nBins--;
+                binMzStart = previousMzStart;
+                binErrors.addAll(previousErrors);
+            }
+            mzRefs[nBins] = median(binMzs, binMzStart, nMzs);
+            errorRefs[nBins] = binErrors.getMedian();
+            nBins++;
+        }
 
-                fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
-                mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
+        deviationBins.add(rtRef, slope, offset, mzRefs, errorRefs, nBins);
+    }
 
-                for (HashMap<Double, ArrayList<Double>> errors : fragmentTempMap.values()) {
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+    /**
+     * Returns the median of the given range of values.
+     *
+     * @param values the values
+     * @param from the index of the first value
+     * @param to the index after the last value
+     *
+     * @return the median of the given range of values
+     */
+    private static double median(double[] values, int from, int to) {
+        double[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        if (sorted.length % 2 == 1) {
+            return sorted[middle];
+        }
+        return (sorted[middle - 1] + sorted[middle]) / 2;
+    }
 
-                    for (double mz : errors.keySet()) {
+    /**
+     * Returns the weighted median of the given range of values sorted in
+     * ascending order.
+     *
+     * @param values the values in ascending order
+     * @param weights the weights of the values
+     * @param from the index of the first value
+     * @param to the index after the last value
+     *
+     * @return the weighted median of the given range of values
+     */
+    private static double weightedMedian(double[] values, int[] weights, int from, int to) {
+        int total = 0;
+        for (int i = from; i < to; i++) {
+            total += weights[i];
+        }
+        double target = total / 2.0;
+        int cumulative = 0;
+        for (int i = from; i < to; i++) {
+            cumulative += weights[i];
+            if (weights[i] > 0 && cumulative >= target) {
+                return values[i];
+            }
+        }
+        return Double.NaN;
+    }
 
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
+    /**
+     * Returns a histogram gathering the given range of histograms.
+     *
+     * @param histograms the histograms, null for empty histograms
+     * @param from the index of the first histogram
+     * @param to the index after the last histogram
+     *
+     * @return a histogram gathering the given range of histograms
+     */
+    private static ErrorHistogram mergeHistograms(ErrorHistogram[] histograms, int from, int to) {
+        ErrorHistogram result = new ErrorHistogram();
+        for (int i = from; i < to; i++) {
+            if (histograms[i] != null) {
+                result.addAll(histograms[i]);
+            }
+        }
+        return result;
+    }
 
-                        if (!mzToErrorMap.containsKey(mz)) {
-                            mzToErrorMap.put(mz, new ArrayList<Double>());
-                        }
+    /**
+     * Returns the precursor and fragment errors of a spectrum match, null if
+     * the match is not validated.
+     *
+     * @param spectrumMatch the spectrum match
+     * @param identification the identification
+     * @param identificationParameters the identification parameters
+     * @param spectrumAnnotator the spectrum annotator to use
+     * @param psParameter a PSParameter used to load the match parameters
+     *
+     * @return the errors of the spectrum match
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    private PsmDeviation getPsmDeviation(SpectrumMatch spectrumMatch, Identification identification, IdentificationParameters identificationParameters,
+            PeptideSpectrumAnnotator spectrumAnnotator, PSParameter psParameter)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
-                        mzToErrorMap.get(mz).addAll(errors.get(mz));
-                    }
-                }
+        String spectrumKey = spectrumMatch.getKey();
+        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
 
-                mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-                Collections.sort(mzList);
-                mz1 = new ArrayList<Double>();
-                mz2 = new ArrayList<Double>();
-                err1 = new ArrayList<Double>();
-                err2 = new ArrayList<Double>();
-                double mzRef = -1;
+        if (!psParameter.getMatchValidationLevel().isValidated()) {
+            return null;
+        }
 
-                for (double mz : mzList) {
+        Precursor precursor = spectrumFactory.getPrecursor(spectrumKey);
+        PsmDeviation psmDeviation = new PsmDeviation(precursor.getRt(), precursor.getMz());
+        PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+        if (bestPeptideAssumption != null) {
 
-                    mz1.add(mz);
-                    err1.addAll(mzToErrorMap.get(mz));
-
-                    if (err1.size() >= mzBinSize) {
-                        mzRef = BasicMathFunctions.median(mz1);
-                        double error = BasicMathFunctions.median(err1);
-                        fragmentsRtDeviations.get(rtRef).put(mzRef, error);
-                        mz2.clear();
-                        err2.clear();
-                        mz2.addAll(mz1);
-                        err2.addAll(err1);
-                        mz1.clear();
-                        err1.clear();
-                    }
-                }
+            SearchParameters searchParameters = identificationParameters.getSearchParameters();
+            psmDeviation.precursorError = bestPeptideAssumption.getDeltaMass(psmDeviation.precursorMz, false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
+            AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+            MSnSpectrum currentSpectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(currentSpectrum.getSpectrumKey(), bestPeptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+            ArrayList<IonMatch> ionMatches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
+                    currentSpectrum, bestPeptideAssumption.getPeptide());
+            HashMap<Double, ArrayList<Double>> spectrumFragmentMap = new HashMap<Double, ArrayList<Double>>();
 
-                if (!mz1.isEmpty()) {
+            for (IonMatch ionMatch : ionMatches) {
 
-                    if (fragmentsRtDeviations.get(rtRef) != null) {
-                        fragmentsRtDeviations.get(rtRef).remove(mzRef);
-                    }
+                double fragmentMz = ionMatch.peak.mz;
+                int roundedValue = (int) (fragmentMz / ms2Bin);
+                double fragmentMzKey = (double) roundedValue * ms2Bin;
 
-                    mz1.addAll(mz2);
-                    err1.addAll(err2);
-                    mzRef = BasicMathFunctions.median(mz1);
-                    double error = BasicMathFunctions.median(err1);
-                    fragmentsRtDeviations.get(rtRef).put(mzRef, error);
+                if (!spectrumFragmentMap.containsKey(fragmentMzKey)) {
+                    spectrumFragmentMap.put(fragmentMzKey, new ArrayList<Double>());
                 }
 
-                for (double tempRt : rtList) {
+                spectrumFragmentMap.get(fragmentMzKey).add(ionMatch.getAbsoluteError());
+            }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+            psmDeviation.fragmentErrors = new HashMap<Double, Double>(spectrumFragmentMap.size());
 
-                    tempValues = precursorTempMap.get(tempRt);
+            for (double key : spectrumFragmentMap.keySet()) {
+                psmDeviation.fragmentErrors.put(key, BasicMathFunctions.median(spectrumFragmentMap.get(key)));
+            }
+        }
 
-                    for (ArrayList<Double> errors : tempValues.values()) {
+        return psmDeviation;
+    }
 
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
+    /**
+     * The errors found for a validated PSM.
+     *
+     * @author Marc Vaudel
+     */
+    private static class PsmDeviation {
+
+        /**
+         * The precursor retention time.
+         */
+        private final double precursorRT;
+        /**
+         * The precursor m/z.
+         */
+        private final double precursorMz;
+        /**
+         * The precursor error, null if no best peptide assumption was found.
+         */
+        private Double precursorError = null;
+        /**
+         * The median fragment error in every fragment m/z bin, null if no best
+         * peptide assumption was found.
+         */
+        private HashMap<Double, Double> fragmentErrors = null;
+
+        /**
+         * Constructor.
+         *
+         * @param precursorRT the precursor retention time
+         * @param precursorMz the precursor m/z
+         */
+        private PsmDeviation(double precursorRT, double precursorMz) {
+            this.precursorRT = precursorRT;
+            this.precursorMz = precursorMz;
+        }
 
-                        cpt1 -= errors.size();
-                    }
+        /**
+         * Adds the errors of this PSM to the errors of the run.
+         *
+         * @param deviationGrid the grid gathering the errors of the run
+         */
+        private void addTo(DeviationGrid deviationGrid) {
+            deviationGrid.add(precursorRT, precursorMz, precursorError, fragmentErrors);
+        }
+    }
 
-                    precursorTempMap.remove(tempRt);
-                    fragmentTempMap.remove(tempRt);
+    /**
+     * Histogram of errors centered on zero with a fixed number of bins. When
+     * an error falls outside the histogram, the width of the bins is doubled
+     * and neighboring bins are merged. The median is interpolated within the
+     * bin where it falls.
+     *
+     * @author Marc Vaudel
+     */
+    private static class ErrorHistogram {
+
+        /**
+         * The half width of the histograms before any error is added.
+         */
+        private static final double INITIAL_HALF_WIDTH = 1e-6;
+        /**
+         * The number of errors in every bin.
+         */
+        private final int[] counts = new int[N_HISTOGRAM_BINS];
+        /**
+         * The half width of the histogram, the histogram covers errors from
+         * -halfWidth to halfWidth.
+         */
+        private double halfWidth = INITIAL_HALF_WIDTH;
+        /**
+         * The number of errors in the histogram.
+         */
+        private int size = 0;
+
+        /**
+         * Adds an error. NaN and infinite errors are ignored.
+         *
+         * @param error the error
+         *
+         * @return a boolean indicating whether the error was added
+         */
+        private boolean add(double error) {
+            if (Double.isNaN(error) || Double.isInfinite(error)) {
+                return false;
+            }
+            while (Math.abs(error) >= halfWidth) {
+                collapse();
+            }
+            int bin = (int) ((error + halfWidth) / (2 * halfWidth) * N_HISTOGRAM_BINS);
+            counts[Math.max(0, Math.min(bin, N_HISTOGRAM_BINS - 1))]++;
+            size++;
+            return true;
+        }
 
-                    if (cpt1 <= rtBinSize) {
-                        break;
-                    }
+        /**
+         * Adds the errors of another histogram.
+         *
+         * @param other the other histogram
+         */
+        private void addAll(ErrorHistogram other) {
+            while (halfWidth < other.halfWidth) {
+                collapse();
+            }
+            int[] otherCounts = other.counts;
+            if (other.halfWidth < halfWidth) {
+                ErrorHistogram copy = new ErrorHistogram();
+                System.arraycopy(other.counts, 0, copy.counts, 0, N_HISTOGRAM_BINS);
+                copy.halfWidth = other.halfWidth;
+                while (copy.halfWidth < halfWidth) {
+                    copy.collapse();
                 }
+                otherCounts = copy.counts;
             }
+            for (int i = 0; i < N_HISTOGRAM_BINS; i++) {
+                counts[i] += otherCounts[i];
+            }
+            size += other.size;
         }
 
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            return;
+        /**
+         * Doubles the width of the bins.
+         */
+        private void collapse() {
+            int[] previousCounts = Arrays.copyOf(counts, N_HISTOGRAM_BINS);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < N_HISTOGRAM_BINS; i++) {
+                counts[N_HISTOGRAM_BINS / 4 + i / 2] += previousCounts[i];
+            }
+            halfWidth *= 2;
         }
 
-        if (precursorSlopes.isEmpty()) {
-
-            double rtRef = BasicMathFunctions.median(keys);
-            HashMap<Double, ArrayList<Double>> mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
-
-            for (HashMap<Double, ArrayList<Double>> errors : precursorRawMap.values()) {
+        /**
+         * Returns the number of errors in the histogram.
+         *
+         * @return the number of errors in the histogram
+         */
+        private int getSize() {
+            return size;
+        }
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+        /**
+         * Returns an estimate of the median error, NaN if the histogram is
+         * empty.
+         *
+         * @return an estimate of the median error
+         */
+        private double getMedian() {
+            if (size == 0) {
+                return Double.NaN;
+            }
+            double binWidth = 2 * halfWidth / N_HISTOGRAM_BINS;
+            double target = size / 2.0;
+            int cumulative = 0;
+            for (int i = 0; i < N_HISTOGRAM_BINS; i++) {
+                if (counts[i] > 0 && cumulative + counts[i] >= target) {
+                    return -halfWidth + binWidth * (i + (target - cumulative) / counts[i]);
                 }
+                cumulative += counts[i];
+            }
+            return halfWidth;
+        }
+    }
 
-                for (double mz : errors.keySet()) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+    /**
+     * Grid gathering the errors of a run by retention time and m/z. The number
+     * of cells is fixed, the cells start at zero and when a value falls after
+     * the last cell, the width of the cells of the axis is doubled and
+     * neighboring cells are merged. The memory used is thus independent of the
+     * number of PSMs.
+     *
+     * @author Marc Vaudel
+     */
+    private static class DeviationGrid {
+
+        /**
+         * The width of the retention time and precursor m/z cells before any
+         * error is added.
+         */
+        private static final double INITIAL_CELL_WIDTH = 0.01;
+        /**
+         * The width of the retention time cells.
+         */
+        private double rtCellWidth = INITIAL_CELL_WIDTH;
+        /**
+         * The width of the precursor m/z cells.
+         */
+        private double precursorMzCellWidth = INITIAL_CELL_WIDTH;
+        /**
+         * The width of the fragment m/z cells.
+         */
+        private double fragmentMzCellWidth;
+        /**
+         * The sum of the retention times of the validated PSMs of every
+         * retention time cell.
+         */
+        private final double[] rtSums = new double[N_RT_CELLS];
+        /**
+         * The number of validated PSMs of every retention time cell.
+         */
+        private final int[] nPsms = new int[N_RT_CELLS];
+        /**
+         * The precursor errors indexed by retention time and precursor m/z
+         * cell, null for empty cells.
+         */
+        private final ErrorHistogram[][] precursorErrors = new ErrorHistogram[N_RT_CELLS][N_PRECURSOR_MZ_CELLS];
+        /**
+         * The sum of the precursor m/z of the precursor errors of every cell.
+         */
+        private final double[][] precursorMzSums = new double[N_RT_CELLS][N_PRECURSOR_MZ_CELLS];
+        /**
+         * The fragment errors indexed by retention time and fragment m/z cell,
+         * null for empty cells.
+         */
+        private final ErrorHistogram[][] fragmentErrors = new ErrorHistogram[N_RT_CELLS][N_FRAGMENT_MZ_CELLS];
+        /**
+         * The sum of the fragment m/z of the fragment errors of every cell.
+         */
+        private final double[][] fragmentMzSums = new double[N_RT_CELLS][N_FRAGMENT_MZ_CELLS];
+
+        /**
+         * Constructor.
+         *
+         * @param fragmentMzCellWidth the initial width of the fragment m/z
+         * cells
+         */
+        private DeviationGrid(double fragmentMzCellWidth) {
+            this.fragmentMzCellWidth = fragmentMzCellWidth > 0 ? fragmentMzCellWidth : INITIAL_CELL_WIDTH;
+        }
 
-                    if (!mzToErrorMap.containsKey(mz)) {
-                        mzToErrorMap.put(mz, new ArrayList<Double>());
-                    }
-                    mzToErrorMap.get(mz).addAll(errors.get(mz));
+        /**
+         * Adds the errors of a validated PSM.
+         *
+         * @param rt the precursor retention time
+         * @param precursorMz the precursor m/z
+         * @param precursorError the precursor error, null if no best peptide
+         * assumption was found
+         * @param fragmentErrors the median fragment error in every fragment
+         * m/z bin, ignored if the precursor error is null
+         */
+        private void add(double rt, double precursorMz, Double precursorError, HashMap<Double, Double> fragmentErrors) {
+
+            while (rt < Double.POSITIVE_INFINITY && rt >= N_RT_CELLS * rtCellWidth) {
+                collapseRows(precursorErrors, precursorMzSums);
+                collapseRows(this.fragmentErrors, fragmentMzSums);
+                for (int i = 1; i < N_RT_CELLS; i++) {
+                    rtSums[i / 2] += rtSums[i];
+                    rtSums[i] = 0;
+                    nPsms[i / 2] += nPsms[i];
+                    nPsms[i] = 0;
                 }
+                rtCellWidth *= 2;
             }
+            int rtCell = getCell(rt, rtCellWidth, N_RT_CELLS);
+            rtSums[rtCell] += rt;
+            nPsms[rtCell]++;
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            if (precursorError == null) {
                 return;
             }
 
-            ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-            Collections.sort(mzList);
-            ArrayList<Double> mz1 = new ArrayList<Double>();
-            ArrayList<Double> mz2 = new ArrayList<Double>();
-            ArrayList<Double> err1 = new ArrayList<Double>();
-            ArrayList<Double> err2 = new ArrayList<Double>();
-            int cpt2 = 0;
-
-            for (double mz : mzList) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                for (double err : mzToErrorMap.get(mz)) {
+            while (precursorMz < Double.POSITIVE_INFINITY && precursorMz >= N_PRECURSOR_MZ_CELLS * precursorMzCellWidth) {
+                collapseColumns(precursorErrors, precursorMzSums);
+                precursorMzCellWidth *= 2;
+            }
+            int mzCell = getCell(precursorMz, precursorMzCellWidth, N_PRECURSOR_MZ_CELLS);
+            if (getHistogram(precursorErrors, rtCell, mzCell).add(precursorError)) {
+                precursorMzSums[rtCell][mzCell] += precursorMz;
+            }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
+            if (fragmentErrors != null) {
+                for (double fragmentMz : fragmentErrors.keySet()) {
+                    while (fragmentMz < Double.POSITIVE_INFINITY && fragmentMz >= N_FRAGMENT_MZ_CELLS * fragmentMzCellWidth) {
+                        collapseColumns(this.fragmentErrors, fragmentMzSums);
+                        fragmentMzCellWidth *= 2;
                     }
-
-                    if (cpt2 < cpt1 / 2) {
-                        mz1.add(mz);
-                        err1.add(err);
-                        cpt2++;
-                    } else {
-                        mz2.add(mz);
-                        err2.add(err);
+                    mzCell = getCell(fragmentMz, fragmentMzCellWidth, N_FRAGMENT_MZ_CELLS);
+                    if (getHistogram(this.fragmentErrors, rtCell, mzCell).add(fragmentErrors.get(fragmentMz))) {
+                        fragmentMzSums[rtCell][mzCell] += fragmentMz;
                     }
                 }
             }
+        }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+        /**
+         * Returns the number of precursor errors in the given retention time
+         * cell.
+         *
+         * @param rtCell the index of the retention time cell
+         *
+         * @return the number of precursor errors in the given retention time
+         * cell
+         */
+        private int getNPrecursorErrors(int rtCell) {
+            int result = 0;
+            for (ErrorHistogram histogram : precursorErrors[rtCell]) {
+                if (histogram != null) {
+                    result += histogram.getSize();
+                }
             }
+            return result;
+        }
 
-            double x1 = BasicMathFunctions.median(mz1);
-            double x2 = BasicMathFunctions.median(mz2);
-            double y1 = BasicMathFunctions.median(err1);
-            double y2 = BasicMathFunctions.median(err2);
-            double slope;
-
-            if (x1 == x2) {
-                slope = 0;
-            } else {
-                slope = (y2 - y1) / (x2 - x1);
+        /**
+         * Returns the median of the mean retention times of the non-empty
+         * retention time cells of the given range.
+         *
+         * @param start the index of the first retention time cell
+         * @param end the index after the last retention time cell
+         *
+         * @return the median retention time
+         */
+        private double getMedianRt(int start, int end) {
+            double[] rts = new double[end - start];
+            int nRts = 0;
+            for (int i = start; i < end; i++) {
+                if (nPsms[i] > 0) {
+                    rts[nRts++] = rtSums[i] / nPsms[i];
+                }
             }
+            return median(rts, 0, nRts);
+        }
 
-            double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
-            precursorSlopes.put(rtRef, slope);
-            precursorOffsets.put(rtRef, offset);
-
-            for (double tempRt : keys) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+        /**
+         * Gathers the cells of the given range of rows.
+         *
+         * @param histograms the histograms of the cells
+         * @param mzSums the sums of the m/z of the cells
+         * @param start the index of the first row
+         * @param end the index after the last row
+         * @param counts the number of errors of every column, filled by this
+         * method
+         * @param mzs the mean m/z of every column, filled by this method
+         * @param columnHistograms the histograms of every column, filled by
+         * this method
+         *
+         * @return the total number of errors
+         */
+        private static int mergeRows(ErrorHistogram[][] histograms, double[][] mzSums, int start, int end, int[] counts, double[] mzs, ErrorHistogram[] columnHistograms) {
+            int total = 0;
+            for (int j = 0; j < counts.length; j++) {
+                double mzSum = 0;
+                for (int i = start; i < end; i++) {
+                    if (histograms[i][j] != null) {
+                        if (columnHistograms[j] == null) {
+                            columnHistograms[j] = new ErrorHistogram();
+                        }
+                        columnHistograms[j].addAll(histograms[i][j]);
+                        mzSum += mzSums[i][j];
+                    }
                 }
+                if (columnHistograms[j] != null) {
+                    counts[j] = columnHistograms[j].getSize();
+                    mzs[j] = counts[j] > 0 ? mzSum / counts[j] : 0;
+                    total += counts[j];
+                }
+            }
+            return total;
+        }
 
-                HashMap<Double, ArrayList<Double>> tempValues = precursorTempMap.get(tempRt);
-
-                for (ArrayList<Double> errors : tempValues.values()) {
+        /**
+         * Returns the histogram of the given cell, creates it if needed.
+         *
+         * @param histograms the histograms
+         * @param row the row of the cell
+         * @param column the column of the cell
+         *
+         * @return the histogram of the given cell
+         */
+        private static ErrorHistogram getHistogram(ErrorHistogram[][] histograms, int row, int column) {
+            ErrorHistogram histogram = histograms[row][column];
+            if (histogram == null) {
+                histogram = new ErrorHistogram();
+                histograms[row][column] = histogram;
+            }
+            return histogram;
+        }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+        /**
+         * Returns the index of the cell of the given value. Negative values
+         * are attributed to the first cell.
+         *
+         * @param value the value
+         * @param cellWidth the width of the cells
+         * @param nCells the number of cells
+         *
+         * @return the index of the cell of the given value
+         */
+        private static int getCell(double value, double cellWidth, int nCells) {
+            if (!(value > 0)) {
+                return 0;
+            }
+            return (int) Math.min(value / cellWidth, nCells - 1);
+        }
 
-                    cpt1 -= errors.size();
+        /**
+         * Merges the rows of a grid two by two.
+         *
+         * @param histograms the histograms of the cells
+         * @param mzSums the sums of the m/z of the cells
+         */
+        private static void collapseRows(ErrorHistogram[][] histograms, double[][] mzSums) {
+            for (int i = 1; i < histograms.length; i++) {
+                for (int j = 0; j < histograms[i].length; j++) {
+                    mergeCell(histograms, mzSums, i, j, i / 2, j);
                 }
+            }
+        }
 
-                precursorTempMap.remove(tempRt);
+        /**
+         * Merges the columns of a grid two by two.
+         *
+         * @param histograms the histograms of the cells
+         * @param mzSums the sums of the m/z of the cells
+         */
+        private static void collapseColumns(ErrorHistogram[][] histograms, double[][] mzSums) {
+            for (int i = 0; i < histograms.length; i++) {
+                for (int j = 1; j < histograms[i].length; j++) {
+                    mergeCell(histograms, mzSums, i, j, i, j / 2);
+                }
+            }
+        }
 
-                if (cpt1 <= rtBinSize) {
-                    break;
+        /**
+         * Moves the content of a cell into another cell.
+         *
+         * @param histograms the histograms of the cells
+         * @param mzSums the sums of the m/z of the cells
+         * @param row the row of the cell to move
+         * @param column the column of the cell to move
+         * @param targetRow the row of the destination cell
+         * @param targetColumn the column of the destination cell
+         */
+        private static void mergeCell(ErrorHistogram[][] histograms, double[][] mzSums, int row, int column, int targetRow, int targetColumn) {
+            ErrorHistogram histogram = histograms[row][column];
+            if (histogram != null) {
+                if (histograms[targetRow][targetColumn] == null) {
+                    histograms[targetRow][targetColumn] = histogram;
+                } else {
+                    histograms[targetRow][targetColumn].addAll(histogram);
                 }
+                histograms[row][column] = null;
+                mzSums[targetRow][targetColumn] += mzSums[row][column];
+                mzSums[row][column] = 0;
             }
+        }
+    }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+    /**
+     * The deviations estimated for the retention time bins of a run.
+     *
+     * @author Marc Vaudel
+     */
+    private static class DeviationBins {
+
+        /**
+         * The retention times of the bins in ascending order.
+         */
+        private final ArrayList<Double> rts = new ArrayList<Double>();
+        /**
+         * The precursor slopes.
+         */
+        private final ArrayList<Double> slopes = new ArrayList<Double>();
+        /**
+         * The precursor offsets.
+         */
+        private final ArrayList<Double> offsets = new ArrayList<Double>();
+        /**
+         * The m/z of the fragment bins.
+         */
+        private final ArrayList<double[]> fragmentMzs = new ArrayList<double[]>();
+        /**
+         * The fragment errors.
+         */
+        private final ArrayList<double[]> fragmentErrors = new ArrayList<double[]>();
+
+        /**
+         * Adds a bin. Bins must be added by ascending retention time, a bin
+         * at the same retention time as the previous one replaces it.
+         *
+         * @param rt the retention time of the bin
+         * @param slope the precursor slope
+         * @param offset the precursor offset
+         * @param mzs the m/z of the fragment bins
+         * @param errors the fragment errors
+         * @param nFragmentBins the number of fragment bins
+         */
+        private void add(double rt, double slope, double offset, double[] mzs, double[] errors, int nFragmentBins) {
+            int last = rts.size() - 1;
+            if (last >= 0 && rts.get(last) == rt) {
+                rts.remove(last);
+                slopes.remove(last);
+                offsets.remove(last);
+                fragmentMzs.remove(last);
+                fragmentErrors.remove(last);
             }
+            rts.add(rt);
+            slopes.add(slope);
+            offsets.add(offset);
+            fragmentMzs.add(Arrays.copyOf(mzs, nFragmentBins));
+            fragmentErrors.add(Arrays.copyOf(errors, nFragmentBins));
+        }
+    }
 
-            mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
+    /**
+     * A block of PSMs.
+     *
+     * @author Marc Vaudel
+     */
+    private static class PsmBlock {
+
+        /**
+         * The number of the block.
+         */
+        private final int number;
+        /**
+         * The spectrum matches of the block.
+         */
+        private final ArrayList<SpectrumMatch> spectrumMatches;
+
+        /**
+         * Constructor.
+         *
+         * @param number the number of the block
+         * @param spectrumMatches the spectrum matches of the block
+         */
+        private PsmBlock(int number, ArrayList<SpectrumMatch> spectrumMatches) {
+            this.number = number;
+            this.spectrumMatches = spectrumMatches;
+        }
+    }
 
-            for (HashMap<Double, ArrayList<Double>> errors : precursorTempMap.values()) {
+    /**
+     * Annotates the PSMs of a run in parallel. The PSMs are pulled by blocks
+     * from the iterator, the errors of the blocks are added to the grid of the
+     * run in the order the blocks were pulled.
+     *
+     * @author Marc Vaudel
+     */
+    private class DeviationCollector {
+
+        /**
+         * The number of PSMs per block.
+         */
+        private static final int BLOCK_SIZE = 100;
+        /**
+         * The iterator of the PSMs of the run.
+         */
+        private final PsmIterator psmIterator;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The errors of the blocks computed but not added to the maps yet
+         * indexed by block number.
+         */
+        private final HashMap<Integer, ArrayList<PsmDeviation>> computedBlocks = new HashMap<Integer, ArrayList<PsmDeviation>>();
+        /**
+         * Lock used to pull the PSMs from the iterator.
+         */
+        private final Object pullLock = new Object();
+        /**
+         * The number of the next block to pull.
+         */
+        private int nextBlock = 0;
+        /**
+         * The number of the next block to add to the maps.
+         */
+        private int nextBlockToAdd = 0;
+        /**
+         * The first error encountered, null if none.
+         */
+        private volatile Throwable error = null;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator the iterator of the PSMs of the run
+         * @param waitingHandler the waiting handler, can be null
+         */
+        private DeviationCollector(PsmIterator psmIterator, WaitingHandler waitingHandler) {
+            this.psmIterator = psmIterator;
+            this.waitingHandler = waitingHandler;
+        }
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+        /**
+         * Annotates all PSMs of the iterator and gathers their errors.
+         *
+         * @param identification the identification
+         * @param identificationParameters the identification parameters
+         * @param nThreads the number of threads to use
+         *
+         * @throws IOException exception thrown whenever an IO exception
+         * occurred while reading or writing to a file
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while
+         * @throws SQLException exception thrown whenever an SQL exception
+         * occurred while interacting with the database
+         * @throws ClassNotFoundException exception thrown whenever an
+         * exception occurred while deserializing an object
+         * @throws MzMLUnmarshallerException exception thrown whenever an
+         * exception occurred while reading an mzML file
+         */
+        private void collect(Identification identification, IdentificationParameters identificationParameters, int nThreads)
+                throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            for (int i = 1; i <= nThreads; i++) {
+                pool.submit(new DeviationRunnable(identification, identificationParameters));
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("m/z deviation estimation timed out. Please contact the developers.");
+            }
+
+            if (error != null) {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                } else if (error instanceof SQLException) {
+                    throw (SQLException) error;
+                } else if (error instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) error;
+                } else if (error instanceof InterruptedException) {
+                    throw (InterruptedException) error;
+                } else if (error instanceof MzMLUnmarshallerException) {
+                    throw (MzMLUnmarshallerException) error;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error instanceof Error) {
+                    throw (Error) error;
+                } else {
+                    throw new IllegalArgumentException("An error occurred while estimating the m/z deviations.", error);
                 }
+            }
+        }
 
-                for (double mz : errors.keySet()) {
+        /**
+         * Returns true if the workers should stop because of an error or
+         * because the process was canceled.
+         *
+         * @return true if the workers should stop
+         */
+        private boolean isStopped() {
+            return error != null || waitingHandler != null && waitingHandler.isRunCanceled();
+        }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+        /**
+         * Pulls the next block of PSMs from the iterator.
+         *
+         * @return the next block of PSMs, null if there is nothing more to
+         * pull
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * loading a match
+         */
+        private PsmBlock pullBlock() throws Exception {
+            synchronized (pullLock) {
+                if (isStopped() || !psmIterator.hasNext()) {
+                    return null;
+                }
+                ArrayList<SpectrumMatch> spectrumMatches = new ArrayList<SpectrumMatch>(BLOCK_SIZE);
+                while (spectrumMatches.size() < BLOCK_SIZE && psmIterator.hasNext()) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch == null) {
                         break;
                     }
-
-                    if (!mzToErrorMap.containsKey(mz)) {
-                        mzToErrorMap.put(mz, new ArrayList<Double>());
-                    }
-                    mzToErrorMap.get(mz).addAll(errors.get(mz));
+                    spectrumMatches.add(spectrumMatch);
                 }
+                return new PsmBlock(nextBlock++, spectrumMatches);
             }
+        }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
-            mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-            Collections.sort(mzList);
-            Collections.sort(mzList);
-            mz1 = new ArrayList<Double>();
-            mz2 = new ArrayList<Double>();
-            err1 = new ArrayList<Double>();
-            err2 = new ArrayList<Double>();
-
-            for (double mz : mzList) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+        /**
+         * Stores the errors of a block and adds the blocks which are next in
+         * line to the grid of the run.
+         *
+         * @param blockNumber the number of the block
+         * @param psmDeviations the errors of the PSMs of the block, null for
+         * non-validated PSMs
+         */
+        private synchronized void blockComputed(int blockNumber, ArrayList<PsmDeviation> psmDeviations) {
+            computedBlocks.put(blockNumber, psmDeviations);
+            ArrayList<PsmDeviation> block;
+            while ((block = computedBlocks.remove(nextBlockToAdd)) != null) {
+                for (PsmDeviation psmDeviation : block) {
+                    if (psmDeviation != null) {
+                        psmDeviation.addTo(deviationGrid);
+                    }
                 }
+                nextBlockToAdd++;
+            }
+        }
 
-                mz1.add(mz);
-                err1.addAll(mzToErrorMap.get(mz));
-                if (err1.size() >= mzBinSize) {
-                    double mzRef = BasicMathFunctions.median(mz1);
-                    double error = BasicMathFunctions.median(err1);
-                    fragmentsRtDeviations.get(rtRef).put(mzRef, error);
-                    mz2.addAll(mz1);
-                    err2.addAll(err1);
-                    mz1.clear();
-                    err1.clear();
-                }
+        /**
+         * Stores the first error encountered.
+         *
+         * @param e the error
+         */
+        private synchronized void setError(Throwable e) {
+            if (error == null) {
+                error = e;
             }
+        }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
+        /**
+         * Runnable annotating the blocks of PSMs.
+         *
+         * @author Marc Vaudel
+         */
+        private class DeviationRunnable implements Runnable {
+
+            /**
+             * The identification.
+             */
+            private final Identification identification;
+            /**
+             * The identification parameters.
+             */
+            private final IdentificationParameters identificationParameters;
+            /**
+             * The spectrum annotator of this thread.
+             */
+            private final PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
+            /**
+             * The PSParameter used to load the match parameters.
+             */
+            private final PSParameter psParameter = new PSParameter();
+
+            /**
+             * Constructor.
+             *
+             * @param identification the identification
+             * @param identificationParameters the identification parameters
+             */
+            private DeviationRunnable(Identification identification, IdentificationParameters identificationParameters) {
+                this.identification = identification;
+                this.identificationParameters = identificationParameters;
             }
 
-            if (!mz1.isEmpty()) {
-                mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtRef).keySet());
-                Collections.sort(mzList);
-                if (!mzList.isEmpty()) {
-                    fragmentsRtDeviations.remove(mzList.get(mzList.size() - 1));
+            @Override
+            public void run() {
+                try {
+                    PsmBlock block;
+                    while ((block = pullBlock()) != null) {
+                        ArrayList<PsmDeviation> psmDeviations = new ArrayList<PsmDeviation>(block.spectrumMatches.size());
+                        for (SpectrumMatch spectrumMatch : block.spectrumMatches) {
+                            if (isStopped()) {
+                                return;
+                            }
+                            psmDeviations.add(getPsmDeviation(spectrumMatch, identification, identificationParameters, spectrumAnnotator, psParameter));
+                            if (waitingHandler != null) {
+                                waitingHandler.increaseSecondaryProgressCounter();
+                            }
+                        }
+                        blockComputed(block.number, psmDeviations);
+                    }
+                } catch (Throwable e) {
+                    setError(e);
                 }
-                mz1.addAll(mz2);
-                err1.addAll(err2);
-                double mzRef = BasicMathFunctions.median(mz1);
-                double error = BasicMathFunctions.median(err1);
-                fragmentsRtDeviations.get(rtRef).put(mzRef, error);
             }
         }
-
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            return;
-        }
-
-        precursorRTList = new ArrayList<Double>(precursorSlopes.keySet());
-        Collections.sort(precursorRTList);
     }
 }
@@ -10,6 +10,7 @@ import com.compomics.util.preferences.IdentificationParameters;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -24,9 +25,10 @@ public class SpectrumRecalibrator {
      */
     private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
     /**
-     * Map of the runs errors.
+     * Map of the runs errors. Runs can be estimated and recalibrated
+     * concurrently.
      */
-    private HashMap<String, RunMzDeviation> runMzDeviationMap = new HashMap<String, RunMzDeviation>();
+    private ConcurrentHashMap<String, RunMzDeviation> runMzDeviationMap = new ConcurrentHashMap<String, RunMzDeviation>();
 
     /**
      * Constructor.
@@ -81,7 +83,37 @@ public class SpectrumRecalibrator {
      */
     public void estimateErrors(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
-        RunMzDeviation fileErrors = new RunMzDeviation(spectrumFileName, identification, identificationParameters, waitingHandler);
+        estimateErrors(spectrumFileName, identification, identificationParameters, 1, waitingHandler);
+    }
+
+    /**
+     * Estimates the file m/z errors using the given number of threads to
+     * annotate the spectra. The errors obtained do not depend on the number of
+     * threads. Different files can be estimated concurrently.
+     *
+     * The progress will only be updated, max value is the number of spectra
+     *
+     * @param spectrumFileName the name of the file of the run
+     * @param identification the corresponding identification
+     * @param identificationParameters the identification parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler displaying the progress and
+     * allowing the user to cancel the process. Can be null
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     */
+    public void estimateErrors(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, int nThreads, WaitingHandler waitingHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+        RunMzDeviation fileErrors = new RunMzDeviation(spectrumFileName, identification, identificationParameters, nThreads, waitingHandler);
         runMzDeviationMap.put(spectrumFileName, fileErrors);
     }
 
@@ -145,18 +145,32 @@ public class PsmSpecificMap implements Serializable {
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
 
         int charge = spectrumMatch.getBestPeptideAssumption().getIdentificationCharge().value;
+        String file = Spectrum.getSpectrumFile(spectrumMatch.getKey());
+        TargetDecoyMap targetDecoyMap = getFileSpecificMap(charge, file);
+        targetDecoyMap.put(probabilityScore, spectrumMatch.getBestPeptideAssumption().getPeptide().isDecoy(sequenceMatchingPreferences));
+    }
+
+    /**
+     * Returns the target decoy map of the given charge and file, creates it if
+     * not done by another thread.
+     *
+     * @param charge the charge of interest
+     * @param file the spectrum file of interest
+     *
+     * @return the corresponding map
+     */
+    private synchronized TargetDecoyMap getFileSpecificMap(int charge, String file) {
         HashMap<String, TargetDecoyMap> fileMapping = fileSpecificPsmsMaps.get(charge);
         if (fileMapping == null) {
             fileMapping = new HashMap<String, TargetDecoyMap>();
             fileSpecificPsmsMaps.put(charge, fileMapping);
         }
-        String file = Spectrum.getSpectrumFile(spectrumMatch.getKey());
         TargetDecoyMap targetDecoyMap = fileMapping.get(file);
         if (targetDecoyMap == null) {
             targetDecoyMap = new TargetDecoyMap();
             fileMapping.put(file, targetDecoyMap);
         }
-        targetDecoyMap.put(probabilityScore, spectrumMatch.getBestPeptideAssumption().getPeptide().isDecoy(sequenceMatchingPreferences));
+        return targetDecoyMap;
     }
 
     /**
@@ -25,14 +25,14 @@ import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.PsmChunkProcessor;
+import eu.isas.peptideshaker.utils.SpectrumAnnotationCache;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -50,6 +50,21 @@ public class PsmScorer {
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * Cache for the spectrum annotations, null if annotations are not cached.
+     */
+    private SpectrumAnnotationCache spectrumAnnotationCache = null;
+
+    /**
+     * Sets the cache where to store the spectrum annotations. Null to not
+     * cache annotations.
+     *
+     * @param spectrumAnnotationCache the cache where to store the spectrum
+     * annotations
+     */
+    public void setSpectrumAnnotationCache(SpectrumAnnotationCache spectrumAnnotationCache) {
+        this.spectrumAnnotationCache = spectrumAnnotationCache;
+    }
 
     /**
      * Scores the PSMs contained in an identification object.
@@ -71,8 +86,8 @@ public class PsmScorer {
      * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
      * occurs
      */
-    public void estimateIntermediateScores(Identification identification, InputMap inputMap, ProcessingPreferences processingPreferences,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+    public void estimateIntermediateScores(final Identification identification, final InputMap inputMap, ProcessingPreferences processingPreferences,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws SQLException, IOException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
         waitingHandler.setWaitingText("Scoring PSMs. Please Wait...");
@@ -80,23 +95,25 @@ public class PsmScorer {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
+        LinkedHashMap<String, ArrayList<String>> spectrumKeys = new LinkedHashMap<String, ArrayList<String>>();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
-            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, null);
-            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
-                PsmScorerRunnable runnable = new PsmScorerRunnable(psmIterator, identification, inputMap, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler);
-                pool.submit(runnable);
-            }
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
-            }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM scoring timed out. Please contact the developers.");
-            }
+            spectrumKeys.put(spectrumFileName, PsmChunkProcessor.getSpectrumKeys(identification, spectrumFileName, null));
         }
 
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+        psmChunkProcessor.process(spectrumKeys, null, true, new PsmChunkProcessor.PsmTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PsmTask getPsmTask() {
+                final PeptideSpectrumAnnotator peptideSpectrumAnnotator = SpectrumAnnotationCache.getSpectrumAnnotator(spectrumAnnotationCache);
+                return new PsmChunkProcessor.PsmTask() {
+                    @Override
+                    public void process(SpectrumMatch spectrumMatch) throws Exception {
+                        estimateIntermediateScores(identification, spectrumMatch, inputMap, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, waitingHandler);
+                    }
+                };
+            }
+        }, waitingHandler, exceptionHandler);
+
 //        for (BufferedWriter br : brs.values()) {
 //            br.close();
 //        }
@@ -351,84 +368,4 @@ public class PsmScorer {
 //        br.close();
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
-
-    /**
-     * Runnable scoring PSM PTMs.
-     *
-     * @author Marc Vaudel
-     */
-    private class PsmScorerRunnable implements Runnable {
-
-        /**
-         * An iterator for the PSMs.
-         */
-        private PsmIterator psmIterator;
-        /**
-         * The identification.
-         */
-        private Identification identification;
-        /**
-         * The input map
-         */
-        private InputMap inputMap;
-        /**
-         * The protocol used
-         */
-        private ShotgunProtocol shotgunProtocol;
-        /**
-         * The identification parameters.
-         */
-        private IdentificationParameters identificationParameters;
-        /**
-         * The waiting handler.
-         */
-        private WaitingHandler waitingHandler;
-        /**
-         * Handler for the exceptions.
-         */
-        private ExceptionHandler exceptionHandler;
-        /**
-         * The peptide spectrum annotator.
-         */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
-
-        /**
-         * Constructor.
-         *
-         * @param psmIterator An iterator of the PSMs to iterate
-         * @param identification the identification containing all matches
-         * @param inputMap the input map used to store the scores
-         * @param shotgunProtocol the shotgun protocol
-         * @param identificationParameters the identification parameters
-         * @param waitingHandler a waiting handler to display progress and allow
-         * canceling the process
-         * @param exceptionHandler handler for exceptions
-         */
-        public PsmScorerRunnable(PsmIterator psmIterator, Identification identification, InputMap inputMap, ShotgunProtocol shotgunProtocol,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
-            this.psmIterator = psmIterator;
-            this.identification = identification;
-            this.inputMap = inputMap;
-            this.shotgunProtocol = shotgunProtocol;
-            this.identificationParameters = identificationParameters;
-            this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
-        }
-
-        @Override
-        public void run() {
-            try {
-                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
-                    SpectrumMatch spectrumMatch = psmIterator.next();
-                    estimateIntermediateScores(identification, spectrumMatch, inputMap, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, waitingHandler);
-                    if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                    }
-                }
-            } catch (Exception e) {
-                exceptionHandler.catchException(e);
-                waitingHandler.setRunCanceled();
-            }
-        }
-    }
 }
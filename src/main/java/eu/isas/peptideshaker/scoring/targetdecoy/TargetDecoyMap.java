@@ -1,14 +1,22 @@
 package eu.isas.peptideshaker.scoring.targetdecoy;
 
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
 /**
- * This map contains the information of a target/decoy strategy.
+ * This map contains the information of a target/decoy strategy. Points are
+ * collected in a hit map and, once the map is complete, frozen into sorted
+ * primitive arrays used for the estimation of the probabilities and the
+ * lookups. Adding or removing points unfreezes the map, this is done under
+ * the lock of the map together with the update of the hit map. The map is
+ * saved in the hit map format so that it can be read by former versions.
  *
  * @author Marc Vaudel
  */
@@ -19,9 +27,32 @@ public class TargetDecoyMap implements Serializable {
      */
     static final long serialVersionUID = 7333389442377322662L;
     /**
-     * The hit map containing the indexed target/decoy points.
+     * The hit map containing the indexed target/decoy points, null when the
+     * map is frozen. Populated from the arrays when the map is saved.
      */
     private HashMap<Double, TargetDecoyPoint> hitMap = new HashMap<Double, TargetDecoyPoint>();
+    /**
+     * The sorted scores of the frozen map, null if the map is not frozen. Set
+     * last when freezing so that the other arrays are visible to the threads
+     * reading it.
+     */
+    private transient volatile double[] scoreArray = null;
+    /**
+     * The number of target hits at every score of the frozen map.
+     */
+    private transient int[] nTargetArray = null;
+    /**
+     * The number of decoy hits at every score of the frozen map.
+     */
+    private transient int[] nDecoyArray = null;
+    /**
+     * The posterior error probability at every score of the frozen map.
+     */
+    private transient double[] pArray = null;
+    /**
+     * The sorted scores of the frozen map as a list, null if not computed.
+     */
+    private transient volatile ArrayList<Double> scoreList = null;
     /**
      * The estimated number of true positives in the bin centered on a given
      * score.
@@ -37,7 +68,9 @@ public class TargetDecoyMap implements Serializable {
      */
     private HashMap<Double, Double> nFP;
     /**
-     * The scores imported in the map.
+     * The scores imported in the map, only populated when the map is saved.
+     *
+     * @deprecated replaced by the score array
      */
     private ArrayList<Double> scores;
     /**
@@ -66,6 +99,12 @@ public class TargetDecoyMap implements Serializable {
      * The results computed on this map.
      */
     private TargetDecoyResults targetDecoyResults = new TargetDecoyResults();
+    /**
+     * The index of the matches validated using this map, null if not
+     * indexed. The index is not saved with the map and is discarded when
+     * points are added or removed.
+     */
+    private transient TargetDecoyMatchIndex matchIndex = null;
 
     /**
      * Constructor.
@@ -89,26 +128,25 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @return the estimated posterior error probability
      */
-    public Double getProbability(double score) {
-        TargetDecoyPoint point = hitMap.get(score);
-        if (point != null) {
-            return point.p;
-        } else if (score >= scores.get(scores.size() - 1)) {
-            return hitMap.get(scores.get(scores.size() - 1)).p;
+    public double getProbability(double score) {
+        double[] sortedScores = getScoreArray();
+        int index = Arrays.binarySearch(sortedScores, score);
+        if (index >= 0) {
+            return pArray[index];
+        }
+        int nScores = sortedScores.length;
+        int indexUp = -index - 1;
+        if (indexUp >= nScores) {
+            return pArray[nScores - 1];
+        }
+        int indexDown;
+        if (indexUp == 0) {
+            indexUp = Math.min(1, nScores - 1);
+            indexDown = 0;
         } else {
-            int indexDown = 0;
-            int indexUp = scores.size() - 1;
-            int indexTemp;
-            while (indexUp - indexDown > 1) {
-                indexTemp = (indexUp - indexDown) / 2 + indexDown;
-                if (scores.get(indexTemp) > score) {
-                    indexUp = indexTemp;
-                } else {
-                    indexDown = indexTemp;
-                }
-            }
-            return (hitMap.get(scores.get(indexUp)).p + hitMap.get(scores.get(indexDown)).p) / 2;
+            indexDown = indexUp - 1;
         }
+        return (pArray[indexUp] + pArray[indexDown]) / 2;
     }
 
     /**
@@ -118,7 +156,8 @@ public class TargetDecoyMap implements Serializable {
      * @return the number of target hits found at the given score
      */
     public int getNTarget(double score) {
-        return hitMap.get(score).nTarget;
+        double[] sortedScores = getScoreArray();
+        return nTargetArray[Arrays.binarySearch(sortedScores, score)];
     }
 
     /**
@@ -128,7 +167,92 @@ public class TargetDecoyMap implements Serializable {
      * @return the number of decoy hits found at the given score
      */
     public int getNDecoy(double score) {
-        return hitMap.get(score).nDecoy;
+        double[] sortedScores = getScoreArray();
+        return nDecoyArray[Arrays.binarySearch(sortedScores, score)];
+    }
+
+    /**
+     * Returns the sorted scores of the map, freezes the map if not done
+     * already.
+     *
+     * @return the sorted scores of the map
+     */
+    private double[] getScoreArray() {
+        double[] sortedScores = scoreArray;
+        if (sortedScores == null) {
+            sortedScores = freeze();
+        }
+        return sortedScores;
+    }
+
+    /**
+     * Freezes the map: the points of the hit map are sorted into primitive
+     * arrays and the hit map is released.
+     *
+     * @return the sorted scores of the map
+     */
+    private synchronized double[] freeze() {
+        if (scoreArray != null) {
+            return scoreArray;
+        }
+        int nScores = hitMap.size();
+        double[] sortedScores = new double[nScores];
+        int i = 0;
+        for (Double score : hitMap.keySet()) {
+            sortedScores[i] = score;
+            i++;
+        }
+        Arrays.sort(sortedScores);
+        nTargetArray = new int[nScores];
+        nDecoyArray = new int[nScores];
+        pArray = new double[nScores];
+        for (i = 0; i < nScores; i++) {
+            TargetDecoyPoint point = hitMap.get(sortedScores[i]);
+            nTargetArray[i] = point.nTarget;
+            nDecoyArray[i] = point.nDecoy;
+            pArray[i] = point.p;
+        }
+        hitMap = null;
+        scores = null;
+        scoreArray = sortedScores;
+        return sortedScores;
+    }
+
+    /**
+     * Unfreezes the map: the hit map is rebuilt from the arrays so that points
+     * can be added or removed.
+     */
+    private synchronized void thaw() {
+        double[] sortedScores = scoreArray;
+        if (sortedScores == null) {
+            return;
+        }
+        matchIndex = null;
+        hitMap = getHitMap(sortedScores);
+        scoreArray = null;
+        scoreList = null;
+        nTargetArray = null;
+        nDecoyArray = null;
+        pArray = null;
+    }
+
+    /**
+     * Builds a hit map from the arrays of the frozen map.
+     *
+     * @param sortedScores the sorted scores of the frozen map
+     *
+     * @return a hit map containing the points of the frozen map
+     */
+    private HashMap<Double, TargetDecoyPoint> getHitMap(double[] sortedScores) {
+        HashMap<Double, TargetDecoyPoint> result = new HashMap<Double, TargetDecoyPoint>(sortedScores.length);
+        for (int i = 0; i < sortedScores.length; i++) {
+            TargetDecoyPoint point = new TargetDecoyPoint();
+            point.nTarget = nTargetArray[i];
+            point.nDecoy = nDecoyArray[i];
+            point.p = pArray[i];
+            result.put(sortedScores[i], point);
+        }
+        return result;
     }
 
     /**
@@ -137,7 +261,8 @@ public class TargetDecoyMap implements Serializable {
      * @param score The given score
      * @param isDecoy boolean indicating whether the hit is decoy
      */
-    public void put(Double score, boolean isDecoy) {
+    public synchronized void put(Double score, boolean isDecoy) {
+        thaw();
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (targetDecoyPoint == null) {
             targetDecoyPoint = createTargetDecoyPoint(score);
@@ -158,6 +283,9 @@ public class TargetDecoyMap implements Serializable {
      * @return the target decoy point of the map at the given score
      */
     public synchronized TargetDecoyPoint createTargetDecoyPoint(Double score) {
+        if (scoreArray != null) {
+            thaw();
+        }
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (targetDecoyPoint == null) {
             targetDecoyPoint = new TargetDecoyPoint();
@@ -173,7 +301,8 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @param isDecoy boolean indicating whether the hit is decoy
      */
-    public void remove(Double score, boolean isDecoy) {
+    public synchronized void remove(Double score, boolean isDecoy) {
+        thaw();
         TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
         if (!isDecoy) {
             targetDecoyPoint.decreaseTarget();
@@ -186,6 +315,7 @@ public class TargetDecoyMap implements Serializable {
      * Removes empty points and clears dependent metrics if needed.
      */
     public synchronized void cleanUp() {
+        thaw();
         boolean removed = false;
         HashSet<Double> currentScores = new HashSet<Double>(hitMap.keySet());
         for (Double score : currentScores) {
@@ -197,7 +327,6 @@ public class TargetDecoyMap implements Serializable {
             }
         }
         if (removed) {
-            scores = null;
             nmax = null;
             windowSize = null;
         }
@@ -208,9 +337,7 @@ public class TargetDecoyMap implements Serializable {
      * and above will be skipped for Nmax.
      */
     private void estimateNs() {
-        if (scores == null) {
-            estimateScores();
-        }
+        double[] sortedScores = getScoreArray();
         boolean onlyTarget = true;
         nmax = 0;
         int targetCpt = 0;
@@ -218,33 +345,35 @@ public class TargetDecoyMap implements Serializable {
         nTargetOnly = 0;
         int targetCount = 0, decoyCount = 0;
 
-        for (double score : scores) {
-            TargetDecoyPoint point = hitMap.get(score);
+        for (int i = 0; i < sortedScores.length; i++) {
+            double score = sortedScores[i];
+            int pointNTarget = nTargetArray[i];
+            int pointNDecoy = nDecoyArray[i];
             if (onlyTarget) {
-                if (point.nDecoy > 0) {
-                    nTargetOnly += point.nTarget / 2 + point.nTarget % 2;
-                    targetCpt += point.nTarget / 2;
+                if (pointNDecoy > 0) {
+                    nTargetOnly += pointNTarget / 2 + pointNTarget % 2;
+                    targetCpt += pointNTarget / 2;
                     onlyTarget = false;
-                    decoyCpt += point.nDecoy;
+                    decoyCpt += pointNDecoy;
 
                 } else {
-                    nTargetOnly += point.nTarget;
+                    nTargetOnly += pointNTarget;
                 }
-            } else if (point.nDecoy > 0) {
-                targetCpt += point.nTarget / 2 + point.nTarget % 2;
-                decoyCpt += point.nDecoy;
+            } else if (pointNDecoy > 0) {
+                targetCpt += pointNTarget / 2 + pointNTarget % 2;
+                decoyCpt += pointNDecoy;
                 if (targetCpt > nmax
                         && score < 1.0
                         && decoyCpt >= minDecoysInBin) {
                     nmax = targetCpt;
                 }
-                targetCpt = point.nTarget / 2;
-                decoyCpt = point.nDecoy;
+                targetCpt = pointNTarget / 2;
+                decoyCpt = pointNDecoy;
             } else {
-                targetCpt += point.nTarget;
+                targetCpt += pointNTarget;
             }
-            targetCount += point.nTarget;
-            decoyCount += point.nDecoy;
+            targetCount += pointNTarget;
+            decoyCount += pointNDecoy;
             if (targetCount > 0) {
                 Double fdr = ((double) decoyCount) / targetCount;
                 if (fdr < minFDR) {
@@ -261,9 +390,7 @@ public class TargetDecoyMap implements Serializable {
      */
     public void estimateProbabilities(WaitingHandler waitingHandler) {
 
-        if (scores == null) {
-            estimateScores();
-        }
+        double[] sortedScores = getScoreArray();
         if (nmax == null) {
             estimateNs();
         }
@@ -272,29 +399,26 @@ public class TargetDecoyMap implements Serializable {
         }
 
         // estimate p
-        Double currentScore = scores.get(0);
-        TargetDecoyPoint tempPoint, previousPoint = hitMap.get(currentScore);
+        int previousNTarget = nTargetArray[0];
         double nLimit = 0.5 * windowSize;
-        double nTargetUp = 1.5 * previousPoint.nTarget;
-        double nTargetDown = -0.5 * previousPoint.nTarget;
-        double nDecoy = previousPoint.nDecoy;
+        double nTargetUp = 1.5 * previousNTarget;
+        double nTargetDown = -0.5 * previousNTarget;
+        double nDecoy = nDecoyArray[0];
         int iDown = 0;
         int iUp = 1;
         boolean oneReached = false;
 
-        for (int i = 0; i < scores.size(); i++) {
-            currentScore = scores.get(i);
-            TargetDecoyPoint point = hitMap.get(currentScore);
+        for (int i = 0; i < sortedScores.length; i++) {
+            int pointNTarget = nTargetArray[i];
             if (!oneReached) {
-                double change = 0.5 * (previousPoint.nTarget + point.nTarget);
+                double change = 0.5 * (previousNTarget + pointNTarget);
                 nTargetDown += change;
                 nTargetUp -= change;
                 while (nTargetDown > nLimit) {
                     if (iDown < i) {
-                        tempPoint = hitMap.get(scores.get(iDown));
-                        double nTargetDownTemp = nTargetDown - tempPoint.nTarget;
+                        double nTargetDownTemp = nTargetDown - nTargetArray[iDown];
                         if (nTargetDownTemp >= nLimit) {
-                            nDecoy -= tempPoint.nDecoy;
+                            nDecoy -= nDecoyArray[iDown];
                             nTargetDown = nTargetDownTemp;
                             iDown++;
                         } else {
@@ -304,21 +428,21 @@ public class TargetDecoyMap implements Serializable {
                         break;
                     }
                 }
-                while (nTargetUp < nLimit && iUp < scores.size()) {
-                    tempPoint = hitMap.get(scores.get(iUp));
-                    nTargetUp += tempPoint.nTarget;
-                    nDecoy += tempPoint.nDecoy;
+                while (nTargetUp < nLimit && iUp < sortedScores.length) {
+                    nTargetUp += nTargetArray[iUp];
+                    nDecoy += nDecoyArray[iUp];
                     iUp++;
                 }
                 double nTarget = nTargetDown + nTargetUp;
-                point.p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
-                if (point.p >= 0.98) {
+                double p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
+                pArray[i] = p;
+                if (p >= 0.98) {
                     oneReached = true;
                 }
             } else {
-                point.p = 1;
+                pArray[i] = 1;
             }
-            previousPoint = point;
+            previousNTarget = pointNTarget;
 
             waitingHandler.increaseSecondaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
@@ -372,23 +496,26 @@ public class TargetDecoyMap implements Serializable {
     }
 
     /**
-     * Sorts the scores implemented in this map.
-     */
-    private void estimateScores() {
-        scores = new ArrayList<Double>(hitMap.keySet());
-        Collections.sort(scores);
-    }
-
-    /**
-     * Returns the sorted scores implemented in this map.
+     * Returns the sorted scores implemented in this map. The list is computed
+     * once per freeze and should not be modified.
      *
      * @return the sorted scores implemented in this map.
      */
     public ArrayList<Double> getScores() {
-        if (scores == null) {
-            estimateScores();
+        ArrayList<Double> result = scoreList;
+        if (result == null) {
+            double[] sortedScores = getScoreArray();
+            result = new ArrayList<Double>(sortedScores.length);
+            for (double score : sortedScores) {
+                result.add(score);
+            }
+            synchronized (this) {
+                if (scoreArray == sortedScores) {
+                    scoreList = result;
+                }
+            }
         }
-        return scores;
+        return result;
     }
 
     /**
@@ -396,16 +523,19 @@ public class TargetDecoyMap implements Serializable {
      *
      * @param anOtherMap another target/decoy map
      */
-    public void addAll(TargetDecoyMap anOtherMap) {
-        for (double score : anOtherMap.getScores()) {
-            for (int i = 0; i < anOtherMap.getNDecoy(score); i++) {
-                put(score, true);
-            }
-            for (int i = 0; i < anOtherMap.getNTarget(score); i++) {
-                put(score, false);
+    public synchronized void addAll(TargetDecoyMap anOtherMap) {
+        thaw();
+        double[] otherScores = anOtherMap.getScoreArray();
+        for (int i = 0; i < otherScores.length; i++) {
+            Double score = otherScores[i];
+            TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+            if (targetDecoyPoint == null) {
+                targetDecoyPoint = new TargetDecoyPoint();
+                hitMap.put(score, targetDecoyPoint);
             }
+            targetDecoyPoint.nTarget += anOtherMap.nTargetArray[i];
+            targetDecoyPoint.nDecoy += anOtherMap.nDecoyArray[i];
         }
-        scores = null;
         nmax = null;
         windowSize = null;
     }
@@ -442,7 +572,27 @@ public class TargetDecoyMap implements Serializable {
      * @return the target decoy series
      */
     public TargetDecoySeries getTargetDecoySeries() {
-        return new TargetDecoySeries(hitMap);
+        double[] sortedScores = getScoreArray();
+        return new TargetDecoySeries(sortedScores, nTargetArray, nDecoyArray, pArray);
+    }
+
+    /**
+     * Returns the index of the matches validated using this map, null if not
+     * indexed.
+     *
+     * @return the index of the matches validated using this map
+     */
+    public TargetDecoyMatchIndex getMatchIndex() {
+        return matchIndex;
+    }
+
+    /**
+     * Sets the index of the matches validated using this map.
+     *
+     * @param matchIndex the index of the matches validated using this map
+     */
+    public void setMatchIndex(TargetDecoyMatchIndex matchIndex) {
+        this.matchIndex = matchIndex;
     }
 
     /**
@@ -472,6 +622,48 @@ public class TargetDecoyMap implements Serializable {
      * @return the size of the map
      */
     public int getMapSize() {
+        double[] sortedScores = scoreArray;
+        if (sortedScores != null) {
+            return sortedScores.length;
+        }
         return hitMap.size();
     }
+
+    /**
+     * Reads the map and freezes it. Maps of former versions are loaded as hit
+     * maps.
+     *
+     * @param in the object input stream
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     * @throws ClassNotFoundException exception thrown whenever a class of the
+     * stream could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        freeze();
+    }
+
+    /**
+     * Writes the map in the hit map format of former versions: the hit map
+     * and the sorted scores are populated from the arrays while writing and
+     * released afterwards.
+     *
+     * @param out the object output stream
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the stream
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        double[] sortedScores = getScoreArray();
+        hitMap = getHitMap(sortedScores);
+        scores = getScores();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            hitMap = null;
+            scores = null;
+        }
+    }
 }
@@ -0,0 +1,362 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Index of the matches validated using a target/decoy map, sorted by score
+ * and by confidence, together with the thresholds used for their last
+ * validation. When the thresholds of the map change, only the matches between
+ * the former and the new thresholds can change validation level and need to
+ * be validated again. The thresholds are stored at every validation while the
+ * matches are only added when the index is first needed.
+ *
+ * @author Marc Vaudel
+ */
+public class TargetDecoyMatchIndex {
+
+    /**
+     * The keys of the matches in order of insertion.
+     */
+    private final ArrayList<String> keys = new ArrayList<String>();
+    /**
+     * The scores of the matches in order of insertion.
+     */
+    private double[] scores = new double[1024];
+    /**
+     * The confidences of the matches in order of insertion.
+     */
+    private double[] confidences = new double[1024];
+    /**
+     * The keys of the matches sorted by score, null if not sorted yet.
+     */
+    private String[] keysByScore = null;
+    /**
+     * The sorted scores.
+     */
+    private double[] sortedScores = null;
+    /**
+     * The keys of the matches sorted by confidence.
+     */
+    private String[] keysByConfidence = null;
+    /**
+     * The sorted confidences.
+     */
+    private double[] sortedConfidences = null;
+    /**
+     * The thresholds used for the last validation of the matches, null if the
+     * validation was not completed.
+     */
+    private ValidationThresholds validationThresholds = null;
+    /**
+     * Boolean indicating whether all matches of the map were added to the
+     * index.
+     */
+    private boolean indexed = false;
+
+    /**
+     * Constructor.
+     */
+    public TargetDecoyMatchIndex() {
+    }
+
+    /**
+     * Adds a match to the index.
+     *
+     * @param key the key of the match
+     * @param score the probabilistic score of the match
+     * @param confidence the confidence of the match
+     */
+    public synchronized void addMatch(String key, double score, double confidence) {
+        int size = keys.size();
+        if (size == scores.length) {
+            scores = Arrays.copyOf(scores, 2 * size);
+            confidences = Arrays.copyOf(confidences, 2 * size);
+        }
+        keys.add(key);
+        scores[size] = score;
+        confidences[size] = confidence;
+        keysByScore = null;
+    }
+
+    /**
+     * Indicates whether all matches of the map were added to the index.
+     *
+     * @return a boolean indicating whether all matches of the map were added
+     * to the index
+     */
+    public synchronized boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Sets whether all matches of the map were added to the index.
+     *
+     * @param indexed a boolean indicating whether all matches of the map were
+     * added to the index
+     */
+    public synchronized void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Returns the number of matches in the index.
+     *
+     * @return the number of matches in the index
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Stores the thresholds of the given map as the ones used for the last
+     * validation of the matches.
+     *
+     * @param targetDecoyMap the target/decoy map of the matches
+     * @param confidenceMargin the confidence margin in resolution of the map
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     */
+    public synchronized void setValidationThresholds(TargetDecoyMap targetDecoyMap, double confidenceMargin, boolean firstDecoy) {
+        validationThresholds = new ValidationThresholds(targetDecoyMap, confidenceMargin, firstDecoy);
+    }
+
+    /**
+     * Indicates whether the validation of the matches was completed.
+     *
+     * @return a boolean indicating whether the validation of the matches was
+     * completed
+     */
+    public synchronized boolean isValidated() {
+        return validationThresholds != null;
+    }
+
+    /**
+     * Indicates whether the thresholds of the given map differ from the ones
+     * used for the last validation.
+     *
+     * @param targetDecoyMap the target/decoy map of the matches
+     * @param confidenceMargin the confidence margin in resolution of the map
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     *
+     * @return a boolean indicating whether the thresholds changed
+     */
+    public synchronized boolean thresholdsChanged(TargetDecoyMap targetDecoyMap, double confidenceMargin, boolean firstDecoy) {
+        return validationThresholds == null || !validationThresholds.isSame(new ValidationThresholds(targetDecoyMap, confidenceMargin, firstDecoy));
+    }
+
+    /**
+     * Returns the keys of the matches which can change validation level when
+     * going from the thresholds of the last validation to the thresholds of
+     * the given map: the matches scoring between the former and new score
+     * thresholds and the matches having a confidence between the former and
+     * new confidence thresholds. All matches are returned if the global
+     * validation status of the map changed. Null if the validation of the
+     * matches was not completed.
+     *
+     * @param targetDecoyMap the target/decoy map of the matches
+     * @param confidenceMargin the confidence margin in resolution of the map
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     *
+     * @return the keys of the matches which can change validation level
+     */
+    public synchronized HashSet<String> getAffectedKeys(TargetDecoyMap targetDecoyMap, double confidenceMargin, boolean firstDecoy) {
+
+        if (validationThresholds == null) {
+            return null;
+        }
+
+        ValidationThresholds newThresholds = new ValidationThresholds(targetDecoyMap, confidenceMargin, firstDecoy);
+
+        if (newThresholds.noValidated != validationThresholds.noValidated
+                || newThresholds.enoughHits != validationThresholds.enoughHits
+                || newThresholds.enoughHitsUserInput != validationThresholds.enoughHitsUserInput) {
+            return new HashSet<String>(keys);
+        }
+        if (newThresholds.noValidated) {
+            return new HashSet<String>(0);
+        }
+
+        sort();
+
+        HashSet<String> result = new HashSet<String>();
+
+        // validated if the score is lower or equal to the threshold
+        double lowScore = Math.min(newThresholds.scoreLimit, validationThresholds.scoreLimit);
+        double highScore = Math.max(newThresholds.scoreLimit, validationThresholds.scoreLimit);
+        int end = upperBound(sortedScores, highScore);
+        for (int i = upperBound(sortedScores, lowScore); i < end; i++) {
+            result.add(keysByScore[i]);
+        }
+
+        // confident if the confidence is higher or equal to the threshold
+        double lowConfidence = Math.min(newThresholds.confidenceLimit, validationThresholds.confidenceLimit);
+        double highConfidence = Math.max(newThresholds.confidenceLimit, validationThresholds.confidenceLimit);
+        end = lowerBound(sortedConfidences, highConfidence);
+        for (int i = lowerBound(sortedConfidences, lowConfidence); i < end; i++) {
+            result.add(keysByConfidence[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sorts the matches by score and by confidence if not done already.
+     */
+    private void sort() {
+
+        if (keysByScore != null) {
+            return;
+        }
+
+        int size = keys.size();
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(scores[o1], scores[o2]);
+            }
+        });
+        String[] tempKeys = new String[size];
+        sortedScores = new double[size];
+        for (int i = 0; i < size; i++) {
+            tempKeys[i] = keys.get(order[i]);
+            sortedScores[i] = scores[order[i]];
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(confidences[o1], confidences[o2]);
+            }
+        });
+        keysByConfidence = new String[size];
+        sortedConfidences = new double[size];
+        for (int i = 0; i < size; i++) {
+            keysByConfidence[i] = keys.get(order[i]);
+            sortedConfidences[i] = confidences[order[i]];
+        }
+
+        keysByScore = tempKeys;
+    }
+
+    /**
+     * Returns the index of the first value strictly higher than the given
+     * value in a sorted array.
+     *
+     * @param sortedValues the sorted values
+     * @param value the value
+     *
+     * @return the index of the first value strictly higher than the given
+     * value
+     */
+    private static int upperBound(double[] sortedValues, double value) {
+        int low = 0;
+        int high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first value higher or equal to the given value
+     * in a sorted array.
+     *
+     * @param sortedValues the sorted values
+     * @param value the value
+     *
+     * @return the index of the first value higher or equal to the given value
+     */
+    private static int lowerBound(double[] sortedValues, double value) {
+        int low = 0;
+        int high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The thresholds used to validate the matches of a target/decoy map.
+     */
+    private static class ValidationThresholds {
+
+        /**
+         * The score threshold.
+         */
+        private final double scoreLimit;
+        /**
+         * The confidence threshold for confident matches.
+         */
+        private final double confidenceLimit;
+        /**
+         * Boolean indicating whether no match is validated.
+         */
+        private final boolean noValidated;
+        /**
+         * Boolean indicating whether enough target hits are found before the
+         * first decoy according to the FDR limit.
+         */
+        private final boolean enoughHits;
+        /**
+         * Boolean indicating whether enough target hits are found before the
+         * first decoy according to the user input.
+         */
+        private final boolean enoughHitsUserInput;
+
+        /**
+         * Constructor.
+         *
+         * @param targetDecoyMap the target/decoy map
+         * @param confidenceMargin the confidence margin in resolution of the
+         * map
+         * @param firstDecoy boolean indicating whether the number of target
+         * hits before the first decoy is used for quality control
+         */
+        private ValidationThresholds(TargetDecoyMap targetDecoyMap, double confidenceMargin, boolean firstDecoy) {
+            TargetDecoyResults targetDecoyResults = targetDecoyMap.getTargetDecoyResults();
+            scoreLimit = targetDecoyResults.getScoreLimit();
+            double margin = confidenceMargin * targetDecoyMap.getResolution();
+            confidenceLimit = Math.min(100, targetDecoyResults.getConfidenceLimit() + margin);
+            noValidated = targetDecoyResults.noValidated();
+            enoughHits = !firstDecoy || targetDecoyMap.getnTargetOnly() > 100.0 / targetDecoyResults.getFdrLimit();
+            Double userInput = targetDecoyResults.getUserInput();
+            enoughHitsUserInput = !firstDecoy || userInput == null || targetDecoyMap.getnTargetOnly() > 100.0 / userInput;
+        }
+
+        /**
+         * Indicates whether these thresholds are the same as the given ones.
+         *
+         * @param otherThresholds the other thresholds
+         *
+         * @return a boolean indicating whether these thresholds are the same
+         * as the given ones
+         */
+        private boolean isSame(ValidationThresholds otherThresholds) {
+            return scoreLimit == otherThresholds.scoreLimit
+                    && confidenceLimit == otherThresholds.confidenceLimit
+                    && noValidated == otherThresholds.noValidated
+                    && enoughHits == otherThresholds.enoughHits
+                    && enoughHitsUserInput == otherThresholds.enoughHitsUserInput;
+        }
+    }
+}
@@ -92,20 +92,60 @@ public class TargetDecoySeries {
      */
     public TargetDecoySeries(HashMap<Double, TargetDecoyPoint> hitMap) {
 
-        scores = new double[hitMap.size()];
+        double[] sortedScores = new double[hitMap.size()];
+        int counter = 0;
+        for (double score : hitMap.keySet()) {
+            sortedScores[counter] = score;
+            counter++;
+        }
+        Arrays.sort(sortedScores);
+
+        int[] nTargets = new int[sortedScores.length];
+        int[] nDecoys = new int[sortedScores.length];
+        double[] ps = new double[sortedScores.length];
+        for (int i = 0; i < sortedScores.length; i++) {
+            TargetDecoyPoint currentPoint = hitMap.get(sortedScores[i]);
+            nTargets[i] = currentPoint.nTarget;
+            nDecoys[i] = currentPoint.nDecoy;
+            ps[i] = currentPoint.p;
+        }
+
+        initiateSeries(sortedScores, nTargets, nDecoys, ps);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sortedScores the scores of a target decoy map sorted in
+     * ascending order
+     * @param nTargets the number of target hits at every score
+     * @param nDecoys the number of decoy hits at every score
+     * @param ps the posterior error probability at every score
+     */
+    public TargetDecoySeries(double[] sortedScores, int[] nTargets, int[] nDecoys, double[] ps) {
+        initiateSeries(sortedScores, nTargets, nDecoys, ps);
+    }
+
+    /**
+     * Computes the series from the points of a target decoy map.
+     *
+     * @param sortedScores the scores of a target decoy map sorted in
+     * ascending order
+     * @param nTargets the number of target hits at every score
+     * @param nDecoys the number of decoy hits at every score
+     * @param ps the posterior error probability at every score
+     */
+    private void initiateSeries(double[] sortedScores, int[] nTargets, int[] nDecoys, double[] ps) {
+
+        scores = Arrays.copyOf(sortedScores, sortedScores.length);
         scoresLog = new double[scores.length];
         probaNTotal = 0;
-        int counter = 0;
-        TargetDecoyPoint currentPoint;
         double minScore = 0, maxScore = 100;
 
-        for (double score : hitMap.keySet()) {
-            currentPoint = hitMap.get(score);
-            double scoreLog = PSParameter.getScore(score);
-            scores[counter] = score;
-            scoresLog[counter] = scoreLog;
-            probaNTotal += (1 - currentPoint.p) * currentPoint.nTarget;
-            counter++;
+        for (int i = 0; i < scores.length; i++) {
+            double scoreLog = PSParameter.getScore(scores[i]);
+            scoresLog[i] = scoreLog;
+            probaNTotal += (1 - ps[i]) * nTargets[i];
             if (scoreLog < minScore) {
                 minScore = scoreLog;
             }
@@ -118,7 +158,6 @@ public class TargetDecoySeries {
         int histogramScoreMax = (int) maxScore;
         initiateTDHistogram(histogramScoreMin, histogramScoreMax);
 
-        Arrays.sort(scores);
         Arrays.sort(scoresLog);
 
         confidence = new double[scores.length];
@@ -140,15 +179,16 @@ public class TargetDecoySeries {
         double probaFnrTemp;
 
         for (int i = 0; i < scores.length; i++) {
-            double score = scores[i];
-            currentPoint = hitMap.get(score);
-            nTemp += currentPoint.nTarget;
-            classicalFPTemp += currentPoint.nDecoy;
-            probaFPTemp += currentPoint.nTarget * (currentPoint.p);
-            probaTP += currentPoint.nTarget * (1 - currentPoint.p);
+            int pointNTarget = nTargets[i];
+            int pointNDecoy = nDecoys[i];
+            double p = ps[i];
+            nTemp += pointNTarget;
+            classicalFPTemp += pointNDecoy;
+            probaFPTemp += pointNTarget * p;
+            probaTP += pointNTarget * (1 - p);
             probaFnrTemp = 100 * (probaNTotal - probaTP) / probaNTotal;
-            pep[i] = 100 * currentPoint.p;
-            double confidenceAtI = 100 * (1 - currentPoint.p);
+            pep[i] = 100 * p;
+            double confidenceAtI = 100 * (1 - p);
             confidence[i] = confidenceAtI;
             int iInvert = scores.length - i - 1;
             confidenceLog[iInvert] = confidenceAtI;
@@ -159,12 +199,12 @@ public class TargetDecoySeries {
             probaFDR[i] = 100 * probaFPTemp / nTemp;
             probaFNR[i] = probaFnrTemp;
             probaBenefit[i] = 100 - probaFnrTemp;
-            decoy[i] = currentPoint.nTarget == 0;
+            decoy[i] = pointNTarget == 0;
 
             double scoreLog = scoresLog[iInvert];
             int bin = ((int) (Math.round((scoreLog - histogramScoreMin) / binSize)));
-            nDecoy[bin] += currentPoint.nDecoy;
-            nTarget[bin] += currentPoint.nTarget;
+            nDecoy[bin] += pointNDecoy;
+            nTarget[bin] += pointNTarget;
         }
     }
 
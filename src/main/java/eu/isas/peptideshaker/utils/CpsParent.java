@@ -237,8 +237,19 @@ public class CpsParent extends UserPreferencesParent {
         // Get identification and restore connection
         identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
         objectsCache = new ObjectsCache();
-        objectsCache.setAutomatedMemoryManagement(true);
+        objectsCache.setAutomatedMemoryManagement(false);
         objectsCache.setReadOnly(false);
+        final ObjectsCache projectCache = objectsCache;
+        MemoryGovernor.getInstance().registerMemoryConsumer("objects", new MemoryGovernor.MemoryConsumer() {
+            @Override
+            public boolean releaseMemory(double share) throws Exception {
+                if (projectCache.isEmpty()) {
+                    return false;
+                }
+                projectCache.reduceMemoryConsumption(share, null);
+                return true;
+            }
+        });
         identification.restoreConnection(dbFolder.getAbsolutePath(), false, objectsCache);
 
         // Get PeptideShaker settings
@@ -283,10 +294,22 @@ public class CpsParent extends UserPreferencesParent {
         }
 
         loadUserPreferences();
+        setIdentificationFeaturesCacheSizes();
         userPreferences.addRecentProject(cpsFile);
         saveUserPreferences();
     }
 
+    /**
+     * Sets the sizes of the identification features cache according to the
+     * user preferences.
+     */
+    private void setIdentificationFeaturesCacheSizes() {
+        if (userPreferences == null) {
+            loadUserPreferences();
+        }
+        identificationFeaturesGenerator.getIdentificationFeaturesCache().setCacheSizes(userPreferences);
+    }
+
     /**
      * Saves the project in the cps file.
      *
@@ -616,6 +639,7 @@ public class CpsParent extends UserPreferencesParent {
      */
     public void setIdentificationFeaturesGenerator(IdentificationFeaturesGenerator identificationFeaturesGenerator) {
         this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+        setIdentificationFeaturesCacheSizes();
     }
 
     /**
@@ -742,6 +766,7 @@ public class CpsParent extends UserPreferencesParent {
      */
     public void resetIdentificationFeaturesGenerator() {
         identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, shotgunProtocol, identificationParameters, metrics, spectrumCountingPreferences);
+        setIdentificationFeaturesCacheSizes();
     }
 
     /**
@@ -1,8 +1,18 @@
 package eu.isas.peptideshaker.utils;
 
+import com.compomics.util.Util;
+import eu.isas.peptideshaker.preferences.UserPreferences;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class caches the identification features calculated by the
@@ -109,33 +119,34 @@ public class IdentificationFeaturesCache implements Serializable {
         containsEnzymaticPeptides;
     }
     /**
-     * The number of values kept in memory for small objects.
+     * The default number of values kept in memory for small objects, shared by
+     * all types of small objects.
      */
-    private final int smallObjectsCacheSize = 1000000;
+    public static final int DEFAULT_SMALL_OBJECTS_CACHE_SIZE = 1000000;
     /**
-     * The number of values kept in memory for big objects.
+     * The default number of values kept in memory for big objects, shared by
+     * all types of big objects.
      */
-    private final int bigObjectsCacheSize = 1000;
+    public static final int DEFAULT_BIG_OBJECTS_CACHE_SIZE = 1000;
     /**
-     * Separator used to concatenate strings.
+     * The number of segments of the cache of every type. Segments are locked
+     * independently.
      */
-    private static final String cacheSeparator = "_ccs_";
+    private static final int N_SEGMENTS = 16;
     /**
-     * The cached protein matches for small objects.
+     * The objects in cache indexed by type. Only used for serialization, see
+     * writeObject and readObject.
      */
-    private ArrayList<String> smallObjectsInCache = new ArrayList<String>();
+    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = null;
     /**
-     * The cached protein matches for big objects.
+     * The objects in cache indexed by type. Only used for serialization, see
+     * writeObject and readObject.
      */
-    private ArrayList<String> bigObjectsInCache = new ArrayList<String>();
+    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = null;
     /**
-     * Mapping of the stored big objects.
+     * The caches of the different object types.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
-    /**
-     * Mapping of the stored small objects.
-     */
-    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private transient EnumMap<ObjectType, TypeCache> typeCaches;
     /**
      * The protein list.
      */
@@ -183,133 +194,218 @@ public class IdentificationFeaturesCache implements Serializable {
      */
     private boolean readOnly = false;
 
+    /**
+     * Constructor.
+     */
+    public IdentificationFeaturesCache() {
+        initiateTypeCaches();
+    }
+
+    /**
+     * Creates the caches of all types with the default sizes.
+     */
+    private void initiateTypeCaches() {
+        typeCaches = new EnumMap<ObjectType, TypeCache>(ObjectType.class);
+        for (ObjectType type : ObjectType.values()) {
+            typeCaches.put(type, new TypeCache(getDefaultCacheSize(type)));
+        }
+    }
+
+    /**
+     * Indicates whether the given type of object is a big object.
+     *
+     * @param type the type of object
+     *
+     * @return a boolean indicating whether the given type of object is a big
+     * object
+     */
+    public static boolean isBigObject(ObjectType type) {
+        switch (type) {
+            case coverable_AA_p:
+            case AA_coverage:
+            case tryptic_protein:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Indicates whether the value of the given type of object depends on the
+     * validation of the matches.
+     *
+     * @param type the type of object
+     *
+     * @return a boolean indicating whether the value of the given type of
+     * object depends on the validation of the matches
+     */
+    public static boolean dependsOnValidation(ObjectType type) {
+        switch (type) {
+            case AA_coverage:
+            case sequence_coverage:
+            case sequence_validation_coverage:
+            case spectrum_counting:
+            case number_of_validated_spectra:
+            case number_of_confident_spectra:
+            case number_of_validated_peptides:
+            case number_of_confident_peptides:
+            case protein_groups_for_peptide:
+            case unique_validated_peptides:
+            case unique_validated_peptides_group:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the default number of objects of the given type to keep in
+     * cache. The default sizes of the small and big objects are shares of
+     * DEFAULT_SMALL_OBJECTS_CACHE_SIZE and DEFAULT_BIG_OBJECTS_CACHE_SIZE
+     * respectively.
+     *
+     * @param type the type of object
+     *
+     * @return the default number of objects of the given type to keep in
+     * cache
+     */
+    public static int getDefaultCacheSize(ObjectType type) {
+        boolean bigObject = isBigObject(type);
+        int nTypes = 0;
+        for (ObjectType otherType : ObjectType.values()) {
+            if (isBigObject(otherType) == bigObject) {
+                nTypes++;
+            }
+        }
+        if (bigObject) {
+            return DEFAULT_BIG_OBJECTS_CACHE_SIZE / nTypes;
+        }
+        return DEFAULT_SMALL_OBJECTS_CACHE_SIZE / nTypes;
+    }
+
+    /**
+     * Returns the number of objects of the given type kept in cache.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type kept in cache
+     */
+    public int getCacheSize(ObjectType type) {
+        return typeCaches.get(type).getCacheSize();
+    }
+
+    /**
+     * Sets the number of objects of the given type kept in cache. Least
+     * recently used objects are removed if the cache is bigger.
+     *
+     * @param type the type of object
+     * @param cacheSize the number of objects of the given type kept in cache
+     */
+    public void setCacheSize(ObjectType type, int cacheSize) {
+        typeCaches.get(type).setCacheSize(cacheSize);
+    }
+
+    /**
+     * Sets the cache sizes according to the user preferences. Types without
+     * size in the user preferences are set to the default size.
+     *
+     * @param userPreferences the user preferences, can be null
+     */
+    public void setCacheSizes(UserPreferences userPreferences) {
+        for (ObjectType type : ObjectType.values()) {
+            Integer cacheSize = null;
+            if (userPreferences != null) {
+                cacheSize = userPreferences.getIdentificationFeaturesCacheSize(type.name());
+            }
+            if (cacheSize == null || cacheSize < 0) {
+                cacheSize = getDefaultCacheSize(type);
+            }
+            setCacheSize(type, cacheSize);
+        }
+    }
+
+    /**
+     * Returns the number of objects of the given type currently in cache.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type currently in cache
+     */
+    public int getNObjects(ObjectType type) {
+        return typeCaches.get(type).size();
+    }
+
     /**
      * Clears all objects of the given type.
      *
      * @param type the object type
      */
-    public synchronized void removeObjects(ObjectType type) {
+    public void removeObjects(ObjectType type) {
         if (!readOnly) {
-            String typeKey = getTypeAsString(type);
-            ArrayList<String> toRemove = new ArrayList<String>();
-
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    bigObjectsCache.remove(type);
-                    for (String key : bigObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        bigObjectsInCache.remove(key);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    smallObjectsCache.remove(type);
-                    for (String key : smallObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        smallObjectsInCache.remove(key);
-                    }
-                    break;
+            typeCaches.get(type).clear();
+        }
+    }
+
+    /**
+     * Clears all objects which depend on the validation of the matches. To be
+     * called whenever the matches are validated again.
+     */
+    public void removeValidationDependentObjects() {
+        for (ObjectType type : ObjectType.values()) {
+            if (dependsOnValidation(type)) {
+                typeCaches.get(type).clear();
             }
         }
     }
 
     /**
-     * Adds an object in the cache.
+     * Removes the given share of the least recently used objects of every
+     * type, the cache sizes remain unchanged.
+     *
+     * @param share the share of the objects to remove
+     *
+     * @return a boolean indicating whether objects were removed
+     */
+    public boolean reduceMemoryConsumption(double share) {
+        if (readOnly) {
+            return false;
+        }
+        boolean removed = false;
+        for (TypeCache typeCache : typeCaches.values()) {
+            removed = typeCache.reduce(share) || removed;
+        }
+        return removed;
+    }
+
+    /**
+     * Adds an object in the cache. If the cache for this type of object is
+     * full, the least recently used object is removed.
      *
      * @param type the type of the object
      * @param objectKey the object key
      * @param object the object to store
      */
-    public synchronized void addObject(ObjectType type, String objectKey, Object object) {
+    public void addObject(ObjectType type, String objectKey, Object object) {
         if (!readOnly) {
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    if (!bigObjectsCache.containsKey(type)) {
-                        bigObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    Object oldValue = bigObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) { // don't add if the object was already in the cache
-                        bigObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (bigObjectsInCache.size() >= bigObjectsCacheSize && !bigObjectsInCache.isEmpty()) {
-                        String firstObjectKey = bigObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = bigObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                bigObjectsCache.remove(oldType);
-                            }
-                        }
-                        bigObjectsInCache.remove(0);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    if (!smallObjectsCache.containsKey(type)) {
-                        smallObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    oldValue = smallObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) {
-                        smallObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (smallObjectsInCache.size() >= smallObjectsCacheSize && !smallObjectsInCache.isEmpty()) {
-                        String firstObjectKey = smallObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = smallObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                smallObjectsCache.remove(oldType);
-                            }
-                        }
-                        smallObjectsInCache.remove(0);
-                    }
-                    break;
-            }
+            typeCaches.get(type).put(objectKey, object);
         }
     }
 
+    /**
+     * Adds an object in the cache and the time taken to compute it to the
+     * statistics. If the cache for this type of object is full, the least
+     * recently used object is removed.
+     *
+     * @param type the type of the object
+     * @param objectKey the object key
+     * @param object the object to store
+     * @param computeTime the time taken to compute the object in nanoseconds
+     */
+    public void addObject(ObjectType type, String objectKey, Object object, long computeTime) {
+        typeCaches.get(type).computeTime.addAndGet(computeTime);
+        addObject(type, objectKey, object);
+    }
+
     /**
      * Returns an object if present in the cache. Null if not.
      *
@@ -318,35 +414,104 @@ public class IdentificationFeaturesCache implements Serializable {
      * @return the desired object
      */
     public Object getObject(ObjectType type, String objectKey) {
-        switch (type) {
-            case coverable_AA_p:
-            case AA_coverage:
-            case tryptic_protein:
-                HashMap<String, Object> cacheForType = bigObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            case sequence_coverage:
-            case sequence_validation_coverage:
-            case expected_coverage:
-            case spectrum_counting:
-            case number_of_spectra:
-            case number_of_validated_spectra:
-            case number_of_validated_peptides:
-            case number_of_confident_spectra:
-            case number_of_confident_peptides:
-            case max_psm_mz_for_peptides:
-            case unique_peptides:
-            case containsEnzymaticPeptides:
-                cacheForType = smallObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            default:
-                return null;
+        TypeCache typeCache = typeCaches.get(type);
+        Object result = typeCache.get(objectKey);
+        if (result == null) {
+            typeCache.nMisses.incrementAndGet();
+        } else {
+            typeCache.nHits.incrementAndGet();
         }
+        return result;
+    }
+
+    /**
+     * Returns the number of objects of the given type found in cache since
+     * the cache was created or the statistics reset.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type found in cache
+     */
+    public long getNHits(ObjectType type) {
+        return typeCaches.get(type).nHits.get();
+    }
+
+    /**
+     * Returns the number of objects of the given type not found in cache since
+     * the cache was created or the statistics reset.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type not found in cache
+     */
+    public long getNMisses(ObjectType type) {
+        return typeCaches.get(type).nMisses.get();
+    }
+
+    /**
+     * Returns the number of objects of the given type removed from the cache
+     * to make room for new objects since the cache was created or the
+     * statistics reset.
+     *
+     * @param type the type of object
+     *
+     * @return the number of objects of the given type removed from the cache
+     */
+    public long getNEvictions(ObjectType type) {
+        return typeCaches.get(type).nEvictions.get();
+    }
+
+    /**
+     * Returns the time spent computing the objects of the given type in
+     * nanoseconds since the cache was created or the statistics reset. The
+     * time is measured around the computation of every object added, it
+     * therefore includes the time spent computing other features needed.
+     *
+     * @param type the type of object
+     *
+     * @return the time spent computing the objects of the given type in
+     * nanoseconds
+     */
+    public long getComputeTime(ObjectType type) {
+        return typeCaches.get(type).computeTime.get();
+    }
+
+    /**
+     * Resets the hit, miss, eviction and compute time statistics.
+     */
+    public void resetStatistics() {
+        for (TypeCache typeCache : typeCaches.values()) {
+            typeCache.nHits.set(0);
+            typeCache.nMisses.set(0);
+            typeCache.nEvictions.set(0);
+            typeCache.computeTime.set(0);
+        }
+    }
+
+    /**
+     * Returns a report of the cache statistics, one line per type of object
+     * queried.
+     *
+     * @return a report of the cache statistics
+     */
+    public String getStatisticsReport() {
+        StringBuilder report = new StringBuilder();
+        for (ObjectType type : ObjectType.values()) {
+            long nHits = getNHits(type);
+            long nMisses = getNMisses(type);
+            if (nHits + nMisses > 0) {
+                double hitRate = 100.0 * nHits / (nHits + nMisses);
+                report.append(type.name()).append(": ")
+                        .append(nHits).append(" hits, ")
+                        .append(nMisses).append(" misses (")
+                        .append(Util.roundDouble(hitRate, 1)).append("% hits), ")
+                        .append(getNEvictions(type)).append(" evictions, ")
+                        .append(Util.roundDouble(getComputeTime(type) / 1000000.0, 1)).append(" ms computing, ")
+                        .append(getNObjects(type)).append("/").append(getCacheSize(type)).append(" in cache.")
+                        .append(System.getProperty("line.separator"));
+            }
+        }
+        return report.toString();
     }
 
     /**
@@ -535,127 +700,324 @@ public class IdentificationFeaturesCache implements Serializable {
     }
 
     /**
-     * Convenience method returning a string as key for the object of the given
-     * type identified by the given key.
+     * Sets the cache in read only.
      *
-     * @param type the type of object
-     * @param objectKey the key of the object
-     * @return the key to be used in cache
+     * @param readOnly boolean indicating whether the cache should be in read
+     * only
      */
-    private String getCacheKey(ObjectType type, String objectKey) {
-        return getTypeAsString(type) + cacheSeparator + objectKey;
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
     }
 
     /**
-     * Returns the object type as string.
+     * Writes the objects in cache indexed by type in the serialization maps.
      *
-     * @param type the type of object
-     * @return the corresponding key
-     */
-    private String getTypeAsString(ObjectType type) {
-        switch (type) {
-            case coverable_AA_p:
-                return "coverable_AA_p";
-            case AA_coverage:
-                return "AA_coverage";
-            case sequence_coverage:
-                return "sequence_coverage";
-            case sequence_validation_coverage:
-                return "sequence_validation_coverage";
-            case expected_coverage:
-                return "expected_coverage";
-            case spectrum_counting:
-                return "spectrum_counting";
-            case number_of_spectra:
-                return "#spectra";
-            case number_of_validated_spectra:
-                return "#validated_spectra";
-            case number_of_validated_peptides:
-                return "#validated_peptides";
-            case number_of_confident_spectra:
-                return "#confident_spectra";
-            case number_of_confident_peptides:
-                return "#confident_peptides";
-            case max_psm_mz_for_peptides:
-                return "max_psm_mz_for_peptides";
-            case tryptic_protein:
-                return "tryptic_protein";
-            case unique_peptides:
-                return "unique_peptides";
-            case containsEnzymaticPeptides:
-                return "contains_enzymatic_peptides";
-            default:
-                return "default";
-        }
-    }
-
-    /**
-     * Convenience method returning the type of object base on the objects cache
-     * key.
-     *
-     * @param cacheKey the object cache key
-     * @return the type of object
-     */
-    private ObjectType getType(String cacheKey) {
-        String objectTypeAsString = cacheKey.split(cacheSeparator)[0];
-        if (objectTypeAsString.equals("coverable_AA_p")) {
-            return ObjectType.coverable_AA_p;
-        } else if (objectTypeAsString.equals("AA_coverage")) {
-            return ObjectType.AA_coverage;
-        } else if (objectTypeAsString.equals("sequence_coverage")) {
-            return ObjectType.sequence_coverage;
-        } else if (objectTypeAsString.equals("sequence_validation_coverage")) {
-            return ObjectType.sequence_validation_coverage;
-        } else if (objectTypeAsString.equals("expected_coverage")) {
-            return ObjectType.expected_coverage;
-        } else if (objectTypeAsString.equals("spectrum_counting")) {
-            return ObjectType.spectrum_counting;
-        } else if (objectTypeAsString.equals("#spectra")) {
-            return ObjectType.number_of_spectra;
-        } else if (objectTypeAsString.equals("#validated_spectra")) {
-            return ObjectType.number_of_validated_spectra;
-        } else if (objectTypeAsString.equals("#validated_peptides")) {
-            return ObjectType.number_of_validated_peptides;
-        } else if (objectTypeAsString.equals("#confident_spectra")) {
-            return ObjectType.number_of_confident_spectra;
-        } else if (objectTypeAsString.equals("#confident_peptides")) {
-            return ObjectType.number_of_confident_peptides;
-        } else if (objectTypeAsString.equals("max_psm_mz_for_peptides")) {
-            return ObjectType.max_psm_mz_for_peptides;
-        } else if (objectTypeAsString.equals("tryptic_protein")) {
-            return ObjectType.tryptic_protein;
-        } else if (objectTypeAsString.equals("unique_peptides")) {
-            return ObjectType.unique_peptides;
-        } else if (objectTypeAsString.equals("contains_enzymatic_peptides")) { 
-            return ObjectType.containsEnzymaticPeptides;
-        } else {
-            return null;
+     * @param out the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the object
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+        smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+        for (ObjectType type : ObjectType.values()) {
+            HashMap<String, Object> objects = typeCaches.get(type).getObjects();
+            if (!objects.isEmpty()) {
+                if (isBigObject(type)) {
+                    bigObjectsCache.put(type, objects);
+                } else {
+                    smallObjectsCache.put(type, objects);
+                }
+            }
+        }
+        try {
+            out.defaultWriteObject();
+        } finally {
+            bigObjectsCache = null;
+            smallObjectsCache = null;
         }
     }
 
     /**
-     * Convenience method returning the object key based on the cache key.
+     * Reads the object and fills the caches from the serialization maps.
      *
-     * @param cacheKey the cache key
-     * @return the object key
+     * @param in the stream to read from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the object
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initiateTypeCaches();
+        if (bigObjectsCache != null) {
+            for (ObjectType type : bigObjectsCache.keySet()) {
+                typeCaches.get(type).putAll(bigObjectsCache.get(type));
+            }
+            bigObjectsCache = null;
+        }
+        if (smallObjectsCache != null) {
+            for (ObjectType type : smallObjectsCache.keySet()) {
+                typeCaches.get(type).putAll(smallObjectsCache.get(type));
+            }
+            smallObjectsCache = null;
+        }
+    }
+
+    /**
+     * Size bounded cache of the objects of a given type. The objects are
+     * distributed over segments according to the hash of their key. Every
+     * segment is locked independently and keeps its objects in access order
+     * so that the least recently used object is removed in constant time.
      */
-    private String getObjectKey(String cacheKey) {
-        StringBuilder buf = new StringBuilder();
-        String escapedString = java.util.regex.Pattern.quote(cacheKey);
-        String[] splittedKey = cacheKey.split(escapedString);
-        for (int i = 1; i < splittedKey.length; i++) {
-            buf.append(splittedKey[i]);
+    private static class TypeCache {
+
+        /**
+         * The segments of the cache.
+         */
+        private final Segment[] segments = new Segment[N_SEGMENTS];
+        /**
+         * The number of objects kept in cache.
+         */
+        private volatile int cacheSize;
+        /**
+         * The number of objects found in cache.
+         */
+        private final AtomicLong nHits = new AtomicLong();
+        /**
+         * The number of objects not found in cache.
+         */
+        private final AtomicLong nMisses = new AtomicLong();
+        /**
+         * The number of objects removed from the cache to make room for new
+         * ones.
+         */
+        private final AtomicLong nEvictions = new AtomicLong();
+        /**
+         * The time spent computing objects after a miss in nanoseconds.
+         */
+        private final AtomicLong computeTime = new AtomicLong();
+
+        /**
+         * Constructor.
+         *
+         * @param cacheSize the number of objects kept in cache
+         */
+        private TypeCache(int cacheSize) {
+            for (int i = 0; i < N_SEGMENTS; i++) {
+                segments[i] = new Segment(nEvictions);
+            }
+            setCacheSize(cacheSize);
+        }
+
+        /**
+         * Returns the segment where the object of the given key is stored.
+         *
+         * @param objectKey the key of the object
+         *
+         * @return the segment where the object of the given key is stored
+         */
+        private Segment getSegment(String objectKey) {
+            int hash = objectKey.hashCode();
+            hash ^= (hash >>> 16);
+            return segments[(hash & 0x7fffffff) % N_SEGMENTS];
+        }
+
+        /**
+         * Returns the object of the given key, null if not in cache.
+         *
+         * @param objectKey the key of the object
+         *
+         * @return the object of the given key
+         */
+        private Object get(String objectKey) {
+            Segment segment = getSegment(objectKey);
+            synchronized (segment) {
+                return segment.get(objectKey);
+            }
+        }
+
+        /**
+         * Stores an object.
+         *
+         * @param objectKey the key of the object
+         * @param object the object
+         */
+        private void put(String objectKey, Object object) {
+            Segment segment = getSegment(objectKey);
+            synchronized (segment) {
+                segment.put(objectKey, object);
+            }
+        }
+
+        /**
+         * Stores the given objects.
+         *
+         * @param objects the objects indexed by key
+         */
+        private void putAll(HashMap<String, Object> objects) {
+            for (String objectKey : objects.keySet()) {
+                put(objectKey, objects.get(objectKey));
+            }
+        }
+
+        /**
+         * Returns a copy of the objects in cache indexed by key.
+         *
+         * @return a copy of the objects in cache indexed by key
+         */
+        private HashMap<String, Object> getObjects() {
+            HashMap<String, Object> result = new HashMap<String, Object>();
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    result.putAll(segment);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the number of objects in cache.
+         *
+         * @return the number of objects in cache
+         */
+        private int size() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Removes all objects.
+         */
+        private void clear() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        /**
+         * Removes the given share of the least recently used objects of every
+         * segment.
+         *
+         * @param share the share of the objects to remove
+         *
+         * @return a boolean indicating whether objects were removed
+         */
+        private boolean reduce(double share) {
+            boolean removed = false;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    removed = segment.removeEldest((int) Math.ceil(share * segment.size())) || removed;
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Returns the number of objects kept in cache.
+         *
+         * @return the number of objects kept in cache
+         */
+        private int getCacheSize() {
+            return cacheSize;
+        }
+
+        /**
+         * Sets the number of objects kept in cache and removes the least
+         * recently used objects if needed.
+         *
+         * @param cacheSize the number of objects kept in cache
+         */
+        private void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+            int segmentCapacity = Math.max(1, (cacheSize + N_SEGMENTS - 1) / N_SEGMENTS);
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.setCapacity(segmentCapacity);
+                }
+            }
         }
-        return buf.toString();
     }
 
     /**
-     * Sets the cache in read only.
-     *
-     * @param readOnly boolean indicating whether the cache should be in read
-     * only
+     * Segment of a type cache: a map in access order removing the least
+     * recently used object when its capacity is exceeded.
      */
-    public void setReadOnly(boolean readOnly) {
-        this.readOnly = readOnly;
+    private static class Segment extends LinkedHashMap<String, Object> {
+
+        /**
+         * Serial number for backward compatibility.
+         */
+        static final long serialVersionUID = 1L;
+        /**
+         * The number of objects this segment can hold.
+         */
+        private int capacity = Integer.MAX_VALUE;
+        /**
+         * Counter for the number of objects removed to make room for new ones.
+         */
+        private final AtomicLong nEvictions;
+
+        /**
+         * Constructor.
+         *
+         * @param nEvictions counter for the number of objects removed to make
+         * room for new ones
+         */
+        private Segment(AtomicLong nEvictions) {
+            super(16, 0.75f, true);
+            this.nEvictions = nEvictions;
+        }
+
+        /**
+         * Sets the number of objects this segment can hold and removes the
+         * least recently used objects if needed.
+         *
+         * @param capacity the number of objects this segment can hold
+         */
+        private void setCapacity(int capacity) {
+            this.capacity = capacity;
+            Iterator<String> iterator = keySet().iterator();
+            while (size() > capacity && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                nEvictions.incrementAndGet();
+            }
+        }
+
+        /**
+         * Removes the given number of least recently used objects.
+         *
+         * @param nObjects the number of objects to remove
+         *
+         * @return a boolean indicating whether objects were removed
+         */
+        private boolean removeEldest(int nObjects) {
+            Iterator<String> iterator = keySet().iterator();
+            int nRemoved = 0;
+            while (nRemoved < nObjects && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                nRemoved++;
+            }
+            return nRemoved > 0;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            if (size() > capacity) {
+                nEvictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
     }
 }
@@ -26,6 +26,7 @@ import com.compomics.util.experiment.units.StandardUnit;
 import com.compomics.util.experiment.units.UnitOfMeasurement;
 import com.compomics.util.math.statistics.Distribution;
 import com.compomics.util.math.statistics.distributions.NonSymmetricalNormalDistribution;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
@@ -35,6 +36,7 @@ import eu.isas.peptideshaker.parameters.PSPtmScores;
 import eu.isas.peptideshaker.preferences.FilterPreferences;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences.SpectralCountingMethod;
+import eu.isas.peptideshaker.protein_inference.ProteinPeptideGraph;
 import eu.isas.peptideshaker.scoring.MatchValidationLevel;
 import java.io.IOException;
 import java.math.MathContext;
@@ -43,7 +45,10 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -97,6 +102,11 @@ public class IdentificationFeaturesGenerator {
      * Map of the distributions of precursor mass errors.
      */
     private HashMap<String, NonSymmetricalNormalDistribution> massErrorDistribution = null;
+    /**
+     * The graph linking protein groups, proteins and peptides, built from the
+     * identification when first needed.
+     */
+    private ProteinPeptideGraph proteinPeptideGraph = null;
 
     /**
      * Constructor.
@@ -221,8 +231,9 @@ public class IdentificationFeaturesGenerator {
     public double[] getCoverableAA(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         double[] result = (double[]) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.coverable_AA_p, proteinMatchKey);
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateCoverableAA(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.coverable_AA_p, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.coverable_AA_p, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -250,8 +261,9 @@ public class IdentificationFeaturesGenerator {
     public int[] getAACoverage(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         int[] result = (int[]) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.AA_coverage, proteinMatchKey);
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateAACoverage(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.AA_coverage, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.AA_coverage, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -276,8 +288,9 @@ public class IdentificationFeaturesGenerator {
      * protein tree or identification)
      */
     public void updateCoverableAA(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
         double[] result = estimateCoverableAA(proteinMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.coverable_AA_p, proteinMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.coverable_AA_p, proteinMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -645,8 +658,9 @@ public class IdentificationFeaturesGenerator {
         Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.sequence_coverage, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateValidatedSequenceCoverage(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_coverage, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_coverage, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -685,8 +699,9 @@ public class IdentificationFeaturesGenerator {
         HashMap<Integer, Double> result = (HashMap<Integer, Double>) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateSequenceCoverage(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -727,8 +742,9 @@ public class IdentificationFeaturesGenerator {
         ArrayList<String> result = (ArrayList<String>) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.tryptic_protein, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNonEnzymatic(proteinMatchKey, enzyme);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.tryptic_protein, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.tryptic_protein, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -806,8 +822,9 @@ public class IdentificationFeaturesGenerator {
      */
     public void updateSequenceCoverage(String proteinMatchKey)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
         HashMap<Integer, Double> result = estimateSequenceCoverage(proteinMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -1010,8 +1027,9 @@ public class IdentificationFeaturesGenerator {
             Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.spectrum_counting, proteinMatchKey);
 
             if (result == null) {
+                long start = System.nanoTime();
                 result = estimateSpectrumCounting(proteinMatchKey);
-                identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.spectrum_counting, proteinMatchKey, result);
+                identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.spectrum_counting, proteinMatchKey, result, System.nanoTime() - start);
             }
             return result;
         } else {
@@ -1216,8 +1234,9 @@ public class IdentificationFeaturesGenerator {
 
         Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey);
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateObservableCoverage(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -1256,8 +1275,9 @@ public class IdentificationFeaturesGenerator {
      * acid
      */
     public void updateObservableCoverage(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MathException {
+        long start = System.nanoTime();
         Double result = estimateObservableCoverage(proteinMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -1520,8 +1540,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.unique_peptides, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNUniquePeptides(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_peptides, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_peptides, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -1583,8 +1604,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNUniqueValidatedPeptides(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -1654,8 +1676,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.unique_peptides_group, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNUniquePeptidesGroup(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_peptides_group, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_peptides_group, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -1717,8 +1740,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides_group, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNUniqueValidatedPeptidesGroup(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides_group, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_validated_peptides_group, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -1788,8 +1812,9 @@ public class IdentificationFeaturesGenerator {
         Boolean result = (Boolean) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.containsEnzymaticPeptides, proteinAccession);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = checkEnzymaticPeptides(proteinMatch, proteinAccession);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.containsEnzymaticPeptides, proteinAccession, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.containsEnzymaticPeptides, proteinAccession, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -1841,8 +1866,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNValidatedPeptides(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, proteinMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -1871,8 +1897,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNConfidentPeptides(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -1896,8 +1923,9 @@ public class IdentificationFeaturesGenerator {
      * protein tree or identification)
      */
     public void updateNConfidentPeptides(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
         Integer result = estimateNConfidentPeptides(proteinMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -1918,8 +1946,9 @@ public class IdentificationFeaturesGenerator {
      * protein tree or identification)
      */
     public void updateNConfidentSpectra(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
         Integer result = estimateNConfidentSpectra(proteinMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -1956,8 +1985,9 @@ public class IdentificationFeaturesGenerator {
     public Integer getNSpectra(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_spectra, proteinMatchKey);
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNSpectra(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_spectra, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_spectra, proteinMatchKey, result, System.nanoTime() - start);
         }
         return result;
     }
@@ -2054,8 +2084,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNValidatedSpectra(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, proteinMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -2084,8 +2115,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNConfidentSpectra(proteinMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -2211,8 +2243,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, peptideMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNValidatedSpectraForPeptide(peptideMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, peptideMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, peptideMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -2241,8 +2274,9 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, peptideMatchKey);
 
         if (result == null) {
+            long start = System.nanoTime();
             result = estimateNConfidentSpectraForPeptide(peptideMatchKey);
-            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, peptideMatchKey, result);
+            identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, peptideMatchKey, result, System.nanoTime() - start);
         }
 
         return result;
@@ -2266,8 +2300,9 @@ public class IdentificationFeaturesGenerator {
      * protein tree or identification)
      */
     public void updateNConfidentSpectraForPeptide(String peptideMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
         Integer result = estimateNConfidentSpectraForPeptide(peptideMatchKey);
-        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, peptideMatchKey, result);
+        identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, peptideMatchKey, result, System.nanoTime() - start);
     }
 
     /**
@@ -3285,6 +3320,56 @@ public class IdentificationFeaturesGenerator {
         identificationFeaturesCache.setProteinList(proteinList);
     }
 
+    /**
+     * Computes the features commonly exported for the given proteins and
+     * stores them in cache.
+     *
+     * @param proteinKeys the keys of the proteins of interest
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler displaying progress and allowing
+     * canceling the process
+     * @param exceptionHandler handler for the exceptions encountered
+     *
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while waiting for the threads to finish
+     */
+    public void warmUpCache(ArrayList<String> proteinKeys, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        Iterator<String> proteinKeysIterator = proteinKeys.iterator();
+        waitingHandler.resetSecondaryProgressCounter();
+        waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 1; i <= nThreads && !waitingHandler.isRunCanceled(); i++) {
+            CacheWarmUpRunnable runnable = new CacheWarmUpRunnable(proteinKeysIterator, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Cache warm up timed out. Please contact the developers.");
+        }
+    }
+
+    /**
+     * Returns the next protein key of the iterator, null if none.
+     *
+     * @param proteinKeysIterator the iterator
+     *
+     * @return the next protein key of the iterator
+     */
+    private static String nextProteinKey(Iterator<String> proteinKeysIterator) {
+        synchronized (proteinKeysIterator) {
+            if (proteinKeysIterator.hasNext()) {
+                return proteinKeysIterator.next();
+            }
+            return null;
+        }
+    }
+
     /**
      * Returns the identification features cache.
      *
@@ -3303,6 +3388,39 @@ public class IdentificationFeaturesGenerator {
         this.identificationFeaturesCache = identificationFeaturesCache;
     }
 
+    /**
+     * Returns the graph linking protein groups, proteins and peptides. If not
+     * set, the graph is built from the identification.
+     *
+     * @return the protein peptide graph
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * loading the object from the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the object in the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while casting the database input in the desired match class
+     * @throws InterruptedException thrown whenever a threading issue occurred
+     * while interacting with the database
+     */
+    public synchronized ProteinPeptideGraph getProteinPeptideGraph() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+        if (proteinPeptideGraph == null) {
+            proteinPeptideGraph = new ProteinPeptideGraph(identification, null);
+        }
+        return proteinPeptideGraph;
+    }
+
+    /**
+     * Sets the graph linking protein groups, proteins and peptides. Null
+     * resets the graph which will be built from the identification when
+     * needed, typically after the protein groups changed.
+     *
+     * @param proteinPeptideGraph the protein peptide graph
+     */
+    public synchronized void setProteinPeptideGraph(ProteinPeptideGraph proteinPeptideGraph) {
+        this.proteinPeptideGraph = proteinPeptideGraph;
+    }
+
     /**
      * Returns the metrics.
      *
@@ -3360,10 +3478,12 @@ public class IdentificationFeaturesGenerator {
      * while interacting with the database
      */
     public int getNValidatedProteinGroups(Peptide peptide, WaitingHandler waitingHandler) throws IOException, SQLException, ClassNotFoundException, InterruptedException {
-        HashSet<String> keys = identification.getProteinMatches(peptide);
+        ArrayList<String> keys = getProteinPeptideGraph().getGroups(peptide.getParentProteinsNoRemapping());
         int nValidated = 0;
         PSParameter psParameter = new PSParameter();
-        identification.loadProteinMatchParameters(new ArrayList<String>(keys), psParameter, null, false);
+        if (keys.size() > 1) {
+            identification.loadProteinMatchParameters(keys, psParameter, null, false);
+        }
         for (String key : keys) {
             psParameter = (PSParameter) identification.getProteinMatchParameter(key, psParameter);
             if (psParameter.getMatchValidationLevel().isValidated()) {
@@ -3372,4 +3492,64 @@ public class IdentificationFeaturesGenerator {
         }
         return nValidated;
     }
+
+    /**
+     * Runnable computing the features commonly exported for proteins.
+     *
+     * @author Marc Vaudel
+     */
+    private class CacheWarmUpRunnable implements Runnable {
+
+        /**
+         * Iterator over the protein keys shared between the threads.
+         */
+        private final Iterator<String> proteinKeysIterator;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinKeysIterator iterator over the protein keys shared
+         * between the threads
+         * @param waitingHandler a waiting handler displaying progress and
+         * allowing canceling the process
+         * @param exceptionHandler handler for the exceptions encountered
+         */
+        public CacheWarmUpRunnable(Iterator<String> proteinKeysIterator, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinKeysIterator = proteinKeysIterator;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String proteinKey;
+                while ((proteinKey = nextProteinKey(proteinKeysIterator)) != null && !waitingHandler.isRunCanceled()) {
+                    getNSpectra(proteinKey);
+                    getNValidatedSpectra(proteinKey);
+                    getNValidatedPeptides(proteinKey);
+                    getNUniquePeptides(proteinKey);
+                    getNUniqueValidatedPeptides(proteinKey);
+                    getSpectrumCounting(proteinKey);
+                    getValidatedSequenceCoverage(proteinKey);
+                    getSequenceCoverage(proteinKey);
+                    getObservableCoverage(proteinKey);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
 }
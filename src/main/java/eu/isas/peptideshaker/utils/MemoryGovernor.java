@@ -0,0 +1,384 @@
+package eu.isas.peptideshaker.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * This class monitors the memory used by the Java virtual machine and releases
+ * memory from the registered caches when it runs short. The heap usage left
+ * by the last garbage collections is sampled by a background thread at
+ * regular intervals, and as soon as a garbage collection leaves the heap above
+ * the high memory threshold. The garbage which is not collected yet is thus
+ * not counted as used memory. The processing threads only read the resulting
+ * flags and never sample the heap or release memory themselves.
+ *
+ * Under high memory use, memory is released from one cache per sample, in
+ * turn. After a release, no memory is released before the next garbage
+ * collection, so that the caches are not emptied before the released memory
+ * is reclaimed. Under critical memory use, memory is released from all caches.
+ * If the memory use is critical and all caches are empty, the memory is
+ * flagged as exhausted. When the memory use drops below the low threshold,
+ * the caches which were reduced are allowed to grow again, one step per
+ * garbage collection.
+ *
+ * @author Marc Vaudel
+ */
+public class MemoryGovernor {
+
+    /**
+     * The share of the memory used above which memory is released.
+     */
+    public static final double HIGH_MEMORY_USE = 0.8;
+    /**
+     * The share of the memory used above which memory is released from all
+     * caches.
+     */
+    public static final double CRITICAL_MEMORY_USE = 0.9;
+    /**
+     * The share of the memory used below which the caches are allowed to
+     * grow again.
+     */
+    public static final double LOW_MEMORY_USE = 0.6;
+    /**
+     * The interval between two samples in milliseconds.
+     */
+    private static final long SAMPLING_INTERVAL = 250;
+    /**
+     * The share of the objects to release from a cache at every reduction.
+     */
+    private static final double RELEASE_SHARE = 0.5;
+
+    /**
+     * Interface for the caches from which memory can be released.
+     */
+    public interface MemoryConsumer {
+
+        /**
+         * Releases memory by removing the given share of the objects in
+         * cache.
+         *
+         * @param share the share of the objects to remove
+         *
+         * @return a boolean indicating whether memory was released, false if
+         * the cache was empty
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * releasing memory
+         */
+        public boolean releaseMemory(double share) throws Exception;
+    }
+
+    /**
+     * Interface for the caches which shrink when memory is released and can
+     * grow again when memory is available.
+     */
+    public interface RestorableMemoryConsumer extends MemoryConsumer {
+
+        /**
+         * Lets the cache grow back towards its size before memory was
+         * released.
+         *
+         * @return a boolean indicating whether the cache was allowed to grow,
+         * false if it has its original size
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * restoring the cache
+         */
+        public boolean restoreMemory() throws Exception;
+    }
+
+    /**
+     * The instance of the governor.
+     */
+    private static MemoryGovernor instance = null;
+    /**
+     * The caches from which memory can be released, indexed by name.
+     */
+    private final LinkedHashMap<String, MemoryConsumer> memoryConsumers = new LinkedHashMap<String, MemoryConsumer>();
+    /**
+     * The index of the next cache to reduce under high memory use.
+     */
+    private int nextConsumer = 0;
+    /**
+     * The number of garbage collections at the last release of memory, -1 if
+     * no memory was released.
+     */
+    private long releaseGcCount = -1;
+    /**
+     * The number of garbage collections at the last growth of the caches, -1
+     * if the caches did not grow.
+     */
+    private long restoreGcCount = -1;
+    /**
+     * The share of the memory used at the last sample.
+     */
+    private volatile double memoryUsed = 0;
+    /**
+     * Boolean indicating whether the memory use is above the high threshold.
+     */
+    private volatile boolean memoryHigh = false;
+    /**
+     * Boolean indicating whether the memory use is above the critical
+     * threshold.
+     */
+    private volatile boolean memoryCritical = false;
+    /**
+     * Boolean indicating whether the memory use is critical and all caches
+     * are empty.
+     */
+    private volatile boolean memoryExhausted = false;
+    /**
+     * The timer sampling the memory.
+     */
+    private final Timer timer;
+
+    /**
+     * Constructor.
+     */
+    private MemoryGovernor() {
+        timer = new Timer("MemoryGovernor", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 0, SAMPLING_INTERVAL);
+        listenToGarbageCollections();
+    }
+
+    /**
+     * Returns the instance of the governor, the memory sampling starts upon
+     * the first call.
+     *
+     * @return the instance of the governor
+     */
+    public static synchronized MemoryGovernor getInstance() {
+        if (instance == null) {
+            instance = new MemoryGovernor();
+        }
+        return instance;
+    }
+
+    /**
+     * Sets the usage thresholds of the heap memory pools so that the heap is
+     * sampled as soon as a garbage collection leaves the memory use above the
+     * high threshold.
+     */
+    private void listenToGarbageCollections() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.isCollectionUsageThresholdSupported()) {
+                long max = memoryPool.getUsage().getMax();
+                if (max > 0) {
+                    memoryPool.setCollectionUsageThreshold((long) (HIGH_MEMORY_USE * max));
+                }
+            }
+        }
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    timer.schedule(new TimerTask() {
+                        @Override
+                        public void run() {
+                            sample();
+                        }
+                    }, 0);
+                }
+            }
+        }, null, null);
+    }
+
+    /**
+     * Registers a cache from which memory can be released. A cache already
+     * registered under the same name is replaced.
+     *
+     * @param name the name of the cache
+     * @param memoryConsumer the cache
+     */
+    public synchronized void registerMemoryConsumer(String name, MemoryConsumer memoryConsumer) {
+        memoryConsumers.put(name, memoryConsumer);
+    }
+
+    /**
+     * Removes a cache from the governor.
+     *
+     * @param name the name of the cache
+     */
+    public synchronized void unregisterMemoryConsumer(String name) {
+        memoryConsumers.remove(name);
+    }
+
+    /**
+     * Samples the memory used after the last garbage collections and releases
+     * memory if needed, or lets the caches grow again if memory is available.
+     */
+    private synchronized void sample() {
+
+        long gcCount = getGcCount();
+        memoryUsed = getMemoryUsedAfterGc();
+        memoryCritical = memoryUsed > CRITICAL_MEMORY_USE;
+        memoryHigh = memoryUsed > HIGH_MEMORY_USE;
+
+        if (!memoryHigh) {
+            memoryExhausted = false;
+            if (memoryUsed < LOW_MEMORY_USE && gcCount != releaseGcCount && gcCount != restoreGcCount) {
+                boolean restored = false;
+                for (MemoryConsumer memoryConsumer : new ArrayList<MemoryConsumer>(memoryConsumers.values())) {
+                    if (memoryConsumer instanceof RestorableMemoryConsumer) {
+                        restored = restore((RestorableMemoryConsumer) memoryConsumer) || restored;
+                    }
+                }
+                if (restored) {
+                    restoreGcCount = gcCount;
+                }
+            }
+            return;
+        }
+
+        // wait for the memory released last time to be collected
+        if (gcCount == releaseGcCount) {
+            return;
+        }
+
+        ArrayList<MemoryConsumer> consumers = new ArrayList<MemoryConsumer>(memoryConsumers.values());
+        boolean released = false;
+        if (memoryCritical) {
+            for (MemoryConsumer memoryConsumer : consumers) {
+                released = release(memoryConsumer) || released;
+            }
+            memoryExhausted = !released;
+        } else {
+            for (int i = 0; i < consumers.size() && !released; i++) {
+                nextConsumer = nextConsumer % consumers.size();
+                released = release(consumers.get(nextConsumer));
+                nextConsumer++;
+            }
+        }
+        if (released) {
+            releaseGcCount = gcCount;
+        }
+    }
+
+    /**
+     * Returns the share of the heap used after the last garbage collection of
+     * every heap memory pool. The current usage is taken for the pools not
+     * reporting their usage after garbage collection.
+     *
+     * @return the share of the heap used after the last garbage collections
+     */
+    private static double getMemoryUsedAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                MemoryUsage memoryUsage = memoryPool.getCollectionUsage();
+                if (memoryUsage == null) {
+                    memoryUsage = memoryPool.getUsage();
+                }
+                used += memoryUsage.getUsed();
+            }
+        }
+        return ((double) used) / Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Returns the total number of garbage collections conducted by the Java
+     * virtual machine.
+     *
+     * @return the total number of garbage collections
+     */
+    private static long getGcCount() {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean garbageCollector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long count = garbageCollector.getCollectionCount();
+            if (count > 0) {
+                gcCount += count;
+            }
+        }
+        return gcCount;
+    }
+
+    /**
+     * Releases memory from a cache. Errors are printed and considered as no
+     * memory released.
+     *
+     * @param memoryConsumer the cache
+     *
+     * @return a boolean indicating whether memory was released
+     */
+    private boolean release(MemoryConsumer memoryConsumer) {
+        try {
+            return memoryConsumer.releaseMemory(RELEASE_SHARE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Lets a cache grow again. Errors are printed and considered as no growth.
+     *
+     * @param memoryConsumer the cache
+     *
+     * @return a boolean indicating whether the cache was allowed to grow
+     */
+    private boolean restore(RestorableMemoryConsumer memoryConsumer) {
+        try {
+            return memoryConsumer.restoreMemory();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the share of the memory used after the last garbage
+     * collections at the last sample.
+     *
+     * @return the share of the memory used after the last garbage
+     * collections at the last sample
+     */
+    public double getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * Indicates whether the memory use is above the high threshold.
+     *
+     * @return a boolean indicating whether the memory use is high
+     */
+    public boolean isMemoryHigh() {
+        return memoryHigh;
+    }
+
+    /**
+     * Indicates whether the memory use is above the critical threshold.
+     *
+     * @return a boolean indicating whether the memory use is critical
+     */
+    public boolean isMemoryCritical() {
+        return memoryCritical;
+    }
+
+    /**
+     * Indicates whether the memory use is critical while all caches are
+     * empty. Processes keeping optional data in memory should then stop doing
+     * so.
+     *
+     * @return a boolean indicating whether the memory is exhausted
+     */
+    public boolean isMemoryExhausted() {
+        return memoryExhausted;
+    }
+}
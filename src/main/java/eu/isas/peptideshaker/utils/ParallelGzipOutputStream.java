@@ -0,0 +1,258 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream compressing the data in the gzip format using multiple
+ * threads. The data is cut in blocks of fixed size which are compressed in
+ * parallel, every block as a gzip member, and written in order. The
+ * concatenated members form a valid gzip file which can be decompressed by
+ * gunzip and other standard tools. The compression threads are daemon threads
+ * which are stopped when the stream is closed.
+ *
+ * @author Marc Vaudel
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /**
+     * The default size of the blocks in bytes.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    /**
+     * The factory creating the compression threads as daemon threads, so that
+     * a stream which is not closed does not prevent the virtual machine from
+     * exiting.
+     */
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Gzip Compression");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    /**
+     * The underlying stream.
+     */
+    private final OutputStream out;
+    /**
+     * The size of the blocks in bytes.
+     */
+    private final int blockSize;
+    /**
+     * The pool compressing the blocks, null if the blocks are compressed by
+     * the writing thread.
+     */
+    private final ExecutorService pool;
+    /**
+     * The maximal number of blocks waiting to be written.
+     */
+    private final int maxPending;
+    /**
+     * The blocks being compressed in order of writing.
+     */
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    /**
+     * The block being filled.
+     */
+    private byte[] block;
+    /**
+     * The number of bytes in the current block.
+     */
+    private int blockLength = 0;
+    /**
+     * The number of bytes written to this stream.
+     */
+    private long uncompressedSize = 0;
+    /**
+     * The number of bytes written to the underlying stream.
+     */
+    private long compressedSize = 0;
+    /**
+     * Boolean indicating whether the stream is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param out the underlying stream
+     * @param blockSize the size of the blocks in bytes
+     * @param nThreads the number of threads to use for the compression
+     */
+    public ParallelGzipOutputStream(OutputStream out, int blockSize, int nThreads) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        nThreads = Math.max(1, nThreads);
+        pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads, THREAD_FACTORY) : null;
+        maxPending = 2 * nThreads;
+        block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        uncompressedSize++;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        uncompressedSize += len;
+        while (len > 0) {
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Sends the current block to compression and starts a new block. Blocks
+     * already compressed are written as long as too many blocks are pending.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing or writing a block
+     */
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        if (pool == null) {
+            writeBlock(compress(block, blockLength));
+        } else {
+            final byte[] data = block;
+            final int length = blockLength;
+            pending.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return compress(data, length);
+                }
+            }));
+            block = new byte[blockSize];
+            while (pending.size() >= maxPending) {
+                writeNextBlock();
+            }
+        }
+        blockLength = 0;
+    }
+
+    /**
+     * Waits for the first pending block to be compressed and writes it.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing or writing the block
+     */
+    private void writeNextBlock() throws IOException {
+        Future<byte[]> future = pending.removeFirst();
+        try {
+            writeBlock(future.get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing the output.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("An error occurred while compressing the output.", e.getCause());
+        }
+    }
+
+    /**
+     * Writes a compressed block to the underlying stream.
+     *
+     * @param compressedBlock the compressed block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the block
+     */
+    private void writeBlock(byte[] compressedBlock) throws IOException {
+        out.write(compressedBlock);
+        compressedSize += compressedBlock.length;
+    }
+
+    /**
+     * Compresses a block as a gzip member.
+     *
+     * @param data the data to compress
+     * @param length the length of the data
+     *
+     * @return the compressed block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing the block
+     */
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream, 64 * 1024);
+        gzipStream.write(data, 0, length);
+        gzipStream.close();
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Compresses and writes the data received so far. Note that every flush
+     * terminates the current block.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing or writing the data
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to this stream.
+     *
+     * @return the number of bytes written to this stream
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * Returns the number of compressed bytes written to the underlying
+     * stream.
+     *
+     * @return the number of compressed bytes written
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+}
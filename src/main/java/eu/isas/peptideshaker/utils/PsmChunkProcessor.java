@@ -0,0 +1,528 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
+import com.compomics.util.experiment.personalization.UrParameter;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class processes the PSMs of one or more spectrum files in parallel.
+ * The spectrum keys of every file are handed out to the threads in chunks of
+ * consecutive keys, every chunk being loaded by its own PSM iterator. Every
+ * thread starts on a different file and, once this file is exhausted, takes
+ * the remaining chunks of the other files. Peptide and protein matches can be
+ * processed the same way, their keys being handed out as a single list.
+ * Alternatively, threads managed by the caller can share the chunks of a list
+ * of PSMs, see processSharedChunks.
+ *
+ * @author Marc Vaudel
+ */
+public class PsmChunkProcessor {
+
+    /**
+     * The default number of PSMs per chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    /**
+     * Interface for the processing of the PSMs by a thread.
+     */
+    public interface PsmTask {
+
+        /**
+         * Processes a PSM.
+         *
+         * @param spectrumMatch the spectrum match to process
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * processing the PSM
+         */
+        public void process(SpectrumMatch spectrumMatch) throws Exception;
+    }
+
+    /**
+     * Interface for the creation of the PSM tasks, one per thread.
+     */
+    public interface PsmTaskFactory {
+
+        /**
+         * Returns a new task to be used by a single thread.
+         *
+         * @return a new task to be used by a single thread
+         */
+        public PsmTask getPsmTask();
+    }
+
+    /**
+     * Interface for the processing of the peptide matches by a thread.
+     */
+    public interface PeptideTask {
+
+        /**
+         * Processes a peptide match.
+         *
+         * @param peptideMatch the peptide match to process
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * processing the peptide match
+         */
+        public void process(PeptideMatch peptideMatch) throws Exception;
+    }
+
+    /**
+     * Interface for the creation of the peptide tasks, one per thread.
+     */
+    public interface PeptideTaskFactory {
+
+        /**
+         * Returns a new task to be used by a single thread.
+         *
+         * @return a new task to be used by a single thread
+         */
+        public PeptideTask getPeptideTask();
+    }
+
+    /**
+     * Interface for the processing of the protein matches by a thread.
+     */
+    public interface ProteinTask {
+
+        /**
+         * Processes a protein match.
+         *
+         * @param proteinMatch the protein match to process
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * processing the protein match
+         */
+        public void process(ProteinMatch proteinMatch) throws Exception;
+    }
+
+    /**
+     * Interface for the creation of the protein tasks, one per thread.
+     */
+    public interface ProteinTaskFactory {
+
+        /**
+         * Returns a new task to be used by a single thread.
+         *
+         * @return a new task to be used by a single thread
+         */
+        public ProteinTask getProteinTask();
+    }
+
+    /**
+     * Interface for the processing of a chunk of keys by a thread.
+     */
+    private interface ChunkTask {
+
+        /**
+         * Loads the matches of a chunk and processes them.
+         *
+         * @param chunk the keys of the matches of the chunk
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * loading or processing a match
+         */
+        public void processChunk(ArrayList<String> chunk) throws Exception;
+    }
+
+    /**
+     * The identification.
+     */
+    private final Identification identification;
+    /**
+     * The number of threads to use.
+     */
+    private final int nThreads;
+    /**
+     * The number of PSMs per chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * Constructor using the default chunk size.
+     *
+     * @param identification the identification containing the matches
+     * @param nThreads the number of threads to use
+     */
+    public PsmChunkProcessor(Identification identification, int nThreads) {
+        this(identification, nThreads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param identification the identification containing the matches
+     * @param nThreads the number of threads to use
+     * @param chunkSize the number of PSMs per chunk
+     */
+    public PsmChunkProcessor(Identification identification, int nThreads, int chunkSize) {
+        this.identification = identification;
+        this.nThreads = Math.max(1, nThreads);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Returns the spectrum keys of a file, in the given order if provided.
+     *
+     * @param identification the identification containing the matches
+     * @param spectrumFileName the name of the spectrum file
+     * @param orderedKeys the spectrum keys of the file in the desired order,
+     * can be null
+     *
+     * @return the spectrum keys of the file
+     */
+    public static ArrayList<String> getSpectrumKeys(Identification identification, String spectrumFileName, ArrayList<String> orderedKeys) {
+        if (orderedKeys != null) {
+            return orderedKeys;
+        }
+        ArrayList<String> spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName).size());
+        for (String spectrumKey : identification.getSpectrumIdentification(spectrumFileName)) {
+            spectrumKeys.add(spectrumKey);
+        }
+        return spectrumKeys;
+    }
+
+    /**
+     * Processes the given PSMs. The secondary progress counter of the waiting
+     * handler is increased for every PSM processed. Errors are sent to the
+     * exception handler and cancel the process.
+     *
+     * @param spectrumKeys the keys of the PSMs to process indexed by spectrum
+     * file
+     * @param parameters the parameters to load with the matches, can be null
+     * @param loadAssumptions if true the assumptions will be loaded with the
+     * matches
+     * @param psmTaskFactory the factory providing the task of every thread
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    public void process(LinkedHashMap<String, ArrayList<String>> spectrumKeys, final ArrayList<UrParameter> parameters, final boolean loadAssumptions,
+            PsmTaskFactory psmTaskFactory, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        ArrayList<ArrayList<String>> fileKeys = new ArrayList<ArrayList<String>>(spectrumKeys.size());
+        for (ArrayList<String> keys : spectrumKeys.values()) {
+            if (!keys.isEmpty()) {
+                fileKeys.add(keys);
+            }
+        }
+        if (fileKeys.isEmpty()) {
+            return;
+        }
+
+        ChunkTask[] chunkTasks = new ChunkTask[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final PsmTask psmTask = psmTaskFactory.getPsmTask();
+            chunkTasks[i] = new ChunkTask() {
+                @Override
+                public void processChunk(ArrayList<String> chunk) throws Exception {
+                    PsmChunkProcessor.this.processChunk(chunk, parameters, loadAssumptions, psmTask, waitingHandler);
+                }
+            };
+        }
+
+        processChunks(fileKeys, chunkTasks, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Processes chunks of the given PSMs on the calling thread until every
+     * chunk was taken. Threads sharing the same keys and index process the
+     * PSMs together, every PSM being processed once. The secondary progress
+     * counter of the waiting handler is increased for every PSM processed.
+     *
+     * @param spectrumKeys the keys of the PSMs to process
+     * @param nextIndex the index of the next key to process, shared by the
+     * threads processing the same keys
+     * @param parameters the parameters to load with the matches, can be null
+     * @param loadAssumptions if true the assumptions will be loaded with the
+     * matches
+     * @param psmTask the task processing the PSMs, one per thread
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process, can be null
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * loading or processing a PSM
+     */
+    public void processSharedChunks(ArrayList<String> spectrumKeys, AtomicInteger nextIndex, ArrayList<UrParameter> parameters, boolean loadAssumptions,
+            PsmTask psmTask, WaitingHandler waitingHandler) throws Exception {
+        int start;
+        while ((start = nextIndex.getAndAdd(chunkSize)) < spectrumKeys.size()) {
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            ArrayList<String> chunk = new ArrayList<String>(spectrumKeys.subList(start, Math.min(start + chunkSize, spectrumKeys.size())));
+            processChunk(chunk, parameters, loadAssumptions, psmTask, waitingHandler);
+        }
+    }
+
+    /**
+     * Processes the given peptide matches. The secondary progress counter of
+     * the waiting handler is increased for every match processed. Errors are
+     * sent to the exception handler and cancel the process.
+     *
+     * @param peptideKeys the keys of the peptide matches to process
+     * @param parameters the parameters to load with the matches, can be null
+     * @param peptideTaskFactory the factory providing the task of every thread
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    public void processPeptides(ArrayList<String> peptideKeys, final ArrayList<UrParameter> parameters, PeptideTaskFactory peptideTaskFactory,
+            final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        if (peptideKeys.isEmpty()) {
+            return;
+        }
+
+        ChunkTask[] chunkTasks = new ChunkTask[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final PeptideTask peptideTask = peptideTaskFactory.getPeptideTask();
+            chunkTasks[i] = new ChunkTask() {
+                @Override
+                public void processChunk(ArrayList<String> chunk) throws Exception {
+                    PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(chunk, parameters, false, null, null);
+                    while (peptideMatchesIterator.hasNext()) {
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        PeptideMatch peptideMatch = peptideMatchesIterator.next();
+                        if (peptideMatch != null) {
+                            peptideTask.process(peptideMatch);
+                        }
+                        if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            };
+        }
+
+        ArrayList<ArrayList<String>> keys = new ArrayList<ArrayList<String>>(1);
+        keys.add(peptideKeys);
+        processChunks(keys, chunkTasks, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Processes the given protein matches. The secondary progress counter of
+     * the waiting handler is increased for every match processed. Errors are
+     * sent to the exception handler and cancel the process.
+     *
+     * @param proteinKeys the keys of the protein matches to process
+     * @param parameters the parameters to load with the matches, can be null
+     * @param loadPeptides if true the peptide matches of the proteins will be
+     * loaded with the same parameters
+     * @param loadPsms if true the PSMs of the peptides will be loaded with the
+     * same parameters
+     * @param proteinTaskFactory the factory providing the task of every thread
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    public void processProteins(ArrayList<String> proteinKeys, final ArrayList<UrParameter> parameters, final boolean loadPeptides, final boolean loadPsms,
+            ProteinTaskFactory proteinTaskFactory, final WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        if (proteinKeys.isEmpty()) {
+            return;
+        }
+
+        ChunkTask[] chunkTasks = new ChunkTask[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            final ProteinTask proteinTask = proteinTaskFactory.getProteinTask();
+            chunkTasks[i] = new ChunkTask() {
+                @Override
+                public void processChunk(ArrayList<String> chunk) throws Exception {
+                    ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(chunk, parameters, loadPeptides, parameters, loadPsms, parameters, null);
+                    while (proteinMatchesIterator.hasNext()) {
+                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        ProteinMatch proteinMatch = proteinMatchesIterator.next();
+                        if (proteinMatch != null) {
+                            proteinTask.process(proteinMatch);
+                        }
+                        if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            };
+        }
+
+        ArrayList<ArrayList<String>> keys = new ArrayList<ArrayList<String>>(1);
+        keys.add(proteinKeys);
+        processChunks(keys, chunkTasks, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Hands out the given lists of keys to the threads in chunks.
+     *
+     * @param keyLists the lists of keys to process, none empty
+     * @param chunkTasks the task of every thread
+     * @param waitingHandler a waiting handler allowing to cancel the process,
+     * can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    private void processChunks(ArrayList<ArrayList<String>> keyLists, ChunkTask[] chunkTasks, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        AtomicInteger[] nextIndexes = new AtomicInteger[keyLists.size()];
+        for (int i = 0; i < nextIndexes.length; i++) {
+            nextIndexes[i] = new AtomicInteger();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            ChunkRunnable runnable = new ChunkRunnable(i % keyLists.size(), keyLists, nextIndexes, chunkTasks[i], waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Match processing timed out. Please contact the developers.");
+        }
+    }
+
+    /**
+     * Loads the PSMs of a chunk and processes them. The secondary progress
+     * counter of the waiting handler is increased for every PSM processed.
+     *
+     * @param chunk the keys of the PSMs of the chunk
+     * @param parameters the parameters to load with the matches, can be null
+     * @param loadAssumptions if true the assumptions will be loaded with the
+     * matches
+     * @param psmTask the task processing the PSMs
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process, can be null
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * loading or processing a PSM
+     */
+    void processChunk(ArrayList<String> chunk, ArrayList<UrParameter> parameters, boolean loadAssumptions, PsmTask psmTask, WaitingHandler waitingHandler) throws Exception {
+        PsmIterator psmIterator;
+        if (parameters == null) {
+            psmIterator = identification.getPsmIterator(chunk, loadAssumptions, null);
+        } else {
+            psmIterator = identification.getPsmIterator(chunk, parameters, loadAssumptions, null);
+        }
+        while (psmIterator.hasNext()) {
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            psmTask.process(psmIterator.next());
+            if (waitingHandler != null && !waitingHandler.isRunCanceled()) {
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+        }
+    }
+
+    /**
+     * Runnable processing chunks of keys.
+     *
+     * @author Marc Vaudel
+     */
+    private class ChunkRunnable implements Runnable {
+
+        /**
+         * The index of the list of keys where to start.
+         */
+        private final int firstFile;
+        /**
+         * The lists of keys to process, one per spectrum file for PSMs.
+         */
+        private final ArrayList<ArrayList<String>> fileKeys;
+        /**
+         * The index of the next key to process for every list.
+         */
+        private final AtomicInteger[] nextIndexes;
+        /**
+         * The task of this thread.
+         */
+        private final ChunkTask chunkTask;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param firstFile the index of the list of keys where to start
+         * @param fileKeys the lists of keys to process
+         * @param nextIndexes the index of the next key to process for every
+         * list
+         * @param chunkTask the task of this thread
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        private ChunkRunnable(int firstFile, ArrayList<ArrayList<String>> fileKeys, AtomicInteger[] nextIndexes, ChunkTask chunkTask,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.firstFile = firstFile;
+            this.fileKeys = fileKeys;
+            this.nextIndexes = nextIndexes;
+            this.chunkTask = chunkTask;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < fileKeys.size(); i++) {
+                    int fileIndex = (firstFile + i) % fileKeys.size();
+                    ArrayList<String> keys = fileKeys.get(fileIndex);
+                    int start;
+                    while ((start = nextIndexes[fileIndex].getAndAdd(chunkSize)) < keys.size()) {
+                        if (isCanceled()) {
+                            return;
+                        }
+                        ArrayList<String> chunk = new ArrayList<String>(keys.subList(start, Math.min(start + chunkSize, keys.size())));
+                        chunkTask.processChunk(chunk);
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Indicates whether the process was canceled.
+         *
+         * @return a boolean indicating whether the process was canceled
+         */
+        private boolean isCanceled() {
+            return waitingHandler != null && waitingHandler.isRunCanceled();
+        }
+    }
+}
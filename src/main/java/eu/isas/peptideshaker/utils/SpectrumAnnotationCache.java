@@ -0,0 +1,322 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Size bounded cache of the peptide spectrum annotations computed during the
+ * processing of a project. The annotation of a spectrum with a peptide is
+ * stored together with the settings used to compute it so that the different
+ * processing steps scoring the same peptide spectrum match annotate the
+ * spectrum only once. The cache is thread safe, the annotators it provides are
+ * not and must be used by a single thread. The least recently used
+ * annotations are released when the memory governor runs short of memory.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumAnnotationCache implements MemoryGovernor.MemoryConsumer {
+
+    /**
+     * The number of segments of the cache.
+     */
+    private static final int N_SEGMENTS = 16;
+    /**
+     * Estimate of the memory used by an annotation in bytes.
+     */
+    private static final int ANNOTATION_SIZE = 4096;
+    /**
+     * The share of the memory available to the JVM used by default.
+     */
+    private static final double MEMORY_SHARE = 0.1;
+    /**
+     * Separator used for the annotation keys.
+     */
+    private static final char SEPARATOR = '|';
+    /**
+     * The segments of the cache.
+     */
+    private final Segment[] segments = new Segment[N_SEGMENTS];
+
+    /**
+     * Constructor. The number of annotations kept in cache is estimated from
+     * the memory available to the JVM.
+     */
+    public SpectrumAnnotationCache() {
+        this((int) Math.min(Integer.MAX_VALUE, (long) (MEMORY_SHARE * Runtime.getRuntime().maxMemory()) / ANNOTATION_SIZE));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cacheSize the number of annotations kept in cache
+     */
+    public SpectrumAnnotationCache(int cacheSize) {
+        int segmentCapacity = Math.max(1, (cacheSize + N_SEGMENTS - 1) / N_SEGMENTS);
+        for (int i = 0; i < N_SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Returns a new peptide spectrum annotator storing its annotations in this
+     * cache. The annotator must be used by a single thread.
+     *
+     * @return a new peptide spectrum annotator
+     */
+    public PeptideSpectrumAnnotator getSpectrumAnnotator() {
+        return new CachedPeptideSpectrumAnnotator(this);
+    }
+
+    /**
+     * Returns a new peptide spectrum annotator storing its annotations in the
+     * given cache, or a peptide spectrum annotator without cache if the cache
+     * is null.
+     *
+     * @param spectrumAnnotationCache the cache where to store the annotations,
+     * can be null
+     *
+     * @return a new peptide spectrum annotator
+     */
+    public static PeptideSpectrumAnnotator getSpectrumAnnotator(SpectrumAnnotationCache spectrumAnnotationCache) {
+        if (spectrumAnnotationCache == null) {
+            return new PeptideSpectrumAnnotator();
+        }
+        return spectrumAnnotationCache.getSpectrumAnnotator();
+    }
+
+    /**
+     * Returns the number of annotations in cache.
+     *
+     * @return the number of annotations in cache
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all annotations from the cache.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public boolean releaseMemory(double share) {
+        boolean released = false;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                int nToRemove = (int) Math.ceil(share * segment.size());
+                Iterator<String> iterator = segment.keySet().iterator();
+                for (int i = 0; i < nToRemove && iterator.hasNext(); i++) {
+                    iterator.next();
+                    iterator.remove();
+                    released = true;
+                }
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Returns the segment where the annotation of the given key is stored.
+     *
+     * @param annotationKey the key of the annotation
+     *
+     * @return the segment where the annotation of the given key is stored
+     */
+    private Segment getSegment(String annotationKey) {
+        int hash = annotationKey.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % N_SEGMENTS];
+    }
+
+    /**
+     * Returns the annotation of the given key, null if not in cache.
+     *
+     * @param annotationKey the key of the annotation
+     *
+     * @return the annotation of the given key
+     */
+    private ArrayList<IonMatch> get(String annotationKey) {
+        Segment segment = getSegment(annotationKey);
+        synchronized (segment) {
+            return segment.get(annotationKey);
+        }
+    }
+
+    /**
+     * Stores an annotation.
+     *
+     * @param annotationKey the key of the annotation
+     * @param annotation the annotation
+     */
+    private void put(String annotationKey, ArrayList<IonMatch> annotation) {
+        Segment segment = getSegment(annotationKey);
+        synchronized (segment) {
+            segment.put(annotationKey, annotation);
+        }
+    }
+
+    /**
+     * Returns the key of the annotation of a spectrum with a peptide. The key
+     * contains the spectrum, the peptide with the localization of its
+     * modifications, and the annotation settings. Null if the annotation
+     * cannot be cached.
+     *
+     * @param annotationSettings the annotation settings
+     * @param specificAnnotationSettings the annotation settings specific to
+     * this spectrum and peptide
+     * @param spectrum the spectrum
+     * @param peptide the peptide
+     *
+     * @return the key of the annotation
+     */
+    private static String getAnnotationKey(AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings, MSnSpectrum spectrum, Peptide peptide) {
+
+        SpectrumIdentificationAssumption assumption = specificAnnotationSettings.getSpectrumIdentificationAssumption();
+        if (assumption == null || assumption.getIdentificationCharge() == null) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder(256);
+
+        // the spectrum, the number of peaks and total intensity distinguish processed versions of a spectrum
+        key.append(spectrum.getSpectrumKey()).append(SEPARATOR);
+        key.append(spectrum.getPeakMap().size()).append(SEPARATOR);
+        key.append(spectrum.getTotalIntensity()).append(SEPARATOR);
+
+        // the peptide and the localization of its modifications
+        key.append(peptide.getSequence());
+        if (peptide.isModified()) {
+            ArrayList<String> modifications = new ArrayList<String>(peptide.getModificationMatches().size());
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                modifications.add(modificationMatch.getTheoreticPtm() + "@" + modificationMatch.getModificationSite());
+            }
+            Collections.sort(modifications);
+            for (String modification : modifications) {
+                key.append(SEPARATOR).append(modification);
+            }
+        }
+        key.append(SEPARATOR);
+
+        // the annotation settings
+        key.append(assumption.getIdentificationCharge().value).append(SEPARATOR);
+        key.append(annotationSettings.getAnnotationIntensityLimit()).append(SEPARATOR);
+        key.append(annotationSettings.isHighResolutionAnnotation()).append(SEPARATOR);
+        key.append(annotationSettings.getFragmentIonAccuracy()).append(SEPARATOR);
+        key.append(specificAnnotationSettings.getFragmentIonAccuracy()).append(SEPARATOR);
+        for (Ion.IonType ionType : Ion.IonType.values()) {
+            if (specificAnnotationSettings.getIonTypes().containsKey(ionType)) {
+                TreeSet<Integer> subTypes = new TreeSet<Integer>();
+                for (int subType : specificAnnotationSettings.getIonTypes().get(ionType)) {
+                    subTypes.add(subType);
+                }
+                key.append(ionType.ordinal()).append(subTypes);
+            }
+        }
+        key.append(SEPARATOR);
+        TreeSet<String> neutralLosses = new TreeSet<String>();
+        for (String neutralLoss : specificAnnotationSettings.getNeutralLossesMap().getAccountedNeutralLosses()) {
+            neutralLosses.add(neutralLoss);
+        }
+        key.append(neutralLosses).append(SEPARATOR);
+        TreeSet<Integer> charges = new TreeSet<Integer>();
+        for (int charge : specificAnnotationSettings.getSelectedCharges()) {
+            charges.add(charge);
+        }
+        key.append(charges);
+
+        return key.toString();
+    }
+
+    /**
+     * Peptide spectrum annotator looking up the annotations in the cache
+     * before computing them.
+     */
+    private static class CachedPeptideSpectrumAnnotator extends PeptideSpectrumAnnotator {
+
+        /**
+         * The cache where to store the annotations.
+         */
+        private final SpectrumAnnotationCache spectrumAnnotationCache;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumAnnotationCache the cache where to store the
+         * annotations
+         */
+        private CachedPeptideSpectrumAnnotator(SpectrumAnnotationCache spectrumAnnotationCache) {
+            this.spectrumAnnotationCache = spectrumAnnotationCache;
+        }
+
+        @Override
+        public ArrayList<IonMatch> getSpectrumAnnotation(AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings,
+                MSnSpectrum spectrum, Peptide peptide) throws InterruptedException {
+            String annotationKey = getAnnotationKey(annotationSettings, specificAnnotationSettings, spectrum, peptide);
+            if (annotationKey == null) {
+                return super.getSpectrumAnnotation(annotationSettings, specificAnnotationSettings, spectrum, peptide);
+            }
+            ArrayList<IonMatch> annotation = spectrumAnnotationCache.get(annotationKey);
+            if (annotation == null) {
+                annotation = super.getSpectrumAnnotation(annotationSettings, specificAnnotationSettings, spectrum, peptide);
+                spectrumAnnotationCache.put(annotationKey, annotation);
+            }
+            return new ArrayList<IonMatch>(annotation);
+        }
+    }
+
+    /**
+     * Segment of the cache: a map in access order removing the least recently
+     * used annotation when its capacity is exceeded.
+     */
+    private static class Segment extends LinkedHashMap<String, ArrayList<IonMatch>> {
+
+        /**
+         * Serial number for backward compatibility.
+         */
+        static final long serialVersionUID = 1L;
+        /**
+         * The number of annotations this segment can hold.
+         */
+        private final int capacity;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity the number of annotations this segment can hold
+         */
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayList<IonMatch>> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class executes processing stages as soon as the stages they depend on
+ * are completed. Stages are referenced by a key, typically the name of the
+ * processing step and the name of the spectrum file it works on, see
+ * getStageKey.
+ *
+ * @author Marc Vaudel
+ */
+public class StageScheduler {
+
+    /**
+     * Interface for the work done by a stage.
+     */
+    public interface StageTask {
+
+        /**
+         * Runs the task.
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * running the task
+         */
+        public void run() throws Exception;
+    }
+
+    /**
+     * The number of threads to use.
+     */
+    private final int nThreads;
+    /**
+     * The waiting handler.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * Handler for the exceptions.
+     */
+    private final ExceptionHandler exceptionHandler;
+    /**
+     * The stages indexed by key.
+     */
+    private final HashMap<String, Stage> stages = new HashMap<String, Stage>();
+    /**
+     * The pool executing the stages, null until execute() is called.
+     */
+    private ExecutorService pool = null;
+    /**
+     * The number of stages not completed yet.
+     */
+    private int nIncomplete = 0;
+    /**
+     * The number of stages currently running.
+     */
+    private int nRunning = 0;
+    /**
+     * Boolean indicating whether the execution was aborted.
+     */
+    private boolean aborted = false;
+
+    /**
+     * Constructor.
+     *
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process
+     * @param exceptionHandler handler for exceptions
+     */
+    public StageScheduler(int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.nThreads = nThreads;
+        this.waitingHandler = waitingHandler;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    /**
+     * Returns the key of a stage working on a given spectrum file.
+     *
+     * @param stageName the name of the stage
+     * @param spectrumFileName the name of the spectrum file
+     *
+     * @return the key of the stage
+     */
+    public static String getStageKey(String stageName, String spectrumFileName) {
+        return stageName + "_" + spectrumFileName;
+    }
+
+    /**
+     * Adds a stage. The stages it depends on must have been added before.
+     * Stages can be added while the scheduler is executing, typically by
+     * another stage, in which case they are started as soon as their
+     * dependencies are completed.
+     *
+     * @param stageKey the key of the stage
+     * @param stageTask the task to execute
+     * @param dependencies the keys of the stages which must be completed
+     * before this stage is started
+     */
+    public synchronized void addStage(String stageKey, StageTask stageTask, String... dependencies) {
+        if (stages.containsKey(stageKey)) {
+            throw new IllegalArgumentException("Stage " + stageKey + " already registered.");
+        }
+        Stage stage = new Stage(stageKey, stageTask);
+        for (String dependency : dependencies) {
+            Stage dependencyStage = stages.get(dependency);
+            if (dependencyStage == null) {
+                throw new IllegalArgumentException("Stage " + dependency + " needed by " + stageKey + " not registered.");
+            }
+            if (!dependencyStage.completed) {
+                stage.nPending++;
+                dependencyStage.dependents.add(stage);
+            }
+        }
+        stages.put(stageKey, stage);
+        nIncomplete++;
+        if (pool != null && stage.nPending == 0) {
+            submit(stage);
+        }
+    }
+
+    /**
+     * Executes all stages and returns when they are completed or when the
+     * process was canceled. Exceptions thrown by the stages are sent to the
+     * exception handler and cancel the process.
+     *
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while waiting for the stages to complete
+     */
+    public void execute() throws InterruptedException {
+        synchronized (this) {
+            if (pool != null) {
+                throw new IllegalArgumentException("Stages already executed.");
+            }
+            pool = Executors.newFixedThreadPool(nThreads);
+            for (Stage stage : stages.values()) {
+                if (stage.nPending == 0) {
+                    submit(stage);
+                }
+            }
+            while (nRunning > 0 || !aborted && nIncomplete > 0) {
+                wait();
+            }
+        }
+        if (aborted) {
+            pool.shutdownNow();
+        } else {
+            pool.shutdown();
+        }
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Processing timed out. Please contact the developers.");
+        }
+    }
+
+    /**
+     * Submits a stage to the pool.
+     *
+     * @param stage the stage to submit
+     */
+    private void submit(final Stage stage) {
+        if (aborted) {
+            return;
+        }
+        nRunning++;
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                runStage(stage);
+            }
+        });
+    }
+
+    /**
+     * Runs a stage and schedules its dependents.
+     *
+     * @param stage the stage to run
+     */
+    private void runStage(Stage stage) {
+        boolean success = false;
+        try {
+            if (!waitingHandler.isRunCanceled()) {
+                stage.stageTask.run();
+                success = !waitingHandler.isRunCanceled();
+            }
+        } catch (Exception e) {
+            exceptionHandler.catchException(e);
+            waitingHandler.setRunCanceled();
+        } finally {
+            stageCompleted(stage, success);
+        }
+    }
+
+    /**
+     * Marks a stage as completed and submits the stages which were waiting
+     * for it.
+     *
+     * @param stage the completed stage
+     * @param success boolean indicating whether the stage completed
+     * successfully
+     */
+    private synchronized void stageCompleted(Stage stage, boolean success) {
+        nRunning--;
+        if (success) {
+            stage.completed = true;
+            nIncomplete--;
+            for (Stage dependent : stage.dependents) {
+                dependent.nPending--;
+                if (dependent.nPending == 0) {
+                    submit(dependent);
+                }
+            }
+        } else {
+            aborted = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * A stage of the processing.
+     */
+    private class Stage {
+
+        /**
+         * The key of the stage.
+         */
+        private final String stageKey;
+        /**
+         * The task to execute.
+         */
+        private final StageTask stageTask;
+        /**
+         * The number of dependencies not completed yet.
+         */
+        private int nPending = 0;
+        /**
+         * The stages depending on this stage.
+         */
+        private final ArrayList<Stage> dependents = new ArrayList<Stage>(1);
+        /**
+         * Boolean indicating whether the stage is completed.
+         */
+        private boolean completed = false;
+
+        /**
+         * Constructor.
+         *
+         * @param stageKey the key of the stage
+         * @param stageTask the task to execute
+         */
+        private Stage(String stageKey, StageTask stageTask) {
+            this.stageKey = stageKey;
+            this.stageTask = stageTask;
+        }
+    }
+}
@@ -16,7 +16,6 @@ import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
 import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
@@ -45,15 +44,19 @@ import eu.isas.peptideshaker.scoring.maps.PeptideSpecificMap;
 import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMatchIndex;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.PsmChunkProcessor;
+import eu.isas.peptideshaker.utils.SpectrumAnnotationCache;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -88,6 +91,10 @@ public class MatchesValidator {
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * Cache for the spectrum annotations, null if annotations are not cached.
+     */
+    private SpectrumAnnotationCache spectrumAnnotationCache = null;
 
     /**
      * Constructor.
@@ -241,9 +248,9 @@ public class MatchesValidator {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database.
      */
-    public void validateIdentifications(Identification identification, Metrics metrics, GeneMaps geneMaps, InputMap inputMap,
-            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters,
+    public void validateIdentifications(final Identification identification, Metrics metrics, final GeneMaps geneMaps, final InputMap inputMap,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters,
             SpectrumCountingPreferences spectrumCountingPreferences, ProcessingPreferences processingPreferences)
             throws SQLException, IOException, ClassNotFoundException, MzMLUnmarshallerException, InterruptedException {
 
@@ -263,45 +270,48 @@ public class MatchesValidator {
 
         HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
 
+        // the features depending on the validation need to be computed again
+        if (identificationFeaturesGenerator != null) {
+            identificationFeaturesGenerator.getIdentificationFeaturesCache().removeValidationDependentObjects();
+        }
+
+        // the thresholds are stored for the next revalidation, the matches are indexed when first needed
+        createMatchIndexes(inputMap);
+
         // validate the spectrum matches
         if (inputMap != null) {
             inputMap.resetAdvocateContributions();
         }
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
             AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
             Double intensityLimit = annotationPreferences.getAnnotationIntensityLimit();
             annotationPreferences.setIntensityLimit(0);
 
-            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-
-            ArrayList<String> spectrumKeys = null;
+            ArrayList<String> orderedKeys = null;
             if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
+                orderedKeys = spectrumKeysMap.get(spectrumFileName);
             }
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
-
-            ArrayList<PsmValidatorRunnable> psmRunnables = new ArrayList<PsmValidatorRunnable>(processingPreferences.getnThreads());
-            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler, inputMap, false, true);
-                pool.submit(runnable);
-                psmRunnables.add(runnable);
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+            LinkedHashMap<String, ArrayList<String>> spectrumKeys = new LinkedHashMap<String, ArrayList<String>>(1);
+            spectrumKeys.put(spectrumFileName, PsmChunkProcessor.getSpectrumKeys(identification, spectrumFileName, orderedKeys));
+
+            final ArrayList<PsmValidatorTask> psmTasks = new ArrayList<PsmValidatorTask>(processingPreferences.getnThreads());
+            psmChunkProcessor.process(spectrumKeys, parameters, false, new PsmChunkProcessor.PsmTaskFactory() {
+                @Override
+                public PsmChunkProcessor.PsmTask getPsmTask() {
+                    PsmValidatorTask psmTask = new PsmValidatorTask(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, inputMap, false, true, false);
+                    psmTasks.add(psmTask);
+                    return psmTask;
                 }
-            }
+            }, waitingHandler, exceptionHandler);
             if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
                 return;
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-            }
 
             ArrayList<Double> precursorMzDeviations = new ArrayList<Double>();
-            for (PsmValidatorRunnable runnable : psmRunnables) {
-                precursorMzDeviations.addAll(runnable.getThreadPrecursorMzDeviations());
+            for (PsmValidatorTask psmTask : psmTasks) {
+                precursorMzDeviations.addAll(psmTask.getThreadPrecursorMzDeviations());
             }
 
             if (precursorMzDeviations.size() >= 100) {
@@ -333,29 +343,15 @@ public class MatchesValidator {
                 }
             }
 
-            pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-
-            spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
-            psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
-
-            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler, inputMap, true, false);
-                pool.submit(runnable);
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+            psmChunkProcessor.process(spectrumKeys, parameters, false, new PsmChunkProcessor.PsmTaskFactory() {
+                @Override
+                public PsmChunkProcessor.PsmTask getPsmTask() {
+                    return new PsmValidatorTask(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, inputMap, true, false, false);
                 }
-            }
+            }, waitingHandler, exceptionHandler);
             if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
                 return;
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-            }
 
             annotationPreferences.setIntensityLimit(intensityLimit);
         }
@@ -367,7 +363,7 @@ public class MatchesValidator {
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
 
         for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-            PeptideValidatorRunnable runnable = new PeptideValidatorRunnable(peptideMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler, metrics);
+            PeptideValidatorRunnable runnable = new PeptideValidatorRunnable(peptideMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler, metrics, false, null);
             pool.submit(runnable);
             peptideRunnables.add(runnable);
             if (waitingHandler != null && waitingHandler.isRunCanceled()) {
@@ -409,7 +405,7 @@ public class MatchesValidator {
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, false, null, waitingHandler);
         ArrayList<ProteinValidatorRunnable> proteinRunnables = new ArrayList<ProteinValidatorRunnable>(processingPreferences.getnThreads());
         for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-            ProteinValidatorRunnable runnable = new ProteinValidatorRunnable(proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, metrics, shotgunProtocol, identificationParameters, spectrumCountingPreferences, waitingHandler, exceptionHandler);
+            ProteinValidatorRunnable runnable = new ProteinValidatorRunnable(proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, metrics, shotgunProtocol, identificationParameters, spectrumCountingPreferences, waitingHandler, exceptionHandler, null);
             pool.submit(runnable);
             proteinRunnables.add(runnable);
             if (waitingHandler != null && waitingHandler.isRunCanceled()) {
@@ -436,6 +432,633 @@ public class MatchesValidator {
             totalSpectrumCountingMass += runnable.getTotalSpectrumCountingMass();
         }
         metrics.setTotalSpectrumCountingMass(totalSpectrumCountingMass);
+
+        if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+            setMatchIndexesThresholds(inputMap, validationQCPreferences);
+        }
+    }
+
+    /**
+     * Validates again the identification matches of an identification object
+     * after a change of the thresholds of the target/decoy maps. Only the
+     * matches scoring between the former and new thresholds and the peptides
+     * and proteins of the matches changing validation level are validated
+     * again, using the thresholds of the last complete validation. The
+     * matches are indexed by score on the first revalidation. If no complete
+     * validation was conducted or if the thresholds of the search engine maps
+     * changed, a complete validation is conducted. The
+     * quality control filters and the precursor m/z deviation distributions
+     * of the last complete validation are used. Target Decoy thresholds must
+     * be set.
+     *
+     * @param identification the identification class containing the matches to
+     * validate
+     * @param metrics the metrics on the project, the number of validated
+     * peptides per fraction and spectrum counting are updated
+     * @param geneMaps the gene maps
+     * @param inputMap the target decoy map of all search engine scores
+     * @param waitingHandler a waiting handler displaying progress to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for exceptions
+     * @param identificationFeaturesGenerator an identification features
+     * generator computing information about the identification matches
+     * @param shotgunProtocol information about the protocol
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param processingPreferences the processing preferences
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     */
+    public void revalidateIdentifications(final Identification identification, Metrics metrics, final GeneMaps geneMaps, final InputMap inputMap,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final ShotgunProtocol shotgunProtocol, final IdentificationParameters identificationParameters,
+            SpectrumCountingPreferences spectrumCountingPreferences, ProcessingPreferences processingPreferences)
+            throws SQLException, IOException, ClassNotFoundException, MzMLUnmarshallerException, InterruptedException {
+
+        ValidationQCPreferences validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
+        double confidenceMargin = validationQCPreferences.getConfidenceMargin();
+        boolean firstDecoy = validationQCPreferences.isFirstDecoy();
+
+        if (!canRevalidate(inputMap, validationQCPreferences)) {
+            validateIdentifications(identification, metrics, geneMaps, inputMap, waitingHandler, exceptionHandler,
+                    identificationFeaturesGenerator, shotgunProtocol, identificationParameters, spectrumCountingPreferences, processingPreferences);
+            return;
+        }
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Match Validation and Quality Control. Please Wait...");
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        }
+
+        // index the matches with their final keys if not done since the last complete validation
+        if (!matchesIndexed()) {
+            indexMatches(identification, processingPreferences, waitingHandler, exceptionHandler);
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                discardMatchIndexes(inputMap);
+                return;
+            }
+        }
+
+        // select the matches between the former and new thresholds
+        HashSet<String> spectrumKeys = new HashSet<String>();
+        for (TargetDecoyMap targetDecoyMap : getPsmTargetDecoyMaps()) {
+            spectrumKeys.addAll(targetDecoyMap.getMatchIndex().getAffectedKeys(targetDecoyMap, confidenceMargin, firstDecoy));
+        }
+        LinkedHashMap<String, ArrayList<String>> fileSpectrumKeys = new LinkedHashMap<String, ArrayList<String>>();
+        for (String spectrumKey : spectrumKeys) {
+            String spectrumFileName = Spectrum.getSpectrumFile(spectrumKey);
+            ArrayList<String> keys = fileSpectrumKeys.get(spectrumFileName);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                fileSpectrumKeys.put(spectrumFileName, keys);
+            }
+            keys.add(spectrumKey);
+        }
+        HashSet<String> peptideKeys = new HashSet<String>();
+        for (TargetDecoyMap targetDecoyMap : getPeptideTargetDecoyMaps()) {
+            peptideKeys.addAll(targetDecoyMap.getMatchIndex().getAffectedKeys(targetDecoyMap, confidenceMargin, firstDecoy));
+        }
+        TargetDecoyMap proteinTargetDecoyMap = proteinMap.getTargetDecoyMap();
+        HashSet<String> proteinKeys = proteinTargetDecoyMap.getMatchIndex().getAffectedKeys(proteinTargetDecoyMap, confidenceMargin, firstDecoy);
+
+        // save the spectrum counting of the proteins which can be affected before the validation levels change
+        HashMap<String, double[]> previousContributions = getSpectrumCountingContributions(identification, identificationFeaturesGenerator, identificationParameters,
+                spectrumCountingPreferences, fileSpectrumKeys, peptideKeys, proteinKeys, processingPreferences, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            discardMatchIndexes(inputMap);
+            return;
+        }
+
+        // the features depending on the validation need to be computed again
+        identificationFeaturesGenerator.getIdentificationFeaturesCache().removeValidationDependentObjects();
+
+        // validate the spectrum matches between the former and new thresholds
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(spectrumKeys.size());
+        }
+
+        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+        Double intensityLimit = annotationPreferences.getAnnotationIntensityLimit();
+        annotationPreferences.setIntensityLimit(0);
+
+        final ArrayList<PsmValidatorTask> psmTasks = new ArrayList<PsmValidatorTask>(processingPreferences.getnThreads());
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+        psmChunkProcessor.process(fileSpectrumKeys, parameters, false, new PsmChunkProcessor.PsmTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PsmTask getPsmTask() {
+                PsmValidatorTask psmTask = new PsmValidatorTask(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, inputMap, true, false, true);
+                psmTasks.add(psmTask);
+                return psmTask;
+            }
+        }, waitingHandler, exceptionHandler);
+
+        annotationPreferences.setIntensityLimit(intensityLimit);
+
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            discardMatchIndexes(inputMap);
+            return;
+        }
+
+        // validate the peptides between the former and new thresholds and the peptides of the spectrum matches which changed
+        HashSet<String> changedPsmPeptideKeys = new HashSet<String>();
+        for (PsmValidatorTask psmTask : psmTasks) {
+            for (String peptideKey : psmTask.getChangedPeptideKeys()) {
+                if (identification.getPeptideIdentification().contains(peptideKey)) {
+                    changedPsmPeptideKeys.add(peptideKey);
+                }
+            }
+        }
+        peptideKeys.addAll(changedPsmPeptideKeys);
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(peptideKeys.size());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<PeptideValidatorRunnable> peptideRunnables = new ArrayList<PeptideValidatorRunnable>(processingPreferences.getnThreads());
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(new ArrayList<String>(peptideKeys), parameters, false, parameters, waitingHandler);
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            PeptideValidatorRunnable runnable = new PeptideValidatorRunnable(peptideMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, waitingHandler, exceptionHandler, metrics, true, changedPsmPeptideKeys);
+            pool.submit(runnable);
+            peptideRunnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide validation timed out. Please contact the developers.");
+        }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            discardMatchIndexes(inputMap);
+            return;
+        }
+
+        HashMap<String, Integer> validatedTotalPeptidesPerFraction = metrics.getTotalPeptidesPerFraction();
+        if (validatedTotalPeptidesPerFraction == null) {
+            validatedTotalPeptidesPerFraction = new HashMap<String, Integer>();
+        }
+        for (PeptideValidatorRunnable runnable : peptideRunnables) {
+            HashMap<String, Integer> threadValidatedTotalPeptidesPerFraction = runnable.getValidatedTotalPeptidesPerFraction();
+            for (String fraction : threadValidatedTotalPeptidesPerFraction.keySet()) {
+                Integer nValidated = validatedTotalPeptidesPerFraction.get(fraction);
+                if (nValidated == null) {
+                    nValidated = 0;
+                }
+                nValidated += threadValidatedTotalPeptidesPerFraction.get(fraction);
+                validatedTotalPeptidesPerFraction.put(fraction, nValidated);
+            }
+        }
+        metrics.setTotalPeptidesPerFraction(validatedTotalPeptidesPerFraction);
+
+        // validate the proteins between the former and new thresholds and the proteins of the peptides and spectrum matches which changed
+        for (PeptideValidatorRunnable runnable : peptideRunnables) {
+            proteinKeys.addAll(runnable.getChangedProteinKeys());
+        }
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
+        }
+
+        pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<ProteinValidatorRunnable> proteinRunnables = new ArrayList<ProteinValidatorRunnable>(processingPreferences.getnThreads());
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(new ArrayList<String>(proteinKeys), parameters, true, parameters, false, null, waitingHandler);
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ProteinValidatorRunnable runnable = new ProteinValidatorRunnable(proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, metrics, shotgunProtocol, identificationParameters, spectrumCountingPreferences, waitingHandler, exceptionHandler, previousContributions);
+            pool.submit(runnable);
+            proteinRunnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein validation timed out. Please contact the developers.");
+        }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            discardMatchIndexes(inputMap);
+            return;
+        }
+
+        double totalSpectrumCounting = metrics.getTotalSpectrumCounting() != null ? metrics.getTotalSpectrumCounting() : 0;
+        double totalSpectrumCountingMass = metrics.getTotalSpectrumCountingMass() != null ? metrics.getTotalSpectrumCountingMass() : 0;
+        for (ProteinValidatorRunnable runnable : proteinRunnables) {
+            totalSpectrumCounting += runnable.getTotalSpectrumCounting();
+            totalSpectrumCountingMass += runnable.getTotalSpectrumCountingMass();
+        }
+        metrics.setTotalSpectrumCounting(totalSpectrumCounting);
+        metrics.setTotalSpectrumCountingMass(totalSpectrumCountingMass);
+
+        // the features computed during the validation may rely on former validation levels
+        identificationFeaturesGenerator.getIdentificationFeaturesCache().removeValidationDependentObjects();
+
+        setMatchIndexesThresholds(inputMap, validationQCPreferences);
+    }
+
+    /**
+     * Returns the target/decoy maps used to validate the PSMs, every map
+     * being listed once.
+     *
+     * @return the target/decoy maps used to validate the PSMs
+     */
+    private ArrayList<TargetDecoyMap> getPsmTargetDecoyMaps() {
+        ArrayList<TargetDecoyMap> result = new ArrayList<TargetDecoyMap>();
+        for (TargetDecoyMap targetDecoyMap : psmMap.getTargetDecoyMaps()) {
+            if (!result.contains(targetDecoyMap)) {
+                result.add(targetDecoyMap);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the target/decoy maps used to validate the peptides, every map
+     * being listed once.
+     *
+     * @return the target/decoy maps used to validate the peptides
+     */
+    private ArrayList<TargetDecoyMap> getPeptideTargetDecoyMaps() {
+        ArrayList<TargetDecoyMap> result = new ArrayList<TargetDecoyMap>();
+        for (String mapKey : peptideMap.getKeys()) {
+            TargetDecoyMap targetDecoyMap = peptideMap.getTargetDecoyMap(mapKey);
+            if (!result.contains(targetDecoyMap)) {
+                result.add(targetDecoyMap);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all target/decoy maps used for validation, every map being
+     * listed once.
+     *
+     * @param inputMap the target decoy map of all search engine scores, can
+     * be null
+     *
+     * @return all target/decoy maps used for validation
+     */
+    private ArrayList<TargetDecoyMap> getAllTargetDecoyMaps(InputMap inputMap) {
+        ArrayList<TargetDecoyMap> result = getPsmTargetDecoyMaps();
+        result.addAll(getPeptideTargetDecoyMaps());
+        result.add(proteinMap.getTargetDecoyMap());
+        if (inputMap != null) {
+            result.addAll(inputMap.getTargetDecoyMaps());
+        }
+        return result;
+    }
+
+    /**
+     * Sets a new index of the matches on all target/decoy maps used for
+     * validation.
+     *
+     * @param inputMap the target decoy map of all search engine scores, can
+     * be null
+     */
+    private void createMatchIndexes(InputMap inputMap) {
+        for (TargetDecoyMap targetDecoyMap : getAllTargetDecoyMaps(inputMap)) {
+            targetDecoyMap.setMatchIndex(new TargetDecoyMatchIndex());
+        }
+    }
+
+    /**
+     * Indicates whether the matches of all PSM, peptide and protein maps were
+     * added to their indexes.
+     *
+     * @return a boolean indicating whether the matches of all PSM, peptide and
+     * protein maps were added to their indexes
+     */
+    private boolean matchesIndexed() {
+        ArrayList<TargetDecoyMap> matchesMaps = getPsmTargetDecoyMaps();
+        matchesMaps.addAll(getPeptideTargetDecoyMaps());
+        matchesMaps.add(proteinMap.getTargetDecoyMap());
+        for (TargetDecoyMap targetDecoyMap : matchesMaps) {
+            if (!targetDecoyMap.getMatchIndex().isIndexed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the PSMs, peptides and proteins to the indexes of their
+     * target/decoy maps using their current keys. The indexes are populated
+     * on the first revalidation only, after the PTM scoring which can change
+     * the peptide keys.
+     *
+     * @param identification the identification containing the matches
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler a waiting handler displaying progress to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for exceptions
+     *
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while indexing the matches
+     */
+    private void indexMatches(final Identification identification, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(new PSParameter());
+
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize()
+                    + identification.getPeptideIdentification().size()
+                    + identification.getProteinIdentification().size());
+        }
+
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+
+        LinkedHashMap<String, ArrayList<String>> spectrumKeys = new LinkedHashMap<String, ArrayList<String>>();
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+            spectrumKeys.put(spectrumFileName, PsmChunkProcessor.getSpectrumKeys(identification, spectrumFileName, null));
+        }
+        final PsmChunkProcessor.PsmTask psmTask = new PsmChunkProcessor.PsmTask() {
+            @Override
+            public void process(SpectrumMatch spectrumMatch) throws Exception {
+                String spectrumKey = spectrumMatch.getKey();
+                PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, new PSParameter());
+                TargetDecoyMap targetDecoyMap = psmMap.getTargetDecoyMap(new Integer(psParameter.getSpecificMapKey()), Spectrum.getSpectrumFile(spectrumKey));
+                indexMatch(targetDecoyMap, spectrumKey, psParameter.getPsmProbabilityScore(), psParameter.getPsmConfidence());
+            }
+        };
+        psmChunkProcessor.process(spectrumKeys, parameters, false, new PsmChunkProcessor.PsmTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PsmTask getPsmTask() {
+                return psmTask;
+            }
+        }, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        final PsmChunkProcessor.PeptideTask peptideTask = new PsmChunkProcessor.PeptideTask() {
+            @Override
+            public void process(PeptideMatch peptideMatch) throws Exception {
+                String peptideKey = peptideMatch.getKey();
+                PSParameter psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, new PSParameter());
+                TargetDecoyMap targetDecoyMap = peptideMap.getTargetDecoyMap(peptideMap.getCorrectedKey(psParameter.getSpecificMapKey()));
+                indexMatch(targetDecoyMap, peptideKey, psParameter.getPeptideProbabilityScore(), psParameter.getPeptideConfidence());
+            }
+        };
+        psmChunkProcessor.processPeptides(new ArrayList<String>(identification.getPeptideIdentification()), parameters, new PsmChunkProcessor.PeptideTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PeptideTask getPeptideTask() {
+                return peptideTask;
+            }
+        }, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        final TargetDecoyMap proteinTargetDecoyMap = proteinMap.getTargetDecoyMap();
+        final PsmChunkProcessor.ProteinTask proteinTask = new PsmChunkProcessor.ProteinTask() {
+            @Override
+            public void process(ProteinMatch proteinMatch) throws Exception {
+                String proteinKey = proteinMatch.getKey();
+                PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, new PSParameter());
+                indexMatch(proteinTargetDecoyMap, proteinKey, psParameter.getProteinProbabilityScore(), psParameter.getProteinConfidence());
+            }
+        };
+        psmChunkProcessor.processProteins(new ArrayList<String>(identification.getProteinIdentification()), parameters, false, false, new PsmChunkProcessor.ProteinTaskFactory() {
+            @Override
+            public PsmChunkProcessor.ProteinTask getProteinTask() {
+                return proteinTask;
+            }
+        }, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        ArrayList<TargetDecoyMap> matchesMaps = getPsmTargetDecoyMaps();
+        matchesMaps.addAll(getPeptideTargetDecoyMaps());
+        matchesMaps.add(proteinTargetDecoyMap);
+        for (TargetDecoyMap targetDecoyMap : matchesMaps) {
+            targetDecoyMap.getMatchIndex().setIndexed(true);
+        }
+    }
+
+    /**
+     * Returns the spectrum counting and spectrum counting mass contributions
+     * of the validated target proteins which can be affected by a
+     * revalidation: the given proteins, the proteins of the given peptides and
+     * the proteins of the peptides of the given spectrum matches. To be called
+     * before the validation levels and the features depending on the
+     * validation change so that the contributions are the ones summed in the
+     * totals of the metrics.
+     *
+     * @param identification the identification containing the matches
+     * @param identificationFeaturesGenerator the identification features
+     * generator computing the spectrum counting
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param spectrumKeys the keys of the spectrum matches to validate again
+     * indexed by spectrum file
+     * @param peptideKeys the keys of the peptide matches to validate again
+     * @param proteinKeys the keys of the protein matches to validate again
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler a waiting handler displaying progress to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for exceptions
+     *
+     * @return the spectrum counting and spectrum counting mass contributions
+     * of the proteins indexed by protein key
+     *
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while iterating the matches
+     */
+    private HashMap<String, double[]> getSpectrumCountingContributions(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final IdentificationParameters identificationParameters, final SpectrumCountingPreferences spectrumCountingPreferences, LinkedHashMap<String, ArrayList<String>> spectrumKeys,
+            HashSet<String> peptideKeys, HashSet<String> proteinKeys, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws InterruptedException {
+
+        PsmChunkProcessor psmChunkProcessor = new PsmChunkProcessor(identification, processingPreferences.getnThreads());
+
+        // the peptides of the spectrum matches
+        final HashSet<String> candidatePeptideKeys = new HashSet<String>(peptideKeys);
+        final PsmChunkProcessor.PsmTask psmTask = new PsmChunkProcessor.PsmTask() {
+            @Override
+            public void process(SpectrumMatch spectrumMatch) throws Exception {
+                PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+                if (peptideAssumption != null) {
+                    String peptideKey = peptideAssumption.getPeptide().getMatchingKey(identificationParameters.getSequenceMatchingPreferences());
+                    synchronized (candidatePeptideKeys) {
+                        candidatePeptideKeys.add(peptideKey);
+                    }
+                }
+            }
+        };
+        if (waitingHandler != null) {
+            int nSpectra = 0;
+            for (ArrayList<String> keys : spectrumKeys.values()) {
+                nSpectra += keys.size();
+            }
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
+        }
+        psmChunkProcessor.process(spectrumKeys, null, false, new PsmChunkProcessor.PsmTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PsmTask getPsmTask() {
+                return psmTask;
+            }
+        }, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return null;
+        }
+        candidatePeptideKeys.retainAll(identification.getPeptideIdentification());
+
+        // the proteins of the peptides
+        final HashSet<String> candidateProteinKeys = new HashSet<String>(proteinKeys);
+        final PsmChunkProcessor.PeptideTask peptideTask = new PsmChunkProcessor.PeptideTask() {
+            @Override
+            public void process(PeptideMatch peptideMatch) throws Exception {
+                for (String accession : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
+                    HashSet<String> proteinMatches = identification.getProteinMap().get(accession);
+                    if (proteinMatches != null) {
+                        synchronized (candidateProteinKeys) {
+                            candidateProteinKeys.addAll(proteinMatches);
+                        }
+                    }
+                }
+            }
+        };
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(candidatePeptideKeys.size());
+        }
+        psmChunkProcessor.processPeptides(new ArrayList<String>(candidatePeptideKeys), null, new PsmChunkProcessor.PeptideTaskFactory() {
+            @Override
+            public PsmChunkProcessor.PeptideTask getPeptideTask() {
+                return peptideTask;
+            }
+        }, waitingHandler, exceptionHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return null;
+        }
+
+        // the contributions of the validated target proteins
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(new PSParameter());
+        final HashMap<String, double[]> contributions = new HashMap<String, double[]>(candidateProteinKeys.size());
+        final PsmChunkProcessor.ProteinTask proteinTask = new PsmChunkProcessor.ProteinTask() {
+            @Override
+            public void process(ProteinMatch proteinMatch) throws Exception {
+                String proteinKey = proteinMatch.getKey();
+                PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, new PSParameter());
+                if (!proteinMatch.isDecoy() && psParameter.getMatchValidationLevel().getIndex() >= spectrumCountingPreferences.getMatchValidationLevel()) {
+                    double spectrumCounting = identificationFeaturesGenerator.getSpectrumCounting(proteinKey);
+                    double molecularWeight = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+                    synchronized (contributions) {
+                        contributions.put(proteinKey, new double[]{spectrumCounting, molecularWeight * spectrumCounting});
+                    }
+                }
+            }
+        };
+        if (waitingHandler != null) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(candidateProteinKeys.size());
+        }
+        psmChunkProcessor.processProteins(new ArrayList<String>(candidateProteinKeys), parameters, false, false, new PsmChunkProcessor.ProteinTaskFactory() {
+            @Override
+            public PsmChunkProcessor.ProteinTask getProteinTask() {
+                return proteinTask;
+            }
+        }, waitingHandler, exceptionHandler);
+
+        return contributions;
+    }
+
+    /**
+     * Discards the indexes of the matches, the next validation will therefore
+     * be complete.
+     *
+     * @param inputMap the target decoy map of all search engine scores, can
+     * be null
+     */
+    private void discardMatchIndexes(InputMap inputMap) {
+        for (TargetDecoyMap targetDecoyMap : getAllTargetDecoyMaps(inputMap)) {
+            targetDecoyMap.setMatchIndex(null);
+        }
+    }
+
+    /**
+     * Stores the current thresholds of the target/decoy maps in the indexes
+     * of the matches as the thresholds used for the last validation.
+     *
+     * @param inputMap the target decoy map of all search engine scores, can
+     * be null
+     * @param validationQCPreferences the validation quality control
+     * preferences
+     */
+    private void setMatchIndexesThresholds(InputMap inputMap, ValidationQCPreferences validationQCPreferences) {
+        for (TargetDecoyMap targetDecoyMap : getAllTargetDecoyMaps(inputMap)) {
+            TargetDecoyMatchIndex matchIndex = targetDecoyMap.getMatchIndex();
+            if (matchIndex != null) {
+                matchIndex.setValidationThresholds(targetDecoyMap, validationQCPreferences.getConfidenceMargin(), validationQCPreferences.isFirstDecoy());
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the matches can be validated again incrementally: all
+     * PSM, peptide and protein maps have an index storing the thresholds of
+     * the last complete validation and the thresholds of the search engine maps did not change since the
+     * last validation.
+     *
+     * @param inputMap the target decoy map of all search engine scores, can
+     * be null
+     * @param validationQCPreferences the validation quality control
+     * preferences
+     *
+     * @return a boolean indicating whether the matches can be validated again
+     * incrementally
+     */
+    private boolean canRevalidate(InputMap inputMap, ValidationQCPreferences validationQCPreferences) {
+        ArrayList<TargetDecoyMap> matchesMaps = getPsmTargetDecoyMaps();
+        matchesMaps.addAll(getPeptideTargetDecoyMaps());
+        matchesMaps.add(proteinMap.getTargetDecoyMap());
+        for (TargetDecoyMap targetDecoyMap : matchesMaps) {
+            TargetDecoyMatchIndex matchIndex = targetDecoyMap.getMatchIndex();
+            if (matchIndex == null || !matchIndex.isValidated()) {
+                return false;
+            }
+        }
+        if (inputMap != null) {
+            for (TargetDecoyMap targetDecoyMap : inputMap.getTargetDecoyMaps()) {
+                TargetDecoyMatchIndex matchIndex = targetDecoyMap.getMatchIndex();
+                if (matchIndex == null || matchIndex.thresholdsChanged(targetDecoyMap, validationQCPreferences.getConfidenceMargin(), validationQCPreferences.isFirstDecoy())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a match to the index of the given target/decoy map if the map is
+     * indexed.
+     *
+     * @param targetDecoyMap the target/decoy map used to validate the match,
+     * can be null
+     * @param key the key of the match
+     * @param score the probabilistic score of the match
+     * @param confidence the confidence of the match
+     */
+    private static void indexMatch(TargetDecoyMap targetDecoyMap, String key, double score, double confidence) {
+        if (targetDecoyMap != null) {
+            TargetDecoyMatchIndex matchIndex = targetDecoyMap.getMatchIndex();
+            if (matchIndex != null) {
+                matchIndex.addMatch(key, score, confidence);
+            }
+        }
     }
 
     /**
@@ -1328,6 +1951,27 @@ public class MatchesValidator {
         this.peptideMap = peptideMap;
     }
 
+    /**
+     * Returns the cache where the spectrum annotations are stored, null if
+     * annotations are not cached.
+     *
+     * @return the cache where the spectrum annotations are stored
+     */
+    public SpectrumAnnotationCache getSpectrumAnnotationCache() {
+        return spectrumAnnotationCache;
+    }
+
+    /**
+     * Sets the cache where to store the spectrum annotations. Null to not
+     * cache annotations.
+     *
+     * @param spectrumAnnotationCache the cache where to store the spectrum
+     * annotations
+     */
+    public void setSpectrumAnnotationCache(SpectrumAnnotationCache spectrumAnnotationCache) {
+        this.spectrumAnnotationCache = spectrumAnnotationCache;
+    }
+
     /**
      * Returns the protein scoring map.
      *
@@ -1387,16 +2031,12 @@ public class MatchesValidator {
     }
 
     /**
-     * Runnable validating PSMs.
+     * Task validating PSMs.
      *
      * @author Marc Vaudel
      */
-    private class PsmValidatorRunnable implements Runnable {
+    private class PsmValidatorTask implements PsmChunkProcessor.PsmTask {
 
-        /**
-         * An iterator for the PSMs.
-         */
-        private PsmIterator psmIterator;
         /**
          * The identification.
          */
@@ -1418,18 +2058,10 @@ public class MatchesValidator {
          * The identification parameters.
          */
         private IdentificationParameters identificationParameters;
-        /**
-         * The waiting handler.
-         */
-        private WaitingHandler waitingHandler;
-        /**
-         * Handler for the exceptions.
-         */
-        private ExceptionHandler exceptionHandler;
         /**
          * The peptide spectrum annotator.
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = SpectrumAnnotationCache.getSpectrumAnnotator(spectrumAnnotationCache);
         /**
          * List used to store precursor m/z deviations of matches currently
          * validated.
@@ -1448,11 +2080,21 @@ public class MatchesValidator {
          * If true, advocate contributions will be stored in the input map.
          */
         private boolean storeContributions;
+        /**
+         * If true, the matches are validated again after a change of
+         * thresholds and the peptides of the matches changing validation
+         * level are stored.
+         */
+        private boolean incremental;
+        /**
+         * The keys of the peptides of the matches which changed validation
+         * level.
+         */
+        private HashSet<String> changedPeptideKeys = new HashSet<String>();
 
         /**
          * Constructor.
          *
-         * @param psmIterator a PSM iterator
          * @param identification the identification containing the matches
          * @param identificationFeaturesGenerator the identification features
          * generator used to estimate, store and retrieve identification
@@ -1460,114 +2102,112 @@ public class MatchesValidator {
          * @param geneMaps the gene maps
          * @param shotgunProtocol information on the experimental protocol
          * @param identificationParameters the identification parameters
-         * @param waitingHandler a waiting handler to display progress and allow
-         * canceling the process
-         * @param exceptionHandler handler for exceptions
          * @param inputMap if provided information on search engine agreement
          * will be stored in the input map
          * @param applyQCFilters boolean indicating whether quality control
          * filters should be used
          * @param storeContributions boolean indicating whether advocate
          * contributions should be stored.
+         * @param incremental boolean indicating whether the matches are
+         * validated again after a change of thresholds
          */
-        public PsmValidatorRunnable(PsmIterator psmIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, ShotgunProtocol shotgunProtocol,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, InputMap inputMap, boolean applyQCFilters, boolean storeContributions) {
-            this.psmIterator = psmIterator;
+        public PsmValidatorTask(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, ShotgunProtocol shotgunProtocol,
+                IdentificationParameters identificationParameters, InputMap inputMap, boolean applyQCFilters, boolean storeContributions, boolean incremental) {
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
             this.geneMaps = geneMaps;
             this.shotgunProtocol = shotgunProtocol;
             this.identificationParameters = identificationParameters;
-            this.waitingHandler = waitingHandler;
-            this.exceptionHandler = exceptionHandler;
             this.inputMap = inputMap;
             this.applyQCFilters = applyQCFilters;
             this.storeContributions = storeContributions;
+            this.incremental = incremental;
         }
 
         @Override
-        public void run() {
-            try {
-                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
-                    SpectrumMatch spectrumMatch = psmIterator.next();
-                    if (spectrumMatch != null) {
-
-                        String spectrumKey = spectrumMatch.getKey();
-
-                        updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, psmMap, spectrumKey, applyQCFilters);
-
-                        // update assumption validation level
-                        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
-                        for (HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> algorithmMap : assumptions.values()) {
-                            for (ArrayList<SpectrumIdentificationAssumption> scoreList : algorithmMap.values()) {
-                                for (SpectrumIdentificationAssumption spectrumIdentificationAssumption : scoreList) {
-                                    if (spectrumIdentificationAssumption instanceof PeptideAssumption) {
-                                        updatePeptideAssumptionValidationLevel(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, inputMap, spectrumKey, (PeptideAssumption) spectrumIdentificationAssumption, applyQCFilters);
-                                    } else if (spectrumIdentificationAssumption instanceof TagAssumption) {
-                                        updateTagAssumptionValidationLevel(identificationFeaturesGenerator, shotgunProtocol, identificationParameters, inputMap, spectrumKey, (TagAssumption) spectrumIdentificationAssumption);
-                                    } else {
-                                        throw new UnsupportedOperationException("Validation not implemented for assumption of class " + spectrumIdentificationAssumption.getClass() + ".");
-                                    }
-                                }
+        public void process(SpectrumMatch spectrumMatch) throws Exception {
+            if (spectrumMatch != null) {
+
+                String spectrumKey = spectrumMatch.getKey();
+
+                MatchValidationLevel previousLevel = null;
+                if (incremental) {
+                    PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, new PSParameter());
+                    previousLevel = psParameter.getMatchValidationLevel();
+                }
+
+                updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, psmMap, spectrumKey, applyQCFilters);
+
+                // update assumption validation level
+                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+                for (HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> algorithmMap : assumptions.values()) {
+                    for (ArrayList<SpectrumIdentificationAssumption> scoreList : algorithmMap.values()) {
+                        for (SpectrumIdentificationAssumption spectrumIdentificationAssumption : scoreList) {
+                            if (spectrumIdentificationAssumption instanceof PeptideAssumption) {
+                                updatePeptideAssumptionValidationLevel(identification, identificationFeaturesGenerator, shotgunProtocol, identificationParameters, peptideSpectrumAnnotator, inputMap, spectrumKey, (PeptideAssumption) spectrumIdentificationAssumption, applyQCFilters);
+                            } else if (spectrumIdentificationAssumption instanceof TagAssumption) {
+                                updateTagAssumptionValidationLevel(identificationFeaturesGenerator, shotgunProtocol, identificationParameters, inputMap, spectrumKey, (TagAssumption) spectrumIdentificationAssumption);
+                            } else {
+                                throw new UnsupportedOperationException("Validation not implemented for assumption of class " + spectrumIdentificationAssumption.getClass() + ".");
                             }
                         }
+                    }
+                }
 
-                        // update search engine agreement
-                        PSParameter psParameter = new PSParameter();
-                        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-
-                        PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-
-                        if (peptideAssumption != null) {
-
-                            if (psParameter.getMatchValidationLevel().isValidated() && !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
-                                double precursorMz = spectrumFactory.getPrecursorMz(spectrumKey);
-                                SearchParameters searchParameters = identificationParameters.getSearchParameters();
-                                double precursorMzError = peptideAssumption.getDeltaMass(precursorMz, searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
-                                threadPrecursorMzDeviations.add(precursorMzError);
-
-                                if (inputMap != null && storeContributions) {
-
-                                    Peptide bestPeptide = peptideAssumption.getPeptide();
-                                    HashSet<Integer> agreementAdvocates = new HashSet<Integer>();
-
-                                    for (int advocateId : assumptions.keySet()) {
-                                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateAssumptions = assumptions.get(advocateId);
-                                        if (advocateAssumptions != null) {
-                                            ArrayList<Double> eValues = new ArrayList<Double>(advocateAssumptions.keySet());
-                                            Collections.sort(eValues);
-                                            for (SpectrumIdentificationAssumption firstHit : advocateAssumptions.get(eValues.get(0))) {
-                                                if (firstHit instanceof PeptideAssumption) {
-                                                    Peptide advocatePeptide = ((PeptideAssumption) firstHit).getPeptide();
-                                                    if (bestPeptide.isSameSequenceAndModificationStatus(advocatePeptide, identificationParameters.getSequenceMatchingPreferences())) {
-                                                        agreementAdvocates.add(advocateId);
-                                                        break;
-                                                    }
-                                                }
+                // update search engine agreement
+                PSParameter psParameter = new PSParameter();
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+
+                PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+
+                if (incremental) {
+                    if (peptideAssumption != null && psParameter.getMatchValidationLevel() != previousLevel) {
+                        changedPeptideKeys.add(peptideAssumption.getPeptide().getMatchingKey(identificationParameters.getSequenceMatchingPreferences()));
+                    }
+                }
+
+                if (peptideAssumption != null) {
+
+                    if (psParameter.getMatchValidationLevel().isValidated() && !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                        double precursorMz = spectrumFactory.getPrecursorMz(spectrumKey);
+                        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+                        double precursorMzError = peptideAssumption.getDeltaMass(precursorMz, searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
+                        threadPrecursorMzDeviations.add(precursorMzError);
+
+                        if (inputMap != null && storeContributions) {
+
+                            Peptide bestPeptide = peptideAssumption.getPeptide();
+                            HashSet<Integer> agreementAdvocates = new HashSet<Integer>();
+
+                            for (int advocateId : assumptions.keySet()) {
+                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateAssumptions = assumptions.get(advocateId);
+                                if (advocateAssumptions != null) {
+                                    ArrayList<Double> eValues = new ArrayList<Double>(advocateAssumptions.keySet());
+                                    Collections.sort(eValues);
+                                    for (SpectrumIdentificationAssumption firstHit : advocateAssumptions.get(eValues.get(0))) {
+                                        if (firstHit instanceof PeptideAssumption) {
+                                            Peptide advocatePeptide = ((PeptideAssumption) firstHit).getPeptide();
+                                            if (bestPeptide.isSameSequenceAndModificationStatus(advocatePeptide, identificationParameters.getSequenceMatchingPreferences())) {
+                                                agreementAdvocates.add(advocateId);
+                                                break;
                                             }
                                         }
                                     }
+                                }
+                            }
 
-                                    boolean unique = agreementAdvocates.size() == 1;
+                            boolean unique = agreementAdvocates.size() == 1;
 
-                                    String spectrumFileName = Spectrum.getSpectrumFile(spectrumKey);
+                            String spectrumFileName = Spectrum.getSpectrumFile(spectrumKey);
 
-                                    for (int advocateId : agreementAdvocates) {
-                                        inputMap.addAdvocateContribution(advocateId, spectrumFileName, unique);
-                                    }
-
-                                    inputMap.addPeptideShakerHit(spectrumFileName, agreementAdvocates.isEmpty());
-                                }
+                            for (int advocateId : agreementAdvocates) {
+                                inputMap.addAdvocateContribution(advocateId, spectrumFileName, unique);
                             }
+
+                            inputMap.addPeptideShakerHit(spectrumFileName, agreementAdvocates.isEmpty());
                         }
                     }
-                    if (waitingHandler != null) {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                    }
                 }
-            } catch (Exception e) {
-                exceptionHandler.catchException(e);
-                waitingHandler.setRunCanceled();
             }
         }
 
@@ -1579,6 +2219,17 @@ public class MatchesValidator {
         public ArrayList<Double> getThreadPrecursorMzDeviations() {
             return threadPrecursorMzDeviations;
         }
+
+        /**
+         * Returns the keys of the peptides of the matches which changed
+         * validation level.
+         *
+         * @return the keys of the peptides of the matches which changed
+         * validation level
+         */
+        public HashSet<String> getChangedPeptideKeys() {
+            return changedPeptideKeys;
+        }
     }
 
     /**
@@ -1633,6 +2284,25 @@ public class MatchesValidator {
          * The object used to store metrics on the project.
          */
         private Metrics metrics;
+        /**
+         * If true, the matches are validated again after a change of
+         * thresholds: the number of validated peptides per fraction is
+         * counted as a difference to the previous validation and the proteins
+         * of the peptides changing validation level are stored.
+         */
+        private boolean incremental;
+        /**
+         * The keys of the peptides having spectrum matches which changed
+         * validation level, the proteins of these peptides are stored even if
+         * the peptide does not change validation level. Null if not
+         * incremental.
+         */
+        private Set<String> changedPsmPeptideKeys;
+        /**
+         * The keys of the proteins of the peptides which changed validation
+         * level or which have spectrum matches which changed validation level.
+         */
+        private HashSet<String> changedProteinKeys = new HashSet<String>();
 
         /**
          * Constructor.
@@ -1653,9 +2323,14 @@ public class MatchesValidator {
          * @param validatedTotalPeptidesPerFraction map used to store the number
          * of validated peptides per fraction
          * @param metrics the object used to store metrics on the project
+         * @param incremental boolean indicating whether the matches are
+         * validated again after a change of thresholds
+         * @param changedPsmPeptideKeys the keys of the peptides having
+         * spectrum matches which changed validation level, null if not
+         * incremental
          */
         public PeptideValidatorRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, ShotgunProtocol shotgunProtocol,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, Metrics metrics) {
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, Metrics metrics, boolean incremental, Set<String> changedPsmPeptideKeys) {
             this.peptideMatchesIterator = peptideMatchesIterator;
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
@@ -1665,6 +2340,8 @@ public class MatchesValidator {
             this.waitingHandler = waitingHandler;
             this.exceptionHandler = exceptionHandler;
             this.metrics = metrics;
+            this.incremental = incremental;
+            this.changedPsmPeptideKeys = changedPsmPeptideKeys;
         }
 
         @Override
@@ -1678,12 +2355,34 @@ public class MatchesValidator {
 
                         String peptideKey = peptideMatch.getKey();
 
+                        MatchValidationLevel previousLevel = null;
+                        if (incremental) {
+                            PSParameter psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, new PSParameter());
+                            previousLevel = psParameter.getMatchValidationLevel();
+                        }
+
                         updatePeptideMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters, peptideMap, peptideKey);
 
                         // set the fraction details
                         PSParameter psParameter = new PSParameter();
                         psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
 
+                        if (incremental) {
+                            if (psParameter.getMatchValidationLevel() != previousLevel || changedPsmPeptideKeys.contains(peptideKey)) {
+                                for (String accession : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
+                                    HashSet<String> proteinMatches = identification.getProteinMap().get(accession);
+                                    if (proteinMatches != null) {
+                                        changedProteinKeys.addAll(proteinMatches);
+                                    }
+                                }
+                            }
+                            if (previousLevel.isValidated()) {
+                                for (String fractionName : psParameter.getFractions()) {
+                                    removeValidatedPeptideForFraction(fractionName);
+                                }
+                            }
+                        }
+
                         if (psParameter.getMatchValidationLevel().isValidated()) {
                             double length = Peptide.getSequence(peptideKey).length();
                             validatedPeptideLengths.add(length);
@@ -1765,6 +2464,21 @@ public class MatchesValidator {
             }
         }
 
+        /**
+         * Removes a previously validated peptide from the
+         * validatedTotalPeptidesPerFraction map.
+         *
+         * @param fractionName the name of the fraction
+         */
+        private synchronized void removeValidatedPeptideForFraction(String fractionName) {
+
+            Integer value = validatedTotalPeptidesPerFraction.get(fractionName);
+            if (value == null) {
+                value = 0;
+            }
+            validatedTotalPeptidesPerFraction.put(fractionName, value - 1);
+        }
+
         /**
          * Returns a list of the lengths of the peptides validated.
          *
@@ -1782,6 +2496,17 @@ public class MatchesValidator {
         public HashMap<String, Integer> getValidatedTotalPeptidesPerFraction() {
             return validatedTotalPeptidesPerFraction;
         }
+
+        /**
+         * Returns the keys of the proteins of the peptides which changed
+         * validation level.
+         *
+         * @return the keys of the proteins of the peptides which changed
+         * validation level
+         */
+        public HashSet<String> getChangedProteinKeys() {
+            return changedProteinKeys;
+        }
     }
 
     /**
@@ -1846,6 +2571,14 @@ public class MatchesValidator {
          * The object used to store metrics on the project.
          */
         private Metrics metrics;
+        /**
+         * The spectrum counting and spectrum counting mass contributions of
+         * the proteins to the totals of the metrics before the matches are
+         * validated again, indexed by protein key. Null if all matches are
+         * validated, otherwise the spectrum counting is counted as a
+         * difference to these contributions.
+         */
+        private HashMap<String, double[]> previousContributions;
 
         /**
          * Constructor.
@@ -1863,9 +2596,12 @@ public class MatchesValidator {
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          * @param exceptionHandler handler for exceptions
+         * @param previousContributions the spectrum counting and spectrum
+         * counting mass contributions of the proteins before the matches are
+         * validated again, null if all matches are validated
          */
         public ProteinValidatorRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, Metrics metrics, ShotgunProtocol shotgunProtocol,
-                IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+                IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, HashMap<String, double[]> previousContributions) {
             this.proteinMatchesIterator = proteinMatchesIterator;
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
@@ -1877,6 +2613,7 @@ public class MatchesValidator {
             this.exceptionHandler = exceptionHandler;
             this.validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
             this.spectrumCountingPreferences = spectrumCountingPreferences;
+            this.previousContributions = previousContributions;
         }
 
         @Override
@@ -1903,6 +2640,15 @@ public class MatchesValidator {
                     if (proteinMatch != null) {
 
                         String proteinKey = proteinMatch.getKey();
+
+                        if (previousContributions != null) {
+                            double[] previousContribution = previousContributions.get(proteinKey);
+                            if (previousContribution != null) {
+                                increaseSpectrumCounting(-previousContribution[0]);
+                                increaseSpectrumCountingMass(-previousContribution[1]);
+                            }
+                        }
+
                         updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, shotgunProtocol, identificationParameters,
                                 targetDecoyMap, proteinThreshold, nTargetLimit, proteinConfidentThreshold, noValidated, proteinKey);
 
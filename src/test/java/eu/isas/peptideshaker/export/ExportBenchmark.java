@@ -0,0 +1,480 @@
+package eu.isas.peptideshaker.export;
+
+import com.compomics.util.pride.CvTerm;
+import eu.isas.peptideshaker.export.columnar.ColumnarReportWriter;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Benchmarks the writing of the exports on a synthetic identification and
+ * reports the throughput of every exporter in MB/s and PSMs/s. The PSMs are
+ * written the way the mzIdentML, PRIDE XML, tab separated and columnar
+ * exports write them, plain and compressed with the given numbers of
+ * threads. Run as a test on a small identification or via the main method on
+ * a large one.
+ *
+ * @author Marc Vaudel
+ */
+public class ExportBenchmark extends TestCase {
+
+    /**
+     * The amino acids used to build the synthetic peptides.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /**
+     * The line break used by the PRIDE XML export.
+     */
+    private static final String LINE_BREAK = System.getProperty("line.separator");
+
+    /**
+     * Runs the benchmark on a small identification and checks that every
+     * export reports a throughput.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing a file
+     */
+    public void testBenchmark() throws IOException {
+        ArrayList<ExportThroughput> results = benchmark(getIdentification(2000, 1), new int[]{1, 2});
+        assertEquals(10, results.size());
+        for (ExportThroughput exportThroughput : results) {
+            assertNotNull(exportThroughput.getDuration());
+            assertTrue(exportThroughput.getPsmsPerSecond() > 0);
+            assertTrue(exportThroughput.getMegabytesPerSecond() > 0);
+        }
+    }
+
+    /**
+     * Runs the benchmark and prints the throughput of every export.
+     *
+     * @param args the number of PSMs, default is 1,000,000, followed by the
+     * numbers of compression threads to test, default is 1, 2 and the number
+     * of processors
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing a file
+     */
+    public static void main(String[] args) throws IOException {
+        int nPsms = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int[] threadCounts;
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threadCounts = new int[]{1, 2, Runtime.getRuntime().availableProcessors()};
+        }
+        ArrayList<SyntheticPsm> identification = getIdentification(nPsms, 1);
+        for (ExportThroughput exportThroughput : benchmark(identification, threadCounts)) {
+            System.out.println(exportThroughput.getReport());
+        }
+    }
+
+    /**
+     * Writes the identification with every exporter, plain and compressed
+     * with the given numbers of threads.
+     *
+     * @param identification the synthetic identification
+     * @param threadCounts the numbers of compression threads to test
+     *
+     * @return the throughput of every export
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing a file
+     */
+    private static ArrayList<ExportThroughput> benchmark(ArrayList<SyntheticPsm> identification, int[] threadCounts) throws IOException {
+
+        ArrayList<ExportThroughput> results = new ArrayList<ExportThroughput>();
+        ArrayList<Integer> compressions = new ArrayList<Integer>();
+        compressions.add(0);
+        for (int nThreads : threadCounts) {
+            compressions.add(nThreads);
+        }
+
+        for (int nThreads : compressions) {
+            String suffix = nThreads == 0 ? "" : " (gzip, " + nThreads + " thread" + (nThreads > 1 ? "s" : "") + ")";
+            results.add(writeMzIdentML(identification, nThreads, "mzIdentML" + suffix));
+            results.add(writePrideXml(identification, nThreads, "PRIDE XML" + suffix));
+            results.add(writeTabSeparated(identification, nThreads, "Tab separated" + suffix));
+        }
+        results.add(writeColumnar(identification, "Columnar"));
+
+        return results;
+    }
+
+    /**
+     * Writes the spectrum identification results of the identification the
+     * way the mzIdentML export does.
+     *
+     * @param identification the synthetic identification
+     * @param nThreads the number of compression threads, 0 for no compression
+     * @param exportName the name of the export
+     *
+     * @return the throughput of the export
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static ExportThroughput writeMzIdentML(ArrayList<SyntheticPsm> identification, int nThreads, String exportName) throws IOException {
+
+        File file = File.createTempFile("benchmark", ".mzid");
+        ExportThroughput exportThroughput = new ExportThroughput(exportName);
+        exportThroughput.start();
+        try {
+            ParallelGzipOutputStream gzipStream = getGzipStream(file, nThreads);
+            IndentedXmlWriter writer = new IndentedXmlWriter(getWriter(file, gzipStream));
+            try {
+                writer.writeLine("<SpectrumIdentificationList id=\"SIL_1\">");
+                writer.increaseIndent();
+                int psmIndex = 0;
+                for (SyntheticPsm psm : identification) {
+                    psmIndex++;
+                    writer.startLine().append("<SpectrumIdentificationResult spectraData_ref=\"").append(psm.spectrumFile)
+                            .append("\" spectrumID=\"index=").append(psm.spectrumIndex)
+                            .append("\" id=\"SIR_").append(psmIndex).append("\">");
+                    writer.endLine();
+                    writer.increaseIndent();
+                    writer.startLine().append("<SpectrumIdentificationItem passThreshold=\"").append(psm.validated)
+                            .append("\" rank=\"1\" peptide_ref=\"").append(psm.sequence)
+                            .append("\" calculatedMassToCharge=\"").append(psm.theoreticMz)
+                            .append("\" experimentalMassToCharge=\"").append(psm.precursorMz)
+                            .append("\" chargeState=\"").append(psm.charge)
+                            .append("\" id=\"SII_").append(psmIndex).append("_1\">");
+                    writer.endLine();
+                    writer.increaseIndent();
+                    for (String accession : psm.proteins) {
+                        writer.startLine().append("<PeptideEvidenceRef peptideEvidence_ref=\"PepEv_").append(accession).append('_').append(psm.sequence).append("\"/>");
+                        writer.endLine();
+                    }
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002466", "PeptideShaker PSM score", Double.toString(psm.score)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1002467", "PeptideShaker PSM confidence", Double.toString(psm.confidence)));
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1001330", "X!Tandem:expect", Double.toString(psm.eValue)));
+                    writer.decreaseIndent();
+                    writer.writeLine("</SpectrumIdentificationItem>");
+                    writer.writeCvTerm(new CvTerm("PSI-MS", "MS:1000796", "spectrum title", psm.spectrumTitle));
+                    writer.decreaseIndent();
+                    writer.writeLine("</SpectrumIdentificationResult>");
+                }
+                writer.decreaseIndent();
+                writer.writeLine("</SpectrumIdentificationList>");
+            } finally {
+                writer.close();
+            }
+            stop(exportThroughput, file, gzipStream, identification.size());
+        } finally {
+            file.delete();
+        }
+        return exportThroughput;
+    }
+
+    /**
+     * Writes the peptide items of the identification the way the PRIDE XML
+     * export does.
+     *
+     * @param identification the synthetic identification
+     * @param nThreads the number of compression threads, 0 for no compression
+     * @param exportName the name of the export
+     *
+     * @return the throughput of the export
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static ExportThroughput writePrideXml(ArrayList<SyntheticPsm> identification, int nThreads, String exportName) throws IOException {
+
+        File file = File.createTempFile("benchmark", ".xml");
+        ExportThroughput exportThroughput = new ExportThroughput(exportName);
+        exportThroughput.start();
+        try {
+            ParallelGzipOutputStream gzipStream = getGzipStream(file, nThreads);
+            BufferedWriter br = new BufferedWriter(getWriter(file, gzipStream), 64 * 1024);
+            try {
+                String tab = "\t\t\t\t";
+                for (SyntheticPsm psm : identification) {
+                    br.write(tab + "<PeptideItem>" + LINE_BREAK);
+                    br.write(tab + "\t<Sequence>" + psm.sequence + "</Sequence>" + LINE_BREAK);
+                    br.write(tab + "\t<Start>" + psm.start + "</Start>" + LINE_BREAK);
+                    br.write(tab + "\t<End>" + (psm.start + psm.sequence.length() - 1) + "</End>" + LINE_BREAK);
+                    br.write(tab + "\t<SpectrumReference>" + psm.spectrumIndex + "</SpectrumReference>" + LINE_BREAK);
+                    br.write(tab + "\t<additional>" + LINE_BREAK);
+                    br.write(tab + "\t\t<cvParam cvLabel=\"PRIDE\" accession=\"PRIDE:0000212\" name=\"X!Tandem expectancy score\" value=\"" + psm.eValue + "\" />" + LINE_BREAK);
+                    br.write(tab + "\t\t<cvParam cvLabel=\"PSI-MS\" accession=\"MS:1002466\" name=\"PeptideShaker PSM score\" value=\"" + psm.score + "\" />" + LINE_BREAK);
+                    br.write(tab + "\t\t<cvParam cvLabel=\"PSI-MS\" accession=\"MS:1002467\" name=\"PeptideShaker PSM confidence\" value=\"" + psm.confidence + "\" />" + LINE_BREAK);
+                    br.write(tab + "\t\t<cvParam cvLabel=\"PRIDE\" accession=\"PRIDE:0000065\" name=\"Charge state\" value=\"" + psm.charge + "\" />" + LINE_BREAK);
+                    br.write(tab + "\t</additional>" + LINE_BREAK);
+                    br.write(tab + "</PeptideItem>" + LINE_BREAK);
+                }
+            } finally {
+                br.close();
+            }
+            stop(exportThroughput, file, gzipStream, identification.size());
+        } finally {
+            file.delete();
+        }
+        return exportThroughput;
+    }
+
+    /**
+     * Writes the PSMs of the identification as a tab separated report.
+     *
+     * @param identification the synthetic identification
+     * @param nThreads the number of compression threads, 0 for no compression
+     * @param exportName the name of the export
+     *
+     * @return the throughput of the export
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static ExportThroughput writeTabSeparated(ArrayList<SyntheticPsm> identification, int nThreads, String exportName) throws IOException {
+
+        File file = File.createTempFile("benchmark", ".txt");
+        ExportThroughput exportThroughput = new ExportThroughput(exportName);
+        exportThroughput.start();
+        try {
+            ParallelGzipOutputStream gzipStream = getGzipStream(file, nThreads);
+            BufferedWriter br = new BufferedWriter(getWriter(file, gzipStream), 64 * 1024);
+            try {
+                br.write("\tProtein(s)\tSequence\tSpectrum File\tSpectrum Title\tm/z\tCharge\tTheoretical m/z\tScore\tConfidence [%]\tValidation" + LINE_BREAK);
+                int line = 0;
+                for (SyntheticPsm psm : identification) {
+                    StringBuilder proteins = new StringBuilder();
+                    for (String accession : psm.proteins) {
+                        if (proteins.length() > 0) {
+                            proteins.append(", ");
+                        }
+                        proteins.append(accession);
+                    }
+                    br.write(++line + "\t" + proteins + "\t" + psm.sequence + "\t" + psm.spectrumFile + "\t" + psm.spectrumTitle + "\t"
+                            + psm.precursorMz + "\t" + psm.charge + "+\t" + psm.theoreticMz + "\t" + psm.score + "\t" + psm.confidence + "\t"
+                            + (psm.validated ? "Confident" : "Not Validated") + LINE_BREAK);
+                }
+            } finally {
+                br.close();
+            }
+            stop(exportThroughput, file, gzipStream, identification.size());
+        } finally {
+            file.delete();
+        }
+        return exportThroughput;
+    }
+
+    /**
+     * Writes the PSMs of the identification as a columnar report.
+     *
+     * @param identification the synthetic identification
+     * @param exportName the name of the export
+     *
+     * @return the throughput of the export
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static ExportThroughput writeColumnar(ArrayList<SyntheticPsm> identification, String exportName) throws IOException {
+
+        File file = File.createTempFile("benchmark", ".psc");
+        ExportThroughput exportThroughput = new ExportThroughput(exportName);
+        exportThroughput.start();
+        try {
+            long nBytes = 0;
+            ColumnarReportWriter writer = new ColumnarReportWriter(file);
+            try {
+                writer.startTable("PSMs", new ArrayList<String>(Arrays.asList("Protein(s)", "Sequence", "Spectrum File", "Spectrum Title",
+                        "m/z", "Charge", "Theoretical m/z", "Score", "Confidence [%]", "Validation")));
+                for (SyntheticPsm psm : identification) {
+                    ArrayList<String> row = new ArrayList<String>(10);
+                    row.add(psm.proteins.get(0));
+                    row.add(psm.sequence);
+                    row.add(psm.spectrumFile);
+                    row.add(psm.spectrumTitle);
+                    row.add(Double.toString(psm.precursorMz));
+                    row.add(Integer.toString(psm.charge));
+                    row.add(Double.toString(psm.theoreticMz));
+                    row.add(Double.toString(psm.score));
+                    row.add(Double.toString(psm.confidence));
+                    row.add(psm.validated ? "Confident" : "Not Validated");
+                    for (String value : row) {
+                        nBytes += value.length() + 1;
+                    }
+                    writer.addRow(row);
+                }
+                writer.endTable();
+            } finally {
+                writer.close();
+            }
+            exportThroughput.stop(nBytes, file.length(), identification.size());
+        } finally {
+            file.delete();
+        }
+        return exportThroughput;
+    }
+
+    /**
+     * Returns the compressing stream of the given file, null if not
+     * compressed.
+     *
+     * @param file the file
+     * @param nThreads the number of compression threads, 0 for no compression
+     *
+     * @return the compressing stream of the given file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    private static ParallelGzipOutputStream getGzipStream(File file, int nThreads) throws IOException {
+        if (nThreads == 0) {
+            return null;
+        }
+        return new ParallelGzipOutputStream(new FileOutputStream(file), ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, nThreads);
+    }
+
+    /**
+     * Returns the writer of the given file.
+     *
+     * @param file the file
+     * @param gzipStream the compressing stream, null if not compressed
+     *
+     * @return the writer of the given file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    private static Writer getWriter(File file, ParallelGzipOutputStream gzipStream) throws IOException {
+        if (gzipStream == null) {
+            return new FileWriter(file);
+        }
+        return new OutputStreamWriter(gzipStream);
+    }
+
+    /**
+     * Stops the measurement of an export.
+     *
+     * @param exportThroughput the throughput of the export
+     * @param file the exported file
+     * @param gzipStream the compressing stream, null if not compressed
+     * @param nPsms the number of PSMs exported
+     */
+    private static void stop(ExportThroughput exportThroughput, File file, ParallelGzipOutputStream gzipStream, long nPsms) {
+        long nBytes = gzipStream != null ? gzipStream.getUncompressedSize() : file.length();
+        exportThroughput.stop(nBytes, file.length(), nPsms);
+    }
+
+    /**
+     * Returns a synthetic identification.
+     *
+     * @param nPsms the number of PSMs
+     * @param seed the seed of the random generator
+     *
+     * @return a synthetic identification
+     */
+    private static ArrayList<SyntheticPsm> getIdentification(int nPsms, long seed) {
+
+        Random random = new Random(seed);
+        int nProteins = Math.max(1, nPsms / 20);
+        int nPeptides = Math.max(1, nPsms / 4);
+        String[] peptides = new String[nPeptides];
+        for (int i = 0; i < nPeptides; i++) {
+            int length = 7 + random.nextInt(20);
+            StringBuilder sequence = new StringBuilder(length);
+            for (int j = 0; j < length - 1; j++) {
+                sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+            }
+            sequence.append(random.nextBoolean() ? 'K' : 'R');
+            peptides[i] = sequence.toString();
+        }
+
+        ArrayList<SyntheticPsm> identification = new ArrayList<SyntheticPsm>(nPsms);
+        for (int i = 0; i < nPsms; i++) {
+            SyntheticPsm psm = new SyntheticPsm();
+            psm.spectrumFile = "run" + (i % 4 + 1) + ".mgf";
+            psm.spectrumIndex = i / 4;
+            psm.spectrumTitle = "Spectrum " + psm.spectrumIndex + " scan=" + (1000 + psm.spectrumIndex);
+            int peptideIndex = random.nextInt(nPeptides);
+            psm.sequence = peptides[peptideIndex];
+            psm.proteins = new ArrayList<String>(2);
+            psm.proteins.add("P" + (10000 + peptideIndex % nProteins));
+            if (random.nextInt(10) == 0) {
+                psm.proteins.add("P" + (10000 + (peptideIndex + 1) % nProteins));
+            }
+            psm.start = 1 + random.nextInt(500);
+            psm.charge = 2 + random.nextInt(3);
+            psm.theoreticMz = 400 + 1600 * random.nextDouble();
+            psm.precursorMz = psm.theoreticMz + 0.01 * random.nextGaussian();
+            psm.eValue = Math.pow(10, -10 * random.nextDouble());
+            psm.score = -10 * Math.log10(psm.eValue);
+            psm.confidence = 100 * random.nextDouble();
+            psm.validated = psm.confidence > 5;
+            identification.add(psm);
+        }
+        return identification;
+    }
+
+    /**
+     * A synthetic PSM with the information written by the exports.
+     */
+    private static class SyntheticPsm {
+
+        /**
+         * The name of the spectrum file.
+         */
+        private String spectrumFile;
+        /**
+         * The index of the spectrum in the file.
+         */
+        private int spectrumIndex;
+        /**
+         * The title of the spectrum.
+         */
+        private String spectrumTitle;
+        /**
+         * The peptide sequence.
+         */
+        private String sequence;
+        /**
+         * The accessions of the proteins of the peptide.
+         */
+        private ArrayList<String> proteins;
+        /**
+         * The start of the peptide on the first protein.
+         */
+        private int start;
+        /**
+         * The charge.
+         */
+        private int charge;
+        /**
+         * The theoretic m/z.
+         */
+        private double theoreticMz;
+        /**
+         * The precursor m/z.
+         */
+        private double precursorMz;
+        /**
+         * The search engine e-value.
+         */
+        private double eValue;
+        /**
+         * The PSM score.
+         */
+        private double score;
+        /**
+         * The PSM confidence.
+         */
+        private double confidence;
+        /**
+         * Boolean indicating whether the PSM is validated.
+         */
+        private boolean validated;
+    }
+}
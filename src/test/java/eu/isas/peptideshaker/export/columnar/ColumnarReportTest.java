@@ -0,0 +1,277 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import eu.isas.peptideshaker.export.columnar.ColumnarReportReader.Block;
+import eu.isas.peptideshaker.export.columnar.ColumnarReportReader.Table;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests the writing and reading of columnar reports.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportTest extends TestCase {
+
+    /**
+     * Tests that tables with integer, double and text columns are restored
+     * exactly, block by block.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the file
+     */
+    public void testRoundTrip() throws IOException {
+
+        ArrayList<String> titles = new ArrayList<String>(Arrays.asList("Index", "Score", "Protein", "Sequence", "Mixed"));
+        ArrayList<ArrayList<String>> proteinRows = new ArrayList<ArrayList<String>>();
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            longText.append((char) ('A' + i % 20));
+        }
+        for (int i = 0; i < 100; i++) {
+            ArrayList<String> row = new ArrayList<String>(5);
+            row.add(Integer.toString(i - 50));
+            row.add(Double.toString(i / 3.0));
+            row.add("P" + (i % 4));
+            row.add(i == 42 ? longText.toString() : "PEPT\u00cfDE" + i);
+            row.add(i % 10 == 0 ? "" : Integer.toString(i));
+            proteinRows.add(row);
+        }
+        ArrayList<String> psmTitles = new ArrayList<String>(Arrays.asList("Spectrum"));
+        ArrayList<ArrayList<String>> psmRows = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < 3; i++) {
+            psmRows.add(new ArrayList<String>(Arrays.asList("spectrum " + i)));
+        }
+
+        File file = File.createTempFile("columnar", ".psc");
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file, 7);
+            writer.startTable("Proteins", titles);
+            for (ArrayList<String> row : proteinRows) {
+                writer.addRow(row);
+            }
+            writer.startTable("PSMs", psmTitles);
+            for (ArrayList<String> row : psmRows) {
+                writer.addRow(row);
+            }
+            writer.startTable("Empty", titles);
+            writer.close();
+
+            ColumnarReportReader reader = new ColumnarReportReader(file);
+            try {
+                Table table = reader.nextTable();
+                assertEquals("Proteins", table.getName());
+                assertEquals(titles, table.getColumnTitles());
+                assertEquals(1, table.getColumnIndex("Score"));
+                assertRows(reader, proteinRows, 7);
+                assertEquals(100, table.getNRowsRead());
+
+                table = reader.nextTable();
+                assertEquals("PSMs", table.getName());
+                assertRows(reader, psmRows, 7);
+
+                table = reader.nextTable();
+                assertEquals("Empty", table.getName());
+                assertNull(reader.nextBlock());
+                assertEquals(0, table.getNRowsRead());
+
+                assertNull(reader.nextTable());
+                assertNull(reader.nextTable());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that the text columns are restored when their dictionary reaches
+     * the maximal size or when they have a high ratio of distinct values.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the file
+     */
+    public void testDictionaryFallback() throws IOException {
+
+        ArrayList<String> titles = new ArrayList<String>(Arrays.asList("Capped", "Distinct", "Repeated"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < 500; i++) {
+            ArrayList<String> row = new ArrayList<String>(3);
+            row.add("protein " + i / 4);
+            row.add("spectrum " + i);
+            row.add("file " + i % 3);
+            rows.add(row);
+        }
+
+        File file = File.createTempFile("columnar", ".psc");
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file, 20, 50);
+            writer.startTable("Table", titles);
+            for (ArrayList<String> row : rows) {
+                writer.addRow(row);
+            }
+            writer.close();
+
+            ColumnarReportReader reader = new ColumnarReportReader(file);
+            try {
+                reader.nextTable();
+                assertRows(reader, rows, 20);
+                assertNull(reader.nextTable());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that the blocks which are not read are skipped when moving to the
+     * next table.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the file
+     */
+    public void testSkipTable() throws IOException {
+
+        ArrayList<String> titles = new ArrayList<String>(Arrays.asList("Text", "Value"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < 50; i++) {
+            rows.add(new ArrayList<String>(Arrays.asList("text " + i % 5, Double.toString(i + 0.5))));
+        }
+
+        File file = File.createTempFile("columnar", ".psc");
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file, 8);
+            writer.startTable("First", titles);
+            for (ArrayList<String> row : rows) {
+                writer.addRow(row);
+            }
+            writer.startTable("Second", titles);
+            for (ArrayList<String> row : rows) {
+                writer.addRow(row);
+            }
+            writer.close();
+
+            ColumnarReportReader reader = new ColumnarReportReader(file);
+            try {
+                assertEquals("First", reader.nextTable().getName());
+                Block block = reader.nextBlock();
+                assertEquals(8, block.getNRows());
+                assertEquals("Second", reader.nextTable().getName());
+                block = reader.nextBlock();
+                assertEquals(0, block.getFirstRow());
+                assertEquals(rows.get(3).get(0), block.getString(3, 0));
+                assertEquals(3.5, block.getDouble(3, 1), 0.0);
+                assertTrue(Double.isNaN(block.getDouble(3, 0)));
+                double[] values = block.getDoubleColumn(1);
+                assertEquals(8, values.length);
+                assertEquals(7.5, values[7], 0.0);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that deleting the report removes the file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void testDelete() throws IOException {
+
+        File file = File.createTempFile("columnar", ".psc");
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file, 4);
+            writer.startTable("Table", new ArrayList<String>(Arrays.asList("Column")));
+            for (int i = 0; i < 10; i++) {
+                writer.addRow(new ArrayList<String>(Arrays.asList("row " + i)));
+            }
+            writer.delete();
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that rows of the wrong size are rejected and that files which are
+     * not columnar reports are not read.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void testInvalidInput() throws IOException {
+
+        File file = File.createTempFile("columnar", ".psc");
+        try {
+            ColumnarReportWriter writer = new ColumnarReportWriter(file);
+            try {
+                writer.addRow(new ArrayList<String>(Arrays.asList("row")));
+                fail("Row added without table.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            writer.startTable("Table", new ArrayList<String>(Arrays.asList("Column")));
+            try {
+                writer.addRow(new ArrayList<String>(Arrays.asList("cell", "cell")));
+                fail("Row of the wrong size added.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            writer.delete();
+
+            File textFile = File.createTempFile("columnar", ".txt");
+            try {
+                FileWriter fileWriter = new FileWriter(textFile);
+                fileWriter.write("Not a columnar report");
+                fileWriter.close();
+                try {
+                    new ColumnarReportReader(textFile);
+                    fail("Text file read as columnar report.");
+                } catch (IOException e) {
+                    // expected
+                }
+            } finally {
+                textFile.delete();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads the blocks of the current table and compares them to the given
+     * rows.
+     *
+     * @param reader the reader
+     * @param expectedRows the rows expected
+     * @param blockSize the number of rows per block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static void assertRows(ColumnarReportReader reader, ArrayList<ArrayList<String>> expectedRows, int blockSize) throws IOException {
+        int row = 0;
+        Block block;
+        while ((block = reader.nextBlock()) != null) {
+            assertEquals(row, block.getFirstRow());
+            assertEquals(Math.min(blockSize, expectedRows.size() - row), block.getNRows());
+            for (int i = 0; i < block.getNRows(); i++) {
+                ArrayList<String> expectedRow = expectedRows.get(row + i);
+                for (int column = 0; column < expectedRow.size(); column++) {
+                    assertEquals(expectedRow.get(column), block.getString(i, column));
+                }
+            }
+            row += block.getNRows();
+        }
+        assertEquals(expectedRows.size(), row);
+    }
+}
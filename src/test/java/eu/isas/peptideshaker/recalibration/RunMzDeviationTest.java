@@ -0,0 +1,501 @@
+package eu.isas.peptideshaker.recalibration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests the estimation of the m/z deviations of a run against the estimation
+ * by exact medians used before the errors were gathered on a grid.
+ *
+ * @author Marc Vaudel
+ */
+public class RunMzDeviationTest extends TestCase {
+
+    /**
+     * The bin size used for ms2 correction, corresponds to a fragment ion
+     * accuracy of 0.02.
+     */
+    private static final double MS2_BIN = 2.0;
+    /**
+     * The standard deviation of the precursor errors around the drift.
+     */
+    private static final double PRECURSOR_NOISE = 5e-4;
+    /**
+     * The standard deviation of the fragment errors around the drift.
+     */
+    private static final double FRAGMENT_NOISE = 2e-3;
+    /**
+     * The number of fragment m/z bins per PSM.
+     */
+    private static final int N_FRAGMENTS = 10;
+
+    /**
+     * Tests that the precursor and fragment corrections estimated on the grid
+     * are close to the ones estimated using exact medians.
+     */
+    public void testDeviationsAgainstExactMedians() {
+
+        ArrayList<TestPsm> psms = getPsms(3000, 3600, new Random(42));
+
+        RunMzDeviation runMzDeviation = getRunMzDeviation(psms);
+        ReferenceDeviation reference = new ReferenceDeviation(psms);
+
+        for (double rt = 150; rt <= 3450; rt += 50) {
+            for (double mz = 450; mz <= 1550; mz += 100) {
+                double expected = reference.getPrecursorMzCorrection(mz, rt);
+                double actual = runMzDeviation.getPrecursorMzCorrection(mz, rt);
+                assertEquals("Precursor correction at rt " + rt + " and m/z " + mz, expected, actual, PRECURSOR_NOISE / 2);
+            }
+            for (double mz = 250; mz <= 1750; mz += 100) {
+                double expected = reference.getFragmentMzError(rt, mz);
+                double actual = runMzDeviation.getFragmentMzError(rt, mz);
+                assertEquals("Fragment correction at rt " + rt + " and m/z " + mz, expected, actual, FRAGMENT_NOISE / 2);
+            }
+        }
+    }
+
+    /**
+     * Tests that the deviations do not depend on the order in which the PSMs
+     * are added.
+     */
+    public void testOrderIndependence() {
+
+        ArrayList<TestPsm> psms = getPsms(2000, 3000, new Random(7));
+        RunMzDeviation runMzDeviation = getRunMzDeviation(psms);
+
+        Collections.shuffle(psms, new Random(3));
+        RunMzDeviation shuffledDeviation = getRunMzDeviation(psms);
+
+        assertEquals(runMzDeviation.getPrecursorRTList().size(), shuffledDeviation.getPrecursorRTList().size());
+        for (double rt = 0; rt <= 3000; rt += 37) {
+            for (double mz = 400; mz <= 1600; mz += 150) {
+                assertEquals(runMzDeviation.getPrecursorMzCorrection(mz, rt), shuffledDeviation.getPrecursorMzCorrection(mz, rt), 1e-9);
+                assertEquals(runMzDeviation.getFragmentMzError(rt, mz), shuffledDeviation.getFragmentMzError(rt, mz), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Tests that a run with too few PSMs for the retention time binning is
+     * estimated using a single bin. The precursor correction matches the
+     * exact estimation while the fragment correction is now estimated from
+     * the fragment errors.
+     */
+    public void testSingleBin() {
+
+        ArrayList<TestPsm> psms = getPsms(150, 1000, new Random(11));
+
+        RunMzDeviation runMzDeviation = getRunMzDeviation(psms);
+        ReferenceDeviation reference = new ReferenceDeviation(psms);
+
+        assertEquals(1, runMzDeviation.getPrecursorRTList().size());
+
+        ArrayList<Double> fragmentErrors = new ArrayList<Double>();
+        for (TestPsm psm : psms) {
+            fragmentErrors.addAll(psm.fragmentErrors.values());
+        }
+        double medianFragmentError = ReferenceDeviation.median(fragmentErrors);
+
+        for (double mz = 450; mz <= 1550; mz += 100) {
+            assertEquals(reference.getPrecursorMzCorrection(mz, 500.0), runMzDeviation.getPrecursorMzCorrection(mz, 500.0), PRECURSOR_NOISE / 2);
+        }
+        for (double mz = 250; mz <= 1750; mz += 100) {
+            assertEquals(medianFragmentError, runMzDeviation.getFragmentMzError(500.0, mz), 2 * FRAGMENT_NOISE);
+        }
+    }
+
+    /**
+     * Tests that a run without precursor error cannot be estimated.
+     */
+    public void testNoValidatedPsm() {
+        RunMzDeviation runMzDeviation = new RunMzDeviation(MS2_BIN);
+        runMzDeviation.addErrors(10.0, 500.0, null, null);
+        try {
+            runMzDeviation.estimateDeviations("test.mgf", null);
+            fail("Deviations estimated without precursor error.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns the deviations estimated on the grid for the given PSMs.
+     *
+     * @param psms the PSMs
+     *
+     * @return the deviations estimated on the grid
+     */
+    private static RunMzDeviation getRunMzDeviation(ArrayList<TestPsm> psms) {
+        RunMzDeviation runMzDeviation = new RunMzDeviation(MS2_BIN);
+        for (TestPsm psm : psms) {
+            runMzDeviation.addErrors(psm.rt, psm.mz, psm.precursorError, psm.fragmentErrors);
+        }
+        runMzDeviation.estimateDeviations("test.mgf", null);
+        return runMzDeviation;
+    }
+
+    /**
+     * Returns synthetic PSMs with errors drifting with the retention time and
+     * the m/z.
+     *
+     * @param nPsms the number of PSMs
+     * @param runDuration the duration of the run in seconds
+     * @param random the random generator
+     *
+     * @return synthetic PSMs
+     */
+    private static ArrayList<TestPsm> getPsms(int nPsms, double runDuration, Random random) {
+        ArrayList<TestPsm> psms = new ArrayList<TestPsm>(nPsms);
+        for (int i = 0; i < nPsms; i++) {
+            TestPsm psm = new TestPsm();
+            psm.rt = (i + random.nextDouble()) * runDuration / nPsms;
+            psm.mz = 400 + 1200 * random.nextDouble();
+            psm.precursorError = 1e-3 + 2e-6 * psm.mz + 3e-7 * psm.rt + PRECURSOR_NOISE * random.nextGaussian();
+            psm.fragmentErrors = new HashMap<Double, Double>(N_FRAGMENTS);
+            for (int j = 0; j < N_FRAGMENTS; j++) {
+                double fragmentMz = 150 + 1700 * random.nextDouble();
+                double fragmentMzKey = (int) (fragmentMz / MS2_BIN) * MS2_BIN;
+                double error = 2e-3 + 3e-6 * fragmentMz - 5e-7 * psm.rt + FRAGMENT_NOISE * random.nextGaussian();
+                psm.fragmentErrors.put(fragmentMzKey, error);
+            }
+            psms.add(psm);
+        }
+        return psms;
+    }
+
+    /**
+     * The errors of a synthetic PSM.
+     */
+    private static class TestPsm {
+
+        /**
+         * The precursor retention time.
+         */
+        private double rt;
+        /**
+         * The precursor m/z.
+         */
+        private double mz;
+        /**
+         * The precursor error.
+         */
+        private Double precursorError;
+        /**
+         * The median fragment error in every fragment m/z bin.
+         */
+        private HashMap<Double, Double> fragmentErrors;
+    }
+
+    /**
+     * The estimation of the deviations using exact medians on the errors
+     * gathered by retention time and m/z, as done before the grid was
+     * introduced.
+     */
+    private static class ReferenceDeviation {
+
+        /**
+         * The precursor slopes indexed by retention time.
+         */
+        private final HashMap<Double, Double> precursorSlopes = new HashMap<Double, Double>();
+        /**
+         * The precursor offsets indexed by retention time.
+         */
+        private final HashMap<Double, Double> precursorOffsets = new HashMap<Double, Double>();
+        /**
+         * The fragment errors indexed by retention time and fragment m/z.
+         */
+        private final HashMap<Double, HashMap<Double, Double>> fragmentsRtDeviations = new HashMap<Double, HashMap<Double, Double>>();
+        /**
+         * The retention times of the bins in ascending order.
+         */
+        private final ArrayList<Double> precursorRTList;
+
+        /**
+         * Constructor.
+         *
+         * @param psms the PSMs
+         */
+        private ReferenceDeviation(ArrayList<TestPsm> psms) {
+
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+            for (TestPsm psm : psms) {
+                add(precursorRawMap, psm.rt, psm.mz, psm.precursorError);
+                for (double fragmentMz : psm.fragmentErrors.keySet()) {
+                    add(fragmentRawMap, psm.rt, fragmentMz, psm.fragmentErrors.get(fragmentMz));
+                }
+            }
+
+            ArrayList<Double> keys = new ArrayList<Double>(precursorRawMap.keySet());
+            Collections.sort(keys);
+            int cpt1 = 0;
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+
+            for (double rt : keys) {
+
+                precursorTempMap.put(rt, precursorRawMap.get(rt));
+                HashMap<Double, ArrayList<Double>> fragmentValues = fragmentRawMap.get(rt);
+                fragmentTempMap.put(rt, fragmentValues != null ? fragmentValues : new HashMap<Double, ArrayList<Double>>());
+                for (ArrayList<Double> errors : precursorRawMap.get(rt).values()) {
+                    cpt1 += errors.size();
+                }
+
+                if (cpt1 > RunMzDeviation.rtBinSize) {
+
+                    ArrayList<Double> rtList = new ArrayList<Double>(precursorTempMap.keySet());
+                    Collections.sort(rtList);
+                    double rtRef = median(rtList);
+                    addPrecursorBin(rtRef, precursorTempMap, cpt1);
+                    addFragmentBin(rtRef, fragmentTempMap);
+
+                    for (double tempRt : rtList) {
+                        for (ArrayList<Double> errors : precursorTempMap.get(tempRt).values()) {
+                            cpt1 -= errors.size();
+                        }
+                        precursorTempMap.remove(tempRt);
+                        fragmentTempMap.remove(tempRt);
+                        if (cpt1 <= RunMzDeviation.rtBinSize) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (precursorSlopes.isEmpty()) {
+                double rtRef = median(keys);
+                addPrecursorBin(rtRef, precursorRawMap, cpt1);
+                fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
+            }
+
+            precursorRTList = new ArrayList<Double>(precursorSlopes.keySet());
+            Collections.sort(precursorRTList);
+        }
+
+        /**
+         * Estimates the precursor slope and offset of a bin.
+         *
+         * @param rtRef the retention time of the bin
+         * @param precursorMap the precursor errors of the bin
+         * @param nErrors the number of errors of the bin
+         */
+        private void addPrecursorBin(double rtRef, HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorMap, int nErrors) {
+
+            HashMap<Double, ArrayList<Double>> mzToErrorMap = merge(precursorMap);
+            ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
+            Collections.sort(mzList);
+            ArrayList<Double> mz1 = new ArrayList<Double>();
+            ArrayList<Double> mz2 = new ArrayList<Double>();
+            ArrayList<Double> err1 = new ArrayList<Double>();
+            ArrayList<Double> err2 = new ArrayList<Double>();
+            int cpt2 = 0;
+            for (double mz : mzList) {
+                for (double err : mzToErrorMap.get(mz)) {
+                    if (cpt2 < nErrors / 2) {
+                        mz1.add(mz);
+                        err1.add(err);
+                        cpt2++;
+                    } else {
+                        mz2.add(mz);
+                        err2.add(err);
+                    }
+                }
+            }
+
+            double x1 = median(mz1);
+            double x2 = median(mz2);
+            double y1 = median(err1);
+            double y2 = median(err2);
+            double slope = x1 == x2 ? 0 : (y2 - y1) / (x2 - x1);
+            precursorSlopes.put(rtRef, slope);
+            precursorOffsets.put(rtRef, (y2 + y1 - slope * (x1 + x2)) / 2);
+        }
+
+        /**
+         * Estimates the fragment errors of a bin.
+         *
+         * @param rtRef the retention time of the bin
+         * @param fragmentMap the fragment errors of the bin
+         */
+        private void addFragmentBin(double rtRef, HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentMap) {
+
+            HashMap<Double, Double> deviations = new HashMap<Double, Double>();
+            fragmentsRtDeviations.put(rtRef, deviations);
+            HashMap<Double, ArrayList<Double>> mzToErrorMap = merge(fragmentMap);
+            ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
+            Collections.sort(mzList);
+            ArrayList<Double> mz1 = new ArrayList<Double>();
+            ArrayList<Double> mz2 = new ArrayList<Double>();
+            ArrayList<Double> err1 = new ArrayList<Double>();
+            ArrayList<Double> err2 = new ArrayList<Double>();
+            double mzRef = -1;
+
+            for (double mz : mzList) {
+                mz1.add(mz);
+                err1.addAll(mzToErrorMap.get(mz));
+                if (err1.size() >= RunMzDeviation.mzBinSize) {
+                    mzRef = median(mz1);
+                    deviations.put(mzRef, median(err1));
+                    mz2 = new ArrayList<Double>(mz1);
+                    err2 = new ArrayList<Double>(err1);
+                    mz1.clear();
+                    err1.clear();
+                }
+            }
+
+            if (!mz1.isEmpty()) {
+                deviations.remove(mzRef);
+                mz1.addAll(mz2);
+                err1.addAll(err2);
+                deviations.put(median(mz1), median(err1));
+            }
+        }
+
+        /**
+         * Returns the precursor correction, average of the corrections of the
+         * surrounding retention time bins.
+         *
+         * @param precursorMz the precursor m/z
+         * @param precursorRT the precursor retention time
+         *
+         * @return the precursor correction
+         */
+        private double getPrecursorMzCorrection(double precursorMz, double precursorRT) {
+            double[] rtKeys = getSurroundingKeys(precursorRTList, precursorRT);
+            double grade = (precursorSlopes.get(rtKeys[0]) + precursorSlopes.get(rtKeys[1])) / 2;
+            double offset = (precursorOffsets.get(rtKeys[0]) + precursorOffsets.get(rtKeys[1])) / 2;
+            return grade * precursorMz + offset;
+        }
+
+        /**
+         * Returns the fragment correction, weighted by m/z and retention time
+         * between the surrounding bins.
+         *
+         * @param precursorRT the precursor retention time
+         * @param fragmentMz the fragment m/z
+         *
+         * @return the fragment correction
+         */
+        private double getFragmentMzError(double precursorRT, double fragmentMz) {
+            double[] rtKeys = getSurroundingKeys(precursorRTList, precursorRT);
+            double correction1 = getFragmentMzError(fragmentsRtDeviations.get(rtKeys[0]), fragmentMz);
+            double correction2 = getFragmentMzError(fragmentsRtDeviations.get(rtKeys[1]), fragmentMz);
+            return correction1 * rtKeys[0] / (rtKeys[0] + rtKeys[1]) + correction2 * rtKeys[1] / (rtKeys[0] + rtKeys[1]);
+        }
+
+        /**
+         * Returns the fragment correction of a retention time bin, weighted by
+         * m/z between the surrounding m/z bins.
+         *
+         * @param deviations the fragment errors of the bin
+         * @param fragmentMz the fragment m/z
+         *
+         * @return the fragment correction
+         */
+        private static double getFragmentMzError(HashMap<Double, Double> deviations, double fragmentMz) {
+            ArrayList<Double> mzList = new ArrayList<Double>(deviations.keySet());
+            Collections.sort(mzList);
+            double[] mzKeys = getSurroundingKeys(mzList, fragmentMz);
+            return deviations.get(mzKeys[0]) * mzKeys[0] / (mzKeys[0] + mzKeys[1]) + deviations.get(mzKeys[1]) * mzKeys[1] / (mzKeys[0] + mzKeys[1]);
+        }
+
+        /**
+         * Returns the keys surrounding the given value.
+         *
+         * @param keys the keys in ascending order
+         * @param value the value
+         *
+         * @return the keys surrounding the given value
+         */
+        private static double[] getSurroundingKeys(ArrayList<Double> keys, double value) {
+            double key1 = keys.get(0);
+            double key2 = key1;
+            if (value > key1) {
+                key1 = keys.get(keys.size() - 1);
+                key2 = key1;
+                if (value < key1) {
+                    for (int i = 0; i < keys.size() - 1; i++) {
+                        key1 = keys.get(i);
+                        if (value == key1) {
+                            key2 = value;
+                            break;
+                        }
+                        key2 = keys.get(i + 1);
+                        if (key1 < value && value < key2) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return new double[]{key1, key2};
+        }
+
+        /**
+         * Adds an error to a map indexed by retention time and m/z.
+         *
+         * @param map the map
+         * @param rt the retention time
+         * @param mz the m/z
+         * @param error the error
+         */
+        private static void add(HashMap<Double, HashMap<Double, ArrayList<Double>>> map, double rt, double mz, double error) {
+            HashMap<Double, ArrayList<Double>> mzMap = map.get(rt);
+            if (mzMap == null) {
+                mzMap = new HashMap<Double, ArrayList<Double>>();
+                map.put(rt, mzMap);
+            }
+            ArrayList<Double> errors = mzMap.get(mz);
+            if (errors == null) {
+                errors = new ArrayList<Double>();
+                mzMap.put(mz, errors);
+            }
+            errors.add(error);
+        }
+
+        /**
+         * Gathers the errors of all retention times by m/z.
+         *
+         * @param map the errors indexed by retention time and m/z
+         *
+         * @return the errors indexed by m/z
+         */
+        private static HashMap<Double, ArrayList<Double>> merge(HashMap<Double, HashMap<Double, ArrayList<Double>>> map) {
+            HashMap<Double, ArrayList<Double>> result = new HashMap<Double, ArrayList<Double>>();
+            for (HashMap<Double, ArrayList<Double>> mzMap : map.values()) {
+                for (double mz : mzMap.keySet()) {
+                    ArrayList<Double> errors = result.get(mz);
+                    if (errors == null) {
+                        errors = new ArrayList<Double>();
+                        result.put(mz, errors);
+                    }
+                    errors.addAll(mzMap.get(mz));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the median of the given values.
+         *
+         * @param values the values
+         *
+         * @return the median of the given values
+         */
+        private static double median(ArrayList<Double> values) {
+            double[] sorted = new double[values.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = values.get(i);
+            }
+            Arrays.sort(sorted);
+            int middle = sorted.length / 2;
+            if (sorted.length % 2 == 1) {
+                return sorted[middle];
+            }
+            return (sorted[middle - 1] + sorted[middle]) / 2;
+        }
+    }
+}
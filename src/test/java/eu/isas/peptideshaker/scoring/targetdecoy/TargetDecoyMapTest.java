@@ -0,0 +1,103 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests the freezing of the target/decoy maps.
+ *
+ * @author Marc Vaudel
+ */
+public class TargetDecoyMapTest extends TestCase {
+
+    /**
+     * Tests that a map gives the same results after being thawed and frozen
+     * again.
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    public void testFreezeThaw() throws Exception {
+
+        TargetDecoyMap reference = getMap(1);
+        reference.estimateProbabilities(new WaitingHandlerCLIImpl());
+
+        TargetDecoyMap map = getMap(1);
+        map.estimateProbabilities(new WaitingHandlerCLIImpl());
+        assertEquivalent(reference, map);
+
+        // adding and removing a point thaws the map
+        map.put(1000.0, true);
+        map.remove(1000.0, true);
+        map.cleanUp();
+        map.estimateProbabilities(new WaitingHandlerCLIImpl());
+        assertEquivalent(reference, map);
+    }
+
+    /**
+     * Tests that a frozen map gives the same results after being saved and
+     * read again, and that it remains frozen after being saved.
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    public void testSerialization() throws Exception {
+
+        TargetDecoyMap map = getMap(2);
+        map.estimateProbabilities(new WaitingHandlerCLIImpl());
+        ArrayList<Double> scores = map.getScores();
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(byteStream);
+        out.writeObject(map);
+        out.close();
+
+        assertSame(scores, map.getScores());
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+        TargetDecoyMap readMap = (TargetDecoyMap) in.readObject();
+        in.close();
+
+        assertEquivalent(map, readMap);
+    }
+
+    /**
+     * Creates a map with random target and decoy hits.
+     *
+     * @param seed the seed of the random generator
+     *
+     * @return a map with random target and decoy hits
+     */
+    private TargetDecoyMap getMap(long seed) {
+        Random random = new Random(seed);
+        TargetDecoyMap map = new TargetDecoyMap();
+        for (int i = 0; i < 5000; i++) {
+            boolean decoy = random.nextDouble() < 0.2;
+            double score = decoy ? random.nextInt(50) : random.nextInt(100);
+            map.put(score, decoy);
+        }
+        return map;
+    }
+
+    /**
+     * Asserts that two maps give the same results.
+     *
+     * @param expected the expected map
+     * @param actual the map to test
+     */
+    private void assertEquivalent(TargetDecoyMap expected, TargetDecoyMap actual) {
+        assertEquals(expected.getMapSize(), actual.getMapSize());
+        assertEquals(expected.getnMax(), actual.getnMax());
+        assertEquals(expected.getScores(), actual.getScores());
+        for (double score : expected.getScores()) {
+            assertEquals(expected.getNTarget(score), actual.getNTarget(score));
+            assertEquals(expected.getNDecoy(score), actual.getNDecoy(score));
+            assertEquals(expected.getProbability(score), actual.getProbability(score), 0);
+            assertEquals(expected.getProbability(score + 0.5), actual.getProbability(score + 0.5), 0);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests the selection of the matches to validate again by the target/decoy
+ * match index.
+ *
+ * @author Marc Vaudel
+ */
+public class TargetDecoyMatchIndexTest extends TestCase {
+
+    /**
+     * The confidence margin in resolution of the map.
+     */
+    private static final double CONFIDENCE_MARGIN = 1.0;
+
+    /**
+     * Tests that validating again the matches returned by the index gives the
+     * same validation levels as validating all matches with the new
+     * thresholds.
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    public void testAgainstFullRevalidation() throws Exception {
+
+        Random random = new Random(3);
+        TargetDecoyMap map = getMap(random);
+        TargetDecoyMatchIndex matchIndex = new TargetDecoyMatchIndex();
+        HashMap<String, double[]> matches = new HashMap<String, double[]>();
+        for (int i = 0; i < 2000; i++) {
+            String key = "match_" + i;
+            double score = random.nextInt(120) / 2.0;
+            double confidence = random.nextInt(101);
+            matches.put(key, new double[]{score, confidence});
+            matchIndex.addMatch(key, score, confidence);
+        }
+        assertEquals(matches.size(), matchIndex.size());
+
+        for (boolean firstDecoy : new boolean[]{false, true}) {
+
+            setThresholds(map, 20, 50, false, 1.0);
+            HashMap<String, Integer> levels = validate(map, matches, firstDecoy);
+            matchIndex.setValidationThresholds(map, CONFIDENCE_MARGIN, firstDecoy);
+
+            for (int i = 0; i < 50; i++) {
+
+                double scoreLimit = random.nextInt(120) / 2.0;
+                double confidenceLimit = random.nextInt(101);
+                boolean noValidated = random.nextDouble() < 0.1;
+                double fdrLimit = random.nextDouble() < 0.2 ? 0.01 : 1.0;
+                setThresholds(map, scoreLimit, confidenceLimit, noValidated, fdrLimit);
+
+                HashSet<String> affectedKeys = matchIndex.getAffectedKeys(map, CONFIDENCE_MARGIN, firstDecoy);
+                HashMap<String, Integer> newLevels = validate(map, matches, firstDecoy);
+                for (String key : affectedKeys) {
+                    levels.put(key, getLevel(map, matches.get(key), firstDecoy));
+                }
+                assertEquals("Revalidation " + i + (firstDecoy ? " with" : " without") + " first decoy check", newLevels, levels);
+
+                matchIndex.setValidationThresholds(map, CONFIDENCE_MARGIN, firstDecoy);
+                assertFalse(matchIndex.thresholdsChanged(map, CONFIDENCE_MARGIN, firstDecoy));
+            }
+        }
+    }
+
+    /**
+     * Tests that no match is returned before a validation and when the
+     * thresholds did not change.
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    public void testUnchangedThresholds() throws Exception {
+
+        TargetDecoyMap map = getMap(new Random(4));
+        TargetDecoyMatchIndex matchIndex = new TargetDecoyMatchIndex();
+        matchIndex.addMatch("match", 10, 60);
+
+        assertFalse(matchIndex.isValidated());
+        assertFalse(matchIndex.isIndexed());
+        assertNull(matchIndex.getAffectedKeys(map, CONFIDENCE_MARGIN, false));
+
+        setThresholds(map, 20, 50, false, 1.0);
+        matchIndex.setValidationThresholds(map, CONFIDENCE_MARGIN, false);
+        assertTrue(matchIndex.isValidated());
+        assertTrue(matchIndex.getAffectedKeys(map, CONFIDENCE_MARGIN, false).isEmpty());
+
+        matchIndex.setIndexed(true);
+        assertTrue(matchIndex.isIndexed());
+    }
+
+    /**
+     * Creates an estimated map with random target and decoy hits.
+     *
+     * @param random the random generator
+     *
+     * @return an estimated map with random target and decoy hits
+     */
+    private TargetDecoyMap getMap(Random random) {
+        TargetDecoyMap map = new TargetDecoyMap();
+        for (int i = 0; i < 5000; i++) {
+            boolean decoy = random.nextDouble() < 0.2;
+            double score = decoy ? random.nextInt(50) : random.nextInt(100);
+            map.put(score, decoy);
+        }
+        map.estimateProbabilities(new WaitingHandlerCLIImpl());
+        return map;
+    }
+
+    /**
+     * Sets the thresholds of a map.
+     *
+     * @param map the target/decoy map
+     * @param scoreLimit the score threshold
+     * @param confidenceLimit the confidence threshold
+     * @param noValidated boolean indicating whether no match is validated
+     * @param fdrLimit the FDR limit
+     */
+    private void setThresholds(TargetDecoyMap map, double scoreLimit, double confidenceLimit, boolean noValidated, double fdrLimit) {
+        TargetDecoyResults targetDecoyResults = map.getTargetDecoyResults();
+        targetDecoyResults.setScoreLimit(scoreLimit);
+        targetDecoyResults.setConfidenceLimit(confidenceLimit);
+        targetDecoyResults.setNoValidated(noValidated);
+        targetDecoyResults.setFdrLimit(fdrLimit);
+        targetDecoyResults.setUserInput(fdrLimit);
+    }
+
+    /**
+     * Validates all matches with the current thresholds of the map.
+     *
+     * @param map the target/decoy map
+     * @param matches the score and confidence of the matches indexed by key
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     *
+     * @return the validation level of the matches indexed by key
+     */
+    private HashMap<String, Integer> validate(TargetDecoyMap map, HashMap<String, double[]> matches, boolean firstDecoy) {
+        HashMap<String, Integer> levels = new HashMap<String, Integer>(matches.size());
+        for (String key : matches.keySet()) {
+            levels.put(key, getLevel(map, matches.get(key), firstDecoy));
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the validation level of a match as done by the matches
+     * validator: 0 for not validated, 1 for doubtful and 2 for confident.
+     *
+     * @param map the target/decoy map
+     * @param match the score and confidence of the match
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     *
+     * @return the validation level of the match
+     */
+    private int getLevel(TargetDecoyMap map, double[] match, boolean firstDecoy) {
+        TargetDecoyResults targetDecoyResults = map.getTargetDecoyResults();
+        if (targetDecoyResults.noValidated() || match[0] > targetDecoyResults.getScoreLimit()) {
+            return 0;
+        }
+        double confidenceThreshold = Math.min(100, targetDecoyResults.getConfidenceLimit() + CONFIDENCE_MARGIN * map.getResolution());
+        boolean enoughHits = !firstDecoy || map.getnTargetOnly() > 100.0 / targetDecoyResults.getFdrLimit();
+        return match[1] >= confidenceThreshold && enoughHits ? 2 : 1;
+    }
+}
@@ -1,6 +1,15 @@
 package eu.isas.peptideshaker.test;
 
+import eu.isas.peptideshaker.export.ExportBenchmark;
+import eu.isas.peptideshaker.export.columnar.ColumnarReportTest;
 import eu.isas.peptideshaker.pride.PrideWebServiceTest;
+import eu.isas.peptideshaker.recalibration.RunMzDeviationTest;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMapTest;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMatchIndexTest;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCacheTest;
+import eu.isas.peptideshaker.utils.ParallelGzipOutputStreamTest;
+import eu.isas.peptideshaker.utils.PsmChunkProcessorTest;
+import eu.isas.peptideshaker.validation.MatchesRevalidationTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -19,6 +28,15 @@ public class FullSuite extends TestCase {
     public static Test suite() {
         TestSuite ts = new TestSuite("Test suite for the PeptideShaker project.");
         ts.addTest(new TestSuite(PrideWebServiceTest.class));
+        ts.addTest(new TestSuite(TargetDecoyMapTest.class));
+        ts.addTest(new TestSuite(TargetDecoyMatchIndexTest.class));
+        ts.addTest(new TestSuite(IdentificationFeaturesCacheTest.class));
+        ts.addTest(new TestSuite(ColumnarReportTest.class));
+        ts.addTest(new TestSuite(RunMzDeviationTest.class));
+        ts.addTest(new TestSuite(PsmChunkProcessorTest.class));
+        ts.addTest(new TestSuite(ParallelGzipOutputStreamTest.class));
+        ts.addTest(new TestSuite(MatchesRevalidationTest.class));
+        ts.addTest(new TestSuite(ExportBenchmark.class));
         return ts;
     }
 }
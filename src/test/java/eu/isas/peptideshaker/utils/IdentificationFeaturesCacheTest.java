@@ -0,0 +1,152 @@
+package eu.isas.peptideshaker.utils;
+
+import eu.isas.peptideshaker.preferences.UserPreferences;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache.ObjectType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests the cache of the identification features.
+ *
+ * @author Marc Vaudel
+ */
+public class IdentificationFeaturesCacheTest extends TestCase {
+
+    /**
+     * Tests that the cache does not grow over its size and evicts the least
+     * recently used objects.
+     */
+    public void testEviction() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        cache.setCacheSize(ObjectType.number_of_spectra, 64);
+
+        cache.addObject(ObjectType.number_of_spectra, "protein", 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.addObject(ObjectType.number_of_spectra, "protein" + i, i);
+            assertNotNull(cache.getObject(ObjectType.number_of_spectra, "protein"));
+            assertTrue(cache.getNObjects(ObjectType.number_of_spectra) <= 64);
+        }
+
+        assertNull(cache.getObject(ObjectType.number_of_spectra, "protein0"));
+        assertEquals(999, cache.getObject(ObjectType.number_of_spectra, "protein999"));
+        assertEquals(1001 - cache.getNObjects(ObjectType.number_of_spectra), cache.getNEvictions(ObjectType.number_of_spectra));
+
+        // reducing the size evicts the objects over the new size
+        cache.setCacheSize(ObjectType.number_of_spectra, 16);
+        assertTrue(cache.getNObjects(ObjectType.number_of_spectra) <= 16);
+        assertEquals(16, cache.getCacheSize(ObjectType.number_of_spectra));
+
+        // other types are not affected
+        cache.addObject(ObjectType.number_of_validated_spectra, "protein", 1);
+        assertEquals(1, cache.getNObjects(ObjectType.number_of_validated_spectra));
+    }
+
+    /**
+     * Tests that the objects depending on the validation are removed when the
+     * matches are validated again.
+     */
+    public void testValidationInvalidation() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        for (ObjectType type : ObjectType.values()) {
+            cache.addObject(type, "protein", type.name());
+        }
+
+        cache.removeValidationDependentObjects();
+
+        for (ObjectType type : ObjectType.values()) {
+            Object object = cache.getObject(type, "protein");
+            if (IdentificationFeaturesCache.dependsOnValidation(type)) {
+                assertNull(type.name(), object);
+            } else {
+                assertEquals(type.name(), object);
+            }
+        }
+        assertNull(cache.getObject(ObjectType.number_of_validated_peptides, "protein"));
+        assertNull(cache.getObject(ObjectType.unique_validated_peptides, "protein"));
+        assertNotNull(cache.getObject(ObjectType.number_of_spectra, "protein"));
+    }
+
+    /**
+     * Tests that the default sizes share the former small and big objects
+     * budgets and that the sizes set in the user preferences are used.
+     */
+    public void testCacheSizes() {
+
+        int smallObjects = 0;
+        int bigObjects = 0;
+        for (ObjectType type : ObjectType.values()) {
+            if (IdentificationFeaturesCache.isBigObject(type)) {
+                bigObjects += IdentificationFeaturesCache.getDefaultCacheSize(type);
+            } else {
+                smallObjects += IdentificationFeaturesCache.getDefaultCacheSize(type);
+            }
+        }
+        assertTrue(smallObjects <= IdentificationFeaturesCache.DEFAULT_SMALL_OBJECTS_CACHE_SIZE);
+        assertTrue(bigObjects <= IdentificationFeaturesCache.DEFAULT_BIG_OBJECTS_CACHE_SIZE);
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        cache.setCacheSizes(null);
+        assertEquals(IdentificationFeaturesCache.getDefaultCacheSize(ObjectType.AA_coverage), cache.getCacheSize(ObjectType.AA_coverage));
+
+        UserPreferences userPreferences = new UserPreferences();
+        cache.setCacheSizes(userPreferences);
+        assertEquals(IdentificationFeaturesCache.getDefaultCacheSize(ObjectType.AA_coverage), cache.getCacheSize(ObjectType.AA_coverage));
+
+        userPreferences.setIdentificationFeaturesCacheSize(ObjectType.AA_coverage.name(), 10);
+        cache.setCacheSizes(userPreferences);
+        assertEquals(10, cache.getCacheSize(ObjectType.AA_coverage));
+    }
+
+    /**
+     * Tests that the hits, misses and compute times are attributed to the
+     * type of the objects queried.
+     */
+    public void testStatistics() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+
+        assertNull(cache.getObject(ObjectType.number_of_spectra, "protein"));
+        assertNull(cache.getObject(ObjectType.AA_coverage, "protein"));
+        cache.addObject(ObjectType.number_of_spectra, "protein", 1, 1000);
+        cache.addObject(ObjectType.AA_coverage, "protein", new int[0]);
+        assertNotNull(cache.getObject(ObjectType.number_of_spectra, "protein"));
+
+        assertEquals(1, cache.getNHits(ObjectType.number_of_spectra));
+        assertEquals(1, cache.getNMisses(ObjectType.number_of_spectra));
+        assertEquals(1000, cache.getComputeTime(ObjectType.number_of_spectra));
+        assertEquals(0, cache.getComputeTime(ObjectType.AA_coverage));
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getNHits(ObjectType.number_of_spectra));
+        assertEquals(0, cache.getComputeTime(ObjectType.number_of_spectra));
+    }
+
+    /**
+     * Tests that the objects in cache are kept when serializing the cache.
+     *
+     * @throws Exception exception thrown whenever an error occurred
+     */
+    public void testSerialization() throws Exception {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        cache.addObject(ObjectType.AA_coverage, "protein", new int[]{1, 2, 3});
+        cache.addObject(ObjectType.number_of_spectra, "protein", 5);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cache);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        IdentificationFeaturesCache copy = (IdentificationFeaturesCache) in.readObject();
+        in.close();
+
+        assertEquals(3, ((int[]) copy.getObject(ObjectType.AA_coverage, "protein")).length);
+        assertEquals(5, copy.getObject(ObjectType.number_of_spectra, "protein"));
+        assertNull(copy.getObject(ObjectType.tryptic_protein, "protein"));
+    }
+}
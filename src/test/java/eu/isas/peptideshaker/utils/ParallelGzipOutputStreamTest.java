@@ -0,0 +1,121 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests the parallel gzip compression.
+ *
+ * @author Marc Vaudel
+ */
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+    /**
+     * Tests that the data is restored by a standard gzip reader whatever the
+     * number of threads, the size of the blocks and the way the data is
+     * written.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing or decompressing the data
+     */
+    public void testRoundTrip() throws IOException {
+
+        byte[] data = getData(300000);
+        int[] threadCounts = {1, 2, 4};
+        int[] blockSizes = {1, 1000, 65536, 1024 * 1024};
+
+        for (int nThreads : threadCounts) {
+            for (int blockSize : blockSizes) {
+
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                ParallelGzipOutputStream gzipStream = new ParallelGzipOutputStream(byteStream, blockSize, nThreads);
+                try {
+                    int offset = 0;
+                    Random random = new Random(blockSize);
+                    while (offset < data.length) {
+                        if (random.nextInt(10) == 0) {
+                            gzipStream.write(data[offset++]);
+                        } else {
+                            int length = Math.min(data.length - offset, random.nextInt(5000));
+                            gzipStream.write(data, offset, length);
+                            offset += length;
+                        }
+                        if (random.nextInt(50) == 0) {
+                            gzipStream.flush();
+                        }
+                    }
+                } finally {
+                    gzipStream.close();
+                }
+
+                byte[] compressed = byteStream.toByteArray();
+                assertEquals(data.length, gzipStream.getUncompressedSize());
+                assertEquals(compressed.length, gzipStream.getCompressedSize());
+                assertTrue("Data restored with " + nThreads + " threads and blocks of " + blockSize,
+                        Arrays.equals(data, decompress(compressed)));
+            }
+        }
+    }
+
+    /**
+     * Tests that closing the stream twice and closing an empty stream produce
+     * a valid file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * compressing or decompressing the data
+     */
+    public void testEmptyStream() throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ParallelGzipOutputStream gzipStream = new ParallelGzipOutputStream(byteStream, 1024, 2);
+        gzipStream.close();
+        gzipStream.close();
+        assertEquals(0, gzipStream.getUncompressedSize());
+        assertEquals(0, byteStream.size());
+    }
+
+    /**
+     * Returns compressible pseudo random data.
+     *
+     * @param length the length of the data
+     *
+     * @return compressible pseudo random data
+     */
+    private static byte[] getData(int length) {
+        Random random = new Random(1);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('A' + random.nextInt(random.nextBoolean() ? 4 : 26));
+        }
+        return data;
+    }
+
+    /**
+     * Decompresses gzip data made of one or more members.
+     *
+     * @param compressed the compressed data
+     *
+     * @return the decompressed data
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * decompressing the data
+     */
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzipInputStream.read(buffer)) != -1) {
+                byteStream.write(buffer, 0, read);
+            }
+            return byteStream.toByteArray();
+        } finally {
+            gzipInputStream.close();
+        }
+    }
+}
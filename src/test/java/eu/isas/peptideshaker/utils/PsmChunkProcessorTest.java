@@ -0,0 +1,276 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.personalization.UrParameter;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests the distribution of the PSMs to the threads by the PSM chunk
+ * processor.
+ *
+ * @author Marc Vaudel
+ */
+public class PsmChunkProcessorTest extends TestCase {
+
+    /**
+     * Tests that every PSM of every file is processed exactly once, whatever
+     * the number of threads and the size of the chunks.
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred
+     */
+    public void testEveryKeyProcessedOnce() throws InterruptedException {
+
+        LinkedHashMap<String, ArrayList<String>> spectrumKeys = new LinkedHashMap<String, ArrayList<String>>();
+        spectrumKeys.put("file1.mgf", getKeys("file1.mgf", 1000));
+        spectrumKeys.put("file2.mgf", getKeys("file2.mgf", 37));
+        spectrumKeys.put("file3.mgf", getKeys("file3.mgf", 0));
+        spectrumKeys.put("file4.mgf", getKeys("file4.mgf", 250));
+
+        int[] threadCounts = {1, 2, 3, 8};
+        int[] chunkSizes = {1, 7, 100, 5000};
+
+        for (int nThreads : threadCounts) {
+            for (int chunkSize : chunkSizes) {
+
+                RecordingFactory factory = new RecordingFactory(0);
+                new TestProcessor(nThreads, chunkSize).process(spectrumKeys, null, false, factory, null, null);
+
+                HashMap<String, Integer> counts = factory.getCounts();
+                int nKeys = 0;
+                for (ArrayList<String> keys : spectrumKeys.values()) {
+                    for (String key : keys) {
+                        assertEquals("Processing count of " + key + " with " + nThreads + " threads and chunks of " + chunkSize,
+                                Integer.valueOf(1), counts.get(key));
+                    }
+                    nKeys += keys.size();
+                }
+                assertEquals(nKeys, counts.size());
+            }
+        }
+    }
+
+    /**
+     * Tests that a thread which exhausted the file it started on processes
+     * the remaining chunks of the other files.
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred
+     */
+    public void testWorkStealing() throws InterruptedException {
+
+        LinkedHashMap<String, ArrayList<String>> spectrumKeys = new LinkedHashMap<String, ArrayList<String>>();
+        ArrayList<String> largeFileKeys = getKeys("large.mgf", 200);
+        ArrayList<String> smallFileKeys = getKeys("small.mgf", 5);
+        spectrumKeys.put("large.mgf", largeFileKeys);
+        spectrumKeys.put("small.mgf", smallFileKeys);
+
+        RecordingFactory factory = new RecordingFactory(1);
+        new TestProcessor(2, 5).process(spectrumKeys, null, false, factory, null, null);
+
+        // The second thread starts on the small file and then takes chunks of the large file
+        ArrayList<String> secondThreadKeys = factory.getTask(1).getKeys();
+        assertTrue(secondThreadKeys.containsAll(smallFileKeys));
+        assertEquals(smallFileKeys, secondThreadKeys.subList(0, smallFileKeys.size()));
+        assertTrue(secondThreadKeys.size() > smallFileKeys.size());
+        assertTrue(factory.getTask(0).getKeys().size() < largeFileKeys.size());
+
+        HashSet<String> processedKeys = new HashSet<String>(factory.getTask(0).getKeys());
+        processedKeys.addAll(secondThreadKeys);
+        assertEquals(largeFileKeys.size() + smallFileKeys.size(), processedKeys.size());
+        assertEquals(largeFileKeys.size() + smallFileKeys.size(), factory.getTask(0).getKeys().size() + secondThreadKeys.size());
+    }
+
+    /**
+     * Tests that threads sharing the chunks of a list of PSMs process every
+     * PSM exactly once.
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred
+     */
+    public void testSharedChunks() throws InterruptedException {
+
+        final ArrayList<String> spectrumKeys = getKeys("file1.mgf", 1013);
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final TestProcessor processor = new TestProcessor(1, 10);
+        final RecordingFactory factory = new RecordingFactory(0);
+        final ArrayList<Exception> errors = new ArrayList<Exception>();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final PsmChunkProcessor.PsmTask psmTask = factory.getPsmTask();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processor.processSharedChunks(spectrumKeys, nextIndex, null, false, psmTask, null);
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(errors.isEmpty());
+        HashMap<String, Integer> counts = factory.getCounts();
+        assertEquals(spectrumKeys.size(), counts.size());
+        for (String key : spectrumKeys) {
+            assertEquals(Integer.valueOf(1), counts.get(key));
+        }
+    }
+
+    /**
+     * Returns spectrum keys for a file.
+     *
+     * @param fileName the name of the file
+     * @param nKeys the number of keys
+     *
+     * @return spectrum keys for a file
+     */
+    private static ArrayList<String> getKeys(String fileName, int nKeys) {
+        ArrayList<String> keys = new ArrayList<String>(nKeys);
+        for (int i = 0; i < nKeys; i++) {
+            keys.add(fileName + "_cus_" + i);
+        }
+        return keys;
+    }
+
+    /**
+     * Chunk processor creating the spectrum matches from their keys instead
+     * of loading them from the identification.
+     */
+    private static class TestProcessor extends PsmChunkProcessor {
+
+        /**
+         * Constructor.
+         *
+         * @param nThreads the number of threads to use
+         * @param chunkSize the number of PSMs per chunk
+         */
+        private TestProcessor(int nThreads, int chunkSize) {
+            super(null, nThreads, chunkSize);
+        }
+
+        @Override
+        void processChunk(ArrayList<String> chunk, ArrayList<UrParameter> parameters, boolean loadAssumptions, PsmTask psmTask, WaitingHandler waitingHandler) throws Exception {
+            for (String spectrumKey : chunk) {
+                psmTask.process(new SpectrumMatch(spectrumKey));
+            }
+        }
+    }
+
+    /**
+     * Factory of tasks recording the keys they process.
+     */
+    private static class RecordingFactory implements PsmChunkProcessor.PsmTaskFactory {
+
+        /**
+         * The tasks created, one per thread.
+         */
+        private final ArrayList<RecordingTask> tasks = new ArrayList<RecordingTask>();
+        /**
+         * The time in milliseconds a task takes per PSM.
+         */
+        private final long psmDuration;
+
+        /**
+         * Constructor.
+         *
+         * @param psmDuration the time in milliseconds a task takes per PSM
+         */
+        private RecordingFactory(long psmDuration) {
+            this.psmDuration = psmDuration;
+        }
+
+        @Override
+        public synchronized PsmChunkProcessor.PsmTask getPsmTask() {
+            RecordingTask task = new RecordingTask(psmDuration);
+            tasks.add(task);
+            return task;
+        }
+
+        /**
+         * Returns the task created at the given index.
+         *
+         * @param index the index of the task
+         *
+         * @return the task created at the given index
+         */
+        private synchronized RecordingTask getTask(int index) {
+            return tasks.get(index);
+        }
+
+        /**
+         * Returns the number of times every key was processed.
+         *
+         * @return the number of times every key was processed
+         */
+        private synchronized HashMap<String, Integer> getCounts() {
+            HashMap<String, Integer> counts = new HashMap<String, Integer>();
+            for (RecordingTask task : tasks) {
+                for (String key : task.getKeys()) {
+                    Integer count = counts.get(key);
+                    counts.put(key, count == null ? 1 : count + 1);
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Task recording the keys it processes.
+     */
+    private static class RecordingTask implements PsmChunkProcessor.PsmTask {
+
+        /**
+         * The keys processed in processing order.
+         */
+        private final ArrayList<String> keys = new ArrayList<String>();
+        /**
+         * The time in milliseconds taken per PSM.
+         */
+        private final long psmDuration;
+
+        /**
+         * Constructor.
+         *
+         * @param psmDuration the time in milliseconds taken per PSM
+         */
+        private RecordingTask(long psmDuration) {
+            this.psmDuration = psmDuration;
+        }
+
+        @Override
+        public void process(SpectrumMatch spectrumMatch) throws Exception {
+            if (psmDuration > 0) {
+                Thread.sleep(psmDuration);
+            }
+            synchronized (keys) {
+                keys.add(spectrumMatch.getKey());
+            }
+        }
+
+        /**
+         * Returns the keys processed in processing order.
+         *
+         * @return the keys processed in processing order
+         */
+        private ArrayList<String> getKeys() {
+            synchronized (keys) {
+                return new ArrayList<String>(keys);
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package eu.isas.peptideshaker.validation;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMatchIndex;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache.ObjectType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests that validating again the matches after a change of thresholds, in
+ * the order used by the matches validator, gives the same validation levels
+ * and spectrum counting totals as validating all matches. The project is a
+ * synthetic set of PSMs, peptides and proteins where the spectrum counting of
+ * a protein is the number of validated PSMs of its peptides.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchesRevalidationTest extends TestCase {
+
+    /**
+     * The confidence margin in resolution of the maps.
+     */
+    private static final double CONFIDENCE_MARGIN = 1.0;
+    /**
+     * The number of threshold changes tested.
+     */
+    private static final int N_REVALIDATIONS = 40;
+
+    /**
+     * Tests that the incremental revalidation gives the same levels and
+     * totals as a complete validation after every threshold change.
+     */
+    public void testAgainstCompleteValidation() {
+
+        for (boolean firstDecoy : new boolean[]{false, true}) {
+
+            Random random = new Random(7);
+            SyntheticProject incrementalProject = new SyntheticProject(new Random(11));
+            SyntheticProject completeProject = new SyntheticProject(new Random(11));
+
+            TargetDecoyMap[] maps = new TargetDecoyMap[]{getMap(random), getMap(random), getMap(random)};
+            for (TargetDecoyMap map : maps) {
+                setThresholds(map, 30, 50, false, 1.0);
+            }
+            incrementalProject.validate(maps, firstDecoy);
+            completeProject.validate(maps, firstDecoy);
+            incrementalProject.indexMatches(maps, firstDecoy);
+
+            for (int i = 0; i < N_REVALIDATIONS; i++) {
+
+                for (TargetDecoyMap map : maps) {
+                    setRandomThresholds(map, random);
+                }
+
+                incrementalProject.revalidate(maps, firstDecoy, true);
+                completeProject.validate(maps, firstDecoy);
+
+                String message = "Revalidation " + i + (firstDecoy ? " with" : " without") + " first decoy check";
+                assertTrue(message, Arrays.equals(completeProject.psmLevels, incrementalProject.psmLevels));
+                assertTrue(message, Arrays.equals(completeProject.peptideLevels, incrementalProject.peptideLevels));
+                assertTrue(message, Arrays.equals(completeProject.proteinLevels, incrementalProject.proteinLevels));
+                assertEquals(message, completeProject.totalSpectrumCounting, incrementalProject.totalSpectrumCounting, 1e-6);
+                assertEquals(message, completeProject.totalSpectrumCountingMass, incrementalProject.totalSpectrumCountingMass, 1e-3);
+            }
+        }
+    }
+
+    /**
+     * Tests that taking the spectrum counting of the proteins after the PSMs
+     * were validated again makes the totals drift, ensuring that the test
+     * above is sensitive to the order of the revalidation.
+     */
+    public void testLateSnapshotDrifts() {
+
+        Random random = new Random(7);
+        SyntheticProject incrementalProject = new SyntheticProject(new Random(11));
+        SyntheticProject completeProject = new SyntheticProject(new Random(11));
+
+        TargetDecoyMap[] maps = new TargetDecoyMap[]{getMap(random), getMap(random), getMap(random)};
+        for (TargetDecoyMap map : maps) {
+            setThresholds(map, 30, 50, false, 1.0);
+        }
+        incrementalProject.validate(maps, false);
+        completeProject.validate(maps, false);
+        incrementalProject.indexMatches(maps, false);
+
+        boolean drift = false;
+        for (int i = 0; i < N_REVALIDATIONS && !drift; i++) {
+            for (TargetDecoyMap map : maps) {
+                setRandomThresholds(map, random);
+            }
+            incrementalProject.revalidate(maps, false, false);
+            completeProject.validate(maps, false);
+            drift = Math.abs(completeProject.totalSpectrumCounting - incrementalProject.totalSpectrumCounting) > 1e-6;
+        }
+        assertTrue(drift);
+    }
+
+    /**
+     * Creates an estimated map with random target and decoy hits.
+     *
+     * @param random the random generator
+     *
+     * @return an estimated map with random target and decoy hits
+     */
+    private static TargetDecoyMap getMap(Random random) {
+        TargetDecoyMap map = new TargetDecoyMap();
+        for (int i = 0; i < 5000; i++) {
+            boolean decoy = random.nextDouble() < 0.2;
+            double score = decoy ? random.nextInt(50) : random.nextInt(100);
+            map.put(score, decoy);
+        }
+        map.estimateProbabilities(new WaitingHandlerCLIImpl());
+        return map;
+    }
+
+    /**
+     * Sets random thresholds on a map.
+     *
+     * @param map the target/decoy map
+     * @param random the random generator
+     */
+    private static void setRandomThresholds(TargetDecoyMap map, Random random) {
+        double scoreLimit = random.nextInt(120) / 2.0;
+        double confidenceLimit = random.nextInt(101);
+        boolean noValidated = random.nextDouble() < 0.05;
+        double fdrLimit = random.nextDouble() < 0.2 ? 0.01 : 1.0;
+        setThresholds(map, scoreLimit, confidenceLimit, noValidated, fdrLimit);
+    }
+
+    /**
+     * Sets the thresholds of a map.
+     *
+     * @param map the target/decoy map
+     * @param scoreLimit the score threshold
+     * @param confidenceLimit the confidence threshold
+     * @param noValidated boolean indicating whether no match is validated
+     * @param fdrLimit the FDR limit
+     */
+    private static void setThresholds(TargetDecoyMap map, double scoreLimit, double confidenceLimit, boolean noValidated, double fdrLimit) {
+        TargetDecoyResults targetDecoyResults = map.getTargetDecoyResults();
+        targetDecoyResults.setScoreLimit(scoreLimit);
+        targetDecoyResults.setConfidenceLimit(confidenceLimit);
+        targetDecoyResults.setNoValidated(noValidated);
+        targetDecoyResults.setFdrLimit(fdrLimit);
+        targetDecoyResults.setUserInput(fdrLimit);
+    }
+
+    /**
+     * Returns the validation level of a match as done by the matches
+     * validator: 0 for not validated, 1 for doubtful and 2 for confident.
+     *
+     * @param map the target/decoy map
+     * @param score the score of the match
+     * @param confidence the confidence of the match
+     * @param firstDecoy boolean indicating whether the number of target hits
+     * before the first decoy is used for quality control
+     *
+     * @return the validation level of the match
+     */
+    private static int getLevel(TargetDecoyMap map, double score, double confidence, boolean firstDecoy) {
+        TargetDecoyResults targetDecoyResults = map.getTargetDecoyResults();
+        if (targetDecoyResults.noValidated() || score > targetDecoyResults.getScoreLimit()) {
+            return 0;
+        }
+        double confidenceThreshold = Math.min(100, targetDecoyResults.getConfidenceLimit() + CONFIDENCE_MARGIN * map.getResolution());
+        boolean enoughHits = !firstDecoy || map.getnTargetOnly() > 100.0 / targetDecoyResults.getFdrLimit();
+        return confidence >= confidenceThreshold && enoughHits ? 2 : 1;
+    }
+
+    /**
+     * Synthetic project of PSMs, peptides and proteins with their validation
+     * levels and the spectrum counting totals of the metrics.
+     */
+    private static class SyntheticProject {
+
+        /**
+         * The scores of the PSMs.
+         */
+        private final double[][] psmScores = new double[2000][2];
+        /**
+         * The peptide of every PSM.
+         */
+        private final int[] psmPeptide = new int[psmScores.length];
+        /**
+         * The scores of the peptides.
+         */
+        private final double[][] peptideScores = new double[300][2];
+        /**
+         * The proteins of every peptide.
+         */
+        private final int[][] peptideProteins = new int[peptideScores.length][];
+        /**
+         * The PSMs of every peptide.
+         */
+        private final ArrayList<ArrayList<Integer>> peptidePsms = new ArrayList<ArrayList<Integer>>();
+        /**
+         * The scores of the proteins.
+         */
+        private final double[][] proteinScores = new double[60][2];
+        /**
+         * The peptides of every protein.
+         */
+        private final ArrayList<ArrayList<Integer>> proteinPeptides = new ArrayList<ArrayList<Integer>>();
+        /**
+         * The molecular weight of the proteins.
+         */
+        private final double[] proteinWeights = new double[proteinScores.length];
+        /**
+         * The validation level of the PSMs.
+         */
+        private final int[] psmLevels = new int[psmScores.length];
+        /**
+         * The validation level of the peptides.
+         */
+        private final int[] peptideLevels = new int[peptideScores.length];
+        /**
+         * The validation level of the proteins.
+         */
+        private final int[] proteinLevels = new int[proteinScores.length];
+        /**
+         * The cache of the spectrum counting.
+         */
+        private final IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        /**
+         * The total spectrum counting of the validated target proteins.
+         */
+        private double totalSpectrumCounting = 0;
+        /**
+         * The total spectrum counting mass of the validated target proteins.
+         */
+        private double totalSpectrumCountingMass = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param random the random generator
+         */
+        private SyntheticProject(Random random) {
+            for (int i = 0; i < proteinScores.length; i++) {
+                proteinScores[i] = new double[]{random.nextInt(120) / 2.0, random.nextInt(101)};
+                proteinWeights[i] = 10 + random.nextInt(200);
+                proteinPeptides.add(new ArrayList<Integer>());
+            }
+            for (int i = 0; i < peptideScores.length; i++) {
+                peptideScores[i] = new double[]{random.nextInt(120) / 2.0, random.nextInt(101)};
+                int firstProtein = random.nextInt(proteinScores.length);
+                int secondProtein = random.nextInt(proteinScores.length);
+                peptideProteins[i] = firstProtein == secondProtein ? new int[]{firstProtein} : new int[]{firstProtein, secondProtein};
+                for (int protein : peptideProteins[i]) {
+                    proteinPeptides.get(protein).add(i);
+                }
+                peptidePsms.add(new ArrayList<Integer>());
+            }
+            for (int i = 0; i < psmScores.length; i++) {
+                psmScores[i] = new double[]{random.nextInt(120) / 2.0, random.nextInt(101)};
+                psmPeptide[i] = random.nextInt(peptideScores.length);
+                peptidePsms.get(psmPeptide[i]).add(i);
+            }
+        }
+
+        /**
+         * Indicates whether a protein is a decoy.
+         *
+         * @param protein the index of the protein
+         *
+         * @return a boolean indicating whether a protein is a decoy
+         */
+        private boolean isDecoy(int protein) {
+            return protein % 5 == 0;
+        }
+
+        /**
+         * Returns the spectrum counting of a protein from the cache or
+         * computed from the current validation levels of the PSMs.
+         *
+         * @param protein the index of the protein
+         *
+         * @return the spectrum counting of the protein
+         */
+        private double getSpectrumCounting(int protein) {
+            String key = "protein_" + protein;
+            Double result = (Double) cache.getObject(ObjectType.spectrum_counting, key);
+            if (result == null) {
+                result = 0.0;
+                for (int peptide : proteinPeptides.get(protein)) {
+                    for (int psm : peptidePsms.get(peptide)) {
+                        if (psmLevels[psm] > 0) {
+                            result++;
+                        }
+                    }
+                }
+                cache.addObject(ObjectType.spectrum_counting, key, result);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the spectrum counting and spectrum counting mass of a
+         * protein if it contributes to the totals, null otherwise.
+         *
+         * @param protein the index of the protein
+         *
+         * @return the contribution of the protein to the totals
+         */
+        private double[] getContribution(int protein) {
+            if (isDecoy(protein) || proteinLevels[protein] == 0) {
+                return null;
+            }
+            double spectrumCounting = getSpectrumCounting(protein);
+            return new double[]{spectrumCounting, proteinWeights[protein] * spectrumCounting};
+        }
+
+        /**
+         * Validates all matches and computes the totals.
+         *
+         * @param maps the PSM, peptide and protein target/decoy maps
+         * @param firstDecoy boolean indicating whether the number of target
+         * hits before the first decoy is used for quality control
+         */
+        private void validate(TargetDecoyMap[] maps, boolean firstDecoy) {
+            cache.removeValidationDependentObjects();
+            for (int i = 0; i < psmLevels.length; i++) {
+                psmLevels[i] = getLevel(maps[0], psmScores[i][0], psmScores[i][1], firstDecoy);
+            }
+            for (int i = 0; i < peptideLevels.length; i++) {
+                peptideLevels[i] = getLevel(maps[1], peptideScores[i][0], peptideScores[i][1], firstDecoy);
+            }
+            totalSpectrumCounting = 0;
+            totalSpectrumCountingMass = 0;
+            for (int i = 0; i < proteinLevels.length; i++) {
+                proteinLevels[i] = getLevel(maps[2], proteinScores[i][0], proteinScores[i][1], firstDecoy);
+                double[] contribution = getContribution(i);
+                if (contribution != null) {
+                    totalSpectrumCounting += contribution[0];
+                    totalSpectrumCountingMass += contribution[1];
+                }
+            }
+        }
+
+        /**
+         * Indexes the matches on the maps and stores the thresholds of the
+         * last validation.
+         *
+         * @param maps the PSM, peptide and protein target/decoy maps
+         * @param firstDecoy boolean indicating whether the number of target
+         * hits before the first decoy is used for quality control
+         */
+        private void indexMatches(TargetDecoyMap[] maps, boolean firstDecoy) {
+            TargetDecoyMatchIndex psmIndex = new TargetDecoyMatchIndex();
+            for (int i = 0; i < psmScores.length; i++) {
+                psmIndex.addMatch("psm_" + i, psmScores[i][0], psmScores[i][1]);
+            }
+            TargetDecoyMatchIndex peptideIndex = new TargetDecoyMatchIndex();
+            for (int i = 0; i < peptideScores.length; i++) {
+                peptideIndex.addMatch("peptide_" + i, peptideScores[i][0], peptideScores[i][1]);
+            }
+            TargetDecoyMatchIndex proteinIndex = new TargetDecoyMatchIndex();
+            for (int i = 0; i < proteinScores.length; i++) {
+                proteinIndex.addMatch("protein_" + i, proteinScores[i][0], proteinScores[i][1]);
+            }
+            psmIndex.setIndexed(true);
+            peptideIndex.setIndexed(true);
+            proteinIndex.setIndexed(true);
+            maps[0].setMatchIndex(psmIndex);
+            maps[1].setMatchIndex(peptideIndex);
+            maps[2].setMatchIndex(proteinIndex);
+            for (TargetDecoyMap map : maps) {
+                map.getMatchIndex().setValidationThresholds(map, CONFIDENCE_MARGIN, firstDecoy);
+            }
+        }
+
+        /**
+         * Validates again the matches which can change validation level in
+         * the order of the matches validator.
+         *
+         * @param maps the PSM, peptide and protein target/decoy maps
+         * @param firstDecoy boolean indicating whether the number of target
+         * hits before the first decoy is used for quality control
+         * @param earlySnapshot if true the contributions of the proteins are
+         * saved before any validation level changes, otherwise after the
+         * validation of the PSMs
+         */
+        private void revalidate(TargetDecoyMap[] maps, boolean firstDecoy, boolean earlySnapshot) {
+
+            // select the matches between the former and new thresholds
+            HashSet<Integer> psms = getIndexes(maps[0].getMatchIndex().getAffectedKeys(maps[0], CONFIDENCE_MARGIN, firstDecoy));
+            HashSet<Integer> peptides = getIndexes(maps[1].getMatchIndex().getAffectedKeys(maps[1], CONFIDENCE_MARGIN, firstDecoy));
+            HashSet<Integer> proteins = getIndexes(maps[2].getMatchIndex().getAffectedKeys(maps[2], CONFIDENCE_MARGIN, firstDecoy));
+
+            // the contributions of the proteins which can be affected
+            HashSet<Integer> candidatePeptides = new HashSet<Integer>(peptides);
+            for (int psm : psms) {
+                candidatePeptides.add(psmPeptide[psm]);
+            }
+            HashSet<Integer> candidateProteins = new HashSet<Integer>(proteins);
+            for (int peptide : candidatePeptides) {
+                for (int protein : peptideProteins[peptide]) {
+                    candidateProteins.add(protein);
+                }
+            }
+            HashMap<Integer, double[]> previousContributions = new HashMap<Integer, double[]>();
+            if (earlySnapshot) {
+                saveContributions(candidateProteins, previousContributions);
+            }
+
+            cache.removeValidationDependentObjects();
+
+            // PSMs
+            HashSet<Integer> changedPsmPeptides = new HashSet<Integer>();
+            for (int psm : psms) {
+                int level = getLevel(maps[0], psmScores[psm][0], psmScores[psm][1], firstDecoy);
+                if (level != psmLevels[psm]) {
+                    changedPsmPeptides.add(psmPeptide[psm]);
+                }
+                psmLevels[psm] = level;
+            }
+            if (!earlySnapshot) {
+                saveContributions(candidateProteins, previousContributions);
+            }
+
+            // peptides
+            peptides.addAll(changedPsmPeptides);
+            for (int peptide : peptides) {
+                int level = getLevel(maps[1], peptideScores[peptide][0], peptideScores[peptide][1], firstDecoy);
+                if (level != peptideLevels[peptide] || changedPsmPeptides.contains(peptide)) {
+                    for (int protein : peptideProteins[peptide]) {
+                        proteins.add(protein);
+                    }
+                }
+                peptideLevels[peptide] = level;
+            }
+
+            // proteins
+            for (int protein : proteins) {
+                double[] previousContribution = previousContributions.get(protein);
+                if (previousContribution != null) {
+                    totalSpectrumCounting -= previousContribution[0];
+                    totalSpectrumCountingMass -= previousContribution[1];
+                }
+                proteinLevels[protein] = getLevel(maps[2], proteinScores[protein][0], proteinScores[protein][1], firstDecoy);
+                double[] contribution = getContribution(protein);
+                if (contribution != null) {
+                    totalSpectrumCounting += contribution[0];
+                    totalSpectrumCountingMass += contribution[1];
+                }
+            }
+
+            cache.removeValidationDependentObjects();
+
+            for (TargetDecoyMap map : maps) {
+                map.getMatchIndex().setValidationThresholds(map, CONFIDENCE_MARGIN, firstDecoy);
+            }
+        }
+
+        /**
+         * Saves the contributions of the given proteins to the totals.
+         *
+         * @param proteins the indexes of the proteins
+         * @param contributions the map where to save the contributions
+         */
+        private void saveContributions(HashSet<Integer> proteins, HashMap<Integer, double[]> contributions) {
+            for (int protein : proteins) {
+                double[] contribution = getContribution(protein);
+                if (contribution != null) {
+                    contributions.put(protein, contribution);
+                }
+            }
+        }
+
+        /**
+         * Returns the indexes of the matches from their keys.
+         *
+         * @param keys the keys of the matches
+         *
+         * @return the indexes of the matches
+         */
+        private HashSet<Integer> getIndexes(HashSet<String> keys) {
+            HashSet<Integer> result = new HashSet<Integer>(keys.size());
+            for (String key : keys) {
+                result.add(Integer.parseInt(key.substring(key.indexOf('_') + 1)));
+            }
+            return result;
+        }
+    }
+}